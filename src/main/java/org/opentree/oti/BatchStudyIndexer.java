@@ -0,0 +1,759 @@
+package org.opentree.oti;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.opentree.graphdb.GraphDatabaseAgent;
+import org.opentree.nexson.io.NexsonSource;
+import org.opentree.oti.constants.OTIRelType;
+import org.opentree.oti.indexproperties.OTINodeProperty;
+
+/**
+ * Indexes many studies at once. NexSON documents are fetched and parsed concurrently on a bounded pool of
+ * worker threads, while the calling thread writes the parsed studies to the graph in group-committed
+ * transactions of a configurable size. If a group fails to commit, its studies are retried one at a time
+ * so that the outcome can still be reported per study.
+ *
+ * Groups can also be written by several threads at once (see setWriteThreads). Writes to the same study are still
+ * serialized by the DatabaseManager's study locks, but if a study appears more than once in the sources, the order in
+ * which its versions are written is then not defined.
+ */
+public class BatchStudyIndexer extends OTIDatabase {
+
+	public static final int DEFAULT_COMMIT_BATCH_SIZE = 10;
+	public static final int DEFAULT_FETCH_THREADS = 4;
+	public static final int DEFAULT_WRITE_THREADS = 1;
+
+	/** The number of times a study is retried if its transaction is chosen as the victim of a deadlock. */
+	public static final int MAX_DEADLOCK_RETRIES = 3;
+
+	/** Node properties whose values are neo4j node ids or are derived from them. See hashStudyGraph. */
+	private static final OTINodeProperty[] NODE_ID_PROPERTIES = new OTINodeProperty[] { OTINodeProperty.NODE_ID,
+		OTINodeProperty.TREE_INDEX_TAG, OTINodeProperty.STUDY_META_NODE_ID, OTINodeProperty.ROOT_NODE_ID,
+		OTINodeProperty.INGROUP_START_NODE_ID };
+
+	/**
+	 * Reads a single nexson study from some kind of source identifier (e.g. a url).
+	 */
+	public interface NexsonLoader {
+		public NexsonSource load(String source) throws Exception;
+	}
+
+	/**
+	 * The default loader, which reads nexsons from remote urls.
+	 */
+	public static final NexsonLoader REMOTE_URL_LOADER = new NexsonLoader() {
+		@Override
+		public NexsonSource load(String url) throws Exception {
+			return readRemoteNexson(url);
+		}
+	};
+
+	/**
+	 * A loader that reads nexsons from local file paths.
+	 */
+	public static final NexsonLoader LOCAL_FILE_LOADER = new NexsonLoader() {
+		@Override
+		public NexsonSource load(String path) throws Exception {
+			return LocalNexsonReader.readNexsonFile(new File(path));
+		}
+	};
+
+	private final DatabaseManager manager;
+	private int commitBatchSize = DEFAULT_COMMIT_BATCH_SIZE;
+	private int fetchThreads = DEFAULT_FETCH_THREADS;
+	private int writeThreads = DEFAULT_WRITE_THREADS;
+
+	// ===== constructors
+
+	public BatchStudyIndexer(GraphDatabaseService graphService) {
+		super(graphService);
+		manager = new DatabaseManager(graphDb);
+	}
+
+	public BatchStudyIndexer(EmbeddedGraphDatabase embeddedGraph) {
+		super(embeddedGraph);
+		manager = new DatabaseManager(graphDb);
+	}
+
+	public BatchStudyIndexer(GraphDatabaseAgent gdb) {
+		super(gdb);
+		manager = new DatabaseManager(graphDb);
+	}
+
+	// ===== configuration
+
+	/**
+	 * Set the number of studies written per transaction. Values less than 1 are ignored.
+	 * @param commitBatchSize
+	 */
+	public BatchStudyIndexer setCommitBatchSize(Integer commitBatchSize) {
+		if (commitBatchSize != null && commitBatchSize > 0) {
+			this.commitBatchSize = commitBatchSize;
+		}
+		return this;
+	}
+
+	/**
+	 * Set the number of threads used to fetch and parse nexsons. Values less than 1 are ignored.
+	 * @param fetchThreads
+	 */
+	public BatchStudyIndexer setFetchThreads(Integer fetchThreads) {
+		if (fetchThreads != null && fetchThreads > 0) {
+			this.fetchThreads = fetchThreads;
+		}
+		return this;
+	}
+
+	/**
+	 * Set the number of threads used to write groups of studies to the graph. Values less than 1 are ignored.
+	 * @param writeThreads
+	 */
+	public BatchStudyIndexer setWriteThreads(Integer writeThreads) {
+		if (writeThreads != null && writeThreads > 0) {
+			this.writeThreads = writeThreads;
+		}
+		return this;
+	}
+
+	/**
+	 * Set whether index entries are buffered until each write is committed. See DatabaseManager.setBufferedIndexWrites.
+	 * @param bufferedIndexWrites
+	 */
+	public BatchStudyIndexer setBufferedIndexWrites(boolean bufferedIndexWrites) {
+		manager.setBufferedIndexWrites(bufferedIndexWrites);
+		return this;
+	}
+
+	// ===== indexing
+
+	/**
+	 * Index local nexson files into a graph db that is not in use by a running server. Unlike BulkLoader, this writes
+	 * through the normal transactional path, so it can be used to add or update studies in an existing db.
+	 *
+	 * The studies are written by the given number of threads (by default, one). Comparing the reported throughput for
+	 * different numbers of threads shows how well concurrent ingest scales on the machine.
+	 *
+	 * With -c, the studies are instead indexed into new dbs in subdirectories of the given scratch directory, once with
+	 * index entries written one at a time and once with them buffered (the default), and the throughput and index
+	 * statistics of both runs are reported. See compareIndexWrites.
+	 *
+	 * With -p, the studies are indexed one at a time into new dbs in subdirectories of the given scratch directory, once
+	 * with their trees written serially and once with them built on the given number of tree threads, and the graphs
+	 * written by both runs are compared along with their write times. See compareTreeThreads.
+	 *
+	 * Usage: java -cp oti.jar org.opentree.oti.BatchStudyIndexer [-w <write threads>] <graph db dir> <nexson file or dir> [<nexson file or dir> ...]
+	 *        java -cp oti.jar org.opentree.oti.BatchStudyIndexer [-w <write threads>] -c <scratch dir> <nexson file or dir> [<nexson file or dir> ...]
+	 *        java -cp oti.jar org.opentree.oti.BatchStudyIndexer -p <tree threads> <scratch dir> <nexson file or dir> [<nexson file or dir> ...]
+	 */
+	public static void main(String[] args) throws IOException {
+
+		int first = 0;
+		Integer writeThreads = null;
+		Integer treeThreads = null;
+		if (args.length > 1 && args[0].equals("-p")) {
+			treeThreads = Integer.parseInt(args[1]);
+			first = 2;
+		} else if (args.length > 1 && args[0].equals("-w")) {
+			writeThreads = Integer.parseInt(args[1]);
+			first = 2;
+		}
+		boolean compare = false;
+		if (args.length > first && args[first].equals("-c")) {
+			compare = true;
+			first++;
+		}
+		if (args.length - first < 2) {
+			System.out.println("usage: BatchStudyIndexer [-w <write threads>] <graph db dir> <nexson file or dir> [<nexson file or dir> ...]");
+			System.out.println("       BatchStudyIndexer [-w <write threads>] -c <scratch dir> <nexson file or dir> [<nexson file or dir> ...]");
+			System.out.println("       BatchStudyIndexer -p <tree threads> <scratch dir> <nexson file or dir> [<nexson file or dir> ...]");
+			System.exit(1);
+		}
+
+		File[] locations = new File[args.length - first - 1];
+		for (int i = first + 1; i < args.length; i++) {
+			locations[i - first - 1] = new File(args[i]);
+		}
+
+		if (treeThreads != null) {
+			if (! compareTreeThreads(new File(args[first]), locations, treeThreads)) {
+				System.exit(2);
+			}
+		} else if (compare) {
+			compareIndexWrites(new File(args[first]), locations, writeThreads);
+		} else {
+			indexIntoDb(new File(args[first]), locations, writeThreads, true);
+		}
+	}
+
+	/**
+	 * Measure what buffering index entries saves. The studies are indexed three times, each time into a new db in a
+	 * subdirectory of the scratch directory: once to warm up the jvm and the file cache (not reported), once with index
+	 * entries written one at a time as nodes are indexed, and once with them buffered and written with one index.add call
+	 * per key of each node. The throughput and index statistics of the last two runs are printed side by side, along with
+	 * the ratio of their indexing times.
+	 * 
+	 * @param scratchDir
+	 * 		A directory in which the subdirectories warmup, unbuffered and buffered do not exist yet
+	 * @param locations
+	 * @param writeThreads
+	 * @throws IOException
+	 */
+	public static void compareIndexWrites(File scratchDir, File[] locations, Integer writeThreads) throws IOException {
+		String[] runs = new String[] { "warmup", "unbuffered", "buffered" };
+		for (String run : runs) {
+			if (new File(scratchDir, run).exists()) {
+				throw new IllegalArgumentException(new File(scratchDir, run) + " already exists");
+			}
+		}
+		
+		indexIntoDb(new File(scratchDir, runs[0]), locations, writeThreads, true);
+		HashMap<String, Object> unbuffered = indexIntoDb(new File(scratchDir, runs[1]), locations, writeThreads, false);
+		HashMap<String, Object> buffered = indexIntoDb(new File(scratchDir, runs[2]), locations, writeThreads, true);
+
+		System.out.println(String.format("%-28s %16s %16s", "", runs[1], runs[2]));
+		for (String stat : new String[] { "nodes_indexed", "index_entries_written", "index_add_calls",
+				"repeated_entries_skipped", "pending_entries_dropped", "indexing_ms", "index_add_calls_per_node",
+				"indexing_us_per_node" }) {
+			System.out.println(String.format("%-28s %16s %16s", stat, unbuffered.get(stat), buffered.get(stat)));
+		}
+		Object unbufferedMs = unbuffered.get("indexing_ms");
+		Object bufferedMs = buffered.get("indexing_ms");
+		if (unbufferedMs instanceof Long && bufferedMs instanceof Long && (Long) bufferedMs > 0) {
+			System.out.println(String.format("Buffered index writes were %.2fx as fast as unbuffered ones",
+					(double) (Long) unbufferedMs / (Long) bufferedMs));
+		}
+	}
+
+	/**
+	 * Check that building the trees of a study on several threads (see DatabaseManager.setTreeThreads) writes the same
+	 * graph as writing them serially, and measure how much faster it is. The studies are indexed three times, one at a
+	 * time, each time into a new db in a subdirectory of the scratch directory: once to warm up (not reported), once with
+	 * one tree thread and once with the given number. Only the time spent writing the studies is measured, not the time
+	 * spent parsing them. Each study written by the last two runs is then hashed (see hashStudyGraph) and the hashes are
+	 * compared, as are the index statistics, so a difference in either the graph or the index entries is reported.
+	 * 
+	 * Studies that are written in chunks (see DatabaseManager.isLargeStudy) always write their trees serially, so they
+	 * are only compared.
+	 * 
+	 * @param scratchDir
+	 * 		A directory in which the subdirectories warmup, serial and parallel do not exist yet
+	 * @param locations
+	 * @param treeThreads
+	 * @return
+	 * 		True if both runs wrote the same graph
+	 * @throws IOException
+	 */
+	public static boolean compareTreeThreads(File scratchDir, File[] locations, int treeThreads) throws IOException {
+		String[] runs = new String[] { "warmup", "serial", "parallel" };
+		for (String run : runs) {
+			if (new File(scratchDir, run).exists()) {
+				throw new IllegalArgumentException(new File(scratchDir, run) + " already exists");
+			}
+		}
+		List<File> files = LocalNexsonReader.collectNexsonFiles(locations);
+		
+		indexStudiesIntoDb(new File(scratchDir, runs[0]), files, treeThreads, new HashMap<String, Object>());
+		HashMap<String, Object> serialStats = new HashMap<String, Object>();
+		HashMap<String, Object> parallelStats = new HashMap<String, Object>();
+		HashMap<String, String> serial = indexStudiesIntoDb(new File(scratchDir, runs[1]), files, 1, serialStats);
+		HashMap<String, String> parallel = indexStudiesIntoDb(new File(scratchDir, runs[2]), files, treeThreads, parallelStats);
+
+		int differences = 0;
+		for (Entry<String, String> study : serial.entrySet()) {
+			if (! study.getValue().equals(parallel.get(study.getKey()))) {
+				System.out.println("Study " + study.getKey() + " differs between the serial and parallel runs");
+				differences++;
+			}
+		}
+		for (String studyId : parallel.keySet()) {
+			if (! serial.containsKey(studyId)) {
+				System.out.println("Study " + studyId + " was only written by the parallel run");
+				differences++;
+			}
+		}
+		for (String stat : new String[] { "nodes_indexed", "index_entries_written" }) {
+			if (! String.valueOf(serialStats.get(stat)).equals(String.valueOf(parallelStats.get(stat)))) {
+				System.out.println("The " + stat + " differ between the serial and parallel runs: " + serialStats.get(stat)
+						+ " and " + parallelStats.get(stat));
+				differences++;
+			}
+		}
+		
+		long serialMs = (Long) serialStats.get("write_ms");
+		long parallelMs = (Long) parallelStats.get("write_ms");
+		System.out.println(String.format("%-28s %16s %16s", "", runs[1], runs[2]));
+		System.out.println(String.format("%-28s %16d %16d", "tree_threads", 1, treeThreads));
+		System.out.println(String.format("%-28s %16d %16d", "studies", serial.size(), parallel.size()));
+		System.out.println(String.format("%-28s %16d %16d", "write_ms", serialMs, parallelMs));
+		if (parallelMs > 0) {
+			System.out.println(String.format("Writing with %d tree threads was %.2fx as fast as writing serially, on %d cores",
+					treeThreads, (double) serialMs / parallelMs, Runtime.getRuntime().availableProcessors()));
+		}
+		if (differences == 0) {
+			System.out.println("The serial and parallel runs wrote the same graph for all " + serial.size() + " studies");
+		}
+		return differences == 0;
+	}
+
+	/**
+	 * Index local nexson files one at a time into the graph db in the given directory, writing the trees of each study on
+	 * the given number of threads, and return the hashes of the graphs written for the studies by study id. The write time
+	 * (as write_ms) and the index statistics are put into `statistics`.
+	 */
+	private static HashMap<String, String> indexStudiesIntoDb(File graphDbDir, List<File> files, int treeThreads,
+			HashMap<String, Object> statistics) throws IOException {
+		EmbeddedGraphDatabase graphDb = new EmbeddedGraphDatabase(graphDbDir.getPath());
+		try {
+			DatabaseManager manager = new DatabaseManager(graphDb).setTreeThreads(treeThreads);
+			List<String> studyIds = new ArrayList<String>();
+			long writeMs = 0;
+			for (File file : files) {
+				NexsonSource study;
+				try {
+					study = LocalNexsonReader.readNexsonFile(file);
+				} catch (Exception ex) {
+					System.out.println("Could not read " + file + ": " + ex);
+					continue;
+				}
+				long start = System.currentTimeMillis();
+				manager.addOrReplaceStudy(study);
+				writeMs += System.currentTimeMillis() - start;
+				studyIds.add(study.getId());
+			}
+			System.out.println(String.format("Wrote %d studies into %s in %.1f s on %d tree threads", studyIds.size(),
+					graphDbDir, writeMs / 1000.0, treeThreads));
+			
+			HashMap<String, String> hashes = new HashMap<String, String>();
+			for (String studyId : studyIds) {
+				hashes.put(studyId, hashStudyGraph(manager.getStudyMetaNodeForStudyId(studyId)));
+			}
+			statistics.putAll(manager.getIndexingStatistics());
+			statistics.put("write_ms", writeMs);
+			return hashes;
+		} finally {
+			graphDb.shutdown();
+		}
+	}
+
+	/**
+	 * Return a hash of the graph written for a study: the properties of its metadata node, and for each of its trees the
+	 * properties of every tree node, the otu it is mapped to and the structure of the tree. Properties that hold neo4j
+	 * node ids, which depend on the order in which the nodes were created, are left out, as is the order of the trees and
+	 * of the children of each node, so two dbs into which the same study was written in different ways give the same hash
+	 * if and only if they hold the same graph for it.
+	 * @param studyMeta
+	 * @return
+	 */
+	static String hashStudyGraph(Node studyMeta) {
+		
+		List<String> treeHashes = new ArrayList<String>();
+		for (Relationship rel : studyMeta.getRelationships(OTIRelType.METADATAFOR, Direction.OUTGOING)) {
+			Node root = rel.getEndNode();
+			
+			// hash the nodes from the tips up, so each node's hash covers the hashes of its children
+			List<Node> preorder = new ArrayList<Node>();
+			LinkedList<Node> stack = new LinkedList<Node>();
+			stack.push(root);
+			while (! stack.isEmpty()) {
+				Node node = stack.pop();
+				preorder.add(node);
+				for (Relationship childRel : node.getRelationships(OTIRelType.CHILDOF, Direction.INCOMING)) {
+					stack.push(childRel.getStartNode());
+				}
+			}
+			HashMap<Long, String> nodeHashes = new HashMap<Long, String>();
+			for (int i = preorder.size() - 1; i >= 0; i--) {
+				Node node = preorder.get(i);
+				List<String> childHashes = new ArrayList<String>();
+				for (Relationship childRel : node.getRelationships(OTIRelType.CHILDOF, Direction.INCOMING)) {
+					childHashes.add(nodeHashes.remove(childRel.getStartNode().getId()));
+				}
+				Collections.sort(childHashes);
+				Relationship otuRel = node.getSingleRelationship(OTIRelType.OTUOF, Direction.INCOMING);
+
+				MessageDigest digest = NexsonContentHasher.newDigest();
+				NexsonContentHasher.updateWithProperties(digest, getGraphProperties(node));
+				NexsonContentHasher.updateWithProperties(digest, otuRel == null
+						? Collections.<String, Object>emptyMap() : getGraphProperties(otuRel.getStartNode()));
+				NexsonContentHasher.update(digest, childHashes.toString());
+				nodeHashes.put(node.getId(), NexsonContentHasher.toHex(digest.digest()));
+			}
+			treeHashes.add(nodeHashes.get(root.getId()));
+		}
+		Collections.sort(treeHashes);
+
+		MessageDigest digest = NexsonContentHasher.newDigest();
+		NexsonContentHasher.updateWithProperties(digest, getGraphProperties(studyMeta));
+		NexsonContentHasher.update(digest, treeHashes.toString());
+		return NexsonContentHasher.toHex(digest.digest());
+	}
+
+	/**
+	 * Return the properties of a node other than those that hold neo4j node ids. See hashStudyGraph.
+	 */
+	private static HashMap<String, Object> getGraphProperties(Node node) {
+		HashMap<String, Object> properties = new HashMap<String, Object>();
+		for (String key : node.getPropertyKeys()) {
+			properties.put(key, node.getProperty(key));
+		}
+		for (OTINodeProperty nodeIdProperty : NODE_ID_PROPERTIES) {
+			properties.remove(nodeIdProperty.propertyName());
+		}
+		return properties;
+	}
+
+	/**
+	 * Index local nexson files into the graph db in the given directory, print the throughput and index statistics, and
+	 * return the statistics.
+	 */
+	private static HashMap<String, Object> indexIntoDb(File graphDbDir, File[] locations, Integer writeThreads,
+			boolean bufferedIndexWrites) throws IOException {
+		EmbeddedGraphDatabase graphDb = new EmbeddedGraphDatabase(graphDbDir.getPath());
+		try {
+			BatchStudyIndexer indexer = new BatchStudyIndexer(graphDb).setWriteThreads(writeThreads)
+					.setBufferedIndexWrites(bufferedIndexWrites);
+			long start = System.currentTimeMillis();
+			IndexingReport report = indexer.indexFiles(locations);
+			double seconds = Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+			System.out.println(String.format("Indexed %d studies into %s in %.1f s (%.2f studies/s) on %d write threads",
+					report.getIndexedIds().size(), graphDbDir, seconds, report.getIndexedIds().size() / seconds, indexer.writeThreads));
+			for (Entry<String, String> error : report.getErrors().entrySet()) {
+				System.out.println("Could not index " + error.getKey() + ": " + error.getValue());
+			}
+			HashMap<String, Object> statistics = indexer.getIndexingStatistics();
+			System.out.println("Index statistics: " + statistics);
+			return statistics;
+		} finally {
+			graphDb.shutdown();
+		}
+	}
+
+	/**
+	 * Fetch, parse and index the nexsons at the provided urls.
+	 * @param urls
+	 * @return
+	 * 		A report containing the ids of the indexed studies and the errors for the urls that failed
+	 */
+	public IndexingReport indexUrls(String[] urls) {
+		List<String> sources = new ArrayList<String>(urls.length);
+		for (String url : urls) {
+			sources.add(url);
+		}
+		return index(sources, REMOTE_URL_LOADER);
+	}
+
+	/**
+	 * Read and index all the nexson (.json) files at or below the provided local paths, which may be files or
+	 * directories. Files are read and parsed in parallel.
+	 * @param locations
+	 * @return
+	 * 		A report containing the ids of the indexed studies and the errors for the files that failed
+	 * @throws IOException
+	 * 		If one of the directories cannot be listed
+	 */
+	public IndexingReport indexFiles(File ... locations) throws IOException {
+		List<String> paths = new ArrayList<String>();
+		for (File f : LocalNexsonReader.collectNexsonFiles(locations)) {
+			paths.add(f.getPath());
+		}
+		return index(paths, LOCAL_FILE_LOADER);
+	}
+
+	/**
+	 * Load and index the nexsons for the provided sources, using the supplied loader to read them. With a single write
+	 * thread, results are written in the order the sources were provided.
+	 *
+	 * @param sources
+	 * @param loader
+	 * @return
+	 * 		A report containing the ids of the indexed studies and the errors for the sources that failed
+	 */
+	public IndexingReport index(List<String> sources, final NexsonLoader loader) {
+
+		IndexingReport report = new IndexingReport();
+		ExecutorService fetchPool = Executors.newFixedThreadPool(fetchThreads);
+		BatchWriter writer = new BatchWriter(report);
+
+		// only keep a bounded number of parsed studies in memory ahead of the writers
+		int maxInFlight = fetchThreads + commitBatchSize;
+
+		try {
+			LinkedList<String> pendingSources = new LinkedList<String>();
+			LinkedList<Future<NexsonSource>> pendingStudies = new LinkedList<Future<NexsonSource>>();
+			int nextToSubmit = 0;
+
+			List<String> batchSources = new ArrayList<String>(commitBatchSize);
+			List<NexsonSource> batchStudies = new ArrayList<NexsonSource>(commitBatchSize);
+
+			while (nextToSubmit < sources.size() || ! pendingStudies.isEmpty()) {
+
+				// keep the fetch pool busy
+				while (nextToSubmit < sources.size() && pendingStudies.size() < maxInFlight) {
+					final String source = sources.get(nextToSubmit++);
+					pendingSources.add(source);
+					pendingStudies.add(fetchPool.submit(new Callable<NexsonSource>() {
+						@Override
+						public NexsonSource call() throws Exception {
+							return loader.load(source);
+						}
+					}));
+				}
+
+				// wait for the next study in order
+				String source = pendingSources.removeFirst();
+				NexsonSource study;
+				try {
+					study = pendingStudies.removeFirst().get();
+				} catch (ExecutionException ex) {
+					report.recordFailure(source, ex.getCause());
+					continue;
+				}
+				
+				// large studies are committed in chunks by the manager, so they cannot be part of a group commit
+				if (manager.isLargeStudy(study)) {
+					if (! batchStudies.isEmpty()) {
+						writer.write(batchSources, batchStudies);
+						batchSources = new ArrayList<String>(commitBatchSize);
+						batchStudies = new ArrayList<NexsonSource>(commitBatchSize);
+					}
+					writer.write(Collections.singletonList(source), Collections.singletonList(study));
+					continue;
+				}
+
+				batchStudies.add(study);
+				batchSources.add(source);
+
+				if (batchStudies.size() >= commitBatchSize) {
+					writer.write(batchSources, batchStudies);
+					batchSources = new ArrayList<String>(commitBatchSize);
+					batchStudies = new ArrayList<NexsonSource>(commitBatchSize);
+				}
+			}
+
+			if (! batchStudies.isEmpty()) {
+				writer.write(batchSources, batchStudies);
+			}
+			writer.awaitAll();
+
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while waiting for nexsons to be fetched and written", ex);
+
+		} finally {
+			fetchPool.shutdownNow();
+			writer.shutdownNow();
+		}
+
+		return report;
+	}
+
+	/**
+	 * Return the statistics collected by the study indexer while indexing with this object, such as the number of index
+	 * entries written and the time spent indexing per node. See StudyIndexer.getStatistics.
+	 * @return
+	 */
+	public HashMap<String, Object> getIndexingStatistics() {
+		return manager.getIndexingStatistics();
+	}
+
+	/**
+	 * helper function for reading a nexson from a url
+	 *
+	 * @param url
+	 * @return Jade trees from nexson
+	 * @throws MalformedURLException
+	 * @throws IOException
+	 */
+	public static NexsonSource readRemoteNexson(String url) throws MalformedURLException, IOException {
+		BufferedReader nexson = new BufferedReader(new InputStreamReader(new URL(url).openStream()));
+		try {
+			return new NexsonSource(nexson);
+		} finally {
+			nexson.close();
+		}
+	}
+
+	// ===== private methods
+
+	/**
+	 * Hands batches of parsed studies to the write threads. With a single write thread, batches are written on the
+	 * calling thread. Otherwise they are written on a pool of threads, and the caller blocks while writeThreads batches
+	 * are already waiting to be written, so that parsed studies do not pile up in memory.
+	 */
+	private class BatchWriter {
+
+		private final IndexingReport report;
+		private final ExecutorService writePool;
+		private final LinkedList<Future<?>> pendingWrites = new LinkedList<Future<?>>();
+
+		BatchWriter(IndexingReport report) {
+			this.report = report;
+			this.writePool = writeThreads > 1 ? Executors.newFixedThreadPool(writeThreads) : null;
+		}
+
+		/**
+		 * Write the batch, or queue it to be written. The lists must not be modified afterward.
+		 * @param sources
+		 * @param studies
+		 * @throws InterruptedException
+		 */
+		void write(final List<String> sources, final List<NexsonSource> studies) throws InterruptedException {
+			if (writePool == null) {
+				writeBatch(sources, studies, report);
+				return;
+			}
+			while (pendingWrites.size() >= writeThreads * 2) {
+				awaitFirst();
+			}
+			pendingWrites.add(writePool.submit(new Runnable() {
+				@Override
+				public void run() {
+					writeBatch(sources, studies, report);
+				}
+			}));
+		}
+
+		/**
+		 * Wait for all the queued batches to be written.
+		 * @throws InterruptedException
+		 */
+		void awaitAll() throws InterruptedException {
+			while (! pendingWrites.isEmpty()) {
+				awaitFirst();
+			}
+		}
+
+		void shutdownNow() {
+			if (writePool != null) {
+				writePool.shutdownNow();
+			}
+		}
+
+		private void awaitFirst() throws InterruptedException {
+			try {
+				pendingWrites.removeFirst().get();
+			} catch (ExecutionException ex) {
+				// writeBatch reports failures per study, so this is unexpected
+				throw new RuntimeException("failed to write a batch of studies", ex.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Write a group of studies in a single transaction. If the group cannot be committed, fall back to writing each
+	 * study in its own transaction so that we can report which ones failed.
+	 *
+	 * @param sources
+	 * @param studies
+	 * @param report
+	 */
+	private void writeBatch(List<String> sources, List<NexsonSource> studies, IndexingReport report) {
+
+		if (studies.size() > 1 && tryGroupCommit(studies)) {
+			for (NexsonSource study : studies) {
+				report.recordSuccess(study.getId());
+			}
+			return;
+		}
+
+		for (int i = 0; i < studies.size(); i++) {
+			try {
+				writeStudy(studies.get(i));
+				report.recordSuccess(studies.get(i).getId());
+			} catch (Exception ex) {
+				report.recordFailure(sources.get(i), ex);
+			}
+		}
+	}
+
+	/**
+	 * Write a single study in its own transaction. Studies that share taxa lock some of the same taxon nodes, so when
+	 * several threads are writing, neo4j may roll back the transaction as the victim of a deadlock. In that case the study
+	 * is retried.
+	 * @param study
+	 */
+	private void writeStudy(NexsonSource study) {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				manager.addOrReplaceStudy(study);
+				return;
+			} catch (DeadlockDetectedException ex) {
+				if (attempt >= MAX_DEADLOCK_RETRIES) {
+					throw ex;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Attempt to add all the studies within one transaction. The transactions opened by addOrReplaceStudy are nested
+	 * inside this one, so the whole group is committed (or rolled back) together. The locks for all the studies are taken
+	 * before the transaction begins (see StudyLocks).
+	 *
+	 * @param studies
+	 * @return
+	 * 		true if the group was committed, false if it was rolled back
+	 */
+	private boolean tryGroupCommit(List<NexsonSource> studies) {
+
+		List<String> studyIds = new ArrayList<String>(studies.size());
+		for (NexsonSource study : studies) {
+			if (study.getId() != null) {
+				studyIds.add(study.getId());
+			}
+		}
+
+		boolean committed = false;
+		StudyLocks studyLocks = manager.getStudyLocks();
+		studyLocks.lockAll(studyIds);
+		try {
+			Transaction tx = graphDb.beginTx();
+			try {
+				for (NexsonSource study : studies) {
+					manager.addOrReplaceStudy(study);
+				}
+				tx.success();
+				committed = true;
+			} catch (RuntimeException ex) {
+				tx.failure();
+			} finally {
+				try {
+					tx.finish();
+				} catch (RuntimeException ex) {
+					// the commit itself failed
+					committed = false;
+				}
+				// the manager invalidated the cached query results before the group was committed
+				manager.getQueryCache().invalidate();
+			}
+		} finally {
+			studyLocks.unlockAll(studyIds);
+		}
+
+		return committed;
+	}
+}
@@ -0,0 +1,486 @@
+package org.opentree.oti;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import jade.tree.TreeNode;
+
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.index.lucene.unsafe.batchinsert.LuceneBatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndex;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+import org.neo4j.unsafe.batchinsert.BatchRelationship;
+import org.opentree.nexson.io.NexsonNode;
+import org.opentree.nexson.io.NexsonOTU;
+import org.opentree.nexson.io.NexsonSource;
+import org.opentree.nexson.io.NexsonTree;
+import org.opentree.oti.constants.OTIRelType;
+import org.opentree.oti.indexproperties.IndexedArrayProperties;
+import org.opentree.oti.indexproperties.IndexedPrimitiveProperties;
+import org.opentree.oti.indexproperties.OTINodeProperty;
+import org.opentree.oti.indexproperties.OTPropertyArray;
+import org.opentree.properties.OTPropertyPredicate;
+import org.opentree.properties.OTVocabularyPredicate;
+import org.opentree.taxonomy.constants.TaxonomyRelType;
+import org.opentree.taxonomy.contexts.TaxonomyNodeIndex;
+import org.opentree.utils.GeneralUtils;
+
+/**
+ * An offline loader for rebuilding an OTI database from a directory of nexson files. Uses the neo4j batch inserter
+ * and the batch lucene index provider to write the graph and all the OTINodeIndex indexes directly, bypassing the
+ * transaction layer entirely. The resulting store has the same structure, properties and indexes as one built
+ * through DatabaseManager, and can be opened by the server plugins unchanged.
+ *
+ * The target database must not be open by any other process while the loader runs. If it already contains a
+ * taxomachine taxonomy, otu nodes will be linked to it and trees will be indexed by their higher taxa.
+ *
+ * Usage: java -cp oti.jar org.opentree.oti.BulkLoader <graph db dir> <nexson file or dir> [<nexson file or dir> ...]
+ */
+public class BulkLoader {
+
+	// report progress after this many studies
+	private static final int REPORT_INTERVAL = 100;
+
+	private final BatchInserter inserter;
+	private final BatchInserterIndexProvider indexProvider;
+	private final Map<OTINodeIndex, BatchInserterIndex> indexes = new EnumMap<OTINodeIndex, BatchInserterIndex>(OTINodeIndex.class);
+	private final BatchInserterIndex taxonNodesByOTTId;
+
+	// taxonomy lookups are repeated across trees and studies, so remember them
+	private final Map<Long, Long> taxonNodeIdsByOTTId = new HashMap<Long, Long>();
+	private final Map<Long, List<Long>> higherTaxonNodeIdsByTaxonNodeId = new HashMap<Long, List<Long>>();
+
+	private final Set<String> loadedStudyIds = new HashSet<String>();
+
+	private long studyCount = 0;
+	private long treeCount = 0;
+	private long nodeCount = 0;
+	private long startTime;
+
+	/**
+	 * Open a batch inserter on the graph db at the specified location. It will be created if it doesn't exist.
+	 * @param graphDbDir
+	 */
+	public BulkLoader(String graphDbDir) {
+		inserter = BatchInserters.inserter(graphDbDir);
+		indexProvider = new LuceneBatchInserterIndexProvider(inserter);
+		for (OTINodeIndex index : OTINodeIndex.PROPERTY_INDEXES) {
+			indexes.put(index, indexProvider.nodeIndex(index.indexName(), MapUtil.stringMap(index.parameters())));
+		}
+
+		// this is a taxomachine index, so we specify the same parameters as DatabaseManager does
+		taxonNodesByOTTId = indexProvider.nodeIndex(TaxonomyNodeIndex.TAXON_BY_OTT_ID.indexName(),
+				MapUtil.stringMap(IndexManager.PROVIDER, "lucene", "type", "exact"));
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 2) {
+			System.out.println("usage: BulkLoader <graph db dir> <nexson file or dir> [<nexson file or dir> ...]");
+			System.exit(1);
+		}
+
+		File[] locations = new File[args.length - 1];
+		for (int i = 1; i < args.length; i++) {
+			locations[i - 1] = new File(args[i]);
+		}
+		List<File> nexsonFiles = LocalNexsonReader.collectNexsonFiles(locations);
+		System.out.println("Loading " + nexsonFiles.size() + " nexson files into " + args[0]);
+
+		BulkLoader loader = new BulkLoader(args[0]);
+		try {
+			for (File f : nexsonFiles) {
+				try {
+					loader.loadStudy(LocalNexsonReader.readNexsonFile(f));
+				} catch (Exception ex) {
+					System.out.println("Could not load " + f.getPath() + ": " + ex.getClass().getName() + ": " + ex.getMessage());
+				}
+			}
+		} finally {
+			loader.shutdown();
+		}
+		loader.reportThroughput();
+	}
+
+	/**
+	 * Add a single study and all its trees.
+	 * @param study
+	 * @return
+	 * 		The node id of the study metadata node, or -1 if a study with the same id was already loaded
+	 */
+	public long loadStudy(NexsonSource study) {
+
+		if (startTime == 0) {
+			startTime = System.currentTimeMillis();
+		}
+
+		String studyId = study.getId();
+		if (! loadedStudyIds.add(studyId)) {
+			System.out.println("Skipping duplicate study " + studyId);
+			return -1;
+		}
+
+		// record content hashes so that later re-indexing through the server can skip unchanged studies and trees
+		List<NexsonTree> trees = new ArrayList<NexsonTree>();
+		Map<String, String> treeHashes = new LinkedHashMap<String, String>();
+		for (NexsonTree tree : study.getTrees()) {
+			// TODO: sometimes the nexson reader returns null trees. this is a hack to deal with that.
+			if (tree != null) {
+				trees.add(tree);
+				treeHashes.put(tree.getId(), NexsonContentHasher.hashTree(tree));
+			}
+		}
+
+		Map<String, Object> studyProperties = new HashMap<String, Object>();
+		studyProperties.put(OTINodeProperty.IS_STUDY_META.propertyName(), true);
+		studyProperties.put(OTINodeProperty.IS_DEPRECATED.propertyName(), study.isDeprecated());
+		studyProperties.put(OTINodeProperty.CONTENT_HASH.propertyName(), NexsonContentHasher.hashStudy(study, treeHashes));
+		putNonNullProperties(studyProperties, study.getProperties());
+		long studyMeta = inserter.createNode(studyProperties);
+
+		// the otu nodes are shared by all the trees in the study
+		Map<String, Long> otuNodeIds = new HashMap<String, Long>();
+		for (NexsonTree tree : trees) {
+			loadTree(tree, studyId + "_" + tree.getId(), studyId, studyMeta, treeHashes.get(tree.getId()), otuNodeIds);
+		}
+
+		indexNode(studyMeta, studyProperties, OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY);
+
+		if (++studyCount % REPORT_INTERVAL == 0) {
+			reportThroughput();
+		}
+
+		return studyMeta;
+	}
+
+	/**
+	 * Flush and close the indexes and the graph db. Must be called or the store will be left in an unusable state.
+	 */
+	public void shutdown() {
+		indexProvider.shutdown();
+		inserter.shutdown();
+	}
+
+	/**
+	 * Print the number of studies, trees and nodes loaded so far and the rates at which they were loaded.
+	 */
+	public void reportThroughput() {
+		double seconds = Math.max(System.currentTimeMillis() - startTime, 1) / 1000.0;
+		System.out.println(String.format("Loaded %d studies, %d trees, %d tree nodes in %.1f s (%.1f trees/s, %.1f nodes/s)",
+				studyCount, treeCount, nodeCount, seconds, treeCount / seconds, nodeCount / seconds));
+	}
+
+	// ===== private methods
+
+	/**
+	 * Add a tree in a single preorder pass, mirroring DatabaseManager.addTree.
+	 */
+	private long loadTree(NexsonTree tree, String treeUniqueId, String studyId, long studyMeta, String treeHash, Map<String, Long> otuNodeIds) {
+
+		Set<String> originalTipLabels = new HashSet<String>();
+		Set<String> mappedTaxonNames = new HashSet<String>();
+		Set<Long> mappedOTTIds = new HashSet<Long>();
+		Set<Long> compatibleHigherTaxonOTTIds = new HashSet<Long>();
+		Set<String> compatibleHigherTaxonNames = new HashSet<String>();
+
+		long root = -1;
+		long ingroupStartNode = -1;
+
+		ArrayDeque<PendingTreeNode> stack = new ArrayDeque<PendingTreeNode>();
+		stack.push(new PendingTreeNode(tree.getRoot(), -1, false));
+
+		ArrayList<TreeNode> children = new ArrayList<TreeNode>();
+		while (! stack.isEmpty()) {
+
+			PendingTreeNode pending = stack.pop();
+			NexsonNode nexsonNode = pending.nexsonNode;
+			NexsonOTU otu = nexsonNode.getOTU();
+			boolean withinIngroup = pending.withinIngroup;
+
+			Map<String, Object> properties = new HashMap<String, Object>();
+			properties.put(OTINodeProperty.NEXSON_ID.propertyName(), nexsonNode.getId());
+			putNonNullProperties(properties, nexsonNode.getProperties());
+			if (nexsonNode.getParentBranchLength() != null) {
+				properties.put(OTINodeProperty.PARENT_BRANCH_LENGTH.propertyName(), nexsonNode.getParentBranchLength());
+			}
+			boolean isIngroupStart = nexsonNode.hasProperty(OTINodeProperty.IS_INGROUP_ROOT.propertyName());
+			if (isIngroupStart) {
+				properties.put(OTINodeProperty.INGROUP_START_NODE_ID.propertyName(), true);
+				withinIngroup = true;
+			}
+			if (withinIngroup) {
+				properties.put(OTINodeProperty.IS_WITHIN_INGROUP.propertyName(), true);
+			}
+
+			// tree node index entries use only the node's own properties, as they do in DatabaseManager
+			Map<String, Object> treeNodeProperties = properties;
+
+			boolean isRoot = pending.parentNodeId < 0;
+			if (isRoot) {
+				properties = new HashMap<String, Object>(treeNodeProperties);
+				properties.put(OTINodeProperty.IS_DEPRECATED.propertyName(), tree.isDeprecated());
+				properties.put(OTINodeProperty.IS_ROOT.propertyName(), true);
+				properties.put(OTVocabularyPredicate.OT_STUDY_ID.propertyName(), studyId);
+				properties.put(OTINodeProperty.TREE_ID.propertyName(), treeUniqueId);
+				properties.put(OTINodeProperty.NEXSON_ID.propertyName(), tree.getId());
+				properties.put(OTINodeProperty.CONTENT_HASH.propertyName(), treeHash);
+				putNonNullProperties(properties, tree.getProperties());
+			}
+
+			if (! isRoot) {
+				properties.put(OTINodeProperty.ROOT_NODE_ID.propertyName(), root);
+			}
+			long nodeId = inserter.createNode(properties);
+			nodeCount++;
+			if (isRoot) {
+				root = nodeId;
+			} else {
+				inserter.createRelationship(nodeId, pending.parentNodeId, OTIRelType.CHILDOF, null);
+			}
+			if (isIngroupStart) {
+				ingroupStartNode = nodeId;
+			}
+
+			if (otu != null) {
+				inserter.createRelationship(getOTUNodeId(otu, studyMeta, otuNodeIds), nodeId, OTIRelType.OTUOF, null);
+			}
+
+			// tag the entries with the tree (see DatabaseManager.deleteTree)
+			Map<String, Object> treeNodeIndexProperties = getIndexProperties(treeNodeProperties, OTINodeIndex.TREE_NODES_BY_PROPERTY);
+			treeNodeIndexProperties.put(OTINodeProperty.TREE_INDEX_TAG.propertyName(), root);
+			indexes.get(OTINodeIndex.TREE_NODES_BY_PROPERTY).add(nodeId, treeNodeIndexProperties);
+
+			children.clear();
+			for (TreeNode child : nexsonNode.getChildren()) {
+				children.add(child);
+			}
+			for (int i = children.size() - 1; i >= 0; i--) {
+				stack.push(new PendingTreeNode((NexsonNode) children.get(i), nodeId, withinIngroup));
+			}
+
+			// record taxon information for tips
+			if (children.isEmpty() && otu != null) {
+				Object originalLabel = otu.getProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName());
+				if (originalLabel != null) {
+					originalTipLabels.add((String) originalLabel);
+				}
+				Object tipOTTId = otu.getProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName());
+				if (tipOTTId != null) {
+					mappedOTTIds.add((Long) tipOTTId);
+					mappedTaxonNames.add(otu.getLabel()); // TODO: switch this over to ot:ottTaxonName property once this is available
+					Long tipTaxonNodeId = getTaxonNodeId((Long) tipOTTId);
+					if (tipTaxonNodeId != null) {
+						for (Long higherTaxonNodeId : getHigherTaxonNodeIds(tipTaxonNodeId)) {
+							Map<String, Object> taxonProperties = inserter.getNodeProperties(higherTaxonNodeId);
+							compatibleHigherTaxonOTTIds.add((Long) taxonProperties.get(OTVocabularyPredicate.OT_OTT_ID.propertyName()));
+							compatibleHigherTaxonNames.add((String) taxonProperties.get(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName()));
+						}
+					}
+				}
+			}
+		}
+
+		// finish the root now that we have seen the whole tree
+		Map<String, Object> rootProperties = inserter.getNodeProperties(root);
+		rootProperties.put(OTINodeProperty.TREE_INDEX_TAG.propertyName(), root);
+		rootProperties.put(OTINodeProperty.ROOT_NODE_ID.propertyName(), root);
+		rootProperties.put(OTINodeProperty.STUDY_META_NODE_ID.propertyName(), studyMeta);
+		if (ingroupStartNode >= 0) {
+			rootProperties.put(OTINodeProperty.INGROUP_IS_SET.propertyName(), true);
+			rootProperties.put(OTINodeProperty.INGROUP_START_NODE_ID.propertyName(), ingroupStartNode);
+		}
+		rootProperties.put(OTINodeProperty.DESCENDANT_ORIGINAL_TIP_LABELS.propertyName(), GeneralUtils.convertToStringArray(originalTipLabels));
+		rootProperties.put(OTINodeProperty.DESCENDANT_MAPPED_TAXON_NAMES.propertyName(), GeneralUtils.convertToStringArray(mappedTaxonNames));
+		rootProperties.put(OTINodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.propertyName(), GeneralUtils.convertToLongArray(mappedOTTIds));
+		rootProperties.put(OTINodeProperty.COMPATIBLE_HIGHER_TAXON_OTT_IDS.propertyName(), GeneralUtils.convertToLongArray(compatibleHigherTaxonOTTIds));
+		rootProperties.put(OTINodeProperty.COMPATIBLE_HIGHER_TAXON_NAMES.propertyName(), GeneralUtils.convertToStringArray(compatibleHigherTaxonNames));
+		inserter.setNodeProperties(root, rootProperties);
+
+		inserter.createRelationship(studyMeta, root, OTIRelType.METADATAFOR, null);
+
+		// roots are also indexed under their study, as StudyIndexer.addTreeRootNodeToIndexes does
+		Map<String, Object> rootIndexProperties = getIndexProperties(rootProperties, OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY);
+		rootIndexProperties.put(OTINodeProperty.STUDY_META_NODE_ID.propertyName(), studyMeta);
+		indexes.get(OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY).add(root, rootIndexProperties);
+
+		treeCount++;
+		return root;
+	}
+
+	/**
+	 * Return the node id of the shared otu node for the otu in the study, creating, linking and indexing it the first
+	 * time it is seen, mirroring DatabaseManager.getOTUNode.
+	 */
+	private long getOTUNodeId(NexsonOTU otu, long studyMeta, Map<String, Long> otuNodeIds) {
+
+		String otuHash = NexsonContentHasher.hashOTU(otu.getLabel(), otu.getProperties());
+		Long otuNodeId = otuNodeIds.get(otuHash);
+		if (otuNodeId != null) {
+			return otuNodeId;
+		}
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		putNonNullProperties(properties, otu.getProperties());
+		properties.put(OTINodeProperty.IS_OTU.propertyName(), true);
+		properties.put(OTINodeProperty.CONTENT_HASH.propertyName(), otuHash);
+		otuNodeId = inserter.createNode(properties);
+		inserter.createRelationship(studyMeta, otuNodeId, OTIRelType.HASOTU, null);
+
+		// link the otu to the taxonomy if we can
+		Object ottId = properties.get(OTVocabularyPredicate.OT_OTT_ID.propertyName());
+		Long taxonNodeId = ottId == null ? null : getTaxonNodeId((Long) ottId);
+		if (taxonNodeId != null) {
+			inserter.createRelationship(otuNodeId, taxonNodeId, OTIRelType.EXEMPLAROF, null);
+		}
+
+		// otu entries are not tagged with a tree, since the otu is shared by the trees of the study
+		indexNode(otuNodeId, properties, OTINodeIndex.TREE_NODES_BY_PROPERTY);
+
+		otuNodeIds.put(otuHash, otuNodeId);
+		return otuNodeId;
+	}
+
+	/**
+	 * Add a node to an index under the values of the indexed properties, mirroring the behavior of StudyIndexer.
+	 */
+	private void indexNode(long nodeId, Map<String, Object> properties, OTINodeIndex index) {
+		Map<String, Object> indexProperties = getIndexProperties(properties, index);
+		if (! indexProperties.isEmpty()) {
+			indexes.get(index).add(nodeId, indexProperties);
+		}
+	}
+
+	/**
+	 * Return the index entries for a node with the given properties.
+	 */
+	private static Map<String, Object> getIndexProperties(Map<String, Object> properties, OTINodeIndex index) {
+
+		Map<String, Object> indexProperties = new HashMap<String, Object>();
+		for (OTPropertyPredicate property : IndexedPrimitiveProperties.propertiesForIndex(index)) {
+			Object value = properties.get(property.propertyName());
+			if (value != null) {
+				indexProperties.put(property.propertyName(), OTINodeIndex.indexValue(value));
+			}
+		}
+
+		for (OTPropertyArray property : IndexedArrayProperties.propertiesForIndex(index)) {
+			Object array = properties.get(property.graphProperty.propertyName());
+			Class<?> type = property.typeProperty.type();
+			if (array == null || ! (type.equals(String.class) || type.equals(Long.class))) {
+				continue;
+			}
+
+			// several arrays may map to the same index property (e.g. mapped and higher taxon ott ids)
+			List<Object> values = new ArrayList<Object>();
+			Object existing = indexProperties.get(property.typeProperty.propertyName());
+			if (existing != null) {
+				values.addAll(asList(existing));
+			}
+			for (Object value : asList(array)) {
+				values.add(OTINodeIndex.indexValue(value));
+			}
+			indexProperties.put(property.typeProperty.propertyName(), values.toArray());
+		}
+
+		return indexProperties;
+	}
+
+	/**
+	 * Return the node id of the taxomachine node with the provided ott id, or null if there is none.
+	 */
+	private Long getTaxonNodeId(Long ottId) {
+		if (taxonNodeIdsByOTTId.containsKey(ottId)) {
+			return taxonNodeIdsByOTTId.get(ottId);
+		}
+		Long taxonNodeId = null;
+		IndexHits<Long> hits = taxonNodesByOTTId.get(OTVocabularyPredicate.OT_OTT_ID.propertyName(), ottId);
+		try {
+			if (hits.hasNext()) {
+				taxonNodeId = hits.next();
+			}
+		} finally {
+			hits.close();
+		}
+		taxonNodeIdsByOTTId.put(ottId, taxonNodeId);
+		return taxonNodeId;
+	}
+
+	/**
+	 * Return the node ids of the taxon with the provided node id and all its preferred ancestors, walking
+	 * PREFTAXCHILDOF relationships to the root of the taxonomy.
+	 */
+	private List<Long> getHigherTaxonNodeIds(long taxonNodeId) {
+		List<Long> higherTaxa = higherTaxonNodeIdsByTaxonNodeId.get(taxonNodeId);
+		if (higherTaxa == null) {
+			higherTaxa = new LinkedList<Long>();
+			Long cur = taxonNodeId;
+			while (cur != null) {
+				higherTaxa.add(cur);
+				Long parent = null;
+				for (BatchRelationship rel : inserter.getRelationships(cur)) {
+					if (rel.getStartNode() == cur && rel.getType().name().equals(TaxonomyRelType.PREFTAXCHILDOF.name())) {
+						parent = rel.getEndNode();
+						break;
+					}
+				}
+				cur = parent;
+			}
+			higherTaxonNodeIdsByTaxonNodeId.put(taxonNodeId, higherTaxa);
+		}
+		return higherTaxa;
+	}
+
+	/**
+	 * Copy properties from a nexson map, skipping the null values that phylesystem sometimes contains.
+	 */
+	private static void putNonNullProperties(Map<String, Object> target, Map<String, Object> source) {
+		for (Entry<String, Object> property : source.entrySet()) {
+			if (property.getValue() != null) {
+				target.put(property.getKey(), property.getValue());
+			}
+		}
+	}
+
+	private static List<Object> asList(Object array) {
+		List<Object> values = new ArrayList<Object>();
+		if (array instanceof long[]) {
+			for (long v : (long[]) array) {
+				values.add(v);
+			}
+		} else if (array instanceof Object[]) {
+			values.addAll(Arrays.asList((Object[]) array));
+		} else {
+			values.add(array);
+		}
+		return values;
+	}
+
+	/**
+	 * A nexson node waiting on the traversal stack, along with the id of its parent's graph node.
+	 */
+	private static class PendingTreeNode {
+		final NexsonNode nexsonNode;
+		final long parentNodeId;
+		final boolean withinIngroup;
+		PendingTreeNode(NexsonNode nexsonNode, long parentNodeId, boolean withinIngroup) {
+			this.nexsonNode = nexsonNode;
+			this.parentNodeId = parentNodeId;
+			this.withinIngroup = withinIngroup;
+		}
+	}
+}
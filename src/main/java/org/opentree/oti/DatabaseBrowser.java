@@ -21,8 +21,8 @@ import org.opentree.properties.OTVocabularyPredicate;
 
 public class DatabaseBrowser extends OTIDatabase {
 
-	public final Index<Node> treeRootNodesByProperty = getNodeIndex(OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY_FULLTEXT);
-	public final Index<Node> studyMetaNodesByProperty = getNodeIndex(OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY_EXACT);
+	public final Index<Node> treeRootNodesByProperty = getNodeIndex(OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY);
+	public final Index<Node> studyMetaNodesByProperty = getNodeIndex(OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY);
 	
 	private static Set<String> hiddenSourceProperties;
 	private static Set<String> hiddenTreeProperties;
@@ -68,7 +68,7 @@ public class DatabaseBrowser extends OTIDatabase {
 	 */
 //	public Node getTreeRootNode(String treeId, String location) {
 	public Node getTreeRootNode(String treeId) {
-		return DatabaseUtils.getSingleNodeIndexHit(treeRootNodesByProperty, OTINodeProperty.TREE_ID.propertyName(), treeId);
+		return DatabaseUtils.getSingleNodeIndexHit(treeRootNodesByProperty, OTINodeProperty.TREE_ID.propertyName(), OTINodeIndex.indexValue(treeId));
 	}
 	
 	/**
@@ -80,7 +80,7 @@ public class DatabaseBrowser extends OTIDatabase {
 	 */
 //	public Node getSourceMetaNode(String studyId, String location) {
 	public Node getSourceMetaNode(String studyId) {
-		return DatabaseUtils.getSingleNodeIndexHit(studyMetaNodesByProperty, OTVocabularyPredicate.OT_STUDY_ID.propertyName(), studyId);
+		return DatabaseUtils.getSingleNodeIndexHit(studyMetaNodesByProperty, OTVocabularyPredicate.OT_STUDY_ID.propertyName(), OTINodeIndex.indexValue(studyId));
 	}
 	
 	/**
@@ -131,7 +131,7 @@ public class DatabaseBrowser extends OTIDatabase {
 	
 		List<String> treeIds = new LinkedList<String>();
 		
-		IndexHits<Node> hits = treeRootNodesByProperty.query(OTVocabularyPredicate.OT_STUDY_ID.propertyName() + ":" + sourceId);
+		IndexHits<Node> hits = treeRootNodesByProperty.get(OTVocabularyPredicate.OT_STUDY_ID.propertyName(), OTINodeIndex.indexValue(sourceId));
 		try {
 			while (hits.hasNext()) {
 				String tid = (String) hits.next().getProperty(OTINodeProperty.TREE_ID.propertyName());
@@ -1,15 +1,34 @@
 package org.opentree.oti;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import jade.tree.JadeNode;
 import jade.tree.JadeTree;
@@ -34,6 +53,7 @@ import org.opentree.utils.GeneralUtils;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.index.Index;
@@ -45,26 +65,47 @@ import org.neo4j.kernel.Traversal;
 
 public class DatabaseManager extends OTIDatabase {
 
-	private StudyIndexer indexer;
-	private Node lastObservedIngroupStartNode = null;
+	/** Studies with more tree nodes than this are written in chunks. See addOrReplaceStudy. */
+	public static final int DEFAULT_CHUNKED_INGEST_THRESHOLD = 50000;
 	
-	// used when copying trees to remember a specified node from the old tree that is in the new one
-	Node workingCopyNodeOfInterest = null;
+	/** The number of tree nodes written in each transaction when a study is written in chunks. */
+	public static final int DEFAULT_NODES_PER_CHUNK = 10000;
+	
+	/** The number of threads used to write the trees of a study. See setTreeThreads. */
+	public static final int DEFAULT_TREE_THREADS = 1;
 
-	// used when storing taxon information to use when for indexing tree root nodes
-	Set<String> originalTipLabels;
-	Set<String> originalTipLabelsNoSpaces;
-	Set<String> mappedTaxonNames;
-	Set<String> mappedTaxonNamesNoSpaces;
-	Set<Long> compatibleHigherTaxonOTTIds;
-	Set<String> compatibleHigherTaxonNames;
-	Set<Long> mappedOTTIds;
+	private int chunkedIngestThreshold = DEFAULT_CHUNKED_INGEST_THRESHOLD;
+	private int nodesPerChunk = DEFAULT_NODES_PER_CHUNK;
+	private int treeThreads = DEFAULT_TREE_THREADS;
+	
+	// if set, removed and replaced studies and trees are tombstoned and left for compactTombstones to delete
+	private boolean deferDeletion = false;
+	
+	// writes to the same study are serialized, across all the managers for the db. see IngestContext
+	private final StudyLocks studyLocks;
+	
+	// the cached query results for the db, which are invalidated after each write. see QueryCache
+	private final QueryCache queryCache;
 	
-	protected Index<Node> studyMetaNodesByProperty = getNodeIndex(OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY_EXACT);
+	// the terms used by fuzzy searches, to which the terms of indexed values are added
+	private final FuzzyTermIndex fuzzyTerms;
+	
+	// the indexing statistics for all the writes made through this manager (see getIndexingStatistics). the indexers for
+	// the writes are created from it, sharing its index handles and its buffering setting
+	private final StudyIndexer indexingStatistics;
+	
+	protected Index<Node> studyMetaNodesByProperty = getNodeIndex(OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY);
+	protected Index<Node> tombstonedNodes = getNodeIndex(OTINodeIndex.TOMBSTONED_NODES);
 	
 	// this is a taxomachine index, so we specify index type parameters to override the OTU default behavior of opening indexes as fulltext
 	protected Index<Node> taxonNodesByOTTId = getNodeIndex(TaxonomyNodeIndex.TAXON_BY_OTT_ID, IndexManager.PROVIDER, "lucene", "type", "exact");
 
+	// caches the taxon node ids for OTT ids across studies
+	private final TaxonNodeResolver taxonNodeResolver;
+	
+	// used to collect the higher taxa for the tips of trees without traversing the taxonomy graph
+	private final TaxonomyMirror taxonomyMirror;
+
 	// ===== constructors
 
 	/**
@@ -74,7 +115,12 @@ public class DatabaseManager extends OTIDatabase {
 	 */
 	public DatabaseManager(GraphDatabaseService graphService) {
 		super(graphService);
-		indexer = new StudyIndexer(graphDb);
+		indexingStatistics = new StudyIndexer(graphDb);
+		taxonNodeResolver = TaxonNodeResolver.getResolver(graphService, taxonNodesByOTTId);
+		taxonomyMirror = TaxonomyMirror.getMirror(graphService, taxonNodesByOTTId);
+		studyLocks = StudyLocks.getLocks(graphService);
+		queryCache = QueryCache.getCache(graphService);
+		fuzzyTerms = FuzzyTermIndex.getIndex(graphService);
 	}
 
 	/**
@@ -84,7 +130,12 @@ public class DatabaseManager extends OTIDatabase {
 	 */
 	public DatabaseManager(EmbeddedGraphDatabase embeddedGraph) {
 		super(embeddedGraph);
-		indexer = new StudyIndexer(graphDb);
+		indexingStatistics = new StudyIndexer(graphDb);
+		taxonNodeResolver = TaxonNodeResolver.getResolver(embeddedGraph, taxonNodesByOTTId);
+		taxonomyMirror = TaxonomyMirror.getMirror(embeddedGraph, taxonNodesByOTTId);
+		studyLocks = StudyLocks.getLocks(embeddedGraph);
+		queryCache = QueryCache.getCache(embeddedGraph);
+		fuzzyTerms = FuzzyTermIndex.getIndex(embeddedGraph);
 	}
 
 	/**
@@ -94,7 +145,12 @@ public class DatabaseManager extends OTIDatabase {
 	 */
 	public DatabaseManager(GraphDatabaseAgent gdb) {
 		super(gdb);
-		indexer = new StudyIndexer(graphDb);
+		indexingStatistics = new StudyIndexer(graphDb);
+		taxonNodeResolver = TaxonNodeResolver.getResolver(getGraphDatabaseService(), taxonNodesByOTTId);
+		taxonomyMirror = TaxonomyMirror.getMirror(getGraphDatabaseService(), taxonNodesByOTTId);
+		studyLocks = StudyLocks.getLocks(getGraphDatabaseService());
+		queryCache = QueryCache.getCache(getGraphDatabaseService());
+		fuzzyTerms = FuzzyTermIndex.getIndex(getGraphDatabaseService());
 	}
 
 	// ========== public methods
@@ -106,11 +162,14 @@ public class DatabaseManager extends OTIDatabase {
 	 * @return
 	 */
 	public Node getStudyMetaNodeForStudyId(String studyId) {
-		return DatabaseUtils.getSingleNodeIndexHit(studyMetaNodesByProperty, OTVocabularyPredicate.OT_STUDY_ID.propertyName(), studyId);
+		return DatabaseUtils.getSingleNodeIndexHit(studyMetaNodesByProperty, OTVocabularyPredicate.OT_STUDY_ID.propertyName(),
+				OTINodeIndex.indexValue(studyId));
 	}
 	
 	/**
-	 * Install a study into the db, including loading all included trees.
+	 * Install a study into the db, including loading all included trees. If a study with the same id has already been
+	 * installed, it is updated in place: nothing is written if the study is unchanged, and otherwise only the changed
+	 * study properties and index entries are updated, and only the trees whose content has changed are replaced.
 	 * 
 	 * @param study
 	 * 		A NexsonSource object that contains the source metadata and trees.
@@ -120,64 +179,182 @@ public class DatabaseManager extends OTIDatabase {
 	 * 
 	 */
 	public Node addOrReplaceStudy(NexsonSource study) {
-		
-		// TODO: return meaningful information about the result to the rest query that calls this method
-
-		Node studyMeta = null;
-		
-		Transaction tx = graphDb.beginTx();
+		IngestContext ctx = newContext();
 		try {
-			
-			String studyId = study.getId();
-
-			// an attempt to add a study with the same id as an existing study overwrites the existing study
-			studyMeta = getStudyMetaNodeForStudyId(studyId);
-			if (studyMeta != null) {
-				deleteSource(studyMeta);
+			ctx.lockStudy(study.getId());
+			return addOrReplaceStudy(ctx, study);
+		} finally {
+			finish(ctx);
+		}
+	}
+	
+	/**
+	 * Return true if the study has enough tree nodes that addOrReplaceStudy will write it in chunks, in multiple
+	 * transactions. Callers that wrap addOrReplaceStudy in their own transactions should not do so for large studies,
+	 * since the chunks will then not be committed separately.
+	 * 
+	 * @param study
+	 * @return
+	 */
+	public boolean isLargeStudy(NexsonSource study) {
+		int nodeCount = 0;
+		for (NexsonTree tree : study.getTrees()) {
+			if (tree == null) {
+				continue;
 			}
-			
-			// create the study
-			studyMeta = graphDb.createNode();
-			studyMeta.setProperty(OTINodeProperty.IS_STUDY_META.propertyName(), true);
-			studyMeta.setProperty(OTINodeProperty.IS_DEPRECATED.propertyName(), study.isDeprecated());
-			
-			// set studyproperties
-			setNodePropertiesFromMap(studyMeta, study.getProperties());
-
-			// add the trees
-			boolean noValidTrees = true;
-			Iterator<NexsonTree> treesIter = study.getTrees().iterator();
-			while (treesIter.hasNext()) {
-
-				NexsonTree tree = treesIter.next();
-
-				// TODO: sometimes the nexson reader returns null trees. this is a hack to deal with that.
-				// really we should fix the nexson reader so it doesn't return null trees
-				if (tree == null) {
-					continue;
-				} else if (noValidTrees == true) {
-					noValidTrees = false;
+			ArrayDeque<NexsonNode> stack = new ArrayDeque<NexsonNode>();
+			stack.push(tree.getRoot());
+			while (! stack.isEmpty()) {
+				if (++nodeCount > chunkedIngestThreshold) {
+					return true;
+				}
+				for (TreeNode child : stack.pop().getChildren()) {
+					stack.push((NexsonNode) child);
 				}
-
-				// get the tree id from the nexson
-				// TODO: verify that this is the property we want to be using for this
-				String treeId = (String) tree.getId();
-				
-				// create a unique tree id by including the study id, this is the convention from treemachine
-				String treeUniqueId = studyId + "_" + treeId;
-
-				// add the tree
-				addTree(tree, treeUniqueId, studyMeta);
 			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Set the number of tree nodes above which studies are written in chunks, and the number of tree nodes written in
+	 * each chunk. Null values are ignored.
+	 * 
+	 * @param chunkedIngestThreshold
+	 * @param nodesPerChunk
+	 */
+	public DatabaseManager setChunking(Integer chunkedIngestThreshold, Integer nodesPerChunk) {
+		if (chunkedIngestThreshold != null && chunkedIngestThreshold > 0) {
+			this.chunkedIngestThreshold = chunkedIngestThreshold;
+		}
+		if (nodesPerChunk != null && nodesPerChunk > 0) {
+			this.nodesPerChunk = nodesPerChunk;
+		}
+		return this;
+	}
+	
+	/**
+	 * Set the number of threads used to write the trees of a study. With more than one, each new or changed tree of a
+	 * study is built and indexed on a worker thread in its own transaction, without being attached to the study (so it is
+	 * invisible to queries). The finished trees are then attached to the study, and linked to its otus, in the same single
+	 * transaction that writes the study itself, so the study is still replaced all at once or not at all: if any tree
+	 * fails, or the final transaction does, the trees that were built are deleted. Values less than 1 are ignored.
+	 * 
+	 * Studies that are written in chunks (see isLargeStudy) always write their trees one at a time. As with large studies,
+	 * callers should not wrap addOrReplaceStudy in their own transactions when more than one thread is used, since the
+	 * trees are committed separately from the enclosing transaction.
+	 * 
+	 * @param treeThreads
+	 */
+	public DatabaseManager setTreeThreads(Integer treeThreads) {
+		if (treeThreads != null && treeThreads > 0) {
+			this.treeThreads = treeThreads;
+		}
+		return this;
+	}
+	
+	/**
+	 * Set whether deletions are deferred. If they are, studies removed with removeSource, and the old versions of studies
+	 * and trees that are replaced, are only tombstoned: they are hidden from queries in one small transaction and left
+	 * for compactTombstones (normally run in the background by a StudyCompactor) to delete. Otherwise they are deleted
+	 * before the call returns. Deletions are not deferred by default.
+	 * 
+	 * @param deferDeletion
+	 */
+	public DatabaseManager setDeferredDeletion(boolean deferDeletion) {
+		this.deferDeletion = deferDeletion;
+		return this;
+	}
+	
+	/**
+	 * Set whether the index entries of each write are buffered and written together before it is committed, with one
+	 * index.add call for all the values of each key of a node (the default), or written one at a time as nodes are
+	 * indexed. Unbuffered writes are only useful for measuring the difference; see BatchStudyIndexer.compareIndexWrites.
+	 * 
+	 * @param bufferedIndexWrites
+	 */
+	public DatabaseManager setBufferedIndexWrites(boolean bufferedIndexWrites) {
+		indexingStatistics.setBufferedWrites(bufferedIndexWrites);
+		return this;
+	}
+	
+	/**
+	 * Return the statistics collected by the study indexers for all the writes made through this manager, such as the
+	 * number of index entries written and the time spent indexing per node. See StudyIndexer.getStatistics.
+	 * @return
+	 */
+	public HashMap<String, Object> getIndexingStatistics() {
+		return indexingStatistics.getStatistics();
+	}
+	
+	/**
+	 * Return the locks used to serialize writes to the same study. A caller that writes several studies in one enclosing
+	 * transaction must take all their locks with StudyLocks.lockAll before it begins the transaction.
+	 * @return
+	 */
+	StudyLocks getStudyLocks() {
+		return studyLocks;
+	}
+	
+	/**
+	 * Return the cache of query results that this manager invalidates after each write. A caller that writes in an
+	 * enclosing transaction must invalidate it again once that transaction has been committed.
+	 * @return
+	 */
+	QueryCache getQueryCache() {
+		return queryCache;
+	}
+	
+	/**
+	 * Install a study into the db by parsing the nexson from the reader and writing graph nodes as they are read, rather
+	 * than first reading the entire study into memory. Use this for very large studies.
+	 * 
+	 * The nexson is read twice. The first pass hashes the study and its trees (see StreamingStudyHasher) while copying
+	 * the nexson to a temporary file, and nothing is written if the study is unchanged. The second pass reads the copy and
+	 * writes the new and changed trees in transactions of at most nodesPerChunk nodes, without attaching them to the
+	 * study, so the size of the study is not limited by the heap. A single small transaction then updates the study
+	 * properties, attaches the new trees and retires the trees they replace, so queries see either the old version of
+	 * the study or the new one. The retired trees are then deleted, or tombstoned if deletion is deferred.
+	 * 
+	 * @param nexson
+	 * 		A reader providing the nexson for the study.
+	 * 
+	 * @return
+	 * 		The source metadata node for the newly added study
+	 * @throws IOException 
+	 */
+	public Node addOrReplaceStudyFromStream(Reader nexson) throws IOException {
 		
-			indexer.addStudyMetaNodeToIndexes(studyMeta);
+		File copy = File.createTempFile("oti-nexson", ".json");
+		try {
+			StreamingStudyHasher hasher = new StreamingStudyHasher();
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(copy), "UTF-8"));
+			try {
+				new StreamingNexsonReader(hasher).read(new CopyingReader(nexson, out));
+			} finally {
+				out.close();
+			}
 			
-			tx.success();
+			// the study is only locked once the first pass is done, and before anything is written
+			IngestContext ctx = newContext();
+			try {
+				ctx.lockStudy(hasher.getStudyId());
+				Node existingStudyMeta = getStudyMetaNodeForStudyId(hasher.getStudyId());
+				if (isUnchangedStudy(existingStudyMeta, hasher.getStudyHash(), getTaxonomyVersion())) {
+					return existingStudyMeta; // nothing has changed
+				}
+				Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(copy), "UTF-8"));
+				try {
+					return writeStudyFromStream(ctx, in, existingStudyMeta, hasher);
+				} finally {
+					in.close();
+				}
+			} finally {
+				finish(ctx);
+			}
 		} finally {
-			tx.finish();
+			copy.delete();
 		}
-		
-		return studyMeta;
 	}
 	
 	/**
@@ -194,12 +371,47 @@ public class DatabaseManager extends OTIDatabase {
 	 */
 //	public Node addTree(JadeTree tree, String treeId, Node sourceMetaNode) {
 	public Node addTree(NexsonTree tree, String treeId, Node sourceMetaNode) {
+		IngestContext ctx = newContext();
+		try {
+			ctx.lockStudy((String) sourceMetaNode.getProperty(OTVocabularyPredicate.OT_STUDY_ID.propertyName()));
+			Node root = addTree(ctx, tree, treeId, sourceMetaNode);
+			ctx.indexer.flush();
+			return root;
+		} finally {
+			ctx.indexer.discardPendingEntries(); // only non-empty if we failed
+			finish(ctx);
+		}
+	}
+	
+	/**
+	 * Add a tree within the given context. The caller must flush the context's indexer before committing.
+	 * @see #addTree(NexsonTree, String, Node)
+	 */
+	private Node addTree(IngestContext ctx, NexsonTree tree, String treeId, Node sourceMetaNode) {
 
 		// get the study id from the source meta node
 		String studyId = (String) sourceMetaNode.getProperty(OTVocabularyPredicate.OT_STUDY_ID.propertyName());
 
-		// add the tree to the graph
-		Node root = preorderAddTreeToDB(tree.getRoot(), null);
+		Node root = buildTree(ctx, tree, treeId, studyId, sourceMetaNode);
+		attachTree(ctx, root, sourceMetaNode);
+		return root;
+	}
+	
+	/**
+	 * Write the nodes of a tree and set the properties of its root, without attaching it to its study.
+	 * @param tree
+	 * @param treeId
+	 * @param studyId
+	 * @param studyMeta
+	 * 		The study whose otu nodes the tree nodes are linked to. May be null if the context defers the otu links (see
+	 * 		buildTreesInParallel)
+	 * @return
+	 * 		The root node of the tree
+	 */
+	private Node buildTree(IngestContext ctx, NexsonTree tree, String treeId, String studyId, Node studyMeta) {
+
+		// add the tree to the graph, gathering information about the taxa represented in this tree as we go
+		Node root = addTreeNodesToDB(ctx, tree.getRoot(), studyMeta);
 		root.setProperty(OTINodeProperty.IS_DEPRECATED.propertyName(), tree.isDeprecated());
 		
 		// set this property now so that get root traversals will work
@@ -207,13 +419,12 @@ public class DatabaseManager extends OTIDatabase {
 
 		// designate the ingroup if we found one, and then reset the variable!
 		// TODO: should see about making this clearer using the specifiedIngroup property of the tree to just get the node instead of having to find it
-		if (lastObservedIngroupStartNode != null) {
-			designateIngroup(lastObservedIngroupStartNode);
-			lastObservedIngroupStartNode = null;
+		if (ctx.lastObservedIngroupStartNode != null) {
+			designateIngroup(ctx.lastObservedIngroupStartNode);
+			ctx.lastObservedIngroupStartNode = null;
 		}
 
-		// attach to source and set the id information
-		sourceMetaNode.createRelationshipTo(root, OTIRelType.METADATAFOR);
+		// set the id information
 		root.setProperty(OTVocabularyPredicate.OT_STUDY_ID.propertyName(), studyId);
 
 		// add node properties
@@ -221,68 +432,114 @@ public class DatabaseManager extends OTIDatabase {
 		root.setProperty(OTINodeProperty.NEXSON_ID.propertyName(), tree.getId());
 		setNodePropertiesFromMap(root, tree.getProperties());
 
-		// gather information about the taxa represented in this tree
-		collectTipTaxonArrayPropertiesFromJadeTree(root, tree);
-		
-		indexer.addTreeRootNodeToIndexes(root);
+		// store the taxon information we collected from the tips
+		assignTaxonArraysToNode(ctx, root);
 		
 		return root;
 	}
+	
+	/**
+	 * Attach a tree that has been built to its study, and index its root. The root is no longer staged.
+	 * @param root
+	 * @param sourceMetaNode
+	 */
+	private void attachTree(IngestContext ctx, Node root, Node sourceMetaNode) {
+
+		root.removeProperty(OTINodeProperty.IS_STAGED.propertyName());
+		sourceMetaNode.createRelationshipTo(root, OTIRelType.METADATAFOR);
+		root.setProperty(OTINodeProperty.STUDY_META_NODE_ID.propertyName(), sourceMetaNode.getId());
+
+		// trees in staged studies are indexed when the study is made live
+		if (ctx.chunkTransaction == null) {
+			ctx.indexer.addTreeRootNodeToIndexes(root);
+		}
+	}
 
 	// ===== delete methods
 
 	/**
-	 * Deletes a tree
-	 * @param treeId
+	 * Delete a tree and remove all its index entries. The tree nodes are found through the tree node index by the tree's
+	 * TREE_INDEX_TAG, and deleted in transactions of at most nodesPerChunk nodes, so deleting a very large tree needs
+	 * neither the whole tree in memory nor one enormous transaction. (If this is called within an enclosing transaction,
+	 * all the deletions become part of that transaction.)
+	 * @param root
 	 */
 	public void deleteTree(Node root) {
+		IngestContext ctx = newContext();
+		try {
+			lockStudyOf(ctx, root);
+			deleteTree(ctx, root);
+		} finally {
+			finish(ctx);
+		}
+	}
+	
+	private void deleteTree(IngestContext ctx, Node root) {
 
 		Transaction tx = graphDb.beginTx();
 		try {
-
-			// clean up the tree indexes
-			indexer.removeTreeRootNodeFromIndexes(root);
-
-			// collect the tree nodes
-			HashSet<Node> todelete = new HashSet<Node>();
-			TraversalDescription CHILDOF_TRAVERSAL = Traversal.description().relationships(OTIRelType.CHILDOF, Direction.INCOMING);
-			todelete.add(root);
-			for (Node curGraphNode : CHILDOF_TRAVERSAL.breadthFirst().traverse(root).nodes()) {
-				todelete.add(curGraphNode);
-			}
-			
-			// remove them
-			for (Node nd : todelete) {
-				for (Relationship rel : nd.getRelationships()) {
-					rel.delete();
-				}
-				nd.delete();
-			}
-			
+			ctx.indexer.removeTreeRootNodeFromIndexes(root);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		
+		Long treeIndexTag = (Long) root.getProperty(OTINodeProperty.TREE_INDEX_TAG.propertyName(), null);
+		boolean deleted = treeIndexTag != null && deleteTaggedTreeNodes(ctx, treeIndexTag, root.getId());
+		
+		// trees indexed before tags were introduced (or whose root somehow missed its tagged entry) must be traversed
+		if (! deleted) {
+			deleteTreeByTraversal(ctx, root);
+		}
+		
+		// the tree may have been tombstoned
+		tx = graphDb.beginTx();
+		try {
+			tombstonedNodes.remove(root);
 			tx.success();
-
 		} finally {
 			tx.finish();
 		}
 	}
 
 	/**
-	 * Remove a study and all its trees. Index entries are deleted and all graph nodes are removed.
+	 * Remove a study and all its trees. Index entries are deleted and all graph nodes are removed. The trees are deleted
+	 * in bounded transactions (see deleteTree), and the study metadata node is deleted last.
 	 * @param studyMeta
 	 * @throws NoSuchTreeException 
 	 */
 	public void deleteSource(Node sourceMeta) {
+		IngestContext ctx = newContext();
+		try {
+			lockStudyOf(ctx, sourceMeta);
+			deleteSource(ctx, sourceMeta);
+		} finally {
+			finish(ctx);
+		}
+	}
+	
+	/**
+	 * Delete a study within the given context, e.g. while another version of it is being written.
+	 * @see #deleteSource(Node)
+	 */
+	void deleteSource(IngestContext ctx, Node sourceMeta) {
 		
+		// remove all trees
+		List<Node> roots = new ArrayList<Node>();
+		for (Relationship rel : sourceMeta.getRelationships(OTIRelType.METADATAFOR, Direction.OUTGOING)) {
+			roots.add(rel.getEndNode());
+		}
+		for (Node root : roots) {
+			deleteTree(ctx, root); // will also remove the METADATAFOR rels pointing at this metadata node
+		}
+		deleteOTUNodes(ctx, sourceMeta, false);
+
 		Transaction tx = graphDb.beginTx();
 		try {
 
 			// clean up the source indexes
-			indexer.removeStudyMetaNodeFromIndexes(sourceMeta);
-
-			// remove all trees
-			for (Relationship rel : sourceMeta.getRelationships(OTIRelType.METADATAFOR, Direction.OUTGOING)) {
-				deleteTree(rel.getEndNode()); // will also remove the METADATAFOR rels pointing at this metadata node
-			}
+			ctx.indexer.removeStudyMetaNodeFromIndexes(sourceMeta);
+			tombstonedNodes.remove(sourceMeta);
 
 			// delete remaining relationships
 			for (Relationship rel : sourceMeta.getRelationships()) {
@@ -299,6 +556,148 @@ public class DatabaseManager extends OTIDatabase {
 		}
 	}
 	
+	/**
+	 * Remove a study, either by deleting it or, if deletion is deferred (see setDeferredDeletion), by tombstoning it.
+	 * @param sourceMeta
+	 */
+	public void removeSource(Node sourceMeta) {
+		IngestContext ctx = newContext();
+		try {
+			lockStudyOf(ctx, sourceMeta);
+			if (deferDeletion) {
+				tombstoneSource(ctx, sourceMeta);
+			} else {
+				deleteSource(ctx, sourceMeta);
+			}
+		} finally {
+			finish(ctx);
+		}
+	}
+	
+	/**
+	 * Hide a study and its trees from queries in a single small transaction, without deleting anything. The study's
+	 * metadata and tree root index entries are removed and the study is marked as retired, which causes the query
+	 * services to ignore its tree nodes. The graph nodes and remaining index entries are deleted later by
+	 * compactTombstones.
+	 * @param sourceMeta
+	 */
+	public void tombstoneSource(Node sourceMeta) {
+		IngestContext ctx = newContext();
+		try {
+			lockStudyOf(ctx, sourceMeta);
+			tombstoneSource(ctx, sourceMeta);
+		} finally {
+			finish(ctx);
+		}
+	}
+	
+	private void tombstoneSource(IngestContext ctx, Node sourceMeta) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			ctx.indexer.removeStudyMetaNodeFromIndexes(sourceMeta);
+			for (Relationship rel : sourceMeta.getRelationships(OTIRelType.METADATAFOR, Direction.OUTGOING)) {
+				ctx.indexer.removeTreeRootNodeFromIndexes(rel.getEndNode());
+			}
+			sourceMeta.setProperty(OTINodeProperty.IS_RETIRED.propertyName(), true);
+			tombstonedNodes.add(sourceMeta, OTINodeProperty.IS_RETIRED.propertyName(), true);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * Delete up to `maxTombstones` of the tombstoned studies and trees, along with all their index entries. Each is
+	 * deleted in bounded transactions (see deleteTree). The otus of the live studies that were only used by deleted
+	 * trees are then deleted too.
+	 * @param maxTombstones
+	 * @return
+	 * 		The number of tombstoned studies and trees that were deleted
+	 */
+	public int compactTombstones(int maxTombstones) {
+		return compactTombstones(maxTombstones, Collections.<Long>emptySet(), null);
+	}
+	
+	/**
+	 * Delete up to `maxTombstones` of the tombstoned studies and trees, other than those whose node ids are in `skip`.
+	 * If `failures` is given, a tombstone that cannot be deleted is recorded in it, with the exception, and the others
+	 * are still deleted, so that a caller that skips the failures next time is not held up by them. Otherwise the
+	 * exception is thrown.
+	 * @param maxTombstones
+	 * @param skip
+	 * @param failures
+	 * @return
+	 * 		The number of tombstoned studies and trees that were deleted
+	 */
+	public int compactTombstones(int maxTombstones, Set<Long> skip, Map<Long, Throwable> failures) {
+		
+		List<Node> tombstones = new ArrayList<Node>();
+		IndexHits<Node> hits = tombstonedNodes.get(OTINodeProperty.IS_RETIRED.propertyName(), true);
+		try {
+			while (hits.hasNext() && tombstones.size() < maxTombstones) {
+				Node tombstone = hits.next();
+				if (! skip.contains(tombstone.getId())) {
+					tombstones.add(tombstone);
+				}
+			}
+		} finally {
+			hits.close();
+		}
+		
+		// each tombstone is deleted while holding the lock for its study, as writers of the study hold it. tombstones are
+		// detached from the live study, but the writers still share the study's otu nodes with them, and deleteTree unlinks
+		// the tree nodes from those otus while a writer may be linking new tree nodes to them or removing unused ones
+		int deleted = 0;
+		Set<String> studiesWithDeletedTrees = new HashSet<String>();
+		for (Node tombstone : tombstones) {
+			IngestContext ctx = newContext();
+			try {
+				lockStudyOf(ctx, tombstone);
+				if (tombstone.hasProperty(OTINodeProperty.IS_STUDY_META.propertyName())) {
+					deleteSource(ctx, tombstone);
+				} else {
+					String studyId = (String) tombstone.getProperty(OTVocabularyPredicate.OT_STUDY_ID.propertyName(), null);
+					deleteTree(ctx, tombstone);
+					if (studyId != null) {
+						studiesWithDeletedTrees.add(studyId);
+					}
+				}
+				deleted++;
+			} catch (RuntimeException ex) {
+				if (failures == null) {
+					throw ex;
+				}
+				failures.put(tombstone.getId(), ex);
+			} finally {
+				finish(ctx);
+			}
+		}
+		
+		for (String studyId : studiesWithDeletedTrees) {
+			deleteUnusedOTUNodes(studyId);
+		}
+		return deleted;
+	}
+	
+	/**
+	 * Delete the otu nodes of the live study with the given id that are no longer linked to any tree node, e.g. because
+	 * the retired trees that used them have been deleted. The study is locked, since a writer of the study may be
+	 * reusing its otu nodes.
+	 * @param studyId
+	 */
+	private void deleteUnusedOTUNodes(String studyId) {
+		IngestContext ctx = newContext();
+		try {
+			ctx.lockStudy(studyId);
+			Node studyMeta = getStudyMetaNodeForStudyId(studyId);
+			if (studyMeta != null) {
+				deleteOTUNodes(ctx, studyMeta, true);
+			}
+		} finally {
+			finish(ctx);
+		}
+	}
+	
 	// ===== other methods
 	
 	/**
@@ -334,11 +733,18 @@ public class DatabaseManager extends OTIDatabase {
 	
 	/**
 	 * Create a relationship associating a tree node with the taxonomy node to which it has been assigned.
-	 * Uses the ott id property of the tree node to identify the taxonomy node. Has no effect if the tree
+	 * Uses the ott id property of the tree node (or otu node) to identify the taxonomy node. Has no effect if the tree
 	 * node has not been assigned an ott id. Requires that the taxonomy has been loaded into the graph.
+	 * 
+	 * During tree insertion the taxon nodes for the whole tree have already been resolved (see
+	 * resolveTaxonNodesForTree), so this does not query the taxonomy index.
 	 * @param node
 	 */
 	public void connectTreeNodeToTaxonomy(Node node) {
+		connectTreeNodeToTaxonomy(newContext(), node);
+	}
+	
+	private void connectTreeNodeToTaxonomy(IngestContext ctx, Node node) {
 		
 		// nothing to be done if this node doesn't have an ottid
 		if (!node.hasProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName())) {
@@ -346,7 +752,7 @@ public class DatabaseManager extends OTIDatabase {
 		}
 		
 		Long ottId = (Long) node.getProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName());
-		Node taxonNode = DatabaseUtils.getSingleNodeIndexHit(taxonNodesByOTTId, OTVocabularyPredicate.OT_OTT_ID.propertyName(), ottId);
+		Node taxonNode = getTaxonNode(ctx, ottId);
 		
 		if (taxonNode != null) {
 			
@@ -361,56 +767,1156 @@ public class DatabaseManager extends OTIDatabase {
 	// ========== private methods
 	
 	/**
-	 * A recursive function used to replicate the tree JadeNode structure below the passed in JadeNode in the graph.
-	 * @param curNexsonNode
-	 * @param parentGraphNode
+	 * Return a new context for a single write. Each call to a public write method uses its own context, which is what
+	 * allows different studies to be written through the same manager on several threads at once.
 	 * @return
 	 */
-	private Node preorderAddTreeToDB(NexsonNode curNexsonNode, Node parentGraphNode) {
-
-		Node curGraphNode = graphDb.createNode();
-//		NexsonNode curNexsonNode = (NexsonNode) ((JadeNode)curJadeNode).getObject(NexsonNode.NEXSON_NODE_JADE_OBJECT_KEY);
-
-		// remember the ingroup if we hit one // TODO: might be able to clean this up by using the tree property set during nexson parsing...
-		if (curNexsonNode.hasProperty(OTINodeProperty.IS_INGROUP_ROOT.propertyName())) {
-			curGraphNode.setProperty(OTINodeProperty.INGROUP_START_NODE_ID.propertyName(), true);
-			lastObservedIngroupStartNode = curGraphNode;
+	private IngestContext newContext() {
+		StudyIndexer indexer = new StudyIndexer(indexingStatistics);
+		indexer.setFuzzyTermIndex(fuzzyTerms);
+		return new IngestContext(indexer, studyLocks);
+	}
+	
+	/**
+	 * Release the study locks taken through the context, invalidate the cached query results and record the indexing
+	 * statistics of the context. Call this once the transactions opened for the write have finished.
+	 * @param ctx
+	 */
+	private void finish(IngestContext ctx) {
+		queryCache.invalidate();
+		ctx.releaseLocks();
+		indexingStatistics.addStatistics(ctx.indexer);
+	}
+	
+	/**
+	 * Take the lock for the study that a study metadata node or tree root belongs to, if it has a study id.
+	 * @param ctx
+	 * @param node
+	 */
+	private void lockStudyOf(IngestContext ctx, Node node) {
+		String studyId = (String) node.getProperty(OTVocabularyPredicate.OT_STUDY_ID.propertyName(), null);
+		if (studyId != null) {
+			ctx.lockStudy(studyId);
 		}
+	}
+
+	/**
+	 * Install or update a study within the given context. The caller must hold the lock for the study.
+	 * @see #addOrReplaceStudy(NexsonSource)
+	 */
+	private Node addOrReplaceStudy(IngestContext ctx, NexsonSource study) {
 		
-		// set nexson id
-		curGraphNode.setProperty(OTINodeProperty.NEXSON_ID.propertyName(), curNexsonNode.getId());		
-				
-		// add properties
-		setNodePropertiesFromMap(curGraphNode, curNexsonNode.getProperties());
+		// TODO: return meaningful information about the result to the rest query that calls this method
 
-		if (curNexsonNode.getOTU() != null) { // if this fails we actually have invalid nexson, should probably disallow this case on nexson import
-			connectTreeNodeToTaxonomy(curGraphNode);
-			setNodePropertiesFromMap(curGraphNode, curNexsonNode.getOTU().getProperties());
-		}
+		String studyId = study.getId();
 
-		if (curNexsonNode.getParentBranchLength() != null) {
-			curGraphNode.setProperty(OTINodeProperty.PARENT_BRANCH_LENGTH.propertyName(), curNexsonNode.getParentBranchLength());
-		}		
+		// hash the incoming content so we can tell what (if anything) has changed
+		LinkedHashMap<String, NexsonTree> trees = new LinkedHashMap<String, NexsonTree>();
+		LinkedHashMap<String, String> treeHashes = new LinkedHashMap<String, String>();
+		for (NexsonTree tree : study.getTrees()) {
+
+			// TODO: sometimes the nexson reader returns null trees. this is a hack to deal with that.
+			// really we should fix the nexson reader so it doesn't return null trees
+			if (tree == null) {
+				continue;
+			}
+
+			// get the tree id from the nexson
+			// TODO: verify that this is the property we want to be using for this
+			String treeId = tree.getId();
+			trees.put(treeId, tree);
+			treeHashes.put(treeId, NexsonContentHasher.hashTree(tree));
+		}
+		String studyHash = NexsonContentHasher.hashStudy(study, treeHashes);
 		
-		if (parentGraphNode != null) {
-			curGraphNode.createRelationshipTo(parentGraphNode, OTIRelType.CHILDOF);
+		// an attempt to add a study with the same id as an existing study overwrites the existing study
+		Node studyMeta = getStudyMetaNodeForStudyId(studyId);
+		String taxonomyVersion = getTaxonomyVersion();
+		if (isUnchangedStudy(studyMeta, studyHash, taxonomyVersion)) {
+			return studyMeta; // nothing has changed
 		}
 
-		for (TreeNode child : curNexsonNode.getChildren()) {
-			preorderAddTreeToDB((NexsonNode) child, curGraphNode);
+		// studies too large to write in a single transaction are staged and then swapped in
+		if (isLargeStudy(study)) {
+			return replaceStudyInChunks(ctx, study, studyMeta, studyHash, trees, treeHashes);
+		}
+		
+		// the trees may be built on worker threads first, in which case they are only attached to the study below
+		if (treeThreads > 1) {
+			ctx.prebuiltTrees = buildTreesInParallel(studyId, studyMeta, trees, treeHashes, taxonomyVersion);
+		}
+		
+		List<Node> retiredRoots = Collections.emptyList();
+		boolean committed = false;
+		try {
+			Transaction tx = graphDb.beginTx();
+			try {
+				
+				if (studyMeta == null) {
+	
+					// create the study
+					studyMeta = graphDb.createNode();
+					setNodePropertiesFromMap(studyMeta, getStudyMetaProperties(study, studyHash));
+					
+					// add the trees
+					for (Entry<String, NexsonTree> tree : trees.entrySet()) {
+						addHashedTree(ctx, tree.getValue(), studyId, studyMeta, treeHashes.get(tree.getKey()));
+					}
+				
+					ctx.indexer.addStudyMetaNodeToIndexes(studyMeta);
+	
+				} else {
+					retiredRoots = updateStudy(ctx, studyMeta, study, studyHash, trees, treeHashes, taxonomyVersion);
+				}
+				
+				ctx.indexer.flush();
+				tx.success();
+			} finally {
+				ctx.indexer.discardPendingEntries(); // only non-empty if we failed
+				tx.finish();
+			}
+			committed = true;
+
+		} finally {
+			if (ctx.prebuiltTrees != null) {
+				if (! committed) {
+					deletePrebuiltTrees(ctx, ctx.prebuiltTrees.values());
+				}
+				ctx.prebuiltTrees = null;
+			}
+		}
+		
+		// now that nothing can see the replaced trees, get rid of them (if deletion is deferred, they have been tombstoned)
+		if (! retiredRoots.isEmpty()) {
+			if (! deferDeletion) {
+				for (Node root : retiredRoots) {
+					deleteTree(ctx, root);
+				}
+			}
+			deleteOTUNodes(ctx, studyMeta, true);
+		}
+		
+		return studyMeta;
+	}
+	
+	/**
+	 * Build the trees of a study that will be written by addOrReplaceStudy, i.e. all of them for a new study and
+	 * otherwise those whose content has changed, on treeThreads worker threads. Each tree is written and indexed in its
+	 * own transaction, but is not attached to the study: the tree nodes are not linked to the study's otus, and the root
+	 * is neither linked to the study nor indexed. These are done by addHashedTree once the study is being written. Until
+	 * then the trees are invisible to queries, since they do not belong to a live study.
+	 * 
+	 * If any of the trees cannot be built, the others are deleted once they have finished and the failure is rethrown.
+	 * 
+	 * @param studyId
+	 * @param studyMeta
+	 * 		The existing study metadata node, or null if this is a new study
+	 * @param trees
+	 * @param treeHashes
+	 * @return
+	 * 		The built trees by nexson tree id, or null if there are not enough trees to write to make it worthwhile
+	 */
+	private Map<String, PrebuiltTree> buildTreesInParallel(final String studyId, Node studyMeta, Map<String, NexsonTree> trees,
+			Map<String, String> treeHashes, String taxonomyVersion) {
+
+		// find the trees that will be written. this must agree with updateStudy
+		Map<String, NexsonTree> treesToBuild = new LinkedHashMap<String, NexsonTree>(trees);
+		if (studyMeta != null) {
+			for (Relationship rel : studyMeta.getRelationships(OTIRelType.METADATAFOR, Direction.OUTGOING)) {
+				Node root = rel.getEndNode();
+				String treeId = (String) root.getProperty(OTINodeProperty.NEXSON_ID.propertyName());
+				if (treesToBuild.containsKey(treeId) && isUnchangedTree(root, treeHashes.get(treeId), taxonomyVersion)) {
+					treesToBuild.remove(treeId);
+				}
+			}
+		}
+		if (treesToBuild.size() < 2) {
+			return null;
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(treeThreads, treesToBuild.size()));
+		Map<String, Future<PrebuiltTree>> pending = new LinkedHashMap<String, Future<PrebuiltTree>>();
+		try {
+			for (final NexsonTree tree : treesToBuild.values()) {
+				pending.put(tree.getId(), pool.submit(new Callable<PrebuiltTree>() {
+					@Override
+					public PrebuiltTree call() {
+						return buildDetachedTree(tree, studyId + "_" + tree.getId(), studyId);
+					}
+				}));
+			}
+		} finally {
+			pool.shutdown();
+		}
+		
+		// wait for all the trees, even if one has failed, so that none are left behind
+		Map<String, PrebuiltTree> built = new LinkedHashMap<String, PrebuiltTree>();
+		Throwable failure = null;
+		boolean interrupted = false;
+		for (Entry<String, Future<PrebuiltTree>> tree : pending.entrySet()) {
+			while (true) {
+				try {
+					built.put(tree.getKey(), tree.getValue().get());
+					break;
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				} catch (ExecutionException ex) {
+					if (failure == null) {
+						failure = ex.getCause();
+					}
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		
+		if (failure != null) {
+			IngestContext cleanup = newContext();
+			try {
+				deletePrebuiltTrees(cleanup, built.values());
+			} finally {
+				finish(cleanup);
+			}
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			} else if (failure instanceof Error) {
+				throw (Error) failure;
+			}
+			throw new RuntimeException("Could not write the trees for study " + studyId, failure);
+		}
+		
+		return built;
+	}
+	
+	/**
+	 * Build a single tree in its own transaction for buildTreesInParallel. Runs on a worker thread.
+	 * @param tree
+	 * @param treeId
+	 * @param studyId
+	 * @return
+	 */
+	private PrebuiltTree buildDetachedTree(NexsonTree tree, String treeId, String studyId) {
+
+		IngestContext treeCtx = newContext();
+		treeCtx.deferredOTUTreeNodes = new ArrayList<Node>();
+		treeCtx.deferredOTUs = new ArrayList<NexsonOTU>();
+		
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node root = buildTree(treeCtx, tree, treeId, studyId, null);
+			treeCtx.indexer.flush();
+			tx.success();
+			return new PrebuiltTree(root, treeCtx.deferredOTUTreeNodes, treeCtx.deferredOTUs);
+		} finally {
+			treeCtx.indexer.discardPendingEntries(); // only non-empty if we failed
+			tx.finish();
+			finish(treeCtx);
+		}
+	}
+	
+	/**
+	 * Link the nodes of a tree built by buildTreesInParallel to the study's otu nodes, creating them if necessary, and
+	 * attach the tree to the study.
+	 * @param tree
+	 * @param studyMeta
+	 */
+	private void attachPrebuiltTree(IngestContext ctx, PrebuiltTree tree, Node studyMeta) {
+
+		// resolve the taxa for any new otus in one go, as addTreeNodesToDB does
+		Set<Long> ottIds = new HashSet<Long>();
+		for (NexsonOTU otu : tree.otus) {
+			Object ottId = otu.getProperties().get(OTVocabularyPredicate.OT_OTT_ID.propertyName());
+			if (ottId != null) {
+				ottIds.add((Long) ottId);
+			}
+		}
+		ctx.taxonNodeIdsForTree = taxonNodeResolver.resolve(ottIds);
+		
+		for (int i = 0; i < tree.otus.size(); i++) {
+			NexsonOTU otu = tree.otus.get(i);
+			getOTUNode(ctx, studyMeta, otu.getLabel(), otu.getProperties()).createRelationshipTo(tree.otuTreeNodes.get(i), OTIRelType.OTUOF);
+		}
+		ctx.taxonNodeIdsForTree = null;
+		
+		attachTree(ctx, tree.root, studyMeta);
+	}
+	
+	/**
+	 * Delete trees built by buildTreesInParallel that will not be attached to their study.
+	 * @param trees
+	 */
+	private void deletePrebuiltTrees(IngestContext ctx, Collection<PrebuiltTree> trees) {
+		for (PrebuiltTree tree : trees) {
+			if (nodeExists(tree.root)) {
+				deleteTree(ctx, tree.root);
+			}
+		}
+	}
+	
+	
+	/**
+	 * The second pass of addOrReplaceStudyFromStream, which writes the study from the nexson in chunks and then swaps it
+	 * in. The caller must hold the lock for the study.
+	 * @param nexson
+	 * @param existingStudyMeta
+	 * 		The source metadata node for the existing version of the study, or null
+	 * @param hasher
+	 * 		The hasher that read the nexson in the first pass
+	 * @return
+	 * 		The source metadata node for the study
+	 * @throws IOException
+	 */
+	private Node writeStudyFromStream(IngestContext ctx, Reader nexson, Node existingStudyMeta, StreamingStudyHasher hasher)
+			throws IOException {
+		
+		// find the trees that are already in the graph, and which of them are unchanged
+		Map<String, Node> existingRoots = new HashMap<String, Node>();
+		Set<String> unchangedTreeIds = new HashSet<String>();
+		String taxonomyVersion = getTaxonomyVersion();
+		if (existingStudyMeta != null) {
+			for (Relationship rel : existingStudyMeta.getRelationships(OTIRelType.METADATAFOR, Direction.OUTGOING)) {
+				Node root = rel.getEndNode();
+				String treeId = (String) root.getProperty(OTINodeProperty.NEXSON_ID.propertyName());
+				existingRoots.put(treeId, root);
+				String treeHash = hasher.getTreeHashes().get(treeId);
+				if (treeHash != null && isUnchangedTree(root, treeHash, taxonomyVersion)) {
+					unchangedTreeIds.add(treeId);
+				}
+			}
+		}
+		
+		// write the new and changed trees, unattached
+		StreamingStudyWriter writer = null;
+		boolean written = false;
+		ctx.chunkTransaction = graphDb.beginTx();
+		ctx.nodesInChunk = 0;
+		try {
+			writer = new StreamingStudyWriter(graphDb, this, ctx, hasher.getStudyId(), existingStudyMeta,
+					hasher.getTreeHashes(), unchangedTreeIds);
+			new StreamingNexsonReader(writer).read(nexson);
+			ctx.indexer.flush();
+			ctx.chunkTransaction.success();
+			written = true;
+		} finally {
+			if (! written) {
+				ctx.indexer.discardPendingEntries();
+				ctx.chunkTransaction.failure();
+			}
+			ctx.chunkTransaction.finish();
+			ctx.chunkTransaction = null;
+			
+			// clean up whatever was committed before the failure
+			if (! written) {
+				discardStreamedTrees(ctx, writer, existingStudyMeta);
+			}
+		}
+		Node studyMeta = writer.getStudyMetaNode();
+		
+		// swap in the new version
+		Map<String, Object> properties = new HashMap<String, Object>(writer.getStudyProperties());
+		properties.put(OTINodeProperty.IS_STUDY_META.propertyName(), true);
+		properties.put(OTINodeProperty.IS_DEPRECATED.propertyName(), StreamingNexsonReader.isDeprecated(properties));
+		properties.put(OTINodeProperty.CONTENT_HASH.propertyName(), hasher.getStudyHash());
+		List<Node> retiredRoots = new ArrayList<Node>();
+		boolean swapped = false;
+		Transaction tx = graphDb.beginTx();
+		try {
+			Set<String> changedProperties = updateStudyMetaProperties(studyMeta, properties); // also unstages a new study
+			for (Entry<String, Node> existing : existingRoots.entrySet()) {
+				if (! unchangedTreeIds.contains(existing.getKey())) {
+					retireTree(ctx, existing.getValue());
+					retiredRoots.add(existing.getValue());
+				}
+			}
+			for (Long rootId : writer.getWrittenRootIds().values()) {
+				attachTree(ctx, graphDb.getNodeById(rootId), studyMeta);
+			}
+			if (existingStudyMeta == null) {
+				ctx.indexer.addStudyMetaNodeToIndexes(studyMeta);
+			} else {
+				ctx.indexer.updateStudyMetaNodeIndexes(studyMeta, changedProperties);
+			}
+			ctx.indexer.flush();
+			tx.success();
+			swapped = true;
+		} finally {
+			ctx.indexer.discardPendingEntries(); // only non-empty if we failed
+			tx.finish();
+			if (! swapped) {
+				discardStreamedTrees(ctx, writer, existingStudyMeta);
+			}
+		}
+		
+		// now that nothing can see the replaced trees, get rid of them (if deletion is deferred, they have been tombstoned)
+		if (! deferDeletion) {
+			for (Node root : retiredRoots) {
+				deleteTree(ctx, root);
+			}
+		}
+		deleteOTUNodes(ctx, studyMeta, true);
+		
+		return studyMeta;
+	}
+	
+	/**
+	 * Remove the committed parts of a streamed study whose ingest failed: the unattached trees (including one that was
+	 * only partly written), and either the staged study metadata node for a new study or the otu nodes that were added to
+	 * an existing study for the new trees. The trees are found by their TREE_INDEX_TAGs, since their roots may not have
+	 * been committed.
+	 * @param writer
+	 * 		The writer, or null if it was never created
+	 * @param existingStudyMeta
+	 */
+	private void discardStreamedTrees(IngestContext ctx, StreamingStudyWriter writer, Node existingStudyMeta) {
+		if (writer == null) {
+			return;
+		}
+		for (Long treeIndexTag : writer.getTreeIndexTags()) {
+			deleteTaggedTreeNodes(ctx, treeIndexTag, -1);
+		}
+		Node studyMeta = writer.getStudyMetaNode();
+		if (! nodeExists(studyMeta)) {
+			return;
+		}
+		if (existingStudyMeta == null) {
+			deleteSource(ctx, studyMeta);
+		} else {
+			deleteOTUNodes(ctx, studyMeta, true);
+		}
+	}
+	
+	/**
+	 * Write a study in a series of bounded transactions, so that the transaction state for very large studies does not
+	 * exhaust the heap. The new version of the study is staged (ignored by queries) while it is written; once every tree
+	 * has been committed, a single small transaction makes it live and retires the existing version (if any), which is
+	 * then deleted in chunks. Readers therefore see either the old version or the new one, never a partial study.
+	 * 
+	 * @param study
+	 * @param existingStudyMeta
+	 * 		The source metadata node for the existing version of the study, or null
+	 * @param studyHash
+	 * @param trees
+	 * @param treeHashes
+	 * @return
+	 * 		The source metadata node for the new version of the study
+	 */
+	private Node replaceStudyInChunks(IngestContext ctx, NexsonSource study, Node existingStudyMeta, String studyHash,
+			Map<String, NexsonTree> trees, Map<String, String> treeHashes) {
+
+		Node stagedStudyMeta = null;
+		boolean staged = false;
+
+		ctx.chunkTransaction = graphDb.beginTx();
+		ctx.nodesInChunk = 0;
+		try {
+			stagedStudyMeta = graphDb.createNode();
+			setNodePropertiesFromMap(stagedStudyMeta, getStudyMetaProperties(study, studyHash));
+			stagedStudyMeta.setProperty(OTINodeProperty.IS_STAGED.propertyName(), true);
+
+			for (Entry<String, NexsonTree> tree : trees.entrySet()) {
+				addHashedTree(ctx, tree.getValue(), study.getId(), stagedStudyMeta, treeHashes.get(tree.getKey()));
+				ctx.currentTreeRoot = null;
+			}
+			
+			ctx.indexer.flush();
+			ctx.chunkTransaction.success();
+			staged = true;
+
+		} finally {
+			if (! staged) {
+				ctx.indexer.discardPendingEntries();
+				ctx.chunkTransaction.failure();
+			}
+			ctx.chunkTransaction.finish();
+			ctx.chunkTransaction = null;
+			
+			// clean up whatever was committed before the failure. the uncommitted nodes have already been rolled back
+			if (! staged) {
+				discardStagedStudy(ctx, stagedStudyMeta, ctx.currentTreeRoot);
+				ctx.currentTreeRoot = null;
+			}
+		}
+
+		// swap in the new version
+		Transaction tx = graphDb.beginTx();
+		try {
+			if (existingStudyMeta != null) {
+				ctx.indexer.removeStudyMetaNodeFromIndexes(existingStudyMeta);
+				for (Relationship rel : existingStudyMeta.getRelationships(OTIRelType.METADATAFOR, Direction.OUTGOING)) {
+					ctx.indexer.removeTreeRootNodeFromIndexes(rel.getEndNode());
+				}
+				existingStudyMeta.setProperty(OTINodeProperty.IS_RETIRED.propertyName(), true);
+				tombstonedNodes.add(existingStudyMeta, OTINodeProperty.IS_RETIRED.propertyName(), true);
+			}
+
+			stagedStudyMeta.removeProperty(OTINodeProperty.IS_STAGED.propertyName());
+			for (Relationship rel : stagedStudyMeta.getRelationships(OTIRelType.METADATAFOR, Direction.OUTGOING)) {
+				ctx.indexer.addTreeRootNodeToIndexes(rel.getEndNode());
+			}
+			ctx.indexer.addStudyMetaNodeToIndexes(stagedStudyMeta);
+			
+			ctx.indexer.flush();
+			tx.success();
+		} finally {
+			ctx.indexer.discardPendingEntries();
+			tx.finish();
+		}
+		
+		// now that nothing can see the old version, get rid of it (if deletion is deferred, it has been tombstoned)
+		if (existingStudyMeta != null && ! deferDeletion) {
+			deleteSource(ctx, existingStudyMeta);
+		}
+		
+		return stagedStudyMeta;
+	}
+	
+	/**
+	 * Remove the committed parts of a staged study whose ingest failed.
+	 * @param stagedStudyMeta
+	 * @param partialTreeNode
+	 * 		A node in a tree that was being written when the failure occurred and may not be attached to the study yet
+	 */
+	private void discardStagedStudy(IngestContext ctx, Node stagedStudyMeta, Node partialTreeNode) {
+		if (partialTreeNode != null && nodeExists(partialTreeNode)) {
+			deleteTree(ctx, partialTreeNode);
+		}
+		if (stagedStudyMeta != null && nodeExists(stagedStudyMeta)) {
+			deleteSource(ctx, stagedStudyMeta);
+		}
+	}
+	
+	private boolean nodeExists(Node node) {
+		try {
+			graphDb.getNodeById(node.getId());
+			return true;
+		} catch (NotFoundException ex) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Detach a tree from its study and tombstone it, hiding it from queries. It is deleted later by compactTombstones,
+	 * unless the caller deletes it once the transaction has been committed.
+	 * @param root
+	 */
+	private void retireTree(IngestContext ctx, Node root) {
+		ctx.indexer.removeTreeRootNodeFromIndexes(root);
+		for (Relationship rel : root.getRelationships(OTIRelType.METADATAFOR, Direction.INCOMING)) {
+			rel.delete();
+		}
+		root.removeProperty(OTINodeProperty.STUDY_META_NODE_ID.propertyName());
+		root.setProperty(OTINodeProperty.IS_RETIRED.propertyName(), true);
+		tombstonedNodes.add(root, OTINodeProperty.IS_RETIRED.propertyName(), true);
+	}
+	
+	/**
+	 * Delete all the tree nodes whose index entries are tagged with the given TREE_INDEX_TAG, along with their index
+	 * entries and relationships, in transactions of at most nodesPerChunk nodes. Each chunk is fetched from the index
+	 * with a new query, which is closed before the chunk is deleted and committed, so the index hits are never read
+	 * across a commit and only one chunk of the tree is held at a time.
+	 * @param treeIndexTag
+	 * @param rootId
+	 * @return
+	 * 		Whether the root of the tree was among the nodes deleted
+	 */
+	private boolean deleteTaggedTreeNodes(IngestContext ctx, long treeIndexTag, long rootId) {
+
+		boolean rootDeleted = false;
+		Set<Long> previousChunk = Collections.emptySet();
+		while (true) {
+			
+			// the entries of the nodes deleted so far have been committed, so the query only finds the remaining nodes
+			List<Node> chunk = new ArrayList<Node>();
+			IndexHits<Node> treeNodes = ctx.indexer.getTreeNodesForIndexTag(treeIndexTag);
+			try {
+				while (treeNodes.hasNext() && chunk.size() < nodesPerChunk) {
+					chunk.add(treeNodes.next());
+				}
+			} finally {
+				treeNodes.close();
+			}
+			if (chunk.isEmpty() || previousChunk.contains(chunk.get(0).getId())) {
+				break; // done, or the last chunk's entries could not be removed, in which case it would be fetched forever
+			}
+			
+			Set<Long> chunkIds = new HashSet<Long>();
+			Transaction tx = graphDb.beginTx();
+			try {
+				for (Node nd : chunk) {
+					chunkIds.add(nd.getId());
+					rootDeleted |= nd.getId() == rootId;
+					ctx.indexer.removeTreeNodeFromIndexes(nd);
+					deleteNodeAndRelationships(nd);
+				}
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+			if (chunk.size() < nodesPerChunk) {
+				break;
+			}
+			previousChunk = chunkIds;
+		}
+		return rootDeleted;
+	}
+	
+	/**
+	 * Delete the tree containing the given node (which should be its root) by traversing it, removing the index entries
+	 * for each node, in bounded transactions. Used for trees whose index entries are not tagged.
+	 * @param root
+	 */
+	private void deleteTreeByTraversal(IngestContext ctx, Node root) {
+
+		// collect the node ids first, since we can't traverse the tree while we're deleting it
+		List<Long> nodeIds = new ArrayList<Long>();
+		nodeIds.add(root.getId());
+		TraversalDescription CHILDOF_TRAVERSAL = Traversal.description().relationships(OTIRelType.CHILDOF, Direction.INCOMING);
+		for (Node curGraphNode : CHILDOF_TRAVERSAL.breadthFirst().traverse(root).nodes()) {
+			if (curGraphNode.getId() != root.getId()) {
+				nodeIds.add(curGraphNode.getId());
+			}
+		}
+		
+		for (int i = 0; i < nodeIds.size(); i += nodesPerChunk) {
+			Transaction tx = graphDb.beginTx();
+			try {
+				for (Long nodeId : nodeIds.subList(i, Math.min(i + nodesPerChunk, nodeIds.size()))) {
+					Node nd = graphDb.getNodeById(nodeId);
+					ctx.indexer.removeTreeNodeFromIndexes(nd);
+					deleteNodeAndRelationships(nd);
+				}
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+		}
+	}
+	
+	static void deleteNodeAndRelationships(Node nd) {
+		for (Relationship rel : nd.getRelationships()) {
+			rel.delete();
+		}
+		nd.delete();
+	}
+	
+	/**
+	 * When a study is being written in chunks, commit the current chunk and start a new one if it is full.
+	 */
+	void commitChunkIfFull(IngestContext ctx) {
+		if (ctx.chunkTransaction != null && ++ctx.nodesInChunk >= nodesPerChunk) {
+			ctx.indexer.flush();
+			ctx.chunkTransaction.success();
+			ctx.chunkTransaction.finish();
+			ctx.chunkTransaction = graphDb.beginTx();
+			ctx.nodesInChunk = 0;
+		}
+	}
+	
+	/**
+	 * Update an existing study in place to match the incoming one. Study properties (and their index entries) are only
+	 * rewritten if they have changed, and trees are only replaced if their content hashes differ from those of the trees
+	 * already in the graph. Trees that are replaced or are no longer in the study are retired (see retireTree), which only
+	 * touches their roots, so this transaction stays small however large the old trees are. The caller deletes them in
+	 * bounded transactions once it has been committed, or leaves them for compactTombstones if deletion is deferred.
+	 * 
+	 * @param studyMeta
+	 * @param study
+	 * @param studyHash
+	 * @param trees
+	 * @param treeHashes
+	 * @param taxonomyVersion
+	 * @return
+	 * 		The roots of the trees that have been retired
+	 */
+	private List<Node> updateStudy(IngestContext ctx, Node studyMeta, NexsonSource study, String studyHash, Map<String, NexsonTree> trees,
+			Map<String, String> treeHashes, String taxonomyVersion) {
+
+		String studyId = study.getId();
+		
+		// update the study properties
+		Set<String> changedProperties = updateStudyMetaProperties(studyMeta, getStudyMetaProperties(study, studyHash));
+		ctx.indexer.updateStudyMetaNodeIndexes(studyMeta, changedProperties);
+
+		// find the trees that are already in the graph
+		Map<String, Node> existingRoots = new HashMap<String, Node>();
+		for (Relationship rel : studyMeta.getRelationships(OTIRelType.METADATAFOR, Direction.OUTGOING)) {
+			Node root = rel.getEndNode();
+			existingRoots.put((String) root.getProperty(OTINodeProperty.NEXSON_ID.propertyName()), root);
+		}
+		
+		// replace the trees that have changed
+		List<Node> retiredRoots = new ArrayList<Node>();
+		for (Entry<String, NexsonTree> tree : trees.entrySet()) {
+			String treeHash = treeHashes.get(tree.getKey());
+			Node existingRoot = existingRoots.remove(tree.getKey());
+			if (existingRoot != null) {
+				if (isUnchangedTree(existingRoot, treeHash, taxonomyVersion)) {
+					continue;
+				}
+				retireTree(ctx, existingRoot);
+				retiredRoots.add(existingRoot);
+			}
+			addHashedTree(ctx, tree.getValue(), studyId, studyMeta, treeHash);
+		}
+		
+		// remove the trees that are no longer in the study
+		for (Node root : existingRoots.values()) {
+			retireTree(ctx, root);
+			retiredRoots.add(root);
+		}
+		
+		return retiredRoots;
+	}
+	
+	/**
+	 * Set the properties of a study metadata node to the given ones, removing any others, and only writing those whose
+	 * values have changed.
+	 * @param studyMeta
+	 * @param properties
+	 * @return
+	 * 		The names of the properties that were changed or removed
+	 */
+	private static Set<String> updateStudyMetaProperties(Node studyMeta, Map<String, Object> properties) {
+		Set<String> changedProperties = new HashSet<String>();
+		for (String key : studyMeta.getPropertyKeys()) {
+			if (properties.get(key) == null) {
+				changedProperties.add(key);
+			}
+		}
+		for (String key : changedProperties) {
+			studyMeta.removeProperty(key);
+		}
+		for (Entry<String, Object> property : properties.entrySet()) {
+			if (property.getValue() != null && ! valuesAreEqual(property.getValue(), studyMeta.getProperty(property.getKey(), null))) {
+				studyMeta.setProperty(property.getKey(), property.getValue());
+				changedProperties.add(property.getKey());
+			}
+		}
+		return changedProperties;
+	}
+	
+	/**
+	 * Add a tree using the treemachine convention of including the study id in the tree id, and record its content hash.
+	 * @param tree
+	 * @param studyId
+	 * @param studyMeta
+	 * @param treeHash
+	 */
+	private void addHashedTree(IngestContext ctx, NexsonTree tree, String studyId, Node studyMeta, String treeHash) {
+
+		// the tree may already have been built on a worker thread
+		PrebuiltTree prebuilt = ctx.prebuiltTrees != null ? ctx.prebuiltTrees.get(tree.getId()) : null;
+		if (prebuilt != null) {
+			attachPrebuiltTree(ctx, prebuilt, studyMeta);
+			prebuilt.root.setProperty(OTINodeProperty.CONTENT_HASH.propertyName(), treeHash);
+			return;
+		}
+
+		// create a unique tree id by including the study id, this is the convention from treemachine
+		String treeUniqueId = studyId + "_" + tree.getId();
+		
+		Node root = addTree(ctx, tree, treeUniqueId, studyMeta);
+		root.setProperty(OTINodeProperty.CONTENT_HASH.propertyName(), treeHash);
+	}
+	
+	/**
+	 * Return the properties that should be stored on the study metadata node for the study.
+	 * @param study
+	 * @param studyHash
+	 * @return
+	 */
+	private static Map<String, Object> getStudyMetaProperties(NexsonSource study, String studyHash) {
+		Map<String, Object> properties = new HashMap<String, Object>(study.getProperties());
+		properties.put(OTINodeProperty.IS_STUDY_META.propertyName(), true);
+		properties.put(OTINodeProperty.IS_DEPRECATED.propertyName(), study.isDeprecated());
+		properties.put(OTINodeProperty.CONTENT_HASH.propertyName(), studyHash);
+		return properties;
+	}
+	
+	/**
+	 * Compare two property values, including (primitive) array values.
+	 */
+	private static boolean valuesAreEqual(Object a, Object b) {
+		return Arrays.deepEquals(new Object[] { a }, new Object[] { b });
+	}
+	
+	/**
+	 * Replicate the structure of the nexson tree below `nexsonRoot` in the graph. Uses an explicit stack instead of
+	 * recursion so that very deep (e.g. caterpillar) trees cannot overflow the call stack. Graph nodes, CHILDOF
+	 * relationships, and index entries are all created during this single preorder traversal, which also records the
+	 * taxonomic information for the tips so we don't need to walk the tree again to collect it.
+	 * 
+	 * @param nexsonRoot
+	 * @param studyMeta
+	 * 		The study the tree belongs to, whose shared otu nodes will be linked to the tree nodes
+	 * @return
+	 * 		The graph node for the root of the tree
+	 */
+	private Node addTreeNodesToDB(IngestContext ctx, NexsonNode nexsonRoot, Node studyMeta) {
+
+		initializeTipTaxonSets(ctx);
+		resolveTaxonNodesForTree(ctx, collectOTTIds(nexsonRoot));
+		
+		Node graphRoot = null;
+		ArrayDeque<PendingTreeNode> stack = new ArrayDeque<PendingTreeNode>();
+		stack.push(new PendingTreeNode(nexsonRoot, null));
+		
+		ArrayList<TreeNode> children = new ArrayList<TreeNode>();
+		while (! stack.isEmpty()) {
+
+			PendingTreeNode pending = stack.pop();
+			Node curGraphNode = addTreeNodeToDB(ctx, pending.nexsonNode, pending.parentGraphNode, studyMeta);
+			if (graphRoot == null) {
+				graphRoot = curGraphNode;
+				ctx.currentTreeRoot = curGraphNode;
+				graphRoot.setProperty(OTINodeProperty.TREE_INDEX_TAG.propertyName(), graphRoot.getId());
+				
+				// until the tree is attached, this marks it to be cleaned up if its write never finishes (see IndexRebuilder)
+				graphRoot.setProperty(OTINodeProperty.IS_STAGED.propertyName(), true);
+			}
+			curGraphNode.setProperty(OTINodeProperty.ROOT_NODE_ID.propertyName(), graphRoot.getId());
+			ctx.indexer.addTreeNodeToIndexes(curGraphNode, graphRoot.getId());
+
+			// push the children in reverse order so they are visited in their original order
+			children.clear();
+			for (TreeNode child : pending.nexsonNode.getChildren()) {
+				children.add(child);
+			}
+			for (int i = children.size() - 1; i >= 0; i--) {
+				stack.push(new PendingTreeNode((NexsonNode) children.get(i), curGraphNode));
+			}
+
+			if (children.isEmpty()) {
+				recordTipTaxonInformation(ctx, pending.nexsonNode.getOTU());
+			}
+			
+			commitChunkIfFull(ctx);
+		}
+
+		return graphRoot;
+	}
+	
+	/**
+	 * Create the graph node for a single nexson node and attach it to its parent and to its otu.
+	 * @param curNexsonNode
+	 * @param parentGraphNode
+	 * @param studyMeta
+	 * @return
+	 */
+	private Node addTreeNodeToDB(IngestContext ctx, NexsonNode curNexsonNode, Node parentGraphNode, Node studyMeta) {
+
+		Node curGraphNode = graphDb.createNode();
+
+		// remember the ingroup if we hit one // TODO: might be able to clean this up by using the tree property set during nexson parsing...
+		if (curNexsonNode.hasProperty(OTINodeProperty.IS_INGROUP_ROOT.propertyName())) {
+			curGraphNode.setProperty(OTINodeProperty.INGROUP_START_NODE_ID.propertyName(), true);
+			ctx.lastObservedIngroupStartNode = curGraphNode;
+		}
+		
+		// set nexson id
+		curGraphNode.setProperty(OTINodeProperty.NEXSON_ID.propertyName(), curNexsonNode.getId());		
+				
+		// add properties
+		setNodePropertiesFromMap(curGraphNode, curNexsonNode.getProperties());
+
+		if (curNexsonNode.getOTU() != null) { // if this fails we actually have invalid nexson, should probably disallow this case on nexson import
+			NexsonOTU otu = curNexsonNode.getOTU();
+			if (ctx.deferredOTUs != null) {
+				ctx.deferredOTUTreeNodes.add(curGraphNode);
+				ctx.deferredOTUs.add(otu);
+			} else {
+				getOTUNode(ctx, studyMeta, otu.getLabel(), otu.getProperties()).createRelationshipTo(curGraphNode, OTIRelType.OTUOF);
+			}
 		}
 
-		indexer.addTreeNodeToIndexes(curGraphNode);
+		if (curNexsonNode.getParentBranchLength() != null) {
+			curGraphNode.setProperty(OTINodeProperty.PARENT_BRANCH_LENGTH.propertyName(), curNexsonNode.getParentBranchLength());
+		}		
+		
+		if (parentGraphNode != null) {
+			curGraphNode.createRelationshipTo(parentGraphNode, OTIRelType.CHILDOF);
+		}
 
 		return curGraphNode;
 	}
 	
+	/**
+	 * Return the shared node for the otu with the given label and properties in the given study, creating, indexing and
+	 * linking it to the taxonomy if the study does not have one yet. Otus are stored once per study, and each tree node
+	 * mapped to an otu is linked to its node with an OTUOF relationship, rather than having the otu properties copied
+	 * onto it. Otu nodes are identified by a hash of their content, so an otu whose properties have changed gets a new
+	 * node, and the old one is deleted once no tree node uses it (see deleteOTUNodes).
+	 * @param studyMeta
+	 * @param label
+	 * @param properties
+	 * @return
+	 */
+	Node getOTUNode(IngestContext ctx, Node studyMeta, String label, Map<String, Object> properties) {
+
+		// the otu nodes for the study are loaded the first time one of them is needed
+		if (ctx.otuNodesStudyMeta == null || ctx.otuNodesStudyMeta.getId() != studyMeta.getId()) {
+			ctx.otuNodesForStudy = new HashMap<String, Node>();
+			for (Relationship rel : studyMeta.getRelationships(OTIRelType.HASOTU, Direction.OUTGOING)) {
+				Node otuNode = rel.getEndNode();
+				ctx.otuNodesForStudy.put((String) otuNode.getProperty(OTINodeProperty.CONTENT_HASH.propertyName()), otuNode);
+			}
+			ctx.otuNodesStudyMeta = studyMeta;
+		}
+
+		String otuHash = NexsonContentHasher.hashOTU(label, properties);
+		Node otuNode = ctx.otuNodesForStudy.get(otuHash);
+		if (otuNode == null) {
+			otuNode = graphDb.createNode();
+			setNodePropertiesFromMap(otuNode, properties);
+			otuNode.setProperty(OTINodeProperty.IS_OTU.propertyName(), true);
+			otuNode.setProperty(OTINodeProperty.CONTENT_HASH.propertyName(), otuHash);
+			studyMeta.createRelationshipTo(otuNode, OTIRelType.HASOTU);
+			connectTreeNodeToTaxonomy(ctx, otuNode);
+			ctx.indexer.addOTUNodeToIndexes(otuNode);
+			ctx.otuNodesForStudy.put(otuHash, otuNode);
+		}
+		return otuNode;
+	}
+	
+	/**
+	 * Forget the otu nodes remembered by getOTUNode, e.g. because the transaction in which they were created may have
+	 * been rolled back.
+	 */
+	private void forgetOTUNodes(IngestContext ctx) {
+		ctx.otuNodesStudyMeta = null;
+		ctx.otuNodesForStudy = null;
+	}
+	
+	/**
+	 * Delete the otu nodes of a study, along with their index entries, in bounded transactions.
+	 * @param studyMeta
+	 * @param onlyUnused
+	 * 		If true, only delete the otu nodes that are not linked to any tree nodes
+	 */
+	private void deleteOTUNodes(IngestContext ctx, Node studyMeta, boolean onlyUnused) {
+
+		List<Long> otuNodeIds = new ArrayList<Long>();
+		for (Relationship rel : studyMeta.getRelationships(OTIRelType.HASOTU, Direction.OUTGOING)) {
+			Node otuNode = rel.getEndNode();
+			if (! onlyUnused || ! otuNode.hasRelationship(OTIRelType.OTUOF, Direction.OUTGOING)) {
+				otuNodeIds.add(otuNode.getId());
+			}
+		}
+		if (otuNodeIds.isEmpty()) {
+			return;
+		}
+		forgetOTUNodes(ctx);
+
+		for (int i = 0; i < otuNodeIds.size(); i += nodesPerChunk) {
+			Transaction tx = graphDb.beginTx();
+			try {
+				for (Long nodeId : otuNodeIds.subList(i, Math.min(i + nodesPerChunk, otuNodeIds.size()))) {
+					Node otuNode = graphDb.getNodeById(nodeId);
+					ctx.indexer.removeOTUNodeFromIndexes(otuNode);
+					deleteNodeAndRelationships(otuNode);
+				}
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+		}
+	}
+	
+	/**
+	 * Return the distinct OTT ids of the otus for all the nodes in the nexson tree below `nexsonRoot`.
+	 * @param nexsonRoot
+	 * @return
+	 */
+	private static Set<Long> collectOTTIds(NexsonNode nexsonRoot) {
+		Set<Long> ottIds = new HashSet<Long>();
+		ArrayDeque<NexsonNode> stack = new ArrayDeque<NexsonNode>();
+		stack.push(nexsonRoot);
+		while (! stack.isEmpty()) {
+			NexsonNode nexsonNode = stack.pop();
+			if (nexsonNode.getOTU() != null) {
+				Object ottId = nexsonNode.getOTU().getProperties().get(OTVocabularyPredicate.OT_OTT_ID.propertyName());
+				if (ottId != null) {
+					ottIds.add((Long) ottId);
+				}
+			}
+			for (TreeNode child : nexsonNode.getChildren()) {
+				stack.push((NexsonNode) child);
+			}
+		}
+		return ottIds;
+	}
+	
+	/**
+	 * Resolve the taxon nodes for all the OTT ids in the tree that is about to be added, in as few index queries as
+	 * possible. Nodes in the tree are then linked to the taxonomy, and the higher taxa for its tips collected, from the
+	 * resolved ids. The ids are released by assignTaxonArraysToNode once the tree is finished.
+	 * 
+	 * Also takes a snapshot of the taxonomy mirror to use for the whole tree, if the mirror is up to date. Otherwise the
+	 * higher taxa are collected from the taxonomy graph, while the mirror is rebuilt in the background.
+	 * @param ottIds
+	 */
+	void resolveTaxonNodesForTree(IngestContext ctx, Collection<Long> ottIds) {
+		
+		ctx.taxonomyForTree = taxonomyMirror.getCurrentSnapshot();
+		ctx.taxaRecordedForTree.clear();
+		
+		ctx.taxonNodeIdsForTree = taxonNodeResolver.resolve(ottIds);
+	}
+	
+	/**
+	 * Return the version of the taxonomy that the taxon properties of the trees written now are derived from, or null if
+	 * the taxonomy mirror is not up to date. See OTINodeProperty.TAXONOMY_VERSION.
+	 * @return
+	 */
+	private String getTaxonomyVersion() {
+		TaxonomyMirror.Snapshot taxonomy = taxonomyMirror.getCurrentSnapshot();
+		return taxonomy == null ? null : taxonomy.getVersion();
+	}
+	
+	/**
+	 * Return true if the tree with the given root does not need to be rewritten: its content hash matches the new one,
+	 * and its higher taxa were collected from the current taxonomy. If the current taxonomy version is not known (the
+	 * mirror is being rebuilt), only the content is compared, so that the state of the mirror alone never causes a tree
+	 * to be rewritten. Trees written without a known version are rewritten once the version is known.
+	 * @param root
+	 * @param treeHash
+	 * @param taxonomyVersion
+	 * 		The current taxonomy version (see getTaxonomyVersion), or null if it is not known
+	 * @return
+	 */
+	private static boolean isUnchangedTree(Node root, String treeHash, String taxonomyVersion) {
+		return treeHash.equals(root.getProperty(OTINodeProperty.CONTENT_HASH.propertyName(), null)) && (taxonomyVersion == null
+				|| taxonomyVersion.equals(root.getProperty(OTINodeProperty.TAXONOMY_VERSION.propertyName(), null)));
+	}
+	
+	/**
+	 * Return true if the study does not need to be rewritten at all: it exists, its content hash (which covers the
+	 * content hashes of its trees) matches the new one, and none of its trees need to be rewritten for a new taxonomy.
+	 * See isUnchangedTree.
+	 * @param studyMeta
+	 * 		The existing study metadata node, or null if the study is new
+	 * @param studyHash
+	 * @param taxonomyVersion
+	 * @return
+	 */
+	private static boolean isUnchangedStudy(Node studyMeta, String studyHash, String taxonomyVersion) {
+		if (studyMeta == null || ! studyHash.equals(studyMeta.getProperty(OTINodeProperty.CONTENT_HASH.propertyName(), null))) {
+			return false;
+		}
+		if (taxonomyVersion != null) {
+			for (Relationship rel : studyMeta.getRelationships(OTIRelType.METADATAFOR, Direction.OUTGOING)) {
+				if (! taxonomyVersion.equals(rel.getEndNode().getProperty(OTINodeProperty.TAXONOMY_VERSION.propertyName(), null))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Return the taxon node for the OTT id, or null if it is not in the taxonomy. Uses the ids resolved for the current
+	 * tree if there is one. Cached ids are checked against the node they refer to, since the taxonomy may have been
+	 * reloaded since they were resolved, and are looked up again if they are wrong.
+	 * @param ottId
+	 * @return
+	 */
+	private Node getTaxonNode(IngestContext ctx, long ottId) {
+		
+		long taxonNodeId = ctx.taxonNodeIdsForTree != null
+				? ctx.taxonNodeIdsForTree.get(ottId)
+				: taxonNodeResolver.resolve(Collections.singleton(ottId)).get(ottId);
+		if (taxonNodeId == LongLongHashMap.NO_VALUE) {
+			return null;
+		}
+		
+		try {
+			Node taxonNode = graphDb.getNodeById(taxonNodeId);
+			if (Long.valueOf(ottId).equals(taxonNode.getProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName(), null))) {
+				return taxonNode;
+			}
+		} catch (NotFoundException ex) {
+			// the node has been deleted
+		}
+		
+		// the cached id is stale, so look it up again
+		taxonNodeResolver.forget(ottId);
+		taxonNodeId = taxonNodeResolver.resolve(Collections.singleton(ottId)).get(ottId);
+		if (ctx.taxonNodeIdsForTree != null) {
+			if (taxonNodeId == LongLongHashMap.NO_VALUE) {
+				ctx.taxonNodeIdsForTree.remove(ottId);
+			} else {
+				ctx.taxonNodeIdsForTree.put(ottId, taxonNodeId);
+			}
+		}
+		return taxonNodeId == LongLongHashMap.NO_VALUE ? null : graphDb.getNodeById(taxonNodeId);
+	}
+	
+	/**
+	 * A tree built by buildTreesInParallel that has not been attached to its study yet, along with the tree nodes that
+	 * are mapped to otus and their otus, which are linked when it is attached.
+	 */
+	static class PrebuiltTree {
+		final Node root;
+		final List<Node> otuTreeNodes;
+		final List<NexsonOTU> otus;
+		PrebuiltTree(Node root, List<Node> otuTreeNodes, List<NexsonOTU> otus) {
+			this.root = root;
+			this.otuTreeNodes = otuTreeNodes;
+			this.otus = otus;
+		}
+	}
+	
+	/**
+	 * Copies the characters read from a reader to a writer, so that addOrReplaceStudyFromStream can read the nexson again.
+	 */
+	private static class CopyingReader extends FilterReader {
+		private final Writer copy;
+		CopyingReader(Reader in, Writer copy) {
+			super(in);
+			this.copy = copy;
+		}
+		@Override
+		public int read() throws IOException {
+			int c = super.read();
+			if (c >= 0) {
+				copy.write(c);
+			}
+			return c;
+		}
+		@Override
+		public int read(char[] buffer, int offset, int length) throws IOException {
+			int n = super.read(buffer, offset, length);
+			if (n > 0) {
+				copy.write(buffer, offset, n);
+			}
+			return n;
+		}
+		@Override
+		public long skip(long n) throws IOException {
+			throw new IOException("skip is not supported");
+		}
+	}
+	
+	/**
+	 * A nexson node waiting on the traversal stack, along with the graph node for its parent.
+	 */
+	private static class PendingTreeNode {
+		final NexsonNode nexsonNode;
+		final Node parentGraphNode;
+		PendingTreeNode(NexsonNode nexsonNode, Node parentGraphNode) {
+			this.nexsonNode = nexsonNode;
+			this.parentGraphNode = parentGraphNode;
+		}
+	}
+	
 	/**
 	 * Import entries from a map into the database as properties of the specified node.
 	 * @param node
 	 * @param properties
 	 */
-	private static void setNodePropertiesFromMap(Node node, Map<String, Object> properties) {
+	static void setNodePropertiesFromMap(Node node, Map<String, Object> properties) {
 		for (Entry<String, Object> property : properties.entrySet()) {
 			Object v = property.getValue();
 			
@@ -423,73 +1929,94 @@ public class DatabaseManager extends OTIDatabase {
 	}
 	
 	/**
-	 * Collects taxonomic names and ids for all the tips of the provided JadeTree and stores this info as node properties
-	 * of the provided graph node. Used to store taxonomic mapping info for the root nodes of trees in the graph.
-	 * @param node
-	 * @param tree
+	 * Prepare to collect taxonomic names and ids for the tips of a tree. Used to store taxonomic mapping info for the
+	 * root nodes of trees in the graph.
+	 */
+	void initializeTipTaxonSets(IngestContext ctx) {
+		ctx.originalTipLabels = new HashSet<String>();
+		ctx.mappedTaxonNames = new HashSet<String>();
+		ctx.mappedOTTIds = new HashSet<Long>();
+		ctx.compatibleHigherTaxonOTTIds = new HashSet<Long>();
+		ctx.compatibleHigherTaxonNames = new HashSet<String>();
+	}
+	
+	/**
+	 * Record the taxonomic names and ids for a single tip, including all the higher taxa that contain the taxon it is
+	 * mapped to. Called for each tip during tree insertion.
+	 * @param otu
 	 */
-	private void collectTipTaxonArrayPropertiesFromJadeTree(Node node, NexsonTree tree) {
+	private void recordTipTaxonInformation(IngestContext ctx, NexsonOTU otu) {
 
-		originalTipLabels = new HashSet<String>();
-		mappedTaxonNames = new HashSet<String>();
-		mappedOTTIds = new HashSet<Long>();
-		compatibleHigherTaxonOTTIds = new HashSet<Long>();
-		compatibleHigherTaxonNames = new HashSet<String>();
+		if (otu == null) { // TODO: this indicates invalid nexson: the otu assigned to this tip cannot be found. should we even allow this case?
+			return;
+		}
 		
-		for (TreeNode tip : tree.getRoot().getDescendantLeaves()) {
-			
-//			NexsonOTU otu = ((NexsonNode) ((JadeNode)tip).getObject(NexsonNode.NEXSON_NODE_JADE_OBJECT_KEY)).getOTU();
-			NexsonOTU otu = ((NexsonNode) tip).getOTU();
-
-			if (otu != null) { // TODO: this indicates invalid nexson: the otu assigned to this tip cannot be found. should we even allow this case?
-				
-				if (otu.getProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName()) != null) {
-					originalTipLabels.add((String) otu.getProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName()));
-				}
+		recordTipTaxonInformation(ctx, otu.getProperties(), otu.getLabel());
+	}
+	
+	/**
+	 * Record the taxonomic names and ids for a single tip from the properties and label of its otu. Used directly
+	 * when the otu has not been read into a NexsonOTU object, e.g. during streaming ingest.
+	 * @param otuProperties
+	 * @param otuLabel
+	 */
+	void recordTipTaxonInformation(IngestContext ctx, Map<String, Object> otuProperties, String otuLabel) {
 				
-				if (otu.getProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName()) != null) {
-					Long ottId = (Long) otu.getProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName());
-					mappedOTTIds.add(ottId);
-					mappedTaxonNames.add((String) otu.getLabel()); // TODO: switch this over to ot:ottTaxonName property once this is available	
-
-					// get all the parent taxa (all the way to the root) and record them so we can index them for this tree
-					IndexHits<Node> nodeHits = taxonNodesByOTTId.query("ot:ottId", ottId);
-					try {
-						if (nodeHits.hasNext()) {
-							Node taxonNode = nodeHits.getSingle();
-							for (Node n : Traversal.description().relationships(TaxonomyRelType.PREFTAXCHILDOF, Direction.OUTGOING).traverse(taxonNode).nodes()) {
-								compatibleHigherTaxonOTTIds.add((Long) n.getProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName()));
-								compatibleHigherTaxonNames.add((String) n.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName()));
-							}
-						}
-					} finally {
-						nodeHits.close();
-					}
+		if (otuProperties.get(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName()) != null) {
+			ctx.originalTipLabels.add((String) otuProperties.get(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName()));
+		}
+		
+		if (otuProperties.get(OTVocabularyPredicate.OT_OTT_ID.propertyName()) != null) {
+			Long ottId = (Long) otuProperties.get(OTVocabularyPredicate.OT_OTT_ID.propertyName());
+			ctx.mappedOTTIds.add(ottId);
+			ctx.mappedTaxonNames.add(otuLabel); // TODO: switch this over to ot:ottTaxonName property once this is available	
+
+			// get all the parent taxa (all the way to the root) and record them so we can index them for this tree.
+			// the mirror only walks up to the first taxon already recorded for this tree, since its ancestors are too
+			if (ctx.taxonomyForTree != null && ctx.taxonomyForTree.collectAncestors(ottId, ctx.taxaRecordedForTree,
+					ctx.compatibleHigherTaxonOTTIds, ctx.compatibleHigherTaxonNames)) {
+				return;
+			}
+			
+			// the taxon is not in the mirror (e.g. it was added to the taxonomy after the mirror was built)
+			Node taxonNode = getTaxonNode(ctx, ottId);
+			if (taxonNode != null) {
+				for (Node n : Traversal.description().relationships(TaxonomyRelType.PREFTAXCHILDOF, Direction.OUTGOING).traverse(taxonNode).nodes()) {
+					ctx.compatibleHigherTaxonOTTIds.add((Long) n.getProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName()));
+					ctx.compatibleHigherTaxonNames.add((String) n.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName()));
 				}
 			}
 		}
-		
-		assignTaxonArraysToNode(node);
 	}
 	
 	/**
-	 * A helper function for the collectTipTaxonArrayProperties functions. Exists only to ensure consistency and simplify code.
+	 * Store the tip taxon information collected during tree insertion as properties of the provided (root) node. Exists only
+	 * to ensure consistency and simplify code.
 	 * @param node
 	 */
-	private void assignTaxonArraysToNode(Node node) {
+	void assignTaxonArraysToNode(IngestContext ctx, Node node) {
 		
 		// store the properties we just collected
-		node.setProperty(OTINodeProperty.DESCENDANT_ORIGINAL_TIP_LABELS.propertyName(), GeneralUtils.convertToStringArray(originalTipLabels));
-		node.setProperty(OTINodeProperty.DESCENDANT_MAPPED_TAXON_NAMES.propertyName(), GeneralUtils.convertToStringArray(mappedTaxonNames));
-		node.setProperty(OTINodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.propertyName(), GeneralUtils.convertToLongArray(mappedOTTIds));
-		node.setProperty(OTINodeProperty.COMPATIBLE_HIGHER_TAXON_OTT_IDS.propertyName(), GeneralUtils.convertToLongArray(compatibleHigherTaxonOTTIds));
-		node.setProperty(OTINodeProperty.COMPATIBLE_HIGHER_TAXON_NAMES.propertyName(), GeneralUtils.convertToStringArray(compatibleHigherTaxonNames));
+		node.setProperty(OTINodeProperty.DESCENDANT_ORIGINAL_TIP_LABELS.propertyName(), GeneralUtils.convertToStringArray(ctx.originalTipLabels));
+		node.setProperty(OTINodeProperty.DESCENDANT_MAPPED_TAXON_NAMES.propertyName(), GeneralUtils.convertToStringArray(ctx.mappedTaxonNames));
+		node.setProperty(OTINodeProperty.DESCENDANT_MAPPED_TAXON_OTT_IDS.propertyName(), GeneralUtils.convertToLongArray(ctx.mappedOTTIds));
+		node.setProperty(OTINodeProperty.COMPATIBLE_HIGHER_TAXON_OTT_IDS.propertyName(), GeneralUtils.convertToLongArray(ctx.compatibleHigherTaxonOTTIds));
+		node.setProperty(OTINodeProperty.COMPATIBLE_HIGHER_TAXON_NAMES.propertyName(), GeneralUtils.convertToStringArray(ctx.compatibleHigherTaxonNames));
+		
+		// record the taxonomy the higher taxa were collected from, if it is known. see isUnchangedTree
+		if (ctx.taxonomyForTree != null) {
+			node.setProperty(OTINodeProperty.TAXONOMY_VERSION.propertyName(), ctx.taxonomyForTree.getVersion());
+		} else {
+			node.removeProperty(OTINodeProperty.TAXONOMY_VERSION.propertyName());
+		}
 		
 		// clean up the mess... just to be sure we don't accidentally re-use the information from one node for another
-		originalTipLabels = null;
-		mappedTaxonNames = null;
-		mappedOTTIds = null;
-		compatibleHigherTaxonOTTIds = null;
-		compatibleHigherTaxonNames = null;
+		ctx.originalTipLabels = null;
+		ctx.mappedTaxonNames = null;
+		ctx.mappedOTTIds = null;
+		ctx.compatibleHigherTaxonOTTIds = null;
+		ctx.compatibleHigherTaxonNames = null;
+		ctx.taxonNodeIdsForTree = null;
+		ctx.taxonomyForTree = null;
 	}
 }
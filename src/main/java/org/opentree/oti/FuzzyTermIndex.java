@@ -0,0 +1,491 @@
+package org.opentree.oti;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.tooling.GlobalGraphOperations;
+import org.opentree.oti.indexproperties.IndexedArrayProperties;
+import org.opentree.oti.indexproperties.IndexedPrimitiveProperties;
+import org.opentree.oti.indexproperties.OTPropertyArray;
+import org.opentree.properties.OTPropertyPredicate;
+
+/**
+ * An in-memory index of the terms in the fulltext fields of the property indexes, used to find the terms that a fuzzy
+ * search matches without enumerating every term in the field, which is what lucene's FuzzyQuery does. The terms of each
+ * field are indexed by their trigrams. A term within edit distance k of the search text must share all but 3k of the
+ * text's trigrams, so only the terms that share enough trigrams are compared with the text. getFuzzyQuery returns a
+ * query for the matching terms, which are the same terms that a FuzzyQuery with the same minimum similarity would match.
+ *
+ * The index is built from the graph on a background thread the first time it is asked for a query. The StudyIndexers of
+ * the DatabaseManagers for the db add the values they index from the moment the index is created, which is before any
+ * manager for the db writes anything, so a value that is not yet committed when the build reads its node has already
+ * been added. getFuzzyQuery returns null until the index has been built, and the caller should then use a FuzzyQuery
+ * instead. Terms are never removed, so the index may contain terms of studies that have since been removed or replaced,
+ * or whose transactions were rolled back, which match nothing.
+ *
+ * There is one index for each graph database, obtained with getIndex.
+ */
+public class FuzzyTermIndex {
+
+	private static final int GRAM_LENGTH = 3;
+
+	// pads the ends of terms, so that their first and last characters are in as many grams as the others
+	private static final String PADDING = "\u0001\u0001";
+
+	private static final Logger LOG = Logger.getLogger(FuzzyTermIndex.class);
+
+	private static final Map<GraphDatabaseService, FuzzyTermIndex> indexes = new HashMap<GraphDatabaseService, FuzzyTermIndex>();
+
+	private enum State { NOT_STARTED, BUILDING, READY, FAILED }
+
+	private final GraphDatabaseService graphDb;
+	private volatile State state = State.NOT_STARTED;
+
+	// set when the db is shut down, to stop a build that is running
+	private volatile boolean released = false;
+
+	// the terms of each fulltext field. guarded by lock
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<String, FieldTerms> termsByField = new HashMap<String, FieldTerms>();
+
+	// ===== constructors
+
+	private FuzzyTermIndex(GraphDatabaseService graphDb) {
+		this.graphDb = graphDb;
+	}
+
+	/**
+	 * Return the fuzzy term index for the given graph database, creating it if necessary. The index is not built until
+	 * it is first asked for a query, but collects the terms of the values written by managers from the start.
+	 * @param graphDb
+	 * @return
+	 */
+	public static FuzzyTermIndex getIndex(GraphDatabaseService graphDb) {
+		synchronized (indexes) {
+			FuzzyTermIndex index = indexes.get(graphDb);
+			if (index == null) {
+				index = new FuzzyTermIndex(graphDb);
+				indexes.put(graphDb, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Discard the fuzzy term index for the given graph database, if there is one, and stop it being built. Called when
+	 * the db is shut down.
+	 * @param graphDb
+	 */
+	static void release(GraphDatabaseService graphDb) {
+		FuzzyTermIndex index;
+		synchronized (indexes) {
+			index = indexes.remove(graphDb);
+		}
+		if (index != null) {
+			index.released = true;
+		}
+	}
+
+	// ===== public methods
+
+	/**
+	 * Return a query for the terms in the field that a FuzzyQuery for the text would match, or null if the index is not
+	 * ready yet (in which case it is started, if it has not been).
+	 * @param field
+	 * @param text
+	 * 		The text to search for, which should already be lowercased
+	 * @param minSimilarity
+	 * 		The minimum similarity, as for a FuzzyQuery
+	 * @return
+	 */
+	public Query getFuzzyQuery(String field, String text, float minSimilarity) {
+		if (state != State.READY) {
+			start();
+			return null;
+		}
+
+		// like a FuzzyQuery, only match short text exactly
+		if (text.length() <= 1.0f / (1.0f - minSimilarity)) {
+			return new TermQuery(new Term(field, text));
+		}
+
+		List<ScoredTerm> matches = findTerms(field, text, minSimilarity);
+
+		// keep the most similar terms if there are too many to add to a query, as a FuzzyQuery does
+		if (matches.size() > BooleanQuery.getMaxClauseCount()) {
+			Collections.sort(matches, ScoredTerm.BY_SIMILARITY);
+			matches = matches.subList(0, BooleanQuery.getMaxClauseCount());
+		}
+		BooleanQuery query = new BooleanQuery(true);
+		for (ScoredTerm match : matches) {
+			TermQuery termQuery = new TermQuery(new Term(field, match.term));
+			termQuery.setBoost(match.similarity);
+			query.add(termQuery, Occur.SHOULD);
+		}
+		return query;
+	}
+
+	/**
+	 * Return true if the index has been built.
+	 * @return
+	 */
+	public boolean isReady() {
+		return state == State.READY;
+	}
+
+	// ===== package methods
+
+	/**
+	 * Add the terms of a value that is being written to a fulltext field of a property index. Values for other fields
+	 * are ignored, as are all values if the index could not be built.
+	 * @param field
+	 * @param value
+	 */
+	void addValue(String field, String value) {
+		if (state == State.FAILED || ! OTIIndexAnalyzer.isTokenized(field)) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			addTerms(field, value);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Return the terms in the field whose similarity to the text, as calculated by a FuzzyQuery, is greater than the
+	 * minimum similarity.
+	 * @param field
+	 * @param text
+	 * @param minSimilarity
+	 * @return
+	 */
+	List<ScoredTerm> findTerms(String field, String text, float minSimilarity) {
+		lock.readLock().lock();
+		try {
+			FieldTerms terms = termsByField.get(field);
+			return terms == null ? new ArrayList<ScoredTerm>() : terms.find(text, minSimilarity);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// ===== private methods
+
+	/**
+	 * Start building the index on a background thread, if it has not been started.
+	 */
+	private synchronized void start() {
+		if (state != State.NOT_STARTED) {
+			return;
+		}
+		state = State.BUILDING;
+		Thread builder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					build();
+					state = State.READY;
+				} catch (RuntimeException ex) {
+					state = State.FAILED; // queries will keep using FuzzyQuery
+					lock.writeLock().lock();
+					try {
+						termsByField.clear();
+					} finally {
+						lock.writeLock().unlock();
+					}
+					if (! released) {
+						LOG.warn("Could not build the fuzzy term index. Fuzzy searches will use lucene's FuzzyQuery.", ex);
+					}
+				}
+			}
+		}, "oti-fuzzy-term-index");
+		builder.setDaemon(true);
+		builder.start();
+	}
+
+	/**
+	 * Add the terms of the fulltext properties of every node in the graph.
+	 */
+	private void build() {
+
+		// the graph properties whose values are indexed in fulltext fields, and the fields they are indexed in
+		Map<String, String> fieldsByGraphProperty = new HashMap<String, String>();
+		for (IndexedPrimitiveProperties indexed : new IndexedPrimitiveProperties[] {
+				IndexedPrimitiveProperties.STUDIES_FULLTEXT,
+				IndexedPrimitiveProperties.TREES_FULLTEXT,
+				IndexedPrimitiveProperties.TREE_NODES_FULLTEXT}) {
+			for (OTPropertyPredicate property : indexed.properties()) {
+				fieldsByGraphProperty.put(property.propertyName(), property.propertyName());
+			}
+		}
+		for (IndexedArrayProperties indexed : new IndexedArrayProperties[] {
+				IndexedArrayProperties.STUDIES_FULLTEXT,
+				IndexedArrayProperties.TREES_FULLTEXT,
+				IndexedArrayProperties.TREE_NODES_FULLTEXT}) {
+			for (OTPropertyArray property : indexed.properties()) {
+				fieldsByGraphProperty.put(property.graphProperty.propertyName(), property.typeProperty.propertyName());
+			}
+		}
+
+		for (Node node : GlobalGraphOperations.at(graphDb).getAllNodes()) {
+			if (released) {
+				throw new IllegalStateException("The fuzzy term index was released while it was being built.");
+			}
+			for (Entry<String, String> field : fieldsByGraphProperty.entrySet()) {
+				Object value = node.getProperty(field.getKey(), null);
+				if (value == null) {
+					continue;
+				}
+				lock.writeLock().lock();
+				try {
+					if (value instanceof String) {
+						addTerms(field.getValue(), OTINodeIndex.indexValue(value).toString());
+					} else if (value instanceof String[]) {
+						for (String element : (String[]) value) {
+							addTerms(field.getValue(), element.toLowerCase());
+						}
+					}
+				} finally {
+					lock.writeLock().unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the terms of a value to the field, splitting it on whitespace as OTIIndexAnalyzer does. Must hold the write lock.
+	 */
+	private void addTerms(String field, String value) {
+		FieldTerms terms = termsByField.get(field);
+		if (terms == null) {
+			terms = new FieldTerms();
+			termsByField.put(field, terms);
+		}
+		int start = -1;
+		for (int i = 0; i <= value.length(); i++) {
+			if (i == value.length() || Character.isWhitespace(value.charAt(i))) {
+				if (start >= 0) {
+					terms.add(value.substring(start, i).toLowerCase());
+					start = -1;
+				}
+			} else if (start < 0) {
+				start = i;
+			}
+		}
+	}
+
+	/**
+	 * Return the distinct trigrams of the padded term.
+	 */
+	private static Set<String> grams(String term) {
+		String padded = PADDING + term + PADDING;
+		Set<String> grams = new LinkedHashSet<String>();
+		for (int i = 0; i + GRAM_LENGTH <= padded.length(); i++) {
+			grams.add(padded.substring(i, i + GRAM_LENGTH));
+		}
+		return grams;
+	}
+
+	/**
+	 * Return the edit distance between the strings, or maxDistance + 1 if it is greater than maxDistance.
+	 */
+	private static int editDistance(String a, String b, int maxDistance) {
+		int n = a.length();
+		int m = b.length();
+		if (Math.abs(n - m) > maxDistance) {
+			return maxDistance + 1;
+		}
+		int[] previous = new int[m + 1];
+		int[] current = new int[m + 1];
+		for (int j = 0; j <= m; j++) {
+			previous[j] = j;
+		}
+		for (int i = 1; i <= n; i++) {
+			current[0] = i;
+			int rowMin = i;
+			char c = a.charAt(i - 1);
+			for (int j = 1; j <= m; j++) {
+				int cost = c == b.charAt(j - 1) ? 0 : 1;
+				current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+				rowMin = Math.min(rowMin, current[j]);
+			}
+			if (rowMin > maxDistance) {
+				return maxDistance + 1;
+			}
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return previous[m];
+	}
+
+	// ===== private classes
+
+	/**
+	 * A term matched by a fuzzy search, with its similarity to the search text.
+	 */
+	static class ScoredTerm {
+		final String term;
+		final float similarity;
+
+		static final Comparator<ScoredTerm> BY_SIMILARITY = new Comparator<ScoredTerm>() {
+			@Override
+			public int compare(ScoredTerm a, ScoredTerm b) {
+				return Float.compare(b.similarity, a.similarity);
+			}
+		};
+
+		ScoredTerm(String term, float similarity) {
+			this.term = term;
+			this.similarity = similarity;
+		}
+	}
+
+	/**
+	 * The terms of one field, with the ids of the terms containing each trigram. Ids are assigned in increasing order, so
+	 * the ids for each gram are sorted.
+	 */
+	private static class FieldTerms {
+
+		private final List<String> terms = new ArrayList<String>();
+		private final Map<String, Integer> termIds = new HashMap<String, Integer>();
+		private final Map<String, IdList> termIdsByGram = new HashMap<String, IdList>();
+
+		void add(String term) {
+			if (termIds.containsKey(term)) {
+				return;
+			}
+			int id = terms.size();
+			terms.add(term);
+			termIds.put(term, id);
+			for (String gram : grams(term)) {
+				IdList ids = termIdsByGram.get(gram);
+				if (ids == null) {
+					ids = new IdList();
+					termIdsByGram.put(gram, ids);
+				}
+				ids.add(id);
+			}
+		}
+
+		/**
+		 * Find the terms that a FuzzyQuery (with no prefix) would match. A FuzzyQuery matches a term if
+		 * 1 - distance / min(text length, term length) is greater than the minimum similarity, so no term further than
+		 * (1 - minSimilarity) * text length from the text can match.
+		 */
+		List<ScoredTerm> find(String text, float minSimilarity) {
+			int n = text.length();
+			int maxDistance = (int) ((1.0f - minSimilarity) * n);
+
+			// the text's grams, rarest first. each edit changes at most GRAM_LENGTH grams, so a term within maxDistance of
+			// the text shares at least minSharedGrams of them, and so must contain one of the first probeGrams of them
+			List<IdList> gramIds = new ArrayList<IdList>();
+			for (String gram : grams(text)) {
+				IdList ids = termIdsByGram.get(gram);
+				gramIds.add(ids == null ? IdList.EMPTY : ids);
+			}
+			Collections.sort(gramIds, IdList.BY_SIZE);
+			int minSharedGrams = gramIds.size() - GRAM_LENGTH * maxDistance;
+
+			Collection<Integer> candidates;
+			if (minSharedGrams <= 0) {
+				// the text is too short for the grams to rule anything out, so compare it with all the terms
+				candidates = new ArrayList<Integer>(terms.size());
+				for (int id = 0; id < terms.size(); id++) {
+					candidates.add(id);
+				}
+			} else {
+				int probeGrams = gramIds.size() - minSharedGrams + 1;
+				candidates = new HashSet<Integer>();
+				for (IdList ids : gramIds.subList(0, probeGrams)) {
+					for (int i = 0; i < ids.size; i++) {
+						candidates.add(ids.ids[i]);
+					}
+				}
+				for (Iterator<Integer> c = candidates.iterator(); c.hasNext(); ) {
+					int id = c.next();
+					int shared = 0;
+					for (IdList ids : gramIds) {
+						if (ids.contains(id)) {
+							shared++;
+						}
+					}
+					if (shared < minSharedGrams) {
+						c.remove();
+					}
+				}
+			}
+
+			// compare the candidates with the text as a FuzzyQuery would
+			List<ScoredTerm> matches = new ArrayList<ScoredTerm>();
+			for (Integer id : candidates) {
+				String term = terms.get(id);
+				int minLength = Math.min(n, term.length());
+				if (minLength == 0) {
+					continue;
+				}
+				int termMaxDistance = (int) ((1.0f - minSimilarity) * minLength);
+				int distance = editDistance(text, term, termMaxDistance);
+				if (distance > termMaxDistance) {
+					continue;
+				}
+				float similarity = 1.0f - ((float) distance / minLength);
+				if (similarity > minSimilarity) {
+					matches.add(new ScoredTerm(term, similarity));
+				}
+			}
+			return matches;
+		}
+	}
+
+	/**
+	 * A growable, sorted list of term ids.
+	 */
+	private static class IdList {
+
+		static final IdList EMPTY = new IdList();
+
+		static final Comparator<IdList> BY_SIZE = new Comparator<IdList>() {
+			@Override
+			public int compare(IdList a, IdList b) {
+				return a.size < b.size ? -1 : (a.size == b.size ? 0 : 1);
+			}
+		};
+
+		int[] ids = new int[2];
+		int size = 0;
+
+		void add(int id) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+
+		boolean contains(int id) {
+			return Arrays.binarySearch(ids, 0, size, id) >= 0;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package org.opentree.oti;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+/**
+ * Migrates a db that was built with the old paired exact and fulltext property indexes (see
+ * OTINodeIndex.LEGACY_PROPERTY_INDEXES) to the unified property indexes. The unified indexes are rebuilt from the
+ * studies in the graph by the IndexRebuilder, and the old indexes are deleted once that has succeeded, so an
+ * interrupted migration can simply be run again.
+ *
+ * The server should be stopped while the migration runs, since it deletes and recreates indexes that the plugins use.
+ *
+ * Usage: java -cp oti.jar org.opentree.oti.IndexMigrator <graph db dir>
+ */
+public class IndexMigrator {
+
+	private final GraphDatabaseService graphDb;
+
+	public IndexMigrator(GraphDatabaseService graphDb) {
+		this.graphDb = graphDb;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length != 1) {
+			System.out.println("usage: IndexMigrator <graph db dir>");
+			System.exit(1);
+		}
+
+		EmbeddedGraphDatabase graphDb = new EmbeddedGraphDatabase(args[0]);
+		try {
+			IndexMigrator migrator = new IndexMigrator(graphDb);
+			if (! migrator.needsMigration()) {
+				System.out.println("The db at " + args[0] + " does not contain any old property indexes. Nothing to do.");
+				return;
+			}
+			long start = System.currentTimeMillis();
+			long nodeCount = migrator.migrate();
+			System.out.println(String.format("Rebuilt the property indexes for %d nodes in %.1f s", nodeCount,
+					(System.currentTimeMillis() - start) / 1000.0));
+		} finally {
+			graphDb.shutdown();
+		}
+	}
+
+	/**
+	 * Return true if the db contains any of the old property indexes.
+	 * @return
+	 */
+	public boolean needsMigration() {
+		IndexManager indexManager = graphDb.index();
+		for (OTINodeIndex index : OTINodeIndex.LEGACY_PROPERTY_INDEXES) {
+			if (indexManager.existsForNodes(index.indexName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Rebuild the unified property indexes from the live studies in the graph, then delete the old indexes.
+	 * @return
+	 * 		The number of nodes that were indexed
+	 * @throws InterruptedException
+	 */
+	public long migrate() throws InterruptedException {
+		long nodeCount = new IndexRebuilder(graphDb, Runtime.getRuntime().availableProcessors()).rebuild();
+		IndexRebuilder.deleteIndexes(graphDb, OTINodeIndex.LEGACY_PROPERTY_INDEXES);
+		return nodeCount;
+	}
+}
@@ -0,0 +1,370 @@
+package org.opentree.oti;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.graphdb.traversal.TraversalDescription;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.neo4j.kernel.Traversal;
+import org.neo4j.tooling.GlobalGraphOperations;
+import org.opentree.oti.constants.OTIRelType;
+import org.opentree.oti.indexproperties.OTINodeProperty;
+
+/**
+ * Drops all the OTI indexes and rebuilds them from the properties of the study metadata nodes, otu nodes, tree roots
+ * and tree nodes in the graph, without fetching or parsing any nexsons. Use this if the indexes are damaged or the indexed
+ * property lists have changed.
+ *
+ * The graph is scanned once to find the studies, which are then handed out to a pool of worker threads. Each worker
+ * indexes whole studies in its own transactions, committing every nodesPerTransaction nodes. Studies that are not live
+ * (i.e. replaced or tombstoned studies, and staged studies left behind by an interrupted write) are not indexed, but
+ * are added to the tombstone index so that the StudyCompactor will delete them. Trees written by older versions of OTI
+ * are given the root and study node ids that newer trees record (see OTINodeProperty.ROOT_NODE_ID), so that queries
+ * do not have to walk up them.
+ *
+ * Trees are written before they are attached to their studies, and their roots are marked as staged until then (see
+ * DatabaseManager.attachTree). The nodes of trees that were never attached, because the server stopped while they
+ * were being written, are deleted here, along with any otu nodes that no tree uses any more. The nodes of trees whose
+ * roots have already been deleted (e.g. by a compaction that was interrupted) are deleted too.
+ *
+ * The server should be stopped while the rebuild runs, since the indexes are empty until it has finished.
+ *
+ * Usage: java -cp oti.jar org.opentree.oti.IndexRebuilder <graph db dir> [<threads>]
+ */
+public class IndexRebuilder {
+
+	/** The number of nodes indexed in each transaction. */
+	public static final int DEFAULT_NODES_PER_TRANSACTION = 10000;
+
+	/** How often progress is reported. */
+	public static final long REPORT_INTERVAL_MS = 10000;
+
+	/** All the indexes that are dropped and rebuilt. */
+	public static final OTINodeIndex[] REBUILT_INDEXES = new OTINodeIndex[] {
+		OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY,
+		OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY,
+		OTINodeIndex.TREE_NODES_BY_PROPERTY,
+		OTINodeIndex.TOMBSTONED_NODES};
+
+	private static final TraversalDescription CHILDOF_TRAVERSAL = Traversal.description().relationships(OTIRelType.CHILDOF, Direction.INCOMING);
+
+	private final GraphDatabaseService graphDb;
+	private final int threads;
+	private final int nodesPerTransaction;
+
+	private final List<Long> studyMetaNodeIds = new ArrayList<Long>();
+	private final AtomicInteger nextStudy = new AtomicInteger(0);
+	private final AtomicInteger studiesIndexed = new AtomicInteger(0);
+	private final AtomicLong nodesIndexed = new AtomicLong(0);
+	private final List<Long> orphanedNodeIds = new ArrayList<Long>();
+	private int tombstoneCount = 0;
+	private long startTime;
+
+	public IndexRebuilder(GraphDatabaseService graphDb, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread is required.");
+		}
+		this.graphDb = graphDb;
+		this.threads = threads;
+		this.nodesPerTransaction = DEFAULT_NODES_PER_TRANSACTION;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 1 || args.length > 2) {
+			System.out.println("usage: IndexRebuilder <graph db dir> [<threads>]");
+			System.exit(1);
+		}
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		EmbeddedGraphDatabase graphDb = new EmbeddedGraphDatabase(args[0]);
+		try {
+			IndexRebuilder rebuilder = new IndexRebuilder(graphDb, threads);
+			long nodeCount = rebuilder.rebuild();
+			System.out.println(String.format("Rebuilt the indexes for %d nodes in %d studies in %.1f s", nodeCount,
+					rebuilder.studiesIndexed.get(), (System.currentTimeMillis() - rebuilder.startTime) / 1000.0));
+		} finally {
+			graphDb.shutdown();
+		}
+	}
+
+	/**
+	 * Drop and rebuild all the indexes in REBUILT_INDEXES, reporting progress every REPORT_INTERVAL_MS.
+	 * @return
+	 * 		The number of nodes that were indexed
+	 * @throws InterruptedException
+	 */
+	public long rebuild() throws InterruptedException {
+
+		startTime = System.currentTimeMillis();
+		deleteIndexes(graphDb, REBUILT_INDEXES);
+
+		findStudies();
+		int orphanCount = orphanedNodeIds.size();
+		int otuCount = deleteOrphanedNodes();
+		System.out.println("Deleted " + orphanCount + " nodes of unattached trees and " + otuCount + " unused otu nodes");
+		System.out.println("Rebuilding the indexes for " + studyMetaNodeIds.size() + " studies on " + threads + " threads ("
+				+ tombstoneCount + " studies and trees are waiting to be deleted and will not be indexed)");
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> workers = new ArrayList<Future<Void>>();
+		try {
+			for (int i = 0; i < threads; i++) {
+				workers.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						indexStudies();
+						return null;
+					}
+				}));
+			}
+			pool.shutdown();
+			while (! pool.awaitTermination(REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+				reportProgress();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		// report the first failure, if there were any
+		for (Future<Void> worker : workers) {
+			try {
+				worker.get();
+			} catch (ExecutionException ex) {
+				throw new RuntimeException("Failed to rebuild the indexes", ex.getCause());
+			}
+		}
+		reportProgress();
+
+		return nodesIndexed.get();
+	}
+
+	/**
+	 * Return the number of studies whose indexes have been rebuilt so far.
+	 * @return
+	 */
+	public int getStudiesIndexed() {
+		return studiesIndexed.get();
+	}
+
+	/**
+	 * Return the number of nodes that have been indexed so far.
+	 * @return
+	 */
+	public long getNodesIndexed() {
+		return nodesIndexed.get();
+	}
+
+	/**
+	 * Delete the given indexes, if they exist, in a single transaction.
+	 * @param graphDb
+	 * @param indexes
+	 */
+	static void deleteIndexes(GraphDatabaseService graphDb, OTINodeIndex[] indexes) {
+		IndexManager indexManager = graphDb.index();
+		Transaction tx = graphDb.beginTx();
+		try {
+			for (OTINodeIndex index : indexes) {
+				if (indexManager.existsForNodes(index.indexName())) {
+					indexManager.forNodes(index.indexName()).delete();
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	// ===== private methods
+
+	/**
+	 * Scan the graph for study metadata nodes, recording the live ones to be indexed and adding the others (and any
+	 * tree roots that have been detached from their studies to be deleted) to the tombstone index. The nodes of
+	 * unattached trees are recorded to be deleted.
+	 */
+	private void findStudies() {
+		String isRetired = OTINodeProperty.IS_RETIRED.propertyName();
+		String rootNodeId = OTINodeProperty.ROOT_NODE_ID.propertyName();
+		Map<Long, Boolean> unattachedRoots = new HashMap<Long, Boolean>();
+
+		Transaction tx = graphDb.beginTx();
+		try {
+			Index<Node> tombstonedNodes = graphDb.index().forNodes(OTINodeIndex.TOMBSTONED_NODES.indexName(),
+					MapUtil.stringMap(OTINodeIndex.TOMBSTONED_NODES.parameters()));
+			for (Node node : GlobalGraphOperations.at(graphDb).getAllNodes()) {
+				if (node.hasProperty(OTINodeProperty.IS_STUDY_META.propertyName())) {
+					if (OTIDatabaseUtils.isLiveStudy(node)) {
+						studyMetaNodeIds.add(node.getId());
+					} else {
+						tombstonedNodes.add(node, isRetired, true);
+						tombstoneCount++;
+					}
+				} else if (node.hasProperty(rootNodeId) && isUnattachedRoot((Long) node.getProperty(rootNodeId), unattachedRoots)) {
+					orphanedNodeIds.add(node.getId());
+				} else if (node.hasProperty(OTINodeProperty.IS_ROOT.propertyName()) && node.hasProperty(isRetired)) {
+					tombstonedNodes.add(node, isRetired, true);
+					tombstoneCount++;
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	/**
+	 * Return true if the given id is not the id of a tree root that has been (or is being) attached to a study. Each
+	 * result is remembered in the given map, since every node of a tree asks about the same root.
+	 */
+	private boolean isUnattachedRoot(long rootId, Map<Long, Boolean> unattachedRoots) {
+		Boolean unattached = unattachedRoots.get(rootId);
+		if (unattached == null) {
+			try {
+				Node root = graphDb.getNodeById(rootId);
+				unattached = root.hasProperty(OTINodeProperty.IS_STAGED.propertyName())
+						&& ! root.hasProperty(OTINodeProperty.IS_STUDY_META.propertyName());
+			} catch (NotFoundException ex) {
+				unattached = true;
+			}
+			unattachedRoots.put(rootId, unattached);
+		}
+		return unattached;
+	}
+
+	/**
+	 * Delete the nodes recorded by findStudies, and then the otu nodes they used that no tree uses any more, committing
+	 * every nodesPerTransaction nodes.
+	 * @return
+	 * 		The number of otu nodes that were deleted
+	 */
+	private int deleteOrphanedNodes() {
+		Set<Long> otuNodeIds = new HashSet<Long>();
+		int nodesInTransaction = 0;
+		Transaction tx = graphDb.beginTx();
+		try {
+			for (Long nodeId : orphanedNodeIds) {
+				Node node = graphDb.getNodeById(nodeId);
+				for (Relationship rel : node.getRelationships(OTIRelType.OTUOF, Direction.INCOMING)) {
+					otuNodeIds.add(rel.getStartNode().getId());
+				}
+				DatabaseManager.deleteNodeAndRelationships(node);
+				if (++nodesInTransaction >= nodesPerTransaction) {
+					tx.success();
+					tx.finish();
+					tx = graphDb.beginTx();
+					nodesInTransaction = 0;
+				}
+			}
+			orphanedNodeIds.clear();
+
+			int otuCount = 0;
+			for (Long otuNodeId : otuNodeIds) {
+				Node otuNode = graphDb.getNodeById(otuNodeId);
+				if (! otuNode.hasRelationship(OTIRelType.OTUOF, Direction.OUTGOING)) {
+					DatabaseManager.deleteNodeAndRelationships(otuNode);
+					otuCount++;
+					if (++nodesInTransaction >= nodesPerTransaction) {
+						tx.success();
+						tx.finish();
+						tx = graphDb.beginTx();
+						nodesInTransaction = 0;
+					}
+				}
+			}
+			tx.success();
+			return otuCount;
+		} finally {
+			tx.finish();
+		}
+	}
+
+	/**
+	 * Take studies from the list and index them until there are none left. Runs on each worker thread.
+	 */
+	private void indexStudies() {
+		StudyIndexer indexer = new StudyIndexer(graphDb);
+		int nodesInTransaction = 0;
+		Transaction tx = graphDb.beginTx();
+		try {
+			for (int i = nextStudy.getAndIncrement(); i < studyMetaNodeIds.size(); i = nextStudy.getAndIncrement()) {
+				Node studyMeta = graphDb.getNodeById(studyMetaNodeIds.get(i));
+				indexer.addStudyMetaNodeToIndexes(studyMeta);
+				nodesInTransaction++;
+				nodesIndexed.incrementAndGet();
+
+				for (Relationship rel : studyMeta.getRelationships(OTIRelType.HASOTU, Direction.OUTGOING)) {
+					indexer.addOTUNodeToIndexes(rel.getEndNode());
+					nodesInTransaction++;
+					nodesIndexed.incrementAndGet();
+				}
+
+				for (Relationship rel : studyMeta.getRelationships(OTIRelType.METADATAFOR, Direction.OUTGOING)) {
+					Node root = rel.getEndNode();
+
+					// trees from older dbs are not tagged yet, and do not record their root and study
+					Long treeIndexTag = (Long) root.getProperty(OTINodeProperty.TREE_INDEX_TAG.propertyName(), null);
+					if (treeIndexTag == null) {
+						treeIndexTag = root.getId();
+						root.setProperty(OTINodeProperty.TREE_INDEX_TAG.propertyName(), treeIndexTag);
+					}
+					if (! root.hasProperty(OTINodeProperty.STUDY_META_NODE_ID.propertyName())) {
+						root.setProperty(OTINodeProperty.STUDY_META_NODE_ID.propertyName(), studyMeta.getId());
+					}
+
+					// the root is indexed under its study, so it must record it first
+					indexer.addTreeRootNodeToIndexes(root);
+					nodesInTransaction++;
+					nodesIndexed.incrementAndGet();
+					boolean recordRoot = ! root.hasProperty(OTINodeProperty.ROOT_NODE_ID.propertyName());
+					for (Node treeNode : CHILDOF_TRAVERSAL.breadthFirst().traverse(root).nodes()) {
+						if (recordRoot) {
+							treeNode.setProperty(OTINodeProperty.ROOT_NODE_ID.propertyName(), root.getId());
+						}
+						indexer.addTreeNodeToIndexes(treeNode, treeIndexTag);
+						nodesIndexed.incrementAndGet();
+						if (++nodesInTransaction >= nodesPerTransaction) {
+							indexer.flush();
+							tx.success();
+							tx.finish();
+							tx = graphDb.beginTx();
+							nodesInTransaction = 0;
+						}
+					}
+				}
+				studiesIndexed.incrementAndGet();
+			}
+			indexer.flush();
+			tx.success();
+		} finally {
+			indexer.discardPendingEntries(); // only non-empty if we failed
+			tx.finish();
+		}
+	}
+
+	private void reportProgress() {
+		double seconds = Math.max(System.currentTimeMillis() - startTime, 1) / 1000.0;
+		System.out.println(String.format("Indexed %d of %d studies (%d nodes) in %.1f s (%.1f nodes/s)", studiesIndexed.get(),
+				studyMetaNodeIds.size(), nodesIndexed.get(), seconds, nodesIndexed.get() / seconds));
+	}
+}
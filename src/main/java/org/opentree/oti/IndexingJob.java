@@ -0,0 +1,151 @@
+package org.opentree.oti;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.opentree.nexson.io.NexsonSource;
+
+/**
+ * A request to index or unindex a single study that has been submitted to an IndexingJobQueue. Records the
+ * progress and the outcome of the request so that they can be reported by the status services.
+ *
+ * Instances are safe to read from multiple threads.
+ */
+public class IndexingJob {
+
+	public enum Type { INDEX, UNINDEX }
+
+	public enum Status {
+		/** waiting to be fetched (index jobs) or written (unindex jobs) */
+		QUEUED,
+		/** the nexson is being fetched and parsed */
+		FETCHING,
+		/** fetched, waiting for the writer */
+		WAITING_TO_WRITE,
+		/** being written to the graph */
+		WRITING,
+		/** finished successfully */
+		COMPLETE,
+		/** finished with an error */
+		FAILED,
+		/** not written because a more recent job for the same study was submitted */
+		SUPERSEDED;
+
+		public boolean isFinished() {
+			return this == COMPLETE || this == FAILED || this == SUPERSEDED;
+		}
+	}
+
+	private final long id;
+	private final Type type;
+	private final String source;
+	private final long submitted = System.currentTimeMillis();
+
+	private Status status = Status.QUEUED;
+	private String studyId;
+	private NexsonSource study;
+	private Long supersededBy;
+	private long finished;
+	private Object result;
+	private Throwable error;
+
+	IndexingJob(long id, Type type, String source) {
+		this.id = id;
+		this.type = type;
+		this.source = source;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * The url for index jobs, or the study id for unindex jobs.
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	public synchronized Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * The ot:studyId of the study this job affects, or null if that is not known yet (i.e. if the nexson has not been
+	 * fetched).
+	 */
+	public synchronized String getStudyId() {
+		return studyId;
+	}
+
+	/**
+	 * Return a map suitable for conversion to a JSON object by the plugins.
+	 * @return
+	 */
+	public synchronized HashMap<String, Object> toMap() {
+		HashMap<String, Object> results = new HashMap<String, Object>();
+		results.put("job_id", id);
+		results.put("type", type.name().toLowerCase());
+		results.put("source", source);
+		results.put("status", status.name().toLowerCase());
+		results.put("submitted", submitted);
+		if (studyId != null) {
+			results.put("study_id", studyId);
+		}
+		if (supersededBy != null) {
+			results.put("superseded_by", supersededBy);
+		}
+		if (status.isFinished()) {
+			results.put("finished", finished);
+		}
+		if (result != null) {
+			results.put("result", result);
+		}
+		if (error != null) {
+			results.put("error", error.getMessage());
+			results.put("error_type", error.getClass().getName());
+			results.put("stack_trace", Arrays.toString(error.getStackTrace()));
+		}
+		return results;
+	}
+
+	// ===== state changes, made by the queue
+
+	synchronized void setStatus(Status status) {
+		this.status = status;
+	}
+
+	synchronized void setStudy(String studyId, NexsonSource study) {
+		this.studyId = studyId;
+		this.study = study;
+	}
+
+	synchronized NexsonSource getStudy() {
+		return study;
+	}
+
+	synchronized void complete(Object result) {
+		this.result = result;
+		finish(Status.COMPLETE);
+	}
+
+	synchronized void fail(Throwable error) {
+		this.error = error;
+		finish(Status.FAILED);
+	}
+
+	synchronized void supersede(long newerJobId) {
+		this.supersededBy = newerJobId;
+		finish(Status.SUPERSEDED);
+	}
+
+	private void finish(Status status) {
+		this.status = status;
+		this.finished = System.currentTimeMillis();
+		this.study = null; // no need to hold on to the parsed nexson any longer
+	}
+}
@@ -0,0 +1,340 @@
+package org.opentree.oti;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.opentree.nexson.io.NexsonSource;
+
+/**
+ * A bounded background queue for indexing and unindexing studies, so that the services can return as soon as a
+ * request has been accepted instead of holding the request thread for the fetch, parse and write.
+ *
+ * Nexsons are fetched and parsed on a small pool of threads, and all graph writes are made in submission order by a
+ * single writer thread. Submissions are coalesced by ot:studyId: when a job is written, any older jobs for the same
+ * study that have not been written yet are marked as superseded instead, so only the most recently submitted version
+ * of each study is written. (The study id for an index job is only known once its nexson has been fetched, so jobs are
+ * coalesced when they reach the writer.)
+ *
+ * Removed and replaced studies are only tombstoned by the writer, and are deleted later by the StudyCompactor.
+ *
+ * There is one queue for each graph database, obtained with getQueue.
+ */
+public class IndexingJobQueue {
+
+	/** The maximum number of unfinished jobs. Further submissions are rejected until some jobs have finished. */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/** The number of threads used to fetch and parse nexsons. */
+	public static final int DEFAULT_FETCH_THREADS = 2;
+
+	/** The number of finished jobs whose outcomes are kept for the status services. */
+	public static final int FINISHED_JOBS_TO_RETAIN = 1000;
+
+	/** How long release waits for a write that is running to finish. */
+	public static final long STOP_TIMEOUT_MS = 60 * 1000;
+
+	private static final Map<GraphDatabaseService, IndexingJobQueue> queues = new HashMap<GraphDatabaseService, IndexingJobQueue>();
+
+	private final DatabaseManager manager;
+	private final StudyCompactor compactor;
+	private final int capacity;
+	private final ExecutorService fetchPool;
+	private final ExecutorService writer;
+
+	// all jobs we know about, in submission order
+	private final LinkedHashMap<Long, IndexingJob> jobs = new LinkedHashMap<Long, IndexingJob>();
+	private long nextJobId = 1;
+	private int unfinishedJobs = 0;
+	private boolean stopped = false;
+
+	// jobs that are ready to be written, by study id. only the latest job for each study is kept
+	private final Map<String, IndexingJob> pendingWrites = new HashMap<String, IndexingJob>();
+
+	// the id of the latest job for each study that has reached the writer. older jobs for the study are superseded
+	private final Map<String, Long> latestJobForStudy = new HashMap<String, Long>();
+
+	// ===== constructors
+
+	private IndexingJobQueue(GraphDatabaseService graphDb, int capacity, int fetchThreads) {
+		this.manager = new DatabaseManager(graphDb).setDeferredDeletion(true);
+		this.compactor = StudyCompactor.getCompactor(graphDb);
+		this.capacity = capacity;
+		this.fetchPool = Executors.newFixedThreadPool(fetchThreads, new DaemonThreadFactory("oti-nexson-fetch"));
+		this.writer = Executors.newSingleThreadExecutor(new DaemonThreadFactory("oti-index-writer"));
+	}
+
+	/**
+	 * Return the queue for the given graph database, creating it if necessary.
+	 * @param graphDb
+	 * @return
+	 */
+	public static IndexingJobQueue getQueue(GraphDatabaseService graphDb) {
+		synchronized (queues) {
+			IndexingJobQueue queue = queues.get(graphDb);
+			if (queue == null) {
+				queue = new IndexingJobQueue(graphDb, DEFAULT_CAPACITY, DEFAULT_FETCH_THREADS);
+				queues.put(graphDb, queue);
+			}
+			return queue;
+		}
+	}
+
+	/**
+	 * Remove the queue for the given graph database, if there is one, and stop its threads once the write that is
+	 * running (if any) has finished. Jobs that have not been written are failed. Called when the db is shut down.
+	 * @param graphDb
+	 */
+	static void release(GraphDatabaseService graphDb) {
+		IndexingJobQueue queue;
+		synchronized (queues) {
+			queue = queues.remove(graphDb);
+		}
+		if (queue != null) {
+			queue.stop();
+		}
+	}
+
+	// ===== public methods
+
+	/**
+	 * Queue the nexson at the given url to be fetched and indexed.
+	 * @param url
+	 * @return
+	 * 		The job, which can be used to check on the progress of the request
+	 * @throws IllegalStateException
+	 * 		If the queue is full
+	 */
+	public IndexingJob submitIndex(final String url) {
+		final IndexingJob job = newJob(IndexingJob.Type.INDEX, url);
+		fetchPool.submit(new Runnable() {
+			@Override
+			public void run() {
+				fetch(job);
+			}
+		});
+		return job;
+	}
+
+	/**
+	 * Queue the study with the given id to be removed.
+	 * @param studyId
+	 * @return
+	 * 		The job, which can be used to check on the progress of the request
+	 * @throws IllegalStateException
+	 * 		If the queue is full
+	 */
+	public IndexingJob submitUnindex(String studyId) {
+		IndexingJob job = newJob(IndexingJob.Type.UNINDEX, studyId);
+		job.setStudy(studyId, null);
+		queueWrite(job);
+		return job;
+	}
+
+	/**
+	 * Return the job with the given id, or null if there is no such job (or if it finished long enough ago that its
+	 * outcome has been discarded).
+	 * @param jobId
+	 * @return
+	 */
+	public synchronized IndexingJob getJob(long jobId) {
+		return jobs.get(jobId);
+	}
+
+	/**
+	 * Return all the jobs whose outcomes are still available, in submission order.
+	 * @return
+	 */
+	public synchronized List<IndexingJob> getJobs() {
+		return new ArrayList<IndexingJob>(jobs.values());
+	}
+
+	/**
+	 * Return the number of jobs that have not finished yet.
+	 * @return
+	 */
+	public synchronized int getUnfinishedJobCount() {
+		return unfinishedJobs;
+	}
+
+	// ===== private methods
+
+	/**
+	 * Fail the jobs that have not been written and stop the threads. The writer thread is not interrupted, since
+	 * interrupting a thread that is writing closes the store's file channels, but the writes queued for it will find
+	 * nothing to do.
+	 */
+	private void stop() {
+		synchronized (this) {
+			stopped = true;
+			pendingWrites.clear();
+		}
+		fetchPool.shutdownNow();
+		writer.shutdown();
+		try {
+			writer.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			for (IndexingJob job : jobs.values()) {
+				if (! job.getStatus().isFinished()) {
+					job.fail(new IllegalStateException("The store was shut down before the job was written."));
+				}
+			}
+		}
+	}
+
+	private synchronized IndexingJob newJob(IndexingJob.Type type, String source) {
+		if (stopped) {
+			throw new IllegalStateException("The indexing queue has been shut down.");
+		}
+		if (unfinishedJobs >= capacity) {
+			throw new IllegalStateException("The indexing queue is full (" + capacity + " unfinished jobs). Try again later.");
+		}
+		IndexingJob job = new IndexingJob(nextJobId++, type, source);
+		jobs.put(job.getId(), job);
+		unfinishedJobs++;
+		return job;
+	}
+
+	/**
+	 * Fetch and parse the nexson for an index job, then pass it to the writer. Runs on the fetch pool.
+	 * @param job
+	 */
+	private void fetch(IndexingJob job) {
+		job.setStatus(IndexingJob.Status.FETCHING);
+		try {
+			NexsonSource study = BatchStudyIndexer.readRemoteNexson(job.getSource());
+			job.setStudy(study.getId(), study);
+		} catch (Throwable ex) {
+			job.fail(ex);
+			jobFinished();
+			return;
+		}
+		queueWrite(job);
+	}
+
+	/**
+	 * Queue a job (whose study id is known) to be written, superseding any older job for the same study that has not
+	 * been written yet. If a newer job for the study has already reached the writer, this job is superseded instead.
+	 * @param job
+	 */
+	private synchronized void queueWrite(final IndexingJob job) {
+
+		if (stopped) {
+			job.fail(new IllegalStateException("The store was shut down before the job was written."));
+			jobFinished();
+			return;
+		}
+
+		String studyId = job.getStudyId();
+		Long latest = latestJobForStudy.get(studyId);
+		if (latest != null && latest > job.getId()) {
+			job.supersede(latest);
+			unfinishedJobs--;
+			return;
+		}
+
+		IndexingJob older = pendingWrites.put(studyId, job);
+		if (older != null) {
+			older.supersede(job.getId());
+			unfinishedJobs--;
+		}
+		latestJobForStudy.put(studyId, job.getId());
+		job.setStatus(IndexingJob.Status.WAITING_TO_WRITE);
+
+		// each queued write has its own task; tasks for superseded jobs will find nothing to do
+		final String id = studyId;
+		writer.submit(new Runnable() {
+			@Override
+			public void run() {
+				write(id);
+			}
+		});
+	}
+
+	/**
+	 * Write the latest pending job for the study, if there is one. Runs on the writer thread.
+	 * @param studyId
+	 */
+	private void write(String studyId) {
+
+		IndexingJob job;
+		synchronized (this) {
+			job = pendingWrites.remove(studyId);
+		}
+		if (job == null) {
+			return;
+		}
+
+		job.setStatus(IndexingJob.Status.WRITING);
+		try {
+			if (job.getType() == IndexingJob.Type.INDEX) {
+				manager.addOrReplaceStudy(job.getStudy());
+				job.complete(true);
+			} else {
+				Map<String, Object> result = new HashMap<String, Object>();
+				Node studyMeta = manager.getStudyMetaNodeForStudyId(studyId);
+				if (studyMeta == null) {
+					result.put("not_found", studyId);
+				} else {
+					manager.removeSource(studyMeta);
+					result.put("deleted", studyId);
+				}
+				job.complete(result);
+			}
+		} catch (Throwable ex) {
+			job.fail(ex);
+		}
+		compactor.requestCompaction();
+		jobFinished();
+	}
+
+	/**
+	 * Update the count of unfinished jobs and discard the outcomes of the oldest finished jobs if there are too many.
+	 */
+	private synchronized void jobFinished() {
+		unfinishedJobs--;
+
+		int finishedJobs = jobs.size() - unfinishedJobs;
+		Iterator<IndexingJob> jobsIter = jobs.values().iterator();
+		while (finishedJobs > FINISHED_JOBS_TO_RETAIN && jobsIter.hasNext()) {
+			if (jobsIter.next().getStatus().isFinished()) {
+				jobsIter.remove();
+				finishedJobs--;
+			}
+		}
+
+		// once nothing is in flight, no older job can reach the writer after a newer one, so the ordering history can go
+		if (unfinishedJobs == 0) {
+			latestJobForStudy.clear();
+		}
+	}
+
+	/**
+	 * Creates daemon threads so that the queue cannot prevent the server from shutting down.
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String name;
+		private int count = 0;
+		DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + "-" + ++count);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package org.opentree.oti;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the per-study outcome of an indexing request, in the same shape that the `indexNexsons` service
+ * has always reported: the ids of the studies that were indexed, and the messages, exception types, and
+ * stack traces for the sources (e.g. urls) that could not be indexed.
+ *
+ * Instances are safe to update from multiple threads.
+ */
+public class IndexingReport {
+
+	private final List<String> indexedIDs = new ArrayList<String>();
+	private final HashMap<String, String> idsWithErrors = new HashMap<String, String>();
+	private final HashMap<String, String> typesWithErrors = new HashMap<String, String>();
+	private final HashMap<String, String> idsWithStacktraces = new HashMap<String, String>();
+
+	/**
+	 * Record that the study with the given id was successfully indexed.
+	 * @param studyId
+	 */
+	public synchronized void recordSuccess(String studyId) {
+		indexedIDs.add(studyId);
+	}
+
+	/**
+	 * Record that the nexson from the given source could not be indexed.
+	 * @param source
+	 * 		The url (or other identifier) for the nexson that failed
+	 * @param ex
+	 */
+	public synchronized void recordFailure(String source, Throwable ex) {
+		idsWithErrors.put(source, ex.getMessage());
+		typesWithErrors.put(source, ex.getClass().getName());
+		idsWithStacktraces.put(source, Arrays.toString(ex.getStackTrace()));
+	}
+
+	public synchronized List<String> getIndexedIds() {
+		return new ArrayList<String>(indexedIDs);
+	}
+
+	/**
+	 * Return the error messages for the sources that could not be indexed, keyed by source.
+	 * @return
+	 */
+	public synchronized Map<String, String> getErrors() {
+		return new HashMap<String, String>(idsWithErrors);
+	}
+
+	public synchronized boolean hasErrors() {
+		return ! idsWithErrors.isEmpty();
+	}
+
+	/**
+	 * Return a map suitable for conversion to a JSON object by the plugins.
+	 * @return
+	 */
+	public synchronized HashMap<String, Object> toMap() {
+		HashMap<String, Object> results = new HashMap<String, Object>();
+		results.put("indexed", new ArrayList<String>(indexedIDs));
+		results.put("errors", new HashMap<String, String>(idsWithErrors));
+		results.put("error_types", new HashMap<String, String>(typesWithErrors));
+		results.put("stack_traces", new HashMap<String, String>(idsWithStacktraces));
+		return results;
+	}
+}
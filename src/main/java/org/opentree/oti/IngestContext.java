@@ -0,0 +1,88 @@
+package org.opentree.oti;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.opentree.nexson.io.NexsonOTU;
+
+/**
+ * The state of a single write through a DatabaseManager: the buffered index entries, the taxon information being
+ * collected for the tree currently being added, the shared otu nodes of the study, the transaction bookkeeping for a
+ * study written in chunks, and the study locks that have been taken. The manager creates a new context for each call to
+ * one of its public write methods, and the context is only used by the thread making that call, so a single manager can
+ * write different studies on several threads at once.
+ */
+class IngestContext {
+
+	final StudyIndexer indexer;
+	private final StudyLocks studyLocks;
+	private final List<String> lockedStudyIds = new ArrayList<String>();
+
+	// the ingroup start node seen in the tree currently being added, if any
+	Node lastObservedIngroupStartNode = null;
+
+	// set while a study is being written in chunks. tree nodes are committed in this transaction every nodesPerChunk nodes
+	Transaction chunkTransaction = null;
+	int nodesInChunk = 0;
+
+	// the first node written for the tree currently being added, so that a partially written tree can be cleaned up
+	Node currentTreeRoot = null;
+
+	// the taxon information collected from the tips of the tree currently being added, for indexing its root
+	Set<String> originalTipLabels;
+	Set<String> mappedTaxonNames;
+	Set<Long> compatibleHigherTaxonOTTIds;
+	Set<String> compatibleHigherTaxonNames;
+	Set<Long> mappedOTTIds;
+
+	// the taxon node ids for the OTT ids in the tree currently being added, resolved before any of its nodes are written
+	LongLongHashMap taxonNodeIdsForTree = null;
+
+	// the taxonomy used for the tree currently being added, and the taxa (by index in the mirror) already recorded for it
+	TaxonomyMirror.Snapshot taxonomyForTree = null;
+	final BitSet taxaRecordedForTree = new BitSet();
+
+	// the shared otu nodes of the study currently being written, by content hash. see DatabaseManager.getOTUNode
+	Node otuNodesStudyMeta = null;
+	Map<String, Node> otuNodesForStudy = null;
+
+	// set on the contexts of worker threads building the trees of a study in parallel. the tree nodes mapped to otus,
+	// and their otus, are recorded here instead of being linked to the study's otu nodes, which is done when the tree is
+	// attached. see DatabaseManager.buildTreesInParallel
+	List<Node> deferredOTUTreeNodes = null;
+	List<NexsonOTU> deferredOTUs = null;
+
+	// the trees of the study being written that have been built in parallel, by nexson tree id, waiting to be attached
+	Map<String, DatabaseManager.PrebuiltTree> prebuiltTrees = null;
+
+	IngestContext(StudyIndexer indexer, StudyLocks studyLocks) {
+		this.indexer = indexer;
+		this.studyLocks = studyLocks;
+	}
+
+	/**
+	 * Take the lock for the study, which is held until releaseLocks is called. Must not be called while holding neo4j
+	 * write locks that another writer of the study may need, i.e. it should be called before anything is written.
+	 * @param studyId
+	 */
+	void lockStudy(String studyId) {
+		studyLocks.lock(studyId);
+		lockedStudyIds.add(studyId);
+	}
+
+	/**
+	 * Release all the study locks taken through this context. Call this once the transactions in which the studies were
+	 * written have finished.
+	 */
+	void releaseLocks() {
+		for (String studyId : lockedStudyIds) {
+			studyLocks.unlock(studyId);
+		}
+		lockedStudyIds.clear();
+	}
+}
@@ -0,0 +1,160 @@
+package org.opentree.oti;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opentree.nexson.io.NexsonSource;
+
+/**
+ * Reads nexson files from the local filesystem. Files are memory-mapped rather than read through buffered streams, so
+ * their contents are paged in directly by the OS and are not copied through intermediate byte buffers on the heap.
+ * 
+ * Paths given by clients of the services must be inside the directory named by the INGEST_ROOT_PROPERTY system property
+ * (see getIngestPath).
+ */
+public class LocalNexsonReader {
+
+	/** The system property naming the directory below which clients may ask for nexson files to be read. */
+	public static final String INGEST_ROOT_PROPERTY = "oti.ingest.root";
+
+	private static final String NEXSON_FILE_SUFFIX = ".json";
+
+	/**
+	 * Return the file or directory at the given path, which must exist and be inside the directory named by the
+	 * INGEST_ROOT_PROPERTY system property. Paths are compared after resolving symbolic links and relative components.
+	 * @param path
+	 * @return
+	 * @throws IllegalArgumentException
+	 * 		If no root has been configured, or the path does not exist or is not inside it
+	 * @throws IOException
+	 */
+	public static File getIngestPath(String path) throws IOException {
+		File f = getPathInsideRoot(path, INGEST_ROOT_PROPERTY, "Indexing local files");
+		if (! f.exists()) {
+			throw new IllegalArgumentException("The path " + path + " does not exist.");
+		}
+		return f;
+	}
+
+	/**
+	 * Return the canonical form of the given path, which must be the directory named by the given system property or be
+	 * inside it. Used to limit the parts of the filesystem that clients of the services can have the server read.
+	 * @param path
+	 * @param rootProperty
+	 * @param feature
+	 * 		What is disabled if the property is not set, for the error message
+	 * @return
+	 * @throws IllegalArgumentException
+	 * 		If the property is not set, or the path is not inside the directory it names
+	 * @throws IOException
+	 */
+	static File getPathInsideRoot(String path, String rootProperty, String feature) throws IOException {
+		String rootPath = System.getProperty(rootProperty);
+		if (rootPath == null || rootPath.length() == 0) {
+			throw new IllegalArgumentException(feature + " is disabled. Set the " + rootProperty + " system property " +
+					"to the directory containing the files that may be read to enable it.");
+		}
+		File root = new File(rootPath).getCanonicalFile();
+		File f = new File(path).getCanonicalFile();
+		if (! f.getPath().startsWith(root.getPath() + File.separator) && ! f.equals(root)) {
+			throw new IllegalArgumentException("The path " + path + " is not inside " + root + ".");
+		}
+		return f;
+	}
+
+	/**
+	 * Parse the nexson file at the given location.
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	public static NexsonSource readNexsonFile(File f) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("The nexson file " + f.getPath() + " is too large to be mapped.");
+			}
+			ByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new NexsonSource(new BufferedReader(new InputStreamReader(new ByteBufferInputStream(contents), "UTF-8")));
+		} finally {
+			in.close(); // the mapping remains valid after the channel is closed
+		}
+	}
+
+	/**
+	 * Return all the nexson (.json) files at or below the given locations, in a stable order.
+	 * @param locations
+	 * 		Files or directories
+	 * @return
+	 * @throws IOException
+	 * 		If one of the directories cannot be listed
+	 */
+	public static List<File> collectNexsonFiles(File ... locations) throws IOException {
+		List<File> nexsonFiles = new ArrayList<File>();
+		for (File f : locations) {
+			collectNexsonFiles(f, nexsonFiles);
+		}
+		return nexsonFiles;
+	}
+
+	// ===== private methods
+
+	private static void collectNexsonFiles(File f, List<File> nexsonFiles) throws IOException {
+		if (f.isDirectory()) {
+			File[] contents = f.listFiles();
+			if (contents == null) {
+				throw new IOException("Could not list the directory " + f + ". Check that it is readable.");
+			}
+			Arrays.sort(contents);
+			for (File child : contents) {
+				collectNexsonFiles(child, nexsonFiles);
+			}
+		} else if (f.getName().endsWith(NEXSON_FILE_SUFFIX)) {
+			nexsonFiles.add(f);
+		}
+	}
+
+	/**
+	 * Exposes the remaining contents of a byte buffer as an input stream.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			} else if (! buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package org.opentree.oti;
+
+import java.util.Arrays;
+
+/**
+ * A map from long keys to long values, stored in parallel primitive arrays with open addressing (linear probing), so
+ * that no Long objects or map entries are created for each mapping. Any long may be used as a key, but NO_VALUE cannot
+ * be stored as a value, since it is what get returns for keys that are not in the map.
+ *
+ * Not thread safe.
+ */
+public final class LongLongHashMap {
+
+	/** Returned by get and remove for keys that are not in the map. */
+	public static final long NO_VALUE = -1;
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private long[] values;
+	private boolean[] used;
+	private int mask;
+	private int size = 0;
+
+	// the table is doubled when it becomes half full
+	private int resizeAt;
+
+	public LongLongHashMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize
+	 * 		The number of mappings the map should be able to hold without being resized
+	 */
+	public LongLongHashMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	// ===== public methods
+
+	/**
+	 * Return the value for the key, or NO_VALUE if the key is not in the map.
+	 * @param key
+	 * @return
+	 */
+	public long get(long key) {
+		int slot = find(key);
+		return slot < 0 ? NO_VALUE : values[slot];
+	}
+
+	public boolean containsKey(long key) {
+		return find(key) >= 0;
+	}
+
+	/**
+	 * Map the key to the value, replacing any existing value for the key.
+	 * @param key
+	 * @param value
+	 * 		Any long except NO_VALUE
+	 */
+	public void put(long key, long value) {
+		if (value == NO_VALUE) {
+			throw new IllegalArgumentException("NO_VALUE cannot be stored in the map");
+		}
+		int slot = slotFor(key);
+		while (used[slot]) {
+			if (keys[slot] == key) {
+				values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		used[slot] = true;
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size >= resizeAt) {
+			resize(keys.length << 1);
+		}
+	}
+
+	/**
+	 * Remove the key from the map.
+	 * @param key
+	 * @return
+	 * 		The value the key was mapped to, or NO_VALUE if it was not in the map
+	 */
+	public long remove(long key) {
+		int gap = find(key);
+		if (gap < 0) {
+			return NO_VALUE;
+		}
+		long value = values[gap];
+
+		// shift later entries in the probe sequence back into the gap, so that lookups never stop early at an empty slot
+		int next = (gap + 1) & mask;
+		while (used[next]) {
+			int home = slotFor(keys[next]);
+			if (((next - home) & mask) >= ((next - gap) & mask)) {
+				keys[gap] = keys[next];
+				values[gap] = values[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		used[gap] = false;
+		size--;
+		return value;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(used, false);
+		size = 0;
+	}
+
+	/**
+	 * Return the keys in the map, in no particular order.
+	 * @return
+	 */
+	public long[] keys() {
+		long[] result = new long[size];
+		int i = 0;
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (used[slot]) {
+				result[i++] = keys[slot];
+			}
+		}
+		return result;
+	}
+
+	// ===== private methods
+
+	private int find(long key) {
+		int slot = slotFor(key);
+		while (used[slot]) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int slotFor(long key) {
+		// spread the bits, since ids are often sequential
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new long[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+		resizeAt = capacity / 2;
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		boolean[] oldUsed = used;
+		allocate(capacity);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+}
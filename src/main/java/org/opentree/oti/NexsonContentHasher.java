@@ -0,0 +1,219 @@
+package org.opentree.oti;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import jade.tree.TreeNode;
+
+import org.opentree.nexson.io.NexsonNode;
+import org.opentree.nexson.io.NexsonOTU;
+import org.opentree.nexson.io.NexsonSource;
+import org.opentree.nexson.io.NexsonTree;
+
+/**
+ * Computes SHA-1 hashes of the content of nexson studies and trees, covering everything that is written into the graph
+ * for them. The hashes are stored on study metadata and tree root nodes so that re-indexing a study can skip it
+ * entirely when nothing has changed, and replace only the trees that have.
+ * 
+ * Tree hashes are computed the same way whether the tree is held in memory (hashTree) or streamed by a
+ * StreamingNexsonReader (see StreamingStudyHasher), which sees the nodes and edges in the order they appear in the
+ * nexson rather than in tree order. Each node and edge is therefore hashed on its own, and the element hashes are
+ * combined by adding them up (see TreeDigest), which does not depend on the order they are added in. The higher taxa
+ * recorded for a tree also depend on the taxonomy, whose version is stored separately (see
+ * OTINodeProperty.TAXONOMY_VERSION), so the hashes only change when the nexson does.
+ */
+public class NexsonContentHasher {
+
+	/**
+	 * Return a hash of the tree's properties and those of all its nodes (including the properties of the otus they are
+	 * mapped to), along with the structure of the tree.
+	 * @param tree
+	 * @return
+	 */
+	public static String hashTree(NexsonTree tree) {
+
+		TreeDigest digest = new TreeDigest();
+		NexsonNode root = tree.getRoot();
+		ArrayDeque<NexsonNode> stack = new ArrayDeque<NexsonNode>();
+		stack.push(root);
+		while (! stack.isEmpty()) {
+			NexsonNode node = stack.pop();
+			NexsonOTU otu = node.getOTU();
+			digest.addNode(node.getId(), otu == null ? null : hashOTU(otu.getLabel(), otu.getProperties()), node == root,
+					node.getProperties());
+			for (TreeNode child : node.getChildren()) {
+				NexsonNode childNode = (NexsonNode) child;
+				digest.addEdge(node.getId(), childNode.getId(), childNode.getParentBranchLength());
+				stack.push(childNode);
+			}
+		}
+
+		return digest.getHash(tree.getId(), tree.isDeprecated(), tree.getProperties());
+	}
+
+	/**
+	 * Return a hash of the study's own properties and the hashes of its trees.
+	 * @param study
+	 * @param treeHashes
+	 * 		The hashes for the study's trees, keyed by tree id, in the order the trees appear in the study
+	 * @return
+	 */
+	public static String hashStudy(NexsonSource study, Map<String, String> treeHashes) {
+
+		MessageDigest digest = newDigest();
+		update(digest, study.getId());
+		update(digest, study.isDeprecated());
+		updateWithProperties(digest, study.getProperties());
+		for (Entry<String, String> treeHash : treeHashes.entrySet()) {
+			update(digest, treeHash.getKey());
+			update(digest, treeHash.getValue());
+		}
+
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Return a hash of an otu's label and properties. Otu nodes are shared by all the trees in a study, and are
+	 * identified within the study by this hash.
+	 * @param label
+	 * @param properties
+	 * @return
+	 */
+	public static String hashOTU(String label, Map<String, Object> properties) {
+		MessageDigest digest = newDigest();
+		update(digest, label);
+		updateWithProperties(digest, properties);
+		return toHex(digest.digest());
+	}
+
+	// ===== package methods, also used by StreamingStudyHasher
+
+	/**
+	 * Accumulates the hash of a tree from its nodes and edges, which can be added in any order. Each element is hashed
+	 * on its own, and the element hashes are added up as 160-bit numbers, so the same elements give the same hash in
+	 * whatever order they are added. The tree's own id and properties are hashed along with the sum by getHash.
+	 */
+	static class TreeDigest {
+
+		private static final BigInteger MODULUS = BigInteger.ONE.shiftLeft(160);
+
+		private BigInteger elements = BigInteger.ZERO;
+
+		/**
+		 * Add a node of the tree.
+		 * @param nodeId
+		 * @param otuHash
+		 * 		The hash of the otu the node is mapped to (see hashOTU), or null if it is not mapped to one
+		 * @param isRoot
+		 * @param properties
+		 */
+		void addNode(String nodeId, String otuHash, boolean isRoot, Map<String, Object> properties) {
+			MessageDigest digest = newDigest();
+			update(digest, "node");
+			update(digest, nodeId);
+			update(digest, otuHash);
+			update(digest, isRoot);
+			updateWithProperties(digest, properties);
+			add(digest);
+		}
+
+		/**
+		 * Add an edge of the tree, from the parent to the child node.
+		 * @param sourceId
+		 * @param targetId
+		 * @param length
+		 * 		The branch length, or null if it has none
+		 */
+		void addEdge(String sourceId, String targetId, Double length) {
+			MessageDigest digest = newDigest();
+			update(digest, "edge");
+			update(digest, sourceId);
+			update(digest, targetId);
+			update(digest, length);
+			add(digest);
+		}
+
+		/**
+		 * Return the hash of the tree, covering its id, whether it is deprecated, its properties and all the elements that
+		 * have been added.
+		 * @param treeId
+		 * @param isDeprecated
+		 * @param treeProperties
+		 * @return
+		 */
+		String getHash(String treeId, boolean isDeprecated, Map<String, Object> treeProperties) {
+			MessageDigest digest = newDigest();
+			update(digest, treeId);
+			update(digest, isDeprecated);
+			updateWithProperties(digest, treeProperties);
+			update(digest, elements.toString(16));
+			return toHex(digest.digest());
+		}
+
+		private void add(MessageDigest element) {
+			elements = elements.add(new BigInteger(1, element.digest())).mod(MODULUS);
+		}
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Add the properties to the digest in sorted order, so that the order in which they were read does not matter.
+	 * Null values are skipped since they are never written to the graph.
+	 */
+	static void updateWithProperties(MessageDigest digest, Map<String, Object> properties) {
+		for (Entry<String, Object> property : new TreeMap<String, Object>(properties).entrySet()) {
+			if (property.getValue() != null) {
+				update(digest, property.getKey());
+				update(digest, property.getValue());
+			}
+		}
+		update(digest, "}");
+	}
+
+	/**
+	 * Add a single value to the digest, prefixed by its type so that e.g. "1" and 1 do not collide, and terminated so
+	 * that adjacent values cannot run together.
+	 */
+	static void update(MessageDigest digest, Object value) {
+		StringBuffer s = new StringBuffer();
+		if (value == null) {
+			s.append("null");
+		} else if (value.getClass().isArray()) {
+			s.append(value.getClass().getComponentType().getSimpleName()).append("[");
+			for (int i = 0; i < Array.getLength(value); i++) {
+				s.append(String.valueOf(Array.get(value, i)).replace("\\", "\\\\").replace(",", "\\,")).append(",");
+			}
+			s.append("]");
+		} else {
+			s.append(value.getClass().getSimpleName()).append(":").append(value);
+		}
+		s.append('\u0000');
+		try {
+			digest.update(s.toString().getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuffer hex = new StringBuffer(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
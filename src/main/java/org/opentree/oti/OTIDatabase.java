@@ -3,6 +3,8 @@ package org.opentree.oti;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexManager;
 import org.neo4j.kernel.EmbeddedGraphDatabase;
@@ -10,6 +12,7 @@ import org.opentree.graphdb.DatabaseAbstractBase;
 import org.opentree.graphdb.GraphDatabaseAgent;
 import org.opentree.graphdb.NodeIndexDescription;
 import org.opentree.oti.constants.OTIRelType;
+import org.opentree.oti.indexproperties.OTINodeProperty;
 
 public class OTIDatabase extends DatabaseAbstractBase {
 
@@ -35,15 +38,42 @@ public class OTIDatabase extends DatabaseAbstractBase {
 	}
 	
 	/**
-	 * Returns the study metadata node for the study containing the tree containing the specified node. Throws
-	 * various exceptions if fail conditions are met (e.g. more than one study metadata node, which would indicate
-	 * a corrupt db).
+	 * Return the graph database service behind this object, however the db was passed to its constructor. The objects
+	 * that are shared by everything using the same db (such as the QueryCache) are looked up with this, so that a manager
+	 * created through a GraphDatabaseAgent shares them with the ones the plugins create for the service.
+	 * @return
+	 */
+	protected GraphDatabaseService getGraphDatabaseService() {
+		return getNodeIndex(OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY).getGraphDatabase();
+	}
+	
+	/**
+	 * Returns the study metadata node for the study containing the tree containing the specified node, or null if
+	 * the node is in a tree that is still being written and has not been attached to its study yet. Throws various
+	 * exceptions if fail conditions are met (e.g. more than one study metadata node, which would indicate a corrupt db).
 	 * 
 	 * @param treeNode
 	 * @return
 	 */
 	public Node getStudyMetaNodeForTreeNode(Node treeNode) {
 		Node rootNode = OTIDatabaseUtils.getRootOfTreeContaining(treeNode);
-		return rootNode.getSingleRelationship(OTIRelType.METADATAFOR, Direction.BOTH).getOtherNode(treeNode);
+		if (rootNode == null) {
+			return null;
+		}
+		
+		// trees record their study when they are attached to it, except in older dbs. node ids are reused once a node is
+		// deleted, so the recorded id is only trusted if it is still the id of a study metadata node
+		Long studyMetaNodeId = (Long) rootNode.getProperty(OTINodeProperty.STUDY_META_NODE_ID.propertyName(), null);
+		if (studyMetaNodeId != null) {
+			Node studyMeta;
+			try {
+				studyMeta = rootNode.getGraphDatabase().getNodeById(studyMetaNodeId);
+			} catch (NotFoundException ex) {
+				return null; // the study is being deleted
+			}
+			return studyMeta.hasProperty(OTINodeProperty.IS_STUDY_META.propertyName()) ? studyMeta : null;
+		}
+		Relationship metadataRel = rootNode.getSingleRelationship(OTIRelType.METADATAFOR, Direction.BOTH);
+		return metadataRel == null ? null : metadataRel.getOtherNode(rootNode);
 	}
 }
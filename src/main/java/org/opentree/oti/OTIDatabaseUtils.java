@@ -5,6 +5,8 @@ import java.util.Set;
 
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
 import org.opentree.graphdb.DatabaseUtils;
 import org.opentree.oti.constants.OTIConstants;
 import org.opentree.oti.constants.OTIRelType;
@@ -30,7 +32,11 @@ public class OTIDatabaseUtils {
 	} */
 	
 	/**
-	 * Return the root node from the graph for the tree containing the specified node.
+	 * Return the root node from the graph for the tree containing the specified node. Nodes that record the id of their
+	 * root (see OTINodeProperty.ROOT_NODE_ID) are answered directly, and nodes in older trees by walking up the tree.
+	 * Node ids are reused once a node is deleted, so a recorded id is only trusted if it is still the id of a tree root
+	 * that records itself as the root of its tree. Otherwise the tree is being deleted (or was never finished), and null
+	 * is returned.
 	 * 
 	 * TODO: this should probably be in a utils class somewhere
 	 * 
@@ -40,6 +46,21 @@ public class OTIDatabaseUtils {
 	 */
 	public static Node getRootOfTreeContaining(Node node) {
 
+		Long rootId = (Long) node.getProperty(OTINodeProperty.ROOT_NODE_ID.propertyName(), null);
+		if (rootId != null) {
+			Node root;
+			try {
+				root = node.getGraphDatabase().getNodeById(rootId);
+			} catch (NotFoundException ex) {
+				return null; // the tree is being deleted
+			}
+			if (! root.hasProperty(OTINodeProperty.IS_ROOT.propertyName())
+					|| ! rootId.equals(root.getProperty(OTINodeProperty.ROOT_NODE_ID.propertyName(), null))) {
+				return null; // the id has been reused
+			}
+			return root;
+		}
+
 		Node root = node;
 		boolean going = true;
 		while (going) {
@@ -58,6 +79,47 @@ public class OTIDatabaseUtils {
 		}
 	}
 	
+	/**
+	 * Return true if the study metadata node is for a study that should be visible to queries: i.e. one that is not
+	 * still being written (staged) and has not been replaced by a newer version (retired). Returns false for null.
+	 * 
+	 * @param studyMeta
+	 * @return
+	 */
+	public static boolean isLiveStudy(Node studyMeta) {
+		return studyMeta != null
+				&& ! studyMeta.hasProperty(OTINodeProperty.IS_STAGED.propertyName())
+				&& ! studyMeta.hasProperty(OTINodeProperty.IS_RETIRED.propertyName());
+	}
+	
+	/**
+	 * Return the shared otu node that the tree node is mapped to, or null if it is not mapped to one. Tree nodes
+	 * written by older versions of OTI have the otu properties copied onto them instead.
+	 * 
+	 * @param treeNode
+	 * @return
+	 */
+	public static Node getOTUNode(Node treeNode) {
+		Relationship otuRel = treeNode.getSingleRelationship(OTIRelType.OTUOF, Direction.INCOMING);
+		return otuRel == null ? null : otuRel.getStartNode();
+	}
+	
+	/**
+	 * Return the value of a property of a tree node, looking on its otu node if the tree node does not have it.
+	 * Returns null if neither has it.
+	 * 
+	 * @param treeNode
+	 * @param property
+	 * @return
+	 */
+	public static Object getTreeNodeProperty(Node treeNode, String property) {
+		if (treeNode.hasProperty(property)) {
+			return treeNode.getProperty(property);
+		}
+		Node otuNode = getOTUNode(treeNode);
+		return otuNode == null ? null : otuNode.getProperty(property, null);
+	}
+	
 	/**
 	 * Get the set of tip nodes descended from a tree node.
 	 * 
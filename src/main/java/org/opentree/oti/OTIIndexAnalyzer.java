@@ -0,0 +1,71 @@
+package org.opentree.oti;
+
+import java.io.Reader;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.KeywordTokenizer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.WhitespaceTokenizer;
+import org.apache.lucene.util.Version;
+import org.opentree.oti.indexproperties.IndexedArrayProperties;
+import org.opentree.oti.indexproperties.IndexedPrimitiveProperties;
+import org.opentree.oti.indexproperties.OTPropertyArray;
+import org.opentree.properties.OTPropertyPredicate;
+
+/**
+ * The analyzer for the property indexes (see OTINodeIndex). Properties that are listed for fulltext search in
+ * IndexedPrimitiveProperties or IndexedArrayProperties are split on whitespace and lowercased, just as they were in the
+ * old fulltext indexes. All other properties are kept as single lowercased tokens, so that queries against them behave
+ * like exact matches.
+ *
+ * Neo4j instantiates this class by name, so it must keep a public no-argument constructor.
+ */
+public final class OTIIndexAnalyzer extends Analyzer {
+
+	private static final Version LUCENE_VERSION = Version.LUCENE_36;
+
+	private static final Set<String> tokenizedFields = new HashSet<String>();
+	static {
+		for (IndexedPrimitiveProperties indexed : new IndexedPrimitiveProperties[] {
+				IndexedPrimitiveProperties.STUDIES_FULLTEXT,
+				IndexedPrimitiveProperties.TREES_FULLTEXT,
+				IndexedPrimitiveProperties.TREE_NODES_FULLTEXT}) {
+			for (OTPropertyPredicate property : indexed.properties()) {
+				tokenizedFields.add(property.propertyName());
+			}
+		}
+		for (IndexedArrayProperties indexed : new IndexedArrayProperties[] {
+				IndexedArrayProperties.STUDIES_FULLTEXT,
+				IndexedArrayProperties.TREES_FULLTEXT,
+				IndexedArrayProperties.TREE_NODES_FULLTEXT}) {
+			for (OTPropertyArray property : indexed.properties()) {
+				tokenizedFields.add(property.typeProperty.propertyName());
+			}
+		}
+	}
+
+	public OTIIndexAnalyzer() {
+		super();
+	}
+
+	/**
+	 * Return true if values of the field are split on whitespace, i.e. it is a fulltext field.
+	 * @param fieldName
+	 * @return
+	 */
+	static boolean isTokenized(String fieldName) {
+		return tokenizedFields.contains(fieldName);
+	}
+
+	@Override
+	public TokenStream tokenStream(String fieldName, Reader reader) {
+		Tokenizer tokenizer = tokenizedFields.contains(fieldName)
+				? new WhitespaceTokenizer(LUCENE_VERSION, reader)
+				: new KeywordTokenizer(reader);
+		return new LowerCaseFilter(LUCENE_VERSION, tokenizer);
+	}
+}
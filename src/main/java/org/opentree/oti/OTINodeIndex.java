@@ -10,44 +10,68 @@ import org.opentree.graphdb.NodeIndexDescription;
  */
 public enum OTINodeIndex implements NodeIndexDescription {
 
-    // ===== source indexes
-
+    // ===== property indexes
+	
     /**
-     * Study metadata nodes indexed by any searchable property. See the SearchableProperty enum for more info.
+     * Study metadata nodes indexed by any searchable property. Each property is stored both as an exact (untokenized)
+     * field, used by index.get(), and as a field analyzed by OTIIndexAnalyzer, used by queries. See the
+     * IndexedPrimitiveProperties and IndexedArrayProperties enums for more info.
      */
-	STUDY_METADATA_NODES_BY_PROPERTY_EXACT ("studyMetaNodesByPropertyExact", new String[] {"type", "exact", "to_lower_case", "true"}),
+	STUDY_METADATA_NODES_BY_PROPERTY ("studyMetaNodesByProperty", unifiedIndexParameters()),
 
     /**
-     * Study metadata nodes indexed by any searchable property. See the SearchableProperty enum for more info.
+     * Root nodes for trees indexed by any searchable property. Stored like STUDY_METADATA_NODES_BY_PROPERTY.
      */
-	STUDY_METADATA_NODES_BY_PROPERTY_FULLTEXT ("studyMetaNodesByPropertyFulltext", new String[] {"type", "fulltext", "to_lower_case", "true"}),
+    TREE_ROOT_NODES_BY_PROPERTY ("treeRootNodesByProperty", unifiedIndexParameters()),
 
-	// ===== tree indexes
-	
     /**
-     * Root nodes for trees indexed by any searchable property. See the SearchableProperty enum for more info.
+     * Tree child nodes (currently just tips) indexed by any searchable property. Stored like STUDY_METADATA_NODES_BY_PROPERTY.
      */
-    TREE_ROOT_NODES_BY_PROPERTY_EXACT ("treeRootNodesByPropertyExact",  new String[] {"type", "exact", "to_lower_case", "true"}),
+    TREE_NODES_BY_PROPERTY ("treeNodesByProperty", unifiedIndexParameters()),
 
-    /**
-     * Root nodes for trees indexed by any searchable property. See the SearchableProperty enum for more info.
-     */
-    TREE_ROOT_NODES_BY_PROPERTY_FULLTEXT ("treeRootNodesByPropertyFulltext",  new String[] {"type", "fulltext", "to_lower_case", "true"}),
-    
-    // ===== tree node indexes
+    // ===== other indexes
 
     /**
-     * Tree child nodes (currently just tips) indexed by any searchable property. See the SearchableProperty enum for more info.
+     * Study metadata nodes and tree root nodes that have been tombstoned (hidden from queries) and are waiting to be
+     * deleted, indexed under OTINodeProperty.IS_RETIRED. See DatabaseManager.setDeferredDeletion and StudyCompactor.
      */
-    TREE_NODES_BY_PROPERTY_EXACT ("treeNodesByPropertyExact", new String[] {"type", "exact", "to_lower_case", "true"}),
+    TOMBSTONED_NODES ("tombstonedNodes", "type", "exact"),
+	
+    // ===== legacy indexes, which were replaced by the property indexes above. only used by IndexMigrator to remove them from older dbs
 
-    /**
-     * Tree child nodes (currently just tips) indexed by any searchable property. See the SearchableProperty enum for more info.
-     */
+    @Deprecated
+	STUDY_METADATA_NODES_BY_PROPERTY_EXACT ("studyMetaNodesByPropertyExact", new String[] {"type", "exact", "to_lower_case", "true"}),
+    @Deprecated
+	STUDY_METADATA_NODES_BY_PROPERTY_FULLTEXT ("studyMetaNodesByPropertyFulltext", new String[] {"type", "fulltext", "to_lower_case", "true"}),
+    @Deprecated
+    TREE_ROOT_NODES_BY_PROPERTY_EXACT ("treeRootNodesByPropertyExact",  new String[] {"type", "exact", "to_lower_case", "true"}),
+    @Deprecated
+    TREE_ROOT_NODES_BY_PROPERTY_FULLTEXT ("treeRootNodesByPropertyFulltext",  new String[] {"type", "fulltext", "to_lower_case", "true"}),
+    @Deprecated
+    TREE_NODES_BY_PROPERTY_EXACT ("treeNodesByPropertyExact", new String[] {"type", "exact", "to_lower_case", "true"}),
+    @Deprecated
     TREE_NODES_BY_PROPERTY_FULLTEXT ("treeNodesByPropertyFulltext", new String[] {"type", "fulltext", "to_lower_case", "true"}),
 	
     ;
     
+    /** The indexes that are written when studies are added. */
+    public static final OTINodeIndex[] PROPERTY_INDEXES = {
+    	STUDY_METADATA_NODES_BY_PROPERTY,
+    	TREE_ROOT_NODES_BY_PROPERTY,
+    	TREE_NODES_BY_PROPERTY
+    };
+
+    /** The indexes that were used before the property indexes, which may still be present in older dbs. */
+    @SuppressWarnings("deprecation")
+	public static final OTINodeIndex[] LEGACY_PROPERTY_INDEXES = {
+    	STUDY_METADATA_NODES_BY_PROPERTY_EXACT,
+    	STUDY_METADATA_NODES_BY_PROPERTY_FULLTEXT,
+    	TREE_ROOT_NODES_BY_PROPERTY_EXACT,
+    	TREE_ROOT_NODES_BY_PROPERTY_FULLTEXT,
+    	TREE_NODES_BY_PROPERTY_EXACT,
+    	TREE_NODES_BY_PROPERTY_FULLTEXT
+    };
+
     String name;
     String[] parameters;
     
@@ -65,4 +89,19 @@ public enum OTINodeIndex implements NodeIndexDescription {
     public String[] parameters() {
     	return parameters;
     }
+    
+    /**
+     * Return the value that should be written to or looked up in the property indexes for a property value. The exact
+     * fields in the property indexes are not lowercased by lucene, so string values are lowercased here to keep exact
+     * matches case-insensitive.
+     * @param value
+     * @return
+     */
+    public static Object indexValue(Object value) {
+    	return value instanceof String ? ((String) value).toLowerCase() : value;
+    }
+    
+    private static String[] unifiedIndexParameters() {
+    	return new String[] {"type", "fulltext", "analyzer", OTIIndexAnalyzer.class.getName(), "to_lower_case", "true"};
+    }
 }
@@ -0,0 +1,324 @@
+package org.opentree.oti;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.opentree.graphdb.GraphDatabaseAgent;
+import org.opentree.nexson.io.NexsonSource;
+import org.opentree.oti.constants.OTIGraphProperty;
+
+/**
+ * Synchronizes the index with a local clone of the phylesystem git repo. The commit that was last synchronized is
+ * remembered as a graph property, and each sync only indexes the study files that have been added or modified since
+ * that commit, and removes the studies whose files have been deleted. The first sync indexes every study.
+ *
+ * Study files are read from the git object store at the commit being synchronized (not from the working tree), so
+ * uncommitted changes in the clone are ignored.
+ *
+ * Only one sync runs at a time for each graph database; a sync that is requested while another is running waits for
+ * it to finish. Repos given by clients must be inside the directory named by the REPO_ROOT_PROPERTY system property
+ * (see getRepo).
+ */
+public class PhylesystemSynchronizer extends OTIDatabase {
+
+	/** The system property naming the directory that contains the phylesystem clones that clients may sync from. */
+	public static final String REPO_ROOT_PROPERTY = "oti.phylesystem.root";
+
+	// study files are stored as study/<shard>/<study id>/<study id>.json
+	private static final String STUDY_DIR = "study";
+	private static final String STUDY_FILE_SUFFIX = ".json";
+
+	// the objects synchronized on while a sync runs, one for each graph database
+	private static final Map<GraphDatabaseService, Object> syncLocks = new HashMap<GraphDatabaseService, Object>();
+
+	private final File repo;
+	private final DatabaseManager manager;
+	private final BatchStudyIndexer indexer;
+
+	// ===== constructors
+
+	public PhylesystemSynchronizer(GraphDatabaseService graphService, File repo) {
+		super(graphService);
+		this.repo = repo;
+		manager = new DatabaseManager(graphDb);
+		indexer = new BatchStudyIndexer(graphDb);
+	}
+
+	public PhylesystemSynchronizer(EmbeddedGraphDatabase embeddedGraph, File repo) {
+		super(embeddedGraph);
+		this.repo = repo;
+		manager = new DatabaseManager(graphDb);
+		indexer = new BatchStudyIndexer(graphDb);
+	}
+
+	public PhylesystemSynchronizer(GraphDatabaseAgent gdb, File repo) {
+		super(gdb);
+		this.repo = repo;
+		manager = new DatabaseManager(graphDb);
+		indexer = new BatchStudyIndexer(graphDb);
+	}
+
+	// ===== public methods
+
+	/**
+	 * Return the repo at the given path, which must be a directory inside the directory named by the REPO_ROOT_PROPERTY
+	 * system property. Paths are compared after resolving symbolic links and relative components.
+	 * @param repoPath
+	 * @return
+	 * @throws IllegalArgumentException
+	 * 		If no root has been configured, or the path is not a directory inside it
+	 * @throws IOException
+	 */
+	public static File getRepo(String repoPath) throws IOException {
+		File repo = LocalNexsonReader.getPathInsideRoot(repoPath, REPO_ROOT_PROPERTY, "Syncing");
+		if (! repo.isDirectory()) {
+			throw new IllegalArgumentException("The path " + repoPath + " is not a directory.");
+		}
+		return repo;
+	}
+
+	/**
+	 * Return the phylesystem commit that was last synchronized, or null if there has not been a sync.
+	 * @return
+	 */
+	public String getLastIndexedCommit() {
+		return (String) graphDb.getGraphProperty(OTIGraphProperty.LAST_INDEXED_PHYLESYSTEM_COMMIT.propertyName());
+	}
+
+	/**
+	 * Bring the index up to date with the commit currently checked out in the repo. The last indexed commit is only
+	 * advanced if every changed study was indexed successfully, so that failed studies are retried on the next sync.
+	 * Waits for any other sync of the same graph database to finish first.
+	 *
+	 * @return
+	 * 		A map containing the commits synchronized from and to, the ids of the indexed studies and the errors for the
+	 * 		study files that failed (as reported by BatchStudyIndexer), and the ids of the removed studies.
+	 * @throws IOException
+	 */
+	public HashMap<String, Object> sync() throws IOException {
+		synchronized (getSyncLock(getGraphDatabaseService())) {
+			return syncUnlocked();
+		}
+	}
+
+	/**
+	 * Remove the sync lock for the given graph database, if there is one. Called when the db is shut down.
+	 * @param graphDb
+	 */
+	static void release(GraphDatabaseService graphDb) {
+		synchronized (syncLocks) {
+			syncLocks.remove(graphDb);
+		}
+	}
+
+	// ===== private methods
+
+	private static Object getSyncLock(GraphDatabaseService graphDb) {
+		synchronized (syncLocks) {
+			Object lock = syncLocks.get(graphDb);
+			if (lock == null) {
+				lock = new Object();
+				syncLocks.put(graphDb, lock);
+			}
+			return lock;
+		}
+	}
+
+	private HashMap<String, Object> syncUnlocked() throws IOException {
+
+		String lastCommit = getLastIndexedCommit();
+		final String headCommit = git("rev-parse", "HEAD").get(0);
+
+		// find the study files that need to be (re)indexed or removed
+		List<String> changedFiles = new ArrayList<String>();
+		List<String> deletedStudyIds = new ArrayList<String>();
+		if (lastCommit == null) {
+			for (String path : git("ls-tree", "-r", "--name-only", headCommit, "--", STUDY_DIR)) {
+				if (isStudyFile(path)) {
+					changedFiles.add(path);
+				}
+			}
+		} else if (! lastCommit.equals(headCommit)) {
+			for (String line : git("diff", "--name-status", "--no-renames", lastCommit, headCommit, "--", STUDY_DIR)) {
+				String[] parts = line.split("\t", 2);
+				if (parts.length < 2 || ! isStudyFile(parts[1])) {
+					continue;
+				}
+				if (parts[0].startsWith("D")) {
+					deletedStudyIds.add(getStudyIdForFile(parts[1]));
+				} else {
+					changedFiles.add(parts[1]);
+				}
+			}
+		}
+
+		// remove the deleted studies
+		ArrayList<String> idsDeleted = new ArrayList<String>();
+		ArrayList<String> idsNotFound = new ArrayList<String>();
+		for (String studyId : deletedStudyIds) {
+			Node studyMeta = manager.getStudyMetaNodeForStudyId(studyId);
+			if (studyMeta == null) {
+				idsNotFound.add(studyId);
+			} else {
+				manager.deleteSource(studyMeta);
+				idsDeleted.add(studyId);
+			}
+		}
+
+		// index the added and modified studies
+		IndexingReport report = indexer.index(changedFiles, new BatchStudyIndexer.NexsonLoader() {
+			@Override
+			public NexsonSource load(String path) throws Exception {
+				return readCommittedNexson(headCommit, path);
+			}
+		});
+
+		if (! report.hasErrors()) {
+			Transaction tx = graphDb.beginTx();
+			try {
+				graphDb.setGraphProperty(OTIGraphProperty.LAST_INDEXED_PHYLESYSTEM_COMMIT.propertyName(), headCommit);
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+		}
+
+		HashMap<String, Object> results = report.toMap();
+		results.put("from_commit", lastCommit);
+		results.put("to_commit", headCommit);
+		results.put("deleted", idsDeleted);
+		results.put("not_found", idsNotFound);
+		return results;
+	}
+
+	private static boolean isStudyFile(String path) {
+		return path.startsWith(STUDY_DIR + "/") && path.endsWith(STUDY_FILE_SUFFIX);
+	}
+
+	private static String getStudyIdForFile(String path) {
+		String fileName = new File(path).getName();
+		return fileName.substring(0, fileName.length() - STUDY_FILE_SUFFIX.length());
+	}
+
+	/**
+	 * Parse the nexson for a study file as it was at the given commit.
+	 * @param commit
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	private NexsonSource readCommittedNexson(String commit, String path) throws IOException {
+		GitProcess git = new GitProcess("cat-file", "blob", commit + ":" + path);
+		BufferedReader nexson = new BufferedReader(new InputStreamReader(git.getOutput(), "UTF-8"));
+		try {
+			NexsonSource study = new NexsonSource(nexson);
+			git.waitFor();
+			return study;
+		} finally {
+			nexson.close();
+		}
+	}
+
+	/**
+	 * Run a git command in the repo and return the lines it writes to stdout.
+	 * @param args
+	 * @return
+	 * @throws IOException
+	 */
+	private List<String> git(String ... args) throws IOException {
+		GitProcess git = new GitProcess(args);
+		List<String> lines = new ArrayList<String>();
+		BufferedReader output = new BufferedReader(new InputStreamReader(git.getOutput(), "UTF-8"));
+		try {
+			String line;
+			while ((line = output.readLine()) != null) {
+				if (line.length() > 0) {
+					lines.add(line);
+				}
+			}
+		} finally {
+			output.close();
+		}
+		git.waitFor();
+		return lines;
+	}
+
+	private static String readFully(InputStream in) throws IOException {
+		StringBuffer s = new StringBuffer();
+		BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		try {
+			String line;
+			while ((line = r.readLine()) != null) {
+				s.append(line).append("\n");
+			}
+		} finally {
+			r.close();
+		}
+		return s.toString();
+	}
+
+	/**
+	 * A git command running in the repo. Whatever it writes to stderr is read on a separate thread, so that git never
+	 * blocks on a full stderr pipe while the caller is reading stdout.
+	 */
+	private class GitProcess {
+
+		private final List<String> args;
+		private final Process process;
+		private final StringBuffer errors = new StringBuffer();
+		private final Thread errorReader;
+
+		GitProcess(String ... args) throws IOException {
+			this.args = Arrays.asList(args);
+			List<String> command = new ArrayList<String>();
+			command.add("git");
+			command.addAll(this.args);
+			process = new ProcessBuilder(command).directory(repo).start();
+			errorReader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						errors.append(readFully(process.getErrorStream()));
+					} catch (IOException ex) {
+						// the process has gone, and its exit value will be reported
+					}
+				}
+			}, "oti-git-stderr");
+			errorReader.setDaemon(true);
+			errorReader.start();
+		}
+
+		InputStream getOutput() {
+			return process.getInputStream();
+		}
+
+		/**
+		 * Wait for git to exit, and throw an exception containing whatever it wrote to stderr if it failed.
+		 */
+		void waitFor() throws IOException {
+			int exitValue;
+			try {
+				exitValue = process.waitFor();
+				errorReader.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while waiting for git " + args);
+			}
+			if (exitValue != 0) {
+				throw new IOException("git " + args + " failed in " + repo + ": " + errors.toString().trim());
+			}
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package org.opentree.oti;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+
+/**
+ * A bounded cache of the results of the query services, evicting the least recently used results when it is full.
+ *
+ * Entries are invalidated with an index generation counter rather than by working out which results a write affects.
+ * DatabaseManager calls invalidate once each write has been committed, which increments the generation, and entries
+ * cached under an older generation are treated as misses. A service must read the generation with getGeneration before
+ * it runs the query, and pass it to put along with the results, so that results computed while a write was being
+ * committed are never served after it.
+ *
+ * Code that wraps DatabaseManager writes in an enclosing transaction must call invalidate again once that transaction
+ * has been committed, since the manager's own call comes before the commit (see BatchStudyIndexer.tryGroupCommit).
+ *
+ * There is one cache for each graph database, obtained with getCache.
+ */
+public class QueryCache {
+
+	/** The maximum number of results that are cached. */
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+	/** Results containing more studies than this are not cached. */
+	public static final int MAX_STUDIES_PER_ENTRY = 1000;
+
+	private static final Map<GraphDatabaseService, QueryCache> caches = new HashMap<GraphDatabaseService, QueryCache>();
+
+	private final int maxEntries;
+	private final AtomicLong generation = new AtomicLong(0);
+
+	// guarded by this. in access order, so the eldest entry is the least recently used
+	private final LinkedHashMap<List<Object>, CachedResult> entries;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidatedEntries = 0;
+
+	// ===== constructors
+
+	private QueryCache(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("The cache must hold at least one entry.");
+		}
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<List<Object>, CachedResult>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<List<Object>, CachedResult> eldest) {
+				if (size() > QueryCache.this.maxEntries) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Return the query cache for the given graph database, creating it if necessary.
+	 * @param graphDb
+	 * @return
+	 */
+	public static QueryCache getCache(GraphDatabaseService graphDb) {
+		synchronized (caches) {
+			QueryCache cache = caches.get(graphDb);
+			if (cache == null) {
+				cache = new QueryCache(DEFAULT_MAX_ENTRIES);
+				caches.put(graphDb, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Discard the query cache for the given graph database, if there is one. Called when the db is shut down.
+	 * @param graphDb
+	 */
+	static void release(GraphDatabaseService graphDb) {
+		synchronized (caches) {
+			caches.remove(graphDb);
+		}
+	}
+
+	// ===== public methods
+
+	/**
+	 * Return the current index generation, which must be read before running a query whose results will be cached.
+	 * @return
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Invalidate all the cached results. Call this after committing changes to the indexed studies.
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * Return the cached results for the key, or null if there are none for the current generation. The key should
+	 * identify the service and contain all the parameters that affect its results.
+	 * @param key
+	 * @return
+	 */
+	public synchronized Map<String, Object> get(List<Object> key) {
+		CachedResult cached = entries.get(key);
+		if (cached != null && cached.generation != generation.get()) {
+			entries.remove(key);
+			invalidatedEntries++;
+			cached = null;
+		}
+		if (cached == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return cached.results;
+	}
+
+	/**
+	 * Cache the results for the key, unless the indexes have changed since the given generation. The results must not be
+	 * modified once they have been cached.
+	 * @param key
+	 * @param resultGeneration
+	 * 		The generation returned by getGeneration before the query was run
+	 * @param results
+	 */
+	public synchronized void put(List<Object> key, long resultGeneration, Map<String, Object> results) {
+		if (resultGeneration == generation.get()) {
+			entries.put(key, new CachedResult(resultGeneration, results));
+		}
+	}
+
+	/**
+	 * Return the cache statistics, for the status services.
+	 * @return
+	 */
+	public synchronized HashMap<String, Object> getStatistics() {
+		HashMap<String, Object> statistics = new HashMap<String, Object>();
+		long lookups = hits + misses;
+		statistics.put("size", entries.size());
+		statistics.put("max_size", maxEntries);
+		statistics.put("hits", hits);
+		statistics.put("misses", misses);
+		statistics.put("hit_ratio", lookups == 0 ? 0.0 : (double) hits / lookups);
+		statistics.put("evictions", evictions);
+		statistics.put("invalidated_entries", invalidatedEntries);
+		statistics.put("generation", generation.get());
+		return statistics;
+	}
+
+	// ===== private classes
+
+	private static class CachedResult {
+		final long generation;
+		final Map<String, Object> results;
+
+		CachedResult(long generation, Map<String, Object> results) {
+			this.generation = generation;
+			this.results = results;
+		}
+	}
+}
@@ -10,17 +10,29 @@ import java.util.Set;
 
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.ParseException;
-import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.FieldCacheRangeFilter;
+import org.apache.lucene.search.FilteredQuery;
 import org.apache.lucene.search.FuzzyQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.helpers.collection.FilteringIterable;
+import org.neo4j.helpers.collection.IterableWrapper;
+import org.neo4j.index.lucene.QueryContext;
 import org.neo4j.kernel.EmbeddedGraphDatabase;
 import org.opentree.graphdb.GraphDatabaseAgent;
+import org.opentree.oti.constants.OTIRelType;
 import org.opentree.oti.indexproperties.IndexedArrayProperties;
 import org.opentree.oti.indexproperties.IndexedPrimitiveProperties;
 import org.opentree.oti.indexproperties.OTINodeProperty;
@@ -28,27 +40,49 @@ import org.opentree.properties.OTPropertyPredicate;
 import org.opentree.properties.OTVocabularyPredicate;
 import org.opentree.tnrs.queries.AbstractBaseQuery;
 
+/**
+ * Runs searches of the OTI indexes. The searchFor methods collect the ids of the matching elements and return results
+ * that are only loaded from the graph as they are iterated over, so a caller that writes the results out as it goes
+ * (see the StreamingRepresentation in the plugins) never holds more than one study's results at a time. The
+ * doBasicSearchFor methods return the same results as lists. Studies, trees and nodes that are deleted after a search
+ * has found them, but before they are loaded, are left out of its results.
+ */
 public class QueryRunner extends OTIDatabase {
-	
-	public final Index<Node> studyMetaNodesByPropertyExact = getNodeIndex(OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY_EXACT);
-	public final Index<Node> studyMetaNodesByPropertyFulltext = getNodeIndex(OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY_FULLTEXT);
-	public final Index<Node> treeRootNodesByPropertyExact = getNodeIndex(OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY_EXACT);
-	public final Index<Node> treeRootNodesByPropertyFulltext = getNodeIndex(OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY_FULLTEXT);
-	public final Index<Node> treeNodesByPropertyExact = getNodeIndex(OTINodeIndex.TREE_NODES_BY_PROPERTY_EXACT);
-	public final Index<Node> treeNodesByPropertyFulltext = getNodeIndex(OTINodeIndex.TREE_NODES_BY_PROPERTY_FULLTEXT);
+
+	/** The most hits fetched by each index query when a page of studies is selected. */
+	public static final int MAX_HITS_PER_PAGE_QUERY = 1000;
+
+	// the field in which the neo4j lucene indexes store the node id of each document, as a decimal string
+	private static final String NODE_ID_FIELD = "_id_";
+
+	// the suffix of the untokenized field in which the fulltext indexes store each value, which Index.get searches
+	private static final String EXACT_FIELD_SUFFIX = "_e";
+
+	// the untokenized field holding the study metadata node id that each tree root is indexed under
+	private static final String STUDY_META_NODE_ID_FIELD = OTINodeProperty.STUDY_META_NODE_ID.propertyName() + EXACT_FIELD_SUFFIX;
+
+	public final Index<Node> studyMetaNodesByProperty = getNodeIndex(OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY);
+	public final Index<Node> treeRootNodesByProperty = getNodeIndex(OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY);
+	public final Index<Node> treeNodesByProperty = getNodeIndex(OTINodeIndex.TREE_NODES_BY_PROPERTY);
+
+	// finds the terms matched by fuzzy searches. FuzzyQuery is used until it is ready
+	private final FuzzyTermIndex fuzzyTerms;
 
 	public QueryRunner(EmbeddedGraphDatabase embeddedGraph) {
 		super(embeddedGraph);
+		fuzzyTerms = FuzzyTermIndex.getIndex(embeddedGraph);
 	}
 
 	public QueryRunner(GraphDatabaseService gdbs) {
 		super(gdbs);
+		fuzzyTerms = FuzzyTermIndex.getIndex(gdbs);
 	}
 
 	public QueryRunner(GraphDatabaseAgent gdba) {
 		super(gdba);
+		fuzzyTerms = FuzzyTermIndex.getIndex(getGraphDatabaseService());
 	}
-	
+
 	/**
 	 * Search the indexes for study matching the search parameters
 	 * @param property
@@ -57,13 +91,30 @@ public class QueryRunner extends OTIDatabase {
 	 * 		The value to be searched for
 	 * @return
 	 * 		A list of strings containing the node ids of the source meta nodes for sources found during search
-	 * @throws ParseException 
+	 * @throws ParseException
 	 */
 	public Object doBasicSearchForStudies(Set<OTPropertyPredicate> properties, String searchValue, boolean checkFulltext, boolean verbose) throws ParseException {
+		return toList(searchForStudies(properties, searchValue, checkFulltext, verbose, new ResultPage()));
+	}
+
+	/**
+	 * Search the indexes for studies matching the search parameters, returning only the requested page of results. The
+	 * results are loaded as they are iterated over.
+	 * @param property
+	 * 		A SearchableProperty to specify the search domain
+	 * @param searchValue
+	 * 		The value to be searched for
+	 * @param page
+	 * 		The page of results to return, ordered by study. See ResultPage
+	 * @return
+	 * 		The metadata for the studies found during search
+	 * @throws ParseException
+	 */
+	public Iterable<HashMap<String, Object>> searchForStudies(Set<OTPropertyPredicate> properties, String searchValue, boolean checkFulltext, boolean verbose, ResultPage page) throws ParseException {
 
 		BooleanQuery query = new BooleanQuery();
 		query.setMinimumNumberShouldMatch(1);
-		
+
 		HashMap<String,Object> exactProperties = new HashMap<String,Object>();
 
 		if (properties == null) {
@@ -71,7 +122,7 @@ public class QueryRunner extends OTIDatabase {
 		}
 
 		for (OTPropertyPredicate property : properties) {
-			
+
 	    	if (IndexedArrayProperties.STUDIES_EXACT.properties().contains(property) ||
 	    			IndexedPrimitiveProperties.STUDIES_EXACT.properties().contains(property)) {
 	    		exactProperties.put(property.propertyName(),searchValue);
@@ -80,14 +131,13 @@ public class QueryRunner extends OTIDatabase {
 	    	if (checkFulltext &&
 	    			(IndexedArrayProperties.STUDIES_FULLTEXT.properties().contains(property) ||
 	    					IndexedPrimitiveProperties.STUDIES_FULLTEXT.properties().contains(property))) {
-				query.add(new FuzzyQuery(new Term(property.propertyName(), QueryParser.escape(searchValue.toLowerCase())),
-						AbstractBaseQuery.getMinIdentity(searchValue)), Occur.SHOULD);
+				query.add(getFuzzyQuery(property.propertyName(), searchValue), Occur.SHOULD);
 	    	}
-		}	
+		}
 
-    	return doBasicSearchForStudies(query, exactProperties, verbose);
+    	return searchForStudies(query, exactProperties, verbose, page);
 	}
-	
+
 	/**
 	 * Search the indexes for trees matching the search parameters
 	 * @param property
@@ -98,10 +148,26 @@ public class QueryRunner extends OTIDatabase {
 	 * 		A Map object containing information about hits to the search
 	 */
 	public Object doBasicSearchForTrees(Set<OTPropertyPredicate> properties, String searchValue, boolean checkFulltext, boolean verbose) {
+		return toList(searchForTrees(properties, searchValue, checkFulltext, verbose, new ResultPage()));
+	}
+
+	/**
+	 * Search the indexes for trees matching the search parameters, returning only the requested page of results. The
+	 * results are loaded as they are iterated over.
+	 * @param property
+	 * 		A SearchableProperty to specify the search domain
+	 * @param searchValue
+	 * 		The value to be searched for
+	 * @param page
+	 * 		The page of results to return. Pages contain studies, each with all of its matching trees. See ResultPage
+	 * @return
+	 * 		The metadata for the studies containing trees found during search, each with the metadata for those trees
+	 */
+	public Iterable<HashMap<String, Object>> searchForTrees(Set<OTPropertyPredicate> properties, String searchValue, boolean checkFulltext, boolean verbose, ResultPage page) {
 
 		BooleanQuery query = new BooleanQuery();
 		query.setMinimumNumberShouldMatch(1);
-		
+
 		HashMap<String,Object> exactProperties = new HashMap<String,Object>();
 
 		if (properties == null) {
@@ -109,7 +175,7 @@ public class QueryRunner extends OTIDatabase {
 		}
 
 		for (OTPropertyPredicate property : properties) {
-			
+
 	    	if (IndexedArrayProperties.TREES_EXACT.properties().contains(property) ||
 	    			IndexedPrimitiveProperties.TREES_EXACT.properties().contains(property)) {
 	    		exactProperties.put(property.propertyName(),searchValue);
@@ -118,14 +184,13 @@ public class QueryRunner extends OTIDatabase {
 	    	if (checkFulltext &&
 	    			(IndexedArrayProperties.TREES_FULLTEXT.properties().contains(property) ||
 	    					IndexedPrimitiveProperties.TREES_FULLTEXT.properties().contains(property))) {
-				query.add(new FuzzyQuery(new Term(property.propertyName(), QueryParser.escape(searchValue.toLowerCase())),
-						AbstractBaseQuery.getMinIdentity(searchValue)), Occur.SHOULD);
+				query.add(getFuzzyQuery(property.propertyName(), searchValue), Occur.SHOULD);
 	    	}
-		}	
+		}
 
-		return doBasicSearchForTrees(query, exactProperties, verbose);
+		return searchForTrees(query, exactProperties, verbose, page);
 	}
-	
+
 	/**
 	 * Search the indexes for tree nodes matching the search parameters
 	 * @param property
@@ -136,10 +201,24 @@ public class QueryRunner extends OTIDatabase {
 	 * 		A Map object containing information about hits to the search
 	 */
 	public Object doBasicSearchForTreeNodes(Set<OTPropertyPredicate> properties, String searchValue, boolean checkFulltext, boolean verbose) {
-		
+		return toList(searchForTreeNodes(properties, searchValue, checkFulltext, verbose));
+	}
+
+	/**
+	 * Search the indexes for tree nodes matching the search parameters. The results are loaded as they are iterated over.
+	 * @param property
+	 * 		A SearchableProperty to specify the search domain
+	 * @param searchValue
+	 * 		The value to be searched for
+	 * @return
+	 * 		The metadata for the studies containing tree nodes found during search, each with the metadata for the trees
+	 * 		containing them and for the nodes themselves
+	 */
+	public Iterable<HashMap<String, Object>> searchForTreeNodes(Set<OTPropertyPredicate> properties, String searchValue, boolean checkFulltext, boolean verbose) {
+
 		BooleanQuery query = new BooleanQuery();
 		query.setMinimumNumberShouldMatch(1);
-		
+
 		HashMap<String,Object> exactProperties = new HashMap<String,Object>();
 
 		if (properties == null) {
@@ -147,7 +226,7 @@ public class QueryRunner extends OTIDatabase {
 		}
 
 		for (OTPropertyPredicate property : properties) {
-			
+
 	    	if (IndexedArrayProperties.TREE_NODES_EXACT.properties().contains(property) ||
 	    			IndexedPrimitiveProperties.TREE_NODES_EXACT.properties().contains(property)) {
 	    		exactProperties.put(property.propertyName(),searchValue);
@@ -156,12 +235,11 @@ public class QueryRunner extends OTIDatabase {
 	    	if (checkFulltext &&
 	    			(IndexedArrayProperties.TREE_NODES_FULLTEXT.properties().contains(property) ||
 	    					IndexedPrimitiveProperties.TREE_NODES_FULLTEXT.properties().contains(property))) {
-				query.add(new FuzzyQuery(new Term(property.propertyName(), QueryParser.escape(searchValue.toLowerCase())),
-						AbstractBaseQuery.getMinIdentity(searchValue)), Occur.SHOULD);
+				query.add(getFuzzyQuery(property.propertyName(), searchValue), Occur.SHOULD);
 	    	}
-		}	
+		}
 
-    	return doBasicSearchForTreeNodes(query, exactProperties, verbose);
+    	return searchForTreeNodes(query, exactProperties, verbose);
 	}
 
 	/**
@@ -171,71 +249,67 @@ public class QueryRunner extends OTIDatabase {
 	 * @param verbose
 	 * @return
 	 */
-	public List<HashMap<String, Object>> doBasicSearchForStudies(Query query, Map<String,Object> exactProperties, boolean verbose) {		
-		
+	public List<HashMap<String, Object>> doBasicSearchForStudies(Query query, Map<String,Object> exactProperties, boolean verbose) {
+		return toList(searchForStudies(query, exactProperties, verbose, new ResultPage()));
+	}
+
+	/**
+	 * Search the indexes using the provided Query object for studies that match, returning only the requested page of
+	 * results. The index is asked for the hits after the page's cursor in node id order, only as many as are needed to
+	 * fill the page, so the cost of a page does not depend on the total number of hits. Only the ids of the hits are
+	 * collected here; the studies on the page are loaded as the results are iterated over.
+	 * @param query
+	 * @param exactProperties
+	 * @param verbose
+	 * @param page
+	 * 		The page of results to return, ordered by study. See ResultPage
+	 * @return
+	 */
+	public Iterable<HashMap<String, Object>> searchForStudies(Query query, Map<String,Object> exactProperties, final boolean verbose, ResultPage page) {
+
 		if (query == null && (exactProperties == null || exactProperties.isEmpty())) {
 			throw new IllegalArgumentException("Request to do a query where neither exact nor fulltext indexes are to be searched. This is illegal--at least one type of indexed must be searched.");
 		}
-		
-		// prepare to record a list of found studies
-		Set<Long> studyMetaNodeIds = new HashSet<Long>();
 
-		// search the indexes, record all matching studies
-		IndexHits<Node> hits = null;
-        try {
-        	if (exactProperties != null) {
-        		for (Entry<String,Object> p : exactProperties.entrySet()) {
-					hits = studyMetaNodesByPropertyExact.get(p.getKey(),p.getValue()); // use index.get() method for exact matches!
-					for (Node hit : hits) {
-						studyMetaNodeIds.add(hit.getId());
-					}
-        		}
-        	}
-        	if (query != null) {
-				hits = studyMetaNodesByPropertyFulltext.query(query);
-				for (Node hit : hits) {
-					studyMetaNodeIds.add(hit.getId());
-				}
-        	}
-        } finally {
-			hits.close();
-		}
-		
-        // for each study found
-		List<HashMap<String, Object>> studiesFound = new LinkedList<HashMap<String, Object>>();
-		for (Long nid : studyMetaNodeIds) {
+		Query pageQuery = combineWithExactMatches(query, exactProperties);
 
-			// prepare to collect study metadata
-			Node studyNode = graphDb.getNodeById(nid);
-			HashMap<String, Object> study = new HashMap<String, Object>();
-			
-			// record additional metadata if requested
-			if (verbose) {
-				
-				// TODO: this two-pass approach could be made more efficient--there is overlap between the exact and fulltext properties
-				for (OTPropertyPredicate p : IndexedPrimitiveProperties.STUDIES_EXACT.properties()) {
-					if (studyNode.hasProperty(p.propertyName())) {
-						study.put(p.propertyName(), studyNode.getProperty(p.propertyName()));
-					}
-				}
-				for (OTPropertyPredicate p : IndexedPrimitiveProperties.STUDIES_FULLTEXT.properties()) {
-					if (studyNode.hasProperty(p.propertyName())) {
-						study.put(p.propertyName(), studyNode.getProperty(p.propertyName()));
+		// select the live studies on the page. if some hits are not live, ask for more until the page is full
+		Long afterId = page.getCursorId();
+		boolean pageFull = false;
+		while (! pageFull) {
+			int top = Math.min(page.remaining(), MAX_HITS_PER_PAGE_QUERY);
+			int hitCount = 0;
+			IndexHits<Node> hits = studyMetaNodesByProperty.query(pageQuery(pageQuery, afterId, top));
+			try {
+				for (Node hit : hits) {
+					hitCount++;
+					afterId = hit.getId();
+					if (OTIDatabaseUtils.isLiveStudy(hit) && ! page.offer(afterId)) {
+						pageFull = true;
+						break;
 					}
 				}
-
-			// otherwise just record ids
-			} else {
-				study.put(OTVocabularyPredicate.OT_STUDY_ID.propertyName(),
-						(String) studyNode.getProperty(OTVocabularyPredicate.OT_STUDY_ID.propertyName()));
+			} finally {
+				hits.close();
+			}
+			if (hitCount < top) {
+				break; // no more hits
 			}
-			
-			studiesFound.add(study);
 		}
 
-		return studiesFound;
+        // load each study found when it is needed, skipping any that have since been deleted
+		return FilteringIterable.notNull(new IterableWrapper<HashMap<String, Object>, Long>(page.getSelectedIds()) {
+			@Override
+			protected HashMap<String, Object> underlyingObjectToObject(Long nid) {
+				try {
+					return getStudyResult(graphDb.getNodeById(nid), verbose);
+				} catch (NotFoundException ex) {
+					return null;
+				}
+			}
+		});
 	}
-	
+
 	/**
 	 * Search the indexes using the provided Query object for trees that match.
 	 * @param query
@@ -243,110 +317,115 @@ public class QueryRunner extends OTIDatabase {
 	 * @param verbose
 	 * @return
 	 */
-	public Object doBasicSearchForTrees(Query query, Map<String,Object> exactProperties, boolean verbose) {		
-		
+	public Object doBasicSearchForTrees(Query query, Map<String,Object> exactProperties, boolean verbose) {
+		return toList(searchForTrees(query, exactProperties, verbose, new ResultPage()));
+	}
+
+	/**
+	 * Search the indexes using the provided Query object for trees that match, returning only the requested page of
+	 * results. Pages are ordered by study, so the index is asked for the hits in the order of the study metadata node id
+	 * that each tree root is indexed under, and then of their own node id. As with searchForStudies, the hits are read
+	 * from the page's cursor on, only as many at a time as are needed to fill the page, so the cost of a page depends on
+	 * the number of trees on it and not on the total number of hits. Only the ids of the hits are collected here; the
+	 * studies and trees on the page are loaded as the results are iterated over.
+	 * 
+	 * Trees indexed by versions of OTI that did not index the study of a tree root are not found until the indexes are
+	 * rebuilt with the IndexRebuilder.
+	 * @param query
+	 * @param exactProperties
+	 * @param verbose
+	 * @param page
+	 * 		The page of results to return. Pages contain studies, each with all of its matching trees. See ResultPage
+	 * @return
+	 */
+	public Iterable<HashMap<String, Object>> searchForTrees(Query query, Map<String,Object> exactProperties, final boolean verbose, ResultPage page) {
+
 		if (query == null && (exactProperties == null || exactProperties.isEmpty())) {
 			throw new IllegalArgumentException("Request to do a query where neither exact nor fulltext indexes are to be searched. This is illegal--at least one type of indexed must be searched.");
 		}
-		
-		// prepare to record a list of matching trees and the studies containing them
-		HashMap<Long, HashSet<Long>> treeRootNodeIdsByStudyMetaNodeId = new HashMap<Long, HashSet<Long>>();
-		
-		// search the indexes and record matching trees and studies
-		IndexHits<Node> hits = null;
-        try {
-        	if (exactProperties != null) {
-        		for (Entry<String,Object> p : exactProperties.entrySet()) {
-	        		hits = treeRootNodesByPropertyExact.get(p.getKey(),p.getValue()); // use index.get() method for exact matches!
-	        		for (Node hit : hits) {
-						Long studyMetaNodeId = getStudyMetaNodeForTreeNode(hit).getId();
-						if (!treeRootNodeIdsByStudyMetaNodeId.containsKey(studyMetaNodeId)) {
-							treeRootNodeIdsByStudyMetaNodeId.put(studyMetaNodeId, new HashSet<Long>());
-						}
-						treeRootNodeIdsByStudyMetaNodeId.get(studyMetaNodeId).add(hit.getId());
-					}
-        		}
-        	}
-        	if (query != null) {
-				hits = treeRootNodesByPropertyFulltext.query(query);
-				for (Node hit : hits) {
 
-					Long studyMetaNodeId = getStudyMetaNodeForTreeNode(hit).getId();
-					if (!treeRootNodeIdsByStudyMetaNodeId.containsKey(studyMetaNodeId)) {
-						treeRootNodeIdsByStudyMetaNodeId.put(studyMetaNodeId, new HashSet<Long>());
+		Query pageQuery = combineWithExactMatches(query, exactProperties);
+
+		// the matching trees of the studies selected for the page, in order
+		final Map<Long, List<Long>> treeRootNodeIdsByStudyMetaNodeId = new HashMap<Long, List<Long>>();
+
+		// select the live studies on the page, with all their matching trees. the hits for a study are contiguous, so a
+		// study's trees have all been seen once a hit for the next study is read. if the page is not full when the hits
+		// run out, ask for more after the last one seen
+		Long afterStudyId = page.getCursorId();
+		Long afterRootId = null;
+		Long currentStudyId = null;
+		List<Long> currentTreeIds = null; // null unless the current study was selected for the page
+		boolean pageFull = false;
+		while (! pageFull) {
+			int top = Math.min(page.remaining(), MAX_HITS_PER_PAGE_QUERY);
+			int hitCount = 0;
+			Long lastRootId = afterRootId;
+			IndexHits<Node> hits = treeRootNodesByProperty.query(treePageQuery(pageQuery, afterStudyId, afterRootId, top));
+			try {
+				for (Node hit : hits) {
+					hitCount++;
+					Long studyId = (Long) hit.getProperty(OTINodeProperty.STUDY_META_NODE_ID.propertyName(), null);
+					if (studyId == null || hit.hasProperty(OTINodeProperty.IS_RETIRED.propertyName())) {
+						continue; // the tree has been detached from its study since the hits were collected
 					}
-					treeRootNodeIdsByStudyMetaNodeId.get(studyMetaNodeId).add(hit.getId());
-				}
-        	}
-        } finally {
-			hits.close();
-		}
-		        
-		// for each study containing a matched tree
-		List<HashMap<String, Object>> treesFoundByStudy = new LinkedList<HashMap<String, Object>>();
-		for (Long studyNodeId : treeRootNodeIdsByStudyMetaNodeId.keySet()) {
-
-			// prepare to collect study metadata
-			HashMap<String, Object> studyResult = new HashMap<String, Object>();
-			Node studyNode = graphDb.getNodeById(studyNodeId);
-
-			// record additional study metadata if requested
-			if (verbose) {
-				for (OTPropertyPredicate p : IndexedPrimitiveProperties.STUDIES_EXACT.properties()) {
-					if (studyNode.hasProperty(p.propertyName())) {
-						studyResult.put(p.propertyName(), studyNode.getProperty(p.propertyName()));
+					afterStudyId = studyId;
+					afterRootId = hit.getId();
+					if (! studyId.equals(currentStudyId)) {
+						currentStudyId = studyId;
+						currentTreeIds = null;
+						if (isLiveStudyMetaNodeId(studyId)) {
+							int selected = page.size();
+							if (! page.offer(studyId)) {
+								pageFull = true;
+								break;
+							}
+							if (page.size() > selected) {
+								currentTreeIds = new LinkedList<Long>();
+								treeRootNodeIdsByStudyMetaNodeId.put(studyId, currentTreeIds);
+							}
+						}
 					}
-				}
-				for (OTPropertyPredicate p : IndexedPrimitiveProperties.STUDIES_FULLTEXT.properties()) {
-					if (studyNode.hasProperty(p.propertyName())) {
-						studyResult.put(p.propertyName(), studyNode.getProperty(p.propertyName()));
+					if (currentTreeIds != null) {
+						currentTreeIds.add(hit.getId());
 					}
 				}
-			
-			// otherwise just record the study id
-			} else {
-				studyResult.put(OTVocabularyPredicate.OT_STUDY_ID.propertyName(), studyNode.getProperty(OTVocabularyPredicate.OT_STUDY_ID.propertyName()));
+			} finally {
+				hits.close();
+			}
+			if (hitCount < top || (afterRootId != null && afterRootId.equals(lastRootId))) {
+				break; // no more hits, or none that could be placed after the last one
 			}
+		}
 
-			// for each matched tree in study
-			List<HashMap<String, Object>> treeResults = new LinkedList<HashMap<String, Object>>();
-			for (Long nodeId : treeRootNodeIdsByStudyMetaNodeId.get(studyNodeId)) {
-
-				// prepare to collect tree metadata
-				HashMap<String, Object> curTreeResult = new HashMap<String, Object>();
-				Node treeRootNode = graphDb.getNodeById(nodeId);
-				
-				// provide additional tree metadata if requested
-				if (verbose) {
-					
-					// TODO: this two-pass approach could be made more efficient--there is overlap between the exact and fulltext properties
-					for (OTPropertyPredicate p : IndexedPrimitiveProperties.TREES_EXACT.properties()) {
-						if (treeRootNode.hasProperty(p.propertyName())) {
-							curTreeResult.put(p.propertyName(), treeRootNode.getProperty(p.propertyName()));
-						}
-					}
-					for (OTPropertyPredicate p : IndexedPrimitiveProperties.TREES_FULLTEXT.properties()) {
-						if (treeRootNode.hasProperty(p.propertyName())) {
-							curTreeResult.put(p.propertyName(), treeRootNode.getProperty(p.propertyName()));
-						}
-					}
+		// load each study containing a matched tree when it is needed, skipping any that have since been deleted
+		return FilteringIterable.notNull(new IterableWrapper<HashMap<String, Object>, Long>(page.getSelectedIds()) {
+			@Override
+			protected HashMap<String, Object> underlyingObjectToObject(Long studyNodeId) {
 
-				// otherwise just record the tree id and nexson element id for the tree
-				} else {
-					curTreeResult.put(OTINodeProperty.TREE_ID.propertyName(), (String) treeRootNode.getProperty(OTINodeProperty.TREE_ID.propertyName()));
-					curTreeResult.put(OTINodeProperty.NEXSON_ID.propertyName(), (String) treeRootNode.getProperty(OTINodeProperty.NEXSON_ID.propertyName())); 
+				HashMap<String, Object> studyResult;
+				try {
+					studyResult = getStudyResult(graphDb.getNodeById(studyNodeId), verbose);
+				} catch (NotFoundException ex) {
+					return null;
 				}
-				
-				treeResults.add(curTreeResult);
-			}
 
-			studyResult.put("matched_trees", treeResults);
-			treesFoundByStudy.add(studyResult);
-		}
+				// for each matched tree in study
+				List<HashMap<String, Object>> treeResults = new LinkedList<HashMap<String, Object>>();
+				for (Long nodeId : treeRootNodeIdsByStudyMetaNodeId.get(studyNodeId)) {
+					try {
+						treeResults.add(getTreeResult(graphDb.getNodeById(nodeId), verbose));
+					} catch (NotFoundException ex) {
+						// the tree has been deleted
+					}
+				}
 
-		return treesFoundByStudy;
+				studyResult.put("matched_trees", treeResults);
+				return studyResult;
+			}
+		});
 	}
-	
+
 	/**
 	 * Search the indexes for tree nodes matching the search parameters
 	 * @param query
@@ -355,166 +434,393 @@ public class QueryRunner extends OTIDatabase {
 	 * 		A Map object containing information about hits to the search
 	 */
 	public Object doBasicSearchForTreeNodes(Query query, Map<String,Object> exactProperties, boolean verbose) {
-		
+		return toList(searchForTreeNodes(query, exactProperties, verbose));
+	}
+
+	/**
+	 * Search the indexes for tree nodes matching the search parameters. Only the ids of the hits are collected here; the
+	 * studies, trees and tree nodes are loaded as the results are iterated over.
+	 * @param query
+	 * 		A Query object that will be used to search the indexes
+	 * @return
+	 */
+	public Iterable<HashMap<String, Object>> searchForTreeNodes(Query query, Map<String,Object> exactProperties, final boolean verbose) {
+
 		if (query == null && (exactProperties == null || exactProperties.isEmpty())) {
 			throw new IllegalArgumentException("Request to do a query where neither exact nor fulltext indexes are to be searched. This is illegal--at least one type of indexed must be searched.");
 		}
 
 		// prepare to record a list of tree nodes and the trees and studies that contain them
-		Map<Long, HashMap<Long, HashSet<Long>>> treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId = new HashMap<Long, HashMap<Long, HashSet<Long>>>();
-		
+		final Map<Long, HashMap<Long, HashSet<Long>>> treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId = new HashMap<Long, HashMap<Long, HashSet<Long>>>();
+
+		// many hits are usually in the same few trees, so remember what we learn about each one
+		LiveTreeFilter liveTrees = new LiveTreeFilter();
+
 		IndexHits<Node> hits = null;
 		try {
 	       	if (exactProperties != null) {
         		for (Entry<String,Object> p : exactProperties.entrySet()) {
-	        		hits = treeRootNodesByPropertyExact.get(p.getKey(),p.getValue()); // use index.get() method for exact matches!
+	        		hits = treeNodesByProperty.get(p.getKey(), OTINodeIndex.indexValue(p.getValue())); // use index.get() method for exact matches!
 					for (Node hit : hits) {
-		
-						Node treeRootNode = OTIDatabaseUtils.getRootOfTreeContaining(hit);
-						Long studyMetaNodeId = getStudyMetaNodeForTreeNode(treeRootNode).getId();
-						Long treeRootNodeId = treeRootNode.getId();
-						
-						// add an entry for the study if this is the first time we've seen it
-						if (!treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId.containsKey(studyMetaNodeId)) {
-							treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId.put(studyMetaNodeId, new HashMap<Long, HashSet<Long>>());
-						}
-		
-						// add an entry for the tree if this is the first time we've seen it
-						if (!treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId.get(studyMetaNodeId).containsKey(treeRootNodeId)) {
-							treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId.get(studyMetaNodeId).put(treeRootNodeId, new HashSet<Long>());
-						}
-						
-						// record the id of the matched tree node
-						treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId.get(studyMetaNodeId).get(treeRootNodeId).add(hit.getId());
+						recordTreeNodeHit(hit, liveTrees, treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId);
 					}
         		}
 			}
-			
+
 			if (query != null) {
-	    		hits = treeNodesByPropertyFulltext.query(query);
+	    		hits = treeNodesByProperty.query(query);
 				for (Node hit : hits) {
-	
-					Node treeRootNode = OTIDatabaseUtils.getRootOfTreeContaining(hit);
-					Long studyMetaNodeId = getStudyMetaNodeForTreeNode(treeRootNode).getId();
-					Long treeRootNodeId = treeRootNode.getId();
-					
-					// add an entry for the study if this is the first time we've seen it
-					if (!treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId.containsKey(studyMetaNodeId)) {
-						treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId.put(studyMetaNodeId, new HashMap<Long, HashSet<Long>>());
-					}
-	
-					// add an entry for the tree if this is the first time we've seen it
-					if (!treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId.get(studyMetaNodeId).containsKey(treeRootNodeId)) {
-						treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId.get(studyMetaNodeId).put(treeRootNodeId, new HashSet<Long>());
-					}
-					
-					// record the id of the matched tree node
-					treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId.get(studyMetaNodeId).get(treeRootNodeId).add(hit.getId());
+					recordTreeNodeHit(hit, liveTrees, treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId);
 				}
 			}
-			
+
 		} finally {
 			hits.close();
 		}
-		
-		// prepare to record identifying information about the nodes found, organized by containing tree and study
-		List<HashMap<String, Object>> treeNodesFoundByTreeAndByStudy = new LinkedList<HashMap<String, Object>>();
-		
-		// for each matched study
-		for (Long studyNodeId : treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId.keySet()) {
-
-			// prepare to collect study metadata
-			HashMap<String, Object> studyResult = new HashMap<String, Object>();
-			Node studyNode = graphDb.getNodeById(studyNodeId);
-
-			// provide additional study metadata if requested
-			if (verbose) {
-				
-				// TODO: this two-pass approach could be made more efficient--there is overlap between the exact and fulltext properties
-				for (OTPropertyPredicate p : IndexedPrimitiveProperties.STUDIES_EXACT.properties()) {
-					if (studyNode.hasProperty(p.propertyName())) {
-						studyResult.put(p.propertyName(), studyNode.getProperty(p.propertyName()));
-					}
-				}
-				for (OTPropertyPredicate p : IndexedPrimitiveProperties.STUDIES_FULLTEXT.properties()) {
-					if (studyNode.hasProperty(p.propertyName())) {
-						studyResult.put(p.propertyName(), studyNode.getProperty(p.propertyName()));
-					}
+
+		// load identifying information about the nodes found, organized by containing tree and study, when it is needed,
+		// skipping any that have since been deleted
+		return FilteringIterable.notNull(new IterableWrapper<HashMap<String, Object>, Long>(treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId.keySet()) {
+			@Override
+			protected HashMap<String, Object> underlyingObjectToObject(Long studyNodeId) {
+
+				HashMap<String, Object> studyResult;
+				try {
+					studyResult = getStudyResult(graphDb.getNodeById(studyNodeId), verbose);
+				} catch (NotFoundException ex) {
+					return null;
 				}
-			
-			// otherwise just record the study id
-			} else {
-				studyResult.put(OTVocabularyPredicate.OT_STUDY_ID.propertyName(), studyNode.getProperty(OTVocabularyPredicate.OT_STUDY_ID.propertyName()));
-			}
-			
-			// for each matched tree in the study
-			List<HashMap<String, Object>> treeResults = new LinkedList<HashMap<String, Object>>();
-			for (Long treeRootNodeId : treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId.get(studyNodeId).keySet()) {
-				
-				// prepare to collect tree metadata
-				HashMap<String, Object> curTreeResult = new HashMap<String, Object>();
-				Node treeRootNode = graphDb.getNodeById(treeRootNodeId);
-				
-				// provide additional tree metadata if requested
-				if (verbose) {
-					
-					// TODO: this two-pass approach could be made more efficient--there is overlap between the exact and fulltext properties
-					for (OTPropertyPredicate p : IndexedPrimitiveProperties.TREES_EXACT.properties()) {
-						if (treeRootNode.hasProperty(p.propertyName())) {
-							curTreeResult.put(p.propertyName(), treeRootNode.getProperty(p.propertyName()));
-						}
+
+				// for each matched tree in the study
+				List<HashMap<String, Object>> treeResults = new LinkedList<HashMap<String, Object>>();
+				for (Long treeRootNodeId : treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId.get(studyNodeId).keySet()) {
+
+					HashMap<String, Object> curTreeResult;
+					try {
+						curTreeResult = getTreeResult(graphDb.getNodeById(treeRootNodeId), verbose);
+					} catch (NotFoundException ex) {
+						continue; // the tree has been deleted
 					}
-					for (OTPropertyPredicate p : IndexedPrimitiveProperties.TREES_FULLTEXT.properties()) {
-						if (treeRootNode.hasProperty(p.propertyName())) {
-							curTreeResult.put(p.propertyName(), treeRootNode.getProperty(p.propertyName()));
+
+					// for each matched tree node
+					List<HashMap<String, Object>> matchedNodeResults = new LinkedList<HashMap<String, Object>>();
+					for (Long matchedTreeNodeId : treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId.get(studyNodeId).get(treeRootNodeId)) {
+						try {
+							matchedNodeResults.add(getTreeNodeResult(graphDb.getNodeById(matchedTreeNodeId), verbose));
+						} catch (NotFoundException ex) {
+							// the node has been deleted
 						}
 					}
 
-				// otherwise just record the tree id and nexson element id for the tree
-				} else {
-					curTreeResult.put(OTINodeProperty.TREE_ID.propertyName(), (String) treeRootNode.getProperty(OTINodeProperty.TREE_ID.propertyName()));
-					curTreeResult.put(OTINodeProperty.NEXSON_ID.propertyName(), (String) treeRootNode.getProperty(OTINodeProperty.NEXSON_ID.propertyName())); 
+					curTreeResult.put("matched_nodes", matchedNodeResults);
+					treeResults.add(curTreeResult);
 				}
 
-				// for each matched tree node
-				List<HashMap<String, Object>> matchedNodeResults = new LinkedList<HashMap<String, Object>>();
-				for (Long matchedTreeNodeId : treeTipNodeIdsByTreeRootNodeIdByStudyMetaNodeId.get(studyNodeId).get(treeRootNodeId)) {
-					
-					// prepare to collect tree node metadata
-					HashMap<String, Object> curNodeResult = new HashMap<String, Object>();
-					Node matchedTreeNode = graphDb.getNodeById(matchedTreeNodeId);
-
-					// provide additional tree node metadata if requested
-					if (verbose) {
-						
-						// TODO: this two-pass approach could be made more efficient--there is overlap between the exact and fulltext properties
-						for (OTPropertyPredicate p : IndexedPrimitiveProperties.TREE_NODES_EXACT.properties()) {
-							if (matchedTreeNode.hasProperty(p.propertyName())) {
-								curNodeResult.put(p.propertyName(), matchedTreeNode.getProperty(p.propertyName()));
-							}
-						}
-						for (OTPropertyPredicate p : IndexedPrimitiveProperties.TREE_NODES_FULLTEXT.properties()) {
-							if (matchedTreeNode.hasProperty(p.propertyName())) {
-								curNodeResult.put(p.propertyName(), matchedTreeNode.getProperty(p.propertyName()));
-							}
-						}
-						
-					// otherwise just record the nexson node id
-					} else {
-						curNodeResult.put(OTINodeProperty.NEXSON_ID.propertyName(), (String) matchedTreeNode.getProperty(OTINodeProperty.NEXSON_ID.propertyName()));
-					}
+				studyResult.put("matched_trees", treeResults);
+				return studyResult;
+			}
+		});
+	}
+
+	/**
+	 * Return a query for the terms of the field that are similar to the search value. The terms are found with the
+	 * FuzzyTermIndex, which is much faster than lucene's FuzzyQuery for fields with many terms, unless it is not ready.
+	 * @param field
+	 * @param searchValue
+	 * @return
+	 */
+	private Query getFuzzyQuery(String field, String searchValue) {
+		String text = searchValue.toLowerCase();
+		float minIdentity = AbstractBaseQuery.getMinIdentity(searchValue);
+		Query query = fuzzyTerms.getFuzzyQuery(field, text, minIdentity);
+		return query != null ? query : new FuzzyQuery(new Term(field, text), minIdentity);
+	}
+
+	/**
+	 * Collect the metadata for a study found by a search: all the indexed properties if verbose, otherwise just its id.
+	 * @param studyNode
+	 * @param verbose
+	 * @return
+	 */
+	private HashMap<String, Object> getStudyResult(Node studyNode, boolean verbose) {
+
+		HashMap<String, Object> study = new HashMap<String, Object>();
+
+		// record additional metadata if requested
+		if (verbose) {
+
+			// TODO: this two-pass approach could be made more efficient--there is overlap between the exact and fulltext properties
+			for (OTPropertyPredicate p : IndexedPrimitiveProperties.STUDIES_EXACT.properties()) {
+				if (studyNode.hasProperty(p.propertyName())) {
+					study.put(p.propertyName(), studyNode.getProperty(p.propertyName()));
+				}
+			}
+			for (OTPropertyPredicate p : IndexedPrimitiveProperties.STUDIES_FULLTEXT.properties()) {
+				if (studyNode.hasProperty(p.propertyName())) {
+					study.put(p.propertyName(), studyNode.getProperty(p.propertyName()));
+				}
+			}
+
+		// otherwise just record ids
+		} else {
+			study.put(OTVocabularyPredicate.OT_STUDY_ID.propertyName(),
+					(String) studyNode.getProperty(OTVocabularyPredicate.OT_STUDY_ID.propertyName()));
+		}
+
+		return study;
+	}
+
+	/**
+	 * Collect the metadata for a tree found by a search: all the indexed properties if verbose, otherwise just the tree
+	 * id and nexson element id.
+	 * @param treeRootNode
+	 * @param verbose
+	 * @return
+	 */
+	private HashMap<String, Object> getTreeResult(Node treeRootNode, boolean verbose) {
+
+		HashMap<String, Object> curTreeResult = new HashMap<String, Object>();
+
+		// provide additional tree metadata if requested
+		if (verbose) {
+
+			// TODO: this two-pass approach could be made more efficient--there is overlap between the exact and fulltext properties
+			for (OTPropertyPredicate p : IndexedPrimitiveProperties.TREES_EXACT.properties()) {
+				if (treeRootNode.hasProperty(p.propertyName())) {
+					curTreeResult.put(p.propertyName(), treeRootNode.getProperty(p.propertyName()));
+				}
+			}
+			for (OTPropertyPredicate p : IndexedPrimitiveProperties.TREES_FULLTEXT.properties()) {
+				if (treeRootNode.hasProperty(p.propertyName())) {
+					curTreeResult.put(p.propertyName(), treeRootNode.getProperty(p.propertyName()));
+				}
+			}
+
+		// otherwise just record the tree id and nexson element id for the tree
+		} else {
+			curTreeResult.put(OTINodeProperty.TREE_ID.propertyName(), (String) treeRootNode.getProperty(OTINodeProperty.TREE_ID.propertyName()));
+			curTreeResult.put(OTINodeProperty.NEXSON_ID.propertyName(), (String) treeRootNode.getProperty(OTINodeProperty.NEXSON_ID.propertyName()));
+		}
+
+		return curTreeResult;
+	}
 
-					matchedNodeResults.add(curNodeResult);
+	/**
+	 * Collect the metadata for a tree node found by a search: all the indexed properties if verbose, otherwise just the
+	 * nexson node id.
+	 * @param matchedTreeNode
+	 * @param verbose
+	 * @return
+	 */
+	private HashMap<String, Object> getTreeNodeResult(Node matchedTreeNode, boolean verbose) {
+
+		HashMap<String, Object> curNodeResult = new HashMap<String, Object>();
+
+		// provide additional tree node metadata if requested
+		if (verbose) {
+
+			// TODO: this two-pass approach could be made more efficient--there is overlap between the exact and fulltext properties
+			// otu properties are on the shared otu node, except in trees written by older versions of OTI
+			for (OTPropertyPredicate p : IndexedPrimitiveProperties.TREE_NODES_EXACT.properties()) {
+				Object value = OTIDatabaseUtils.getTreeNodeProperty(matchedTreeNode, p.propertyName());
+				if (value != null) {
+					curNodeResult.put(p.propertyName(), value);
+				}
+			}
+			for (OTPropertyPredicate p : IndexedPrimitiveProperties.TREE_NODES_FULLTEXT.properties()) {
+				Object value = OTIDatabaseUtils.getTreeNodeProperty(matchedTreeNode, p.propertyName());
+				if (value != null) {
+					curNodeResult.put(p.propertyName(), value);
 				}
-				
-				curTreeResult.put("matched_nodes", matchedNodeResults);
-				treeResults.add(curTreeResult);
 			}
 
-			studyResult.put("matched_trees", treeResults);
-			treeNodesFoundByTreeAndByStudy.add(studyResult);
+		// otherwise just record the nexson node id
+		} else {
+			curNodeResult.put(OTINodeProperty.NEXSON_ID.propertyName(), (String) matchedTreeNode.getProperty(OTINodeProperty.NEXSON_ID.propertyName()));
+		}
+
+		return curNodeResult;
+	}
+
+	private static List<HashMap<String, Object>> toList(Iterable<HashMap<String, Object>> results) {
+		List<HashMap<String, Object>> list = new LinkedList<HashMap<String, Object>>();
+		for (HashMap<String, Object> result : results) {
+			list.add(result);
+		}
+		return list;
+	}
+
+	/**
+	 * Return a query for at most top of the hits on the given query whose node ids are greater than afterId (if it is
+	 * not null), in node id order.
+	 */
+	private static QueryContext pageQuery(Query query, Long afterId, int top) {
+		if (afterId != null) {
+			query = new FilteredQuery(query, FieldCacheRangeFilter.newLongRange(NODE_ID_FIELD, FieldCache.DEFAULT_LONG_PARSER,
+					afterId, null, false, false));
+		}
+		return new QueryContext(query).sort(new Sort(new SortField(NODE_ID_FIELD, FieldCache.DEFAULT_LONG_PARSER))).top(top);
+	}
+
+	/**
+	 * Return a query for at most top of the hits on the given tree root query, ordered by the study metadata node id
+	 * each root is indexed under and then by their own node id, that come after the hit for the root afterRootId in
+	 * the study afterStudyId. If afterRootId is null, the hits start with the next study after afterStudyId, and if both
+	 * are null, at the first hit.
+	 */
+	private static QueryContext treePageQuery(Query query, Long afterStudyId, Long afterRootId, int top) {
+		if (afterStudyId != null) {
+			Query laterStudies = new FilteredQuery(query, FieldCacheRangeFilter.newLongRange(STUDY_META_NODE_ID_FIELD,
+					FieldCache.DEFAULT_LONG_PARSER, afterStudyId, null, false, false));
+			if (afterRootId == null) {
+				query = laterStudies;
+			} else {
+				Query sameStudy = new FilteredQuery(new FilteredQuery(query, FieldCacheRangeFilter.newLongRange(
+						STUDY_META_NODE_ID_FIELD, FieldCache.DEFAULT_LONG_PARSER, afterStudyId, afterStudyId, true, true)),
+						FieldCacheRangeFilter.newLongRange(NODE_ID_FIELD, FieldCache.DEFAULT_LONG_PARSER, afterRootId, null, false, false));
+				BooleanQuery either = new BooleanQuery();
+				either.add(sameStudy, Occur.SHOULD);
+				either.add(laterStudies, Occur.SHOULD);
+				query = either;
+			}
+		}
+		return new QueryContext(query).sort(new Sort(new SortField(STUDY_META_NODE_ID_FIELD, FieldCache.DEFAULT_LONG_PARSER),
+				new SortField(NODE_ID_FIELD, FieldCache.DEFAULT_LONG_PARSER))).top(top);
+	}
+
+	/**
+	 * Return a query matching the hits on the given query (if it is not null) and on any of the exact property values.
+	 * Exact matches use the same untokenized fields as index.get().
+	 */
+	private static Query combineWithExactMatches(Query query, Map<String,Object> exactProperties) {
+		BooleanQuery combined = new BooleanQuery();
+		if (exactProperties != null) {
+			for (Entry<String,Object> p : exactProperties.entrySet()) {
+				combined.add(new TermQuery(new Term(p.getKey() + EXACT_FIELD_SUFFIX,
+						String.valueOf(OTINodeIndex.indexValue(p.getValue())))), Occur.SHOULD);
+			}
+		}
+		if (query != null) {
+			combined.add(query, Occur.SHOULD);
 		}
+		return combined;
+	}
+
+	/**
+	 * Return true if the id recorded by a tree root for its study is the id of a live study metadata node. Node ids are
+	 * reused once a node is deleted, so the node must still be a study metadata node.
+	 */
+	private boolean isLiveStudyMetaNodeId(long studyMetaNodeId) {
+		Node studyMeta;
+		try {
+			studyMeta = graphDb.getNodeById(studyMetaNodeId);
+		} catch (NotFoundException ex) {
+			return false; // the study is being deleted
+		}
+		return studyMeta.hasProperty(OTINodeProperty.IS_STUDY_META.propertyName()) && OTIDatabaseUtils.isLiveStudy(studyMeta);
+	}
+
+	/**
+	 * Record a hit from the tree node index under its tree and study, skipping nodes in trees that are not (or no
+	 * longer) part of a live study. Otu nodes are indexed along with the tree nodes, so a hit on an otu node is recorded
+	 * as a hit on each of the tree nodes mapped to it.
+	 * @param hit
+	 * @param liveTrees
+	 * @param treeNodeIdsByTreeRootNodeIdByStudyMetaNodeId
+	 */
+	private void recordTreeNodeHit(Node hit, LiveTreeFilter liveTrees, Map<Long, HashMap<Long, HashSet<Long>>> treeNodeIdsByTreeRootNodeIdByStudyMetaNodeId) {
+
+		if (hit.hasProperty(OTINodeProperty.IS_OTU.propertyName())) {
+			for (Relationship rel : hit.getRelationships(OTIRelType.OTUOF, Direction.OUTGOING)) {
+				recordTreeNodeHit(rel.getEndNode(), liveTrees, treeNodeIdsByTreeRootNodeIdByStudyMetaNodeId);
+			}
+			return;
+		}
+
+		Node treeRootNode = liveTrees.getRoot(hit);
+		Node studyMetaNode = liveTrees.getLiveStudyMetaNode(treeRootNode);
+		if (studyMetaNode == null) {
+			return;
+		}
+		Long studyMetaNodeId = studyMetaNode.getId();
+		Long treeRootNodeId = treeRootNode.getId();
 		
-		return treeNodesFoundByTreeAndByStudy;
+		// add an entry for the study if this is the first time we've seen it
+		if (!treeNodeIdsByTreeRootNodeIdByStudyMetaNodeId.containsKey(studyMetaNodeId)) {
+			treeNodeIdsByTreeRootNodeIdByStudyMetaNodeId.put(studyMetaNodeId, new HashMap<Long, HashSet<Long>>());
+		}
+
+		// add an entry for the tree if this is the first time we've seen it
+		if (!treeNodeIdsByTreeRootNodeIdByStudyMetaNodeId.get(studyMetaNodeId).containsKey(treeRootNodeId)) {
+			treeNodeIdsByTreeRootNodeIdByStudyMetaNodeId.get(studyMetaNodeId).put(treeRootNodeId, new HashSet<Long>());
+		}
+		
+		// record the id of the matched tree node
+		treeNodeIdsByTreeRootNodeIdByStudyMetaNodeId.get(studyMetaNodeId).get(treeRootNodeId).add(hit.getId());
+	}
+	
+	/**
+	 * Finds the roots of the trees containing tree nodes, and the live studies containing those trees, remembering the
+	 * answers so that each tree and study is only checked once. Tree nodes record the id of their root, and roots the id
+	 * of their study, so this does not traverse the graph except for trees written by older versions of OTI, for which
+	 * hits in the same tree only walk up to the root once. Trees that are still being written, that have been detached
+	 * from their study, or that belong to staged, replaced or tombstoned studies (see DatabaseManager.tombstoneSource)
+	 * have no live study. Only valid for the duration of a single query.
+	 */
+	private class LiveTreeFilter {
+		
+		private final Map<Long, Node> rootsByNodeId = new HashMap<Long, Node>();
+		private final Map<Long, Node> liveStudyMetaNodesByRootId = new HashMap<Long, Node>();
+		
+		/**
+		 * Return the root of the tree containing the node, or null if it is not in a tree.
+		 */
+		public Node getRoot(Node treeNode) {
+			
+			if (treeNode.hasProperty(OTINodeProperty.ROOT_NODE_ID.propertyName())) {
+				return OTIDatabaseUtils.getRootOfTreeContaining(treeNode);
+			}
+			
+			// walk up until we reach the root or a node whose root we already know
+			List<Long> path = new LinkedList<Long>();
+			Node node = treeNode;
+			Node root = null;
+			while (true) {
+				if (rootsByNodeId.containsKey(node.getId())) {
+					root = rootsByNodeId.get(node.getId());
+					break;
+				}
+				path.add(node.getId());
+				Relationship parentRel = node.getSingleRelationship(OTIRelType.CHILDOF, Direction.OUTGOING);
+				if (parentRel == null) {
+					root = node.hasProperty(OTINodeProperty.IS_ROOT.propertyName()) ? node : null;
+					break;
+				}
+				node = parentRel.getEndNode();
+			}
+			
+			for (Long nodeId : path) {
+				rootsByNodeId.put(nodeId, root);
+			}
+			return root;
+		}
+		
+		/**
+		 * Return the study metadata node for the tree with the given root if the tree is part of a live study, or null
+		 * if it is not (or if the root is null).
+		 */
+		public Node getLiveStudyMetaNode(Node root) {
+			if (root == null) {
+				return null;
+			}
+			if (! liveStudyMetaNodesByRootId.containsKey(root.getId())) {
+				Node studyMeta = null;
+				if (! root.hasProperty(OTINodeProperty.IS_RETIRED.propertyName())) {
+					studyMeta = getStudyMetaNodeForTreeNode(root);
+				}
+				liveStudyMetaNodesByRootId.put(root.getId(), OTIDatabaseUtils.isLiveStudy(studyMeta) ? studyMeta : null);
+			}
+			return liveStudyMetaNodesByRootId.get(root.getId());
+		}
 	}
 }
@@ -0,0 +1,158 @@
+package org.opentree.oti;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Selects one page of the results of a query. Results are ordered by the node id of the study metadata node, which is
+ * stable as long as the study is not replaced. A page skips the results up to and including the one that its cursor
+ * points at (if any), then skips offset more, and then takes at most limit results. If there are more results after
+ * the page, getNextCursor returns a cursor to pass to the next request to continue from there.
+ *
+ * Cursors are opaque to clients: they should only be passed back to the service that returned them. Paging with cursors
+ * costs the same for every page, whereas paging with a large offset has to skip over all the earlier results.
+ *
+ * A ResultPage is used by the QueryRunner to select the results it loads from the graph, so that only the requested
+ * page is loaded. It records the results it selects, so it should be used for a single query.
+ */
+public class ResultPage {
+
+	// cursors are the base 36 node id of the last result of a page, with a version prefix
+	private static final String CURSOR_PREFIX = "c1.";
+
+	private final Long afterId;
+	private final int offset;
+	private final int limit;
+
+	private final List<Long> selectedIds = new ArrayList<Long>();
+	private int skipped = 0;
+	private boolean hasMore = false;
+	private Long lastId; // the last result skipped or selected, where the next page starts
+
+	// ===== constructors
+
+	/**
+	 * A page containing all the results.
+	 */
+	public ResultPage() {
+		this(null, null, null);
+	}
+
+	/**
+	 * @param limit
+	 * 		The maximum number of results on the page, or null for no limit. A page with no results could not say where the
+	 * 		next one starts, so the limit must be at least 1
+	 * @param offset
+	 * 		The number of results to skip, after the one the cursor points at if there is a cursor. Null for none.
+	 * @param cursor
+	 * 		A cursor returned by getNextCursor for the previous page, or null to start at the first result
+	 * @throws IllegalArgumentException
+	 * 		If the limit is less than 1, the offset is negative or the cursor is not valid
+	 */
+	public ResultPage(Integer limit, Integer offset, String cursor) {
+		if (limit != null && limit < 1) {
+			throw new IllegalArgumentException("The limit must be at least 1.");
+		}
+		if (offset != null && offset < 0) {
+			throw new IllegalArgumentException("The offset must not be negative.");
+		}
+		this.limit = limit == null ? Integer.MAX_VALUE : limit;
+		this.offset = offset == null ? 0 : offset;
+		this.afterId = cursor == null ? null : decodeCursor(cursor);
+		this.lastId = afterId;
+	}
+
+	// ===== public methods
+
+	/**
+	 * Return the cursor for the page after this one, or null if there are no more results. Only valid once the page has
+	 * been filled.
+	 * @return
+	 */
+	public String getNextCursor() {
+		return hasMore && lastId != null ? encodeCursor(lastId) : null;
+	}
+
+	/**
+	 * Return the number of results selected for the page. Only valid once the page has been filled.
+	 * @return
+	 */
+	public int size() {
+		return selectedIds.size();
+	}
+
+	/**
+	 * Return true if this page may not contain all the results, i.e. it has a limit, offset or cursor.
+	 * @return
+	 */
+	public boolean isPartial() {
+		return afterId != null || offset > 0 || limit < Integer.MAX_VALUE;
+	}
+
+	// ===== package methods used by the QueryRunner
+
+	/**
+	 * Return the id the cursor points at, after which the results for the page start, or null if there is no cursor.
+	 * @return
+	 */
+	Long getCursorId() {
+		return afterId;
+	}
+
+	/**
+	 * Return the number of results that must still be offered to fill the page and find out whether there are more
+	 * results after it, or Integer.MAX_VALUE if that is more.
+	 * @return
+	 */
+	int remaining() {
+		long remaining = (long) (offset - skipped) + (limit - selectedIds.size()) + 1;
+		return (int) Math.min(remaining, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Offer the next result, in order, for the page. The result is skipped if it falls within the offset, and selected
+	 * otherwise. Returns false if the page is already full, in which case there is no need to offer any more results.
+	 * @param id
+	 * @return
+	 */
+	boolean offer(Long id) {
+		if (skipped < offset) {
+			skipped++;
+		} else if (selectedIds.size() < limit) {
+			selectedIds.add(id);
+		} else {
+			hasMore = true;
+			return false;
+		}
+		lastId = id;
+		return true;
+	}
+
+	/**
+	 * Return the ids that have been selected for the page, in order.
+	 * @return
+	 */
+	List<Long> getSelectedIds() {
+		return selectedIds;
+	}
+
+	// ===== private methods
+
+	private static String encodeCursor(long id) {
+		return CURSOR_PREFIX + Long.toString(id, Character.MAX_RADIX);
+	}
+
+	private static Long decodeCursor(String cursor) {
+		if (cursor.startsWith(CURSOR_PREFIX)) {
+			try {
+				long id = Long.parseLong(cursor.substring(CURSOR_PREFIX.length()), Character.MAX_RADIX);
+				if (id >= 0) {
+					return id;
+				}
+			} catch (NumberFormatException ex) {
+				// fall through
+			}
+		}
+		throw new IllegalArgumentException("Invalid cursor: " + cursor);
+	}
+}
@@ -0,0 +1,280 @@
+package org.opentree.oti;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.neo4j.kernel.GraphDatabaseAPI;
+
+/**
+ * Keeps track of which store the plugins serve from. Normally this is the store the server was started with, but a
+ * complete replacement store can be built in a side directory while the current one keeps serving (see
+ * StoreRebuilder), and then switched in atomically: the services resolve the store to use at the start of each
+ * request, so requests that are already running finish against the old store and all later requests use the new one.
+ *
+ * The store that was serving before the last switch is left open, so that rollback can switch back to it immediately.
+ * Stores older than that are shut down, along with the background threads and per-db state that oti keeps for them
+ * (see shutDown), but their directories are never deleted. The directory of the active store is recorded in the file
+ * ACTIVE_STORE_FILE in the server's store directory, so a switch survives a restart.
+ *
+ * There is one serving store for each server graph database, obtained with getServingStore.
+ */
+public class ServingStore {
+
+	/** The file in the server's store directory that names the directory of the active store, if it is not the server's own. */
+	public static final String ACTIVE_STORE_FILE = "oti-active-store";
+
+	private static final Logger LOG = Logger.getLogger(ServingStore.class);
+
+	private static final Map<GraphDatabaseService, ServingStore> servingStores = new HashMap<GraphDatabaseService, ServingStore>();
+
+	private final Store serverStore;
+	private final AtomicReference<Store> active;
+
+	// the store that was active before the last switch. guarded by this
+	private Store previous = null;
+
+	// the rebuild that is running or most recently ran. guarded by this
+	private StoreRebuilder rebuild = null;
+
+	// ===== constructors
+
+	private ServingStore(GraphDatabaseService serverDb) {
+		File storeDir = serverDb instanceof GraphDatabaseAPI ? new File(((GraphDatabaseAPI) serverDb).getStoreDir()) : null;
+		this.serverStore = new Store(serverDb, storeDir);
+		this.active = new AtomicReference<Store>(serverStore);
+
+		// reopen the store that was active when the server was last running
+		File activeDir = readActiveStoreFile();
+		if (activeDir != null) {
+			if (activeDir.isDirectory()) {
+				active.set(new Store(new EmbeddedGraphDatabase(activeDir.getAbsolutePath()), activeDir));
+				previous = serverStore;
+			} else {
+				LOG.warn("The active oti store " + activeDir + " no longer exists. Serving from " + storeDir + " instead.");
+			}
+		}
+	}
+
+	/**
+	 * Return the serving store for the given server graph database, creating it if necessary.
+	 * @param serverDb
+	 * @return
+	 */
+	public static ServingStore getServingStore(GraphDatabaseService serverDb) {
+		synchronized (servingStores) {
+			ServingStore servingStore = servingStores.get(serverDb);
+			if (servingStore == null) {
+				servingStore = new ServingStore(serverDb);
+				servingStores.put(serverDb, servingStore);
+			}
+			return servingStore;
+		}
+	}
+
+	/**
+	 * Return the graph database that requests to the given server graph database should be served from. Services
+	 * should call this once at the start of each request and use the result for the whole request.
+	 * @param serverDb
+	 * @return
+	 */
+	public static GraphDatabaseService resolve(GraphDatabaseService serverDb) {
+		return getServingStore(serverDb).getActiveDatabase();
+	}
+
+	// ===== public methods
+
+	public GraphDatabaseService getActiveDatabase() {
+		return active.get().graphDb;
+	}
+
+	/**
+	 * Return the directory of the active store, or null if it is not known.
+	 * @return
+	 */
+	public File getActiveStoreDir() {
+		return active.get().dir;
+	}
+
+	/**
+	 * Return the directory of the server's own store, or null if it is not known. Side stores are built next to it.
+	 * @return
+	 */
+	public File getServerStoreDir() {
+		return serverStore.dir;
+	}
+
+	/**
+	 * Start a rebuild in the background, unless one is already running.
+	 * @param rebuilder
+	 * @return
+	 * 		True if the rebuild was started, false if another one is still running
+	 */
+	public synchronized boolean startRebuild(StoreRebuilder rebuilder) {
+		if (rebuild != null && ! rebuild.isFinished()) {
+			return false;
+		}
+		rebuild = rebuilder;
+		Thread t = new Thread(rebuilder, "oti-store-rebuild");
+		t.setDaemon(true);
+		t.start();
+		return true;
+	}
+
+	/**
+	 * Return the rebuild that is running or most recently ran, or null if there has not been one.
+	 * @return
+	 */
+	public synchronized StoreRebuilder getRebuild() {
+		return rebuild;
+	}
+
+	/**
+	 * Make the given (open) graph database, whose store is in the given directory, the active store. The store that was
+	 * active is kept open for rollback, and the one before it (if any) is shut down.
+	 * @param graphDb
+	 * @param dir
+	 * @throws IOException
+	 * 		If the switch could not be recorded. The switch is not made in that case
+	 */
+	public synchronized void switchTo(GraphDatabaseService graphDb, File dir) throws IOException {
+		Store next = new Store(graphDb, dir);
+		writeActiveStoreFile(next);
+		Store retired = previous;
+		previous = active.getAndSet(next);
+		shutDownIfUnused(retired);
+	}
+
+	/**
+	 * Switch back to the store that was active before the last switch.
+	 * @return
+	 * 		False if there is no store to roll back to
+	 * @throws IOException
+	 * 		If the switch could not be recorded. The switch is not made in that case
+	 */
+	public synchronized boolean rollback() throws IOException {
+		if (previous == null) {
+			return false;
+		}
+		writeActiveStoreFile(previous);
+		previous = active.getAndSet(previous);
+		return true;
+	}
+
+	/**
+	 * Return a description of the active and previous stores and of the latest rebuild, for the status services.
+	 * @return
+	 */
+	public synchronized Map<String, Object> getStatus() {
+		Map<String, Object> status = new HashMap<String, Object>();
+		status.put("active_store", String.valueOf(active.get().dir));
+		status.put("previous_store", previous == null ? null : String.valueOf(previous.dir));
+		status.put("rebuild", rebuild == null ? null : rebuild.getStatus());
+		return status;
+	}
+
+	// ===== package methods
+
+	/**
+	 * Shut down a graph database that oti opened itself, after stopping the background threads that oti runs for it and
+	 * discarding the rest of its per-db state (caches, locks and indexes), which would otherwise keep the db reachable.
+	 * @param graphDb
+	 */
+	static void shutDown(GraphDatabaseService graphDb) {
+		// the queue writes through the compactor, so stop it first
+		IndexingJobQueue.release(graphDb);
+		StudyCompactor.release(graphDb);
+		TaxonomyMirror.release(graphDb);
+		FuzzyTermIndex.release(graphDb);
+		TaxonNodeResolver.release(graphDb);
+		QueryCache.release(graphDb);
+		StudyLocks.release(graphDb);
+		PhylesystemSynchronizer.release(graphDb);
+		graphDb.shutdown();
+	}
+
+	// ===== private methods
+
+	private void shutDownIfUnused(Store store) {
+		// never shut down the server's own db, which the server manages
+		if (store != null && store != serverStore && store != active.get() && store != previous) {
+			shutDown(store.graphDb);
+		}
+	}
+
+	private File readActiveStoreFile() {
+		if (serverStore.dir == null) {
+			return null;
+		}
+		File f = new File(serverStore.dir, ACTIVE_STORE_FILE);
+		if (! f.exists()) {
+			return null;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+			try {
+				String path = reader.readLine();
+				return path == null || path.trim().length() == 0 ? null : new File(path.trim());
+			} finally {
+				reader.close();
+			}
+		} catch (IOException ex) {
+			LOG.warn("Could not read " + f + ". Serving from " + serverStore.dir + " instead.", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Record the store as the active one, replacing the file atomically so that a crash cannot leave it half written.
+	 */
+	private void writeActiveStoreFile(Store store) throws IOException {
+		if (serverStore.dir == null) {
+			return;
+		}
+		File f = new File(serverStore.dir, ACTIVE_STORE_FILE);
+		if (store == serverStore) {
+			if (f.exists() && ! f.delete()) {
+				throw new IOException("Could not delete " + f);
+			}
+			return;
+		}
+		if (store.dir == null) {
+			throw new IOException("The store to be switched to has no known directory.");
+		}
+		File tmp = new File(serverStore.dir, ACTIVE_STORE_FILE + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+		try {
+			writer.write(store.dir.getAbsolutePath());
+			writer.write("\n");
+		} finally {
+			writer.close();
+		}
+		if (! tmp.renameTo(f)) {
+			// renameTo does not replace existing files on all platforms
+			f.delete();
+			if (! tmp.renameTo(f)) {
+				throw new IOException("Could not replace " + f);
+			}
+		}
+	}
+
+	private static class Store {
+		final GraphDatabaseService graphDb;
+		final File dir;
+		Store(GraphDatabaseService graphDb, File dir) {
+			this.graphDb = graphDb;
+			this.dir = dir;
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package org.opentree.oti;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.opentree.nexson.io.NexsonSource;
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * Builds a complete new store, with all its indexes, in a side directory while the active store keeps serving, checks
+ * it, and then (optionally) switches the plugins over to it with ServingStore.switchTo. The store is written with the
+ * BulkLoader from local nexson files, so nothing is written to the active store and it does not slow down queries
+ * beyond sharing the machine.
+ *
+ * A fresh store contains no taxonomy. To link tree nodes to the taxonomy and index trees by their higher taxa, the
+ * path of a store containing only a taxomachine taxonomy can be given; it is copied into the side directory before the
+ * studies are loaded, so it must not be open while the rebuild runs. Taxonomy stores given by clients of the services
+ * must be inside the directory named by the TAXONOMY_ROOT_PROPERTY system property (see getTaxonomyStoreDir), and nexson
+ * locations inside the ingest root (see LocalNexsonReader.getIngestPath).
+ *
+ * Run it with ServingStore.startRebuild, and check on it with getStatus.
+ */
+public class StoreRebuilder implements Runnable {
+
+	public enum State {
+		WAITING, COPYING_TAXONOMY, LOADING, VERIFYING, BUILT, SWITCHED, FAILED;
+		public boolean isFinished() {
+			return this == BUILT || this == SWITCHED || this == FAILED;
+		}
+	}
+
+	/** The system property naming the directory below which clients may ask for taxonomy stores to be copied. */
+	public static final String TAXONOMY_ROOT_PROPERTY = "oti.taxonomy.root";
+
+	/** The number of loaded study ids that are looked up in the new store when it is checked. */
+	public static final int STUDIES_TO_SAMPLE = 100;
+
+	/** The number of nexson files that could not be loaded which are reported by getStatus. */
+	public static final int LOAD_ERRORS_TO_REPORT = 100;
+
+	private static final Logger LOG = Logger.getLogger(StoreRebuilder.class);
+
+	private final ServingStore servingStore;
+	private final File[] nexsonLocations;
+	private final File taxonomyStoreDir;
+	private final boolean switchWhenBuilt;
+	private final File storeDir;
+
+	private volatile State state = State.WAITING;
+	private volatile String failure = null;
+	private volatile int studiesLoaded = 0;
+	private volatile int studiesFailed = 0;
+	private volatile int nexsonFileCount = 0;
+	private long startTime = 0;
+	private long endTime = 0;
+
+	private final List<String> loadedStudyIds = new ArrayList<String>();
+
+	// the first few nexson files that could not be loaded, with the reasons. guarded by itself
+	private final List<String> loadErrors = new ArrayList<String>();
+
+	/**
+	 * @param servingStore
+	 * @param nexsonLocations
+	 * 		Nexson files, or directories to be searched recursively for them
+	 * @param taxonomyStoreDir
+	 * 		A store containing the taxonomy to be copied into the new store, or null
+	 * @param switchWhenBuilt
+	 * 		Whether to switch to the new store once it has been checked
+	 */
+	public StoreRebuilder(ServingStore servingStore, File[] nexsonLocations, File taxonomyStoreDir, boolean switchWhenBuilt) {
+		this.servingStore = servingStore;
+		this.nexsonLocations = nexsonLocations;
+		this.taxonomyStoreDir = taxonomyStoreDir;
+		this.switchWhenBuilt = switchWhenBuilt;
+
+		File parent = servingStore.getServerStoreDir() == null ? null : servingStore.getServerStoreDir().getAbsoluteFile().getParentFile();
+		this.storeDir = new File(parent, "oti-store-" + System.currentTimeMillis());
+	}
+
+	// ===== public methods
+
+	/**
+	 * Return the taxonomy store at the given path, which must be a directory inside the directory named by the
+	 * TAXONOMY_ROOT_PROPERTY system property. Paths are compared after resolving symbolic links and relative components.
+	 * @param path
+	 * @return
+	 * @throws IllegalArgumentException
+	 * 		If no root has been configured, or the path is not a directory inside it
+	 * @throws IOException
+	 */
+	public static File getTaxonomyStoreDir(String path) throws IOException {
+		File dir = LocalNexsonReader.getPathInsideRoot(path, TAXONOMY_ROOT_PROPERTY, "Copying a taxonomy store");
+		if (! dir.isDirectory()) {
+			throw new IllegalArgumentException("The path " + path + " is not a directory.");
+		}
+		return dir;
+	}
+
+	@Override
+	public void run() {
+		startTime = System.currentTimeMillis();
+		try {
+			if (storeDir.exists()) {
+				throw new IOException("The side store directory " + storeDir + " already exists.");
+			}
+			if (taxonomyStoreDir != null) {
+				state = State.COPYING_TAXONOMY;
+				copyDirectory(taxonomyStoreDir, storeDir);
+			}
+
+			state = State.LOADING;
+			load();
+
+			state = State.VERIFYING;
+			EmbeddedGraphDatabase graphDb = new EmbeddedGraphDatabase(storeDir.getAbsolutePath());
+			boolean switched = false;
+			try {
+				verify(graphDb);
+				if (switchWhenBuilt) {
+					servingStore.switchTo(graphDb, storeDir);
+					switched = true;
+				}
+			} finally {
+				if (! switched) {
+					ServingStore.shutDown(graphDb);
+				}
+			}
+			state = switched ? State.SWITCHED : State.BUILT;
+
+		} catch (Throwable ex) {
+			failure = ex.getClass().getName() + ": " + ex.getMessage();
+			state = State.FAILED;
+		}
+		endTime = System.currentTimeMillis();
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public boolean isFinished() {
+		return state.isFinished();
+	}
+
+	public File getStoreDir() {
+		return storeDir;
+	}
+
+	/**
+	 * Return a description of the progress of the rebuild, for the status services.
+	 * @return
+	 */
+	public Map<String, Object> getStatus() {
+		Map<String, Object> status = new HashMap<String, Object>();
+		status.put("state", state.toString());
+		status.put("store_dir", storeDir.getPath());
+		status.put("nexson_files", nexsonFileCount);
+		status.put("studies_loaded", studiesLoaded);
+		status.put("studies_failed", studiesFailed);
+		if (startTime > 0) {
+			status.put("elapsed_ms", (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime);
+		}
+		synchronized (loadErrors) {
+			status.put("load_errors", new ArrayList<String>(loadErrors));
+		}
+		if (failure != null) {
+			status.put("error", failure);
+		}
+		return status;
+	}
+
+	// ===== private methods
+
+	private void load() throws IOException {
+		List<File> nexsonFiles = LocalNexsonReader.collectNexsonFiles(nexsonLocations);
+		nexsonFileCount = nexsonFiles.size();
+		BulkLoader loader = new BulkLoader(storeDir.getAbsolutePath());
+		try {
+			for (File f : nexsonFiles) {
+				try {
+					NexsonSource study = LocalNexsonReader.readNexsonFile(f);
+					if (loader.loadStudy(study) >= 0) { // duplicates are skipped
+						loadedStudyIds.add(study.getId());
+						studiesLoaded++;
+					}
+				} catch (Exception ex) {
+					studiesFailed++;
+					String error = "Could not load " + f.getPath() + ": " + ex.getClass().getName() + ": " + ex.getMessage();
+					LOG.warn(error);
+					synchronized (loadErrors) {
+						if (loadErrors.size() < LOAD_ERRORS_TO_REPORT) {
+							loadErrors.add(error);
+						}
+					}
+				}
+			}
+		} finally {
+			loader.shutdown();
+		}
+	}
+
+	/**
+	 * Check that the new store has all the indexes and that the studies that were loaded can be found through them.
+	 * @throws IllegalStateException
+	 * 		If the store should not be served
+	 */
+	private void verify(EmbeddedGraphDatabase graphDb) {
+
+		if (studiesLoaded == 0) {
+			throw new IllegalStateException("No studies were loaded into the new store.");
+		}
+
+		IndexManager indexManager = graphDb.index();
+		for (OTINodeIndex index : OTINodeIndex.PROPERTY_INDEXES) {
+			if (! indexManager.existsForNodes(index.indexName())) {
+				throw new IllegalStateException("The new store has no " + index.indexName() + " index.");
+			}
+		}
+
+		QueryRunner runner = new QueryRunner(graphDb);
+		int studiesFound = runner.doBasicSearchForStudies(new MatchAllDocsQuery(), null, false).size();
+		if (studiesFound != studiesLoaded) {
+			throw new IllegalStateException(studiesLoaded + " studies were loaded into the new store, but " + studiesFound + " were found in its index.");
+		}
+
+		int step = Math.max(1, loadedStudyIds.size() / STUDIES_TO_SAMPLE);
+		for (int i = 0; i < loadedStudyIds.size(); i += step) {
+			String studyId = loadedStudyIds.get(i);
+			IndexHits<Node> hits = runner.studyMetaNodesByProperty.get(OTVocabularyPredicate.OT_STUDY_ID.propertyName(), OTINodeIndex.indexValue(studyId));
+			try {
+				if (hits.size() != 1) {
+					throw new IllegalStateException("The study " + studyId + " was loaded but " + hits.size() + " studies with its id were found in the new store's index.");
+				}
+			} finally {
+				hits.close();
+			}
+		}
+	}
+
+	private static void copyDirectory(File source, File target) throws IOException {
+		if (! target.mkdirs() && ! target.isDirectory()) {
+			throw new IOException("Could not create " + target);
+		}
+		File[] children = source.listFiles();
+		if (children == null) {
+			throw new IOException("Could not list " + source);
+		}
+		for (File child : children) {
+			if (child.getName().startsWith(ServingStore.ACTIVE_STORE_FILE)) {
+				continue; // the copy is not a server store
+			}
+			File copy = new File(target, child.getName());
+			if (child.isDirectory()) {
+				copyDirectory(child, copy);
+			} else {
+				FileChannel in = new FileInputStream(child).getChannel();
+				try {
+					FileChannel out = new FileOutputStream(copy).getChannel();
+					try {
+						long position = 0;
+						long size = in.size();
+						while (position < size) {
+							position += in.transferTo(position, size - position, out);
+						}
+					} finally {
+						out.close();
+					}
+				} finally {
+					in.close();
+				}
+			}
+		}
+	}
+}
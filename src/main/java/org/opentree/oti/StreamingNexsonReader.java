@@ -0,0 +1,424 @@
+package org.opentree.oti;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * A token-by-token NexSON parser. Rather than building the whole JSON document and a NexsonSource object graph in
+ * memory, this reader only materializes one small element (an otu, node, edge or meta list) at a time, and passes
+ * each one to a Handler as soon as it has been read. Study and tree objects are never materialized; their
+ * properties are passed to the handler as they are encountered.
+ *
+ * Both the list-based (0.0/1.0) and the id-keyed (1.2) layouts are understood, as are both the badgerfish "meta"
+ * lists and the direct "^"-prefixed style of meta properties.
+ */
+public class StreamingNexsonReader implements ContentHandler {
+
+	/**
+	 * Receives the elements of a nexson study as they are parsed. Properties are passed using their ot: names
+	 * (i.e. with any "^" prefix removed). In the list-based layouts the tree id is not known when the tree starts,
+	 * so startTree receives null and the id is passed later as the "@id" tree property.
+	 */
+	public interface Handler {
+		public void studyProperty(String name, Object value);
+		public void otu(String otuId, String label, Map<String, Object> properties);
+		public void startTree(String treeId);
+		public void treeProperty(String name, Object value);
+		public void node(String nodeId, String otuId, boolean isRoot, Map<String, Object> properties);
+		public void edge(String sourceId, String targetId, Double length);
+		public void endTree();
+		public void endStudy();
+	}
+
+	private enum ElementKind { OTU, NODE, EDGE, META, PROPERTY }
+
+	private static final String DEPRECATED_TAG = "deprecated";
+
+	private final Handler handler;
+
+	// the keys of the object entries we are currently inside, outermost first
+	private final LinkedList<String> keys = new LinkedList<String>();
+
+	// containers for the element currently being materialized, innermost last
+	private final LinkedList<Object> builders = new LinkedList<Object>();
+	private ElementKind currentElementKind;
+	private String currentElementKey;
+
+	// the number of keys above the current tree object, or -1 if we are not in a tree
+	private int treeDepth = -1;
+	private String treeId;
+
+	public StreamingNexsonReader(Handler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Parse the nexson from the reader, passing its elements to the handler.
+	 * @param nexson
+	 * @throws IOException
+	 */
+	public void read(Reader nexson) throws IOException {
+		try {
+			new JSONParser().parse(nexson, this);
+		} catch (ParseException ex) {
+			throw new IllegalArgumentException("Could not parse nexson: " + ex.toString(), ex);
+		}
+	}
+
+	/**
+	 * Return true if a study or tree with the given properties is marked as deprecated, i.e. if one of its ot:tag values
+	 * is "deprecated" (ignoring case). This is the flag that NexsonSource.isDeprecated and NexsonTree.isDeprecated
+	 * report for nexsons that are read into memory.
+	 * @param properties
+	 * @return
+	 */
+	public static boolean isDeprecated(Map<String, Object> properties) {
+		Object tags = properties.get(OTVocabularyPredicate.OT_TAG.propertyName());
+		if (tags instanceof String) {
+			return DEPRECATED_TAG.equalsIgnoreCase((String) tags);
+		} else if (tags instanceof String[]) {
+			for (String tag : (String[]) tags) {
+				if (DEPRECATED_TAG.equalsIgnoreCase(tag)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// ===== ContentHandler methods
+
+	@Override
+	public void startJSON() {}
+
+	@Override
+	public void endJSON() {
+		handler.endStudy();
+	}
+
+	@Override
+	public boolean startObjectEntry(String key) {
+		keys.add(key);
+		return true;
+	}
+
+	@Override
+	public boolean endObjectEntry() {
+		keys.removeLast();
+		return true;
+	}
+
+	@Override
+	public boolean startObject() {
+
+		if (! builders.isEmpty()) {
+			addToCurrentBuilder(new JSONObject());
+			return true;
+		}
+
+		ElementKind kind = elementKindForCurrentPosition();
+		if (kind != null) {
+			currentElementKind = kind;
+			currentElementKey = keys.isEmpty() ? null : keys.getLast();
+			builders.add(new JSONObject());
+
+		} else if (isTreePosition()) {
+			treeDepth = keys.size();
+			treeId = keyAtDistanceFromEnd(1).equals("treeById") ? keys.getLast() : null;
+			handler.startTree(treeId);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean endObject() {
+
+		if (! builders.isEmpty()) {
+			Object finished = builders.removeLast();
+			if (builders.isEmpty()) {
+				dispatchElement(finished);
+			}
+
+		} else if (treeDepth >= 0 && keys.size() == treeDepth) {
+			handler.endTree();
+			treeDepth = -1;
+			treeId = null;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean startArray() {
+
+		if (! builders.isEmpty()) {
+			addToCurrentBuilder(new JSONArray());
+
+		} else {
+			ElementKind kind = elementKindForCurrentPosition();
+			if (kind == ElementKind.META || kind == ElementKind.PROPERTY) {
+				currentElementKind = kind;
+				currentElementKey = lastKey();
+				builders.add(new JSONArray());
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean endArray() {
+
+		if (! builders.isEmpty()) {
+			Object finished = builders.removeLast();
+			if (builders.isEmpty()) {
+				dispatchElement(finished);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean primitive(Object value) {
+
+		if (! builders.isEmpty()) {
+			addToCurrentBuilder(value);
+			return true;
+		}
+
+		String key = lastKey();
+		if (key == null) {
+			return true;
+		}
+
+		if (isDirectlyInStudy()) {
+			if (key.startsWith("^")) {
+				handler.studyProperty(key.substring(1), convertValue(key.substring(1), value));
+			}
+
+		} else if (isDirectlyInTree()) {
+			if (key.startsWith("^")) {
+				handler.treeProperty(key.substring(1), convertValue(key.substring(1), value));
+			} else if (key.equals("@id") && treeId == null) {
+				treeId = (String) value;
+				handler.treeProperty("@id", treeId);
+			}
+		}
+		return true;
+	}
+
+	// ===== private methods
+
+	/**
+	 * Add a value to the innermost container being materialized, under the current key if it is an object.
+	 */
+	@SuppressWarnings("unchecked")
+	private void addToCurrentBuilder(Object value) {
+		Object container = builders.getLast();
+		if (container instanceof JSONObject) {
+			((JSONObject) container).put(keys.getLast(), value);
+		} else {
+			((JSONArray) container).add(value);
+		}
+		if (value instanceof JSONObject || value instanceof JSONArray) {
+			builders.add(value);
+		}
+	}
+
+	/**
+	 * Pass a completely materialized element to the handler: an otu, node or edge object, a meta list (or object),
+	 * or a study or tree property whose value is an object or an array.
+	 */
+	@SuppressWarnings("unchecked")
+	private void dispatchElement(Object finished) {
+
+		if (currentElementKind == ElementKind.META) {
+			dispatchMeta(finished, isDirectlyInTree());
+			return;
+
+		} else if (currentElementKind == ElementKind.PROPERTY) {
+			String name = currentElementKey.substring(1);
+			Object value = propertyValue(finished);
+			if (value != null) {
+				if (isDirectlyInTree()) {
+					handler.treeProperty(name, value);
+				} else {
+					handler.studyProperty(name, value);
+				}
+			}
+			currentElementKind = null;
+			currentElementKey = null;
+			return;
+		}
+
+		// in the id-keyed layouts, element ids are the keys they are stored under
+		JSONObject element = (JSONObject) finished;
+		if (! element.containsKey("@id") && currentElementKey != null) {
+			element.put("@id", currentElementKey);
+		}
+		String id = (String) element.get("@id");
+
+		switch (currentElementKind) {
+		case OTU:
+			handler.otu(id, (String) element.get("@label"), extractProperties(element));
+			break;
+		case NODE:
+			handler.node(id, (String) element.get("@otu"), Boolean.TRUE.equals(element.get("@root")), extractProperties(element));
+			break;
+		case EDGE:
+			Object length = element.get("@length");
+			handler.edge((String) element.get("@source"), (String) element.get("@target"),
+					length == null ? null : ((Number) length).doubleValue());
+			break;
+		default:
+			break;
+		}
+		currentElementKind = null;
+		currentElementKey = null;
+	}
+
+	/**
+	 * Pass the properties in a badgerfish meta list (or single meta object) to the handler.
+	 */
+	private void dispatchMeta(Object meta, boolean forTree) {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		addMetaProperties(meta, properties);
+		for (Entry<String, Object> p : properties.entrySet()) {
+			if (forTree) {
+				handler.treeProperty(p.getKey(), p.getValue());
+			} else {
+				handler.studyProperty(p.getKey(), p.getValue());
+			}
+		}
+		currentElementKind = null;
+		currentElementKey = null;
+	}
+
+	/**
+	 * Collect the meta properties of a materialized element, in either the "^"-prefixed or the badgerfish style.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> extractProperties(JSONObject element) {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		for (Entry<String, Object> e : (Iterable<Entry<String, Object>>) element.entrySet()) {
+			if (e.getKey().startsWith("^")) {
+				String name = e.getKey().substring(1);
+				Object value = propertyValue(e.getValue());
+				if (value != null) {
+					properties.put(name, convertValue(name, value));
+				}
+			} else if (e.getKey().equals("meta")) {
+				addMetaProperties(e.getValue(), properties);
+			}
+		}
+		return properties;
+	}
+
+	private static void addMetaProperties(Object meta, Map<String, Object> properties) {
+		List<Object> entries = new ArrayList<Object>();
+		if (meta instanceof JSONArray) {
+			for (Object entry : (JSONArray) meta) {
+				entries.add(entry);
+			}
+		} else {
+			entries.add(meta);
+		}
+		for (Object entry : entries) {
+			if (entry instanceof JSONObject) {
+				JSONObject m = (JSONObject) entry;
+				String name = (String) m.get("@property");
+				Object value = m.containsKey("$") ? m.get("$") : m.get("@href");
+				if (name != null && value != null) {
+					properties.put(name, convertValue(name, value));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return a value that can be stored as a graph property for a "^"-prefixed property: resource meta objects are
+	 * reduced to their literal value or href, and arrays (e.g. of tags) to string arrays.
+	 */
+	private static Object propertyValue(Object value) {
+		if (value instanceof JSONObject) {
+			JSONObject o = (JSONObject) value;
+			return o.containsKey("$") ? o.get("$") : o.get("@href");
+		} else if (value instanceof JSONArray) {
+			JSONArray a = (JSONArray) value;
+			String[] values = new String[a.size()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = String.valueOf(propertyValue(a.get(i)));
+			}
+			return values;
+		}
+		return value;
+	}
+
+	/**
+	 * Ott ids are sometimes serialized as strings; we always store them as longs.
+	 */
+	private static Object convertValue(String name, Object value) {
+		if (value instanceof String && name.equals(OTVocabularyPredicate.OT_OTT_ID.propertyName())) {
+			return Long.valueOf((String) value);
+		}
+		return value;
+	}
+
+	/**
+	 * Return the kind of element that an object starting at the current position represents, if it is one we
+	 * materialize. Handles both "otu": [{...}] and "otuById": {"id": {...}} layouts, and similarly for nodes and
+	 * edges (1.2 edges are keyed by source and then by edge id).
+	 */
+	private ElementKind elementKindForCurrentPosition() {
+		String last = keyAtDistanceFromEnd(0);
+		String parent = keyAtDistanceFromEnd(1);
+		String grandparent = keyAtDistanceFromEnd(2);
+		if (last.equals("otu") || parent.equals("otuById")) {
+			return ElementKind.OTU;
+		} else if (last.equals("node") || parent.equals("nodeById")) {
+			return ElementKind.NODE;
+		} else if (last.equals("edge") || grandparent.equals("edgeBySourceId")) {
+			return ElementKind.EDGE;
+		} else if (isDirectlyInStudy() || isDirectlyInTree()) {
+			if (last.equals("meta")) {
+				return ElementKind.META;
+			} else if (last.startsWith("^")) {
+				return ElementKind.PROPERTY;
+			}
+		}
+		return null;
+	}
+
+	private boolean isTreePosition() {
+		return treeDepth < 0 && keys.size() > 1 && keys.getFirst().equals("nexml")
+				&& (keyAtDistanceFromEnd(0).equals("tree") || keyAtDistanceFromEnd(1).equals("treeById"));
+	}
+
+	private boolean isDirectlyInStudy() {
+		return treeDepth < 0 && keys.size() == 2 && keys.getFirst().equals("nexml");
+	}
+
+	private boolean isDirectlyInTree() {
+		return treeDepth >= 0 && keys.size() == treeDepth + 1;
+	}
+
+	private String lastKey() {
+		return keys.isEmpty() ? null : keys.getLast();
+	}
+
+	private String keyAtDistanceFromEnd(int distance) {
+		int i = keys.size() - 1 - distance;
+		return i >= 0 ? keys.get(i) : "";
+	}
+}
@@ -0,0 +1,131 @@
+package org.opentree.oti;
+
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * Computes content hashes for a study as its elements are passed in by a StreamingNexsonReader, without writing
+ * anything. This is the first of the two passes made by DatabaseManager.addOrReplaceStudyFromStream, which uses the
+ * hashes to skip unchanged studies and trees, as addOrReplaceStudy does with the hashes from NexsonContentHasher.
+ *
+ * Nodes and edges are hashed as they appear in the nexson, with a NexsonContentHasher.TreeDigest, which does not depend
+ * on their order. The hashes are therefore the same as the ones NexsonContentHasher computes for the same study, so a
+ * study can be indexed by either path without being rewritten. Only the otu table and the properties of the study and of
+ * the current tree are held in memory.
+ */
+class StreamingStudyHasher implements StreamingNexsonReader.Handler {
+
+	private String studyId;
+	private String studyHash;
+	private final Map<String, Object> studyProperties = new HashMap<String, Object>();
+	private final LinkedHashMap<String, String> treeHashes = new LinkedHashMap<String, String>();
+
+	// the hashes of the otus in the study, by otu id
+	private final Map<String, String> otuHashes = new HashMap<String, String>();
+
+	// the tree currently being read
+	private String treeId;
+	private Map<String, Object> treeProperties;
+	private NexsonContentHasher.TreeDigest treeElements;
+	private boolean treeHasNodes;
+
+	/**
+	 * Return the id of the study. Only valid once the study has been read.
+	 * @return
+	 */
+	String getStudyId() {
+		return studyId;
+	}
+
+	/**
+	 * Return the hash of the study, which covers its properties and the hashes of its trees. Only valid once the study
+	 * has been read.
+	 * @return
+	 */
+	String getStudyHash() {
+		return studyHash;
+	}
+
+	/**
+	 * Return the hashes of the trees of the study, by nexson tree id, in the order they appear in the study. Trees
+	 * without nodes are not included, since they are not written.
+	 * @return
+	 */
+	Map<String, String> getTreeHashes() {
+		return treeHashes;
+	}
+
+	// ===== handler methods
+
+	@Override
+	public void studyProperty(String name, Object value) {
+		if (value != null) {
+			studyProperties.put(name, value);
+		}
+	}
+
+	@Override
+	public void otu(String otuId, String label, Map<String, Object> properties) {
+		otuHashes.put(otuId, NexsonContentHasher.hashOTU(label, properties));
+	}
+
+	@Override
+	public void startTree(String treeId) {
+		this.treeId = treeId;
+		treeProperties = new HashMap<String, Object>();
+		treeElements = new NexsonContentHasher.TreeDigest();
+		treeHasNodes = false;
+	}
+
+	@Override
+	public void treeProperty(String name, Object value) {
+		if (name.equals("@id")) {
+			treeId = (String) value;
+		} else if (value != null) {
+			treeProperties.put(name, value);
+		}
+	}
+
+	@Override
+	public void node(String nodeId, String otuId, boolean isRoot, Map<String, Object> properties) {
+		treeHasNodes = true;
+		treeElements.addNode(nodeId, otuId == null ? null : otuHashes.get(otuId), isRoot, properties);
+	}
+
+	@Override
+	public void edge(String sourceId, String targetId, Double length) {
+		treeElements.addEdge(sourceId, targetId, length);
+	}
+
+	@Override
+	public void endTree() {
+		if (treeHasNodes) {
+			treeHashes.put(treeId, treeElements.getHash(treeId, StreamingNexsonReader.isDeprecated(treeProperties), treeProperties));
+		}
+		treeProperties = null;
+		treeElements = null;
+	}
+
+	@Override
+	public void endStudy() {
+		studyId = (String) studyProperties.get(OTVocabularyPredicate.OT_STUDY_ID.propertyName());
+		if (studyId == null) {
+			throw new IllegalArgumentException("The nexson does not contain a study id.");
+		}
+
+		MessageDigest digest = NexsonContentHasher.newDigest();
+		NexsonContentHasher.update(digest, studyId);
+		NexsonContentHasher.update(digest, StreamingNexsonReader.isDeprecated(studyProperties));
+		NexsonContentHasher.updateWithProperties(digest, studyProperties);
+		for (Entry<String, String> treeHash : treeHashes.entrySet()) {
+			NexsonContentHasher.update(digest, treeHash.getKey());
+			NexsonContentHasher.update(digest, treeHash.getValue());
+		}
+		studyHash = NexsonContentHasher.toHex(digest.digest());
+	}
+}
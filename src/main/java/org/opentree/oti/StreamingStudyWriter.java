@@ -0,0 +1,342 @@
+package org.opentree.oti;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.neo4j.graphdb.Node;
+import org.opentree.graphdb.GraphDatabaseAgent;
+import org.opentree.oti.constants.OTIRelType;
+import org.opentree.oti.indexproperties.OTINodeProperty;
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * Writes the trees of a study into the graph as their elements are passed in by a StreamingNexsonReader. Graph nodes for
+ * tree nodes are created (and indexed) as soon as they are read, so the only things held in memory are the OTU table for
+ * the study and some primitive bookkeeping for the tree currently being read: the graph node id for each nexson node id,
+ * the edges, and which nodes have OTUs. Nexson lists nodes and edges separately (and in no particular order), so the
+ * tree structure can only be connected once the whole tree has been read.
+ *
+ * This is the second pass of DatabaseManager.addOrReplaceStudyFromStream, which has already hashed the study. Trees
+ * whose hashes match those of the trees already in the graph are skipped. The others are written in the manager's chunk
+ * transactions (see DatabaseManager.commitChunkIfFull) without being attached to the study, and are marked as staged
+ * until the manager attaches them, along with the study properties collected here, in a single small transaction. The
+ * tree nodes are linked to the otu nodes of the study they will be attached to, which is either the existing study or,
+ * for a new study, a staged study metadata node created here.
+ */
+class StreamingStudyWriter extends OTIDatabase implements StreamingNexsonReader.Handler {
+
+	private final DatabaseManager manager;
+	private final IngestContext ctx;
+	private final String studyId;
+	private final Node studyMeta;
+	private final Map<String, String> treeHashes;
+	private final Set<String> unchangedTreeIds;
+
+	// the study properties, which are applied by the manager when the study is made live
+	private final Map<String, Object> studyProperties = new HashMap<String, Object>();
+
+	// the otu table for the study
+	private final Map<String, String> otuLabels = new HashMap<String, String>();
+	private final Map<String, Map<String, Object>> otuProperties = new HashMap<String, Map<String, Object>>();
+
+	// the roots of the trees we have written, by nexson tree id
+	private final LinkedHashMap<String, Long> writtenRootIds = new LinkedHashMap<String, Long>();
+	
+	// the TREE_INDEX_TAGs of all the trees we have started to write, which identify their nodes if they must be deleted
+	private final List<Long> treeIndexTags = new ArrayList<Long>();
+
+	// information about the tree currently being read
+	private String treeId;
+	private Map<String, Object> treeProperties;
+	private Map<String, Long> graphNodeIds;
+	private Map<String, String> parentIds;
+	private Map<String, Double> parentBranchLengths;
+	private Set<String> nodesWithChildren;
+	private Map<String, String> otuIdsForNodes;
+	private String rootNexsonId;
+	private String ingroupNexsonId;
+	private boolean treeIdKnown;
+	private boolean skipTree;
+
+	// the first graph node written for the tree, whose id is used as its TREE_INDEX_TAG
+	private Node firstTreeNode;
+
+	/**
+	 * @param gdb
+	 * @param manager
+	 * @param ctx
+	 * 		The context of the write, which must have a chunk transaction open
+	 * @param studyId
+	 * @param existingStudyMeta
+	 * 		The study metadata node of the existing version of the study, or null if it is a new study
+	 * @param treeHashes
+	 * 		The hashes of the trees of the study, by nexson tree id
+	 * @param unchangedTreeIds
+	 * 		The ids of the trees that are already in the graph with the same hash, which are skipped
+	 */
+	StreamingStudyWriter(GraphDatabaseAgent gdb, DatabaseManager manager, IngestContext ctx, String studyId,
+			Node existingStudyMeta, Map<String, String> treeHashes, Set<String> unchangedTreeIds) {
+		super(gdb);
+		this.manager = manager;
+		this.ctx = ctx;
+		this.studyId = studyId;
+		this.treeHashes = treeHashes;
+		this.unchangedTreeIds = unchangedTreeIds;
+
+		if (existingStudyMeta != null) {
+			studyMeta = existingStudyMeta;
+		} else {
+			studyMeta = graphDb.createNode();
+			studyMeta.setProperty(OTINodeProperty.IS_STUDY_META.propertyName(), true);
+			studyMeta.setProperty(OTINodeProperty.IS_STAGED.propertyName(), true);
+		}
+	}
+
+	/**
+	 * Return the study metadata node that the trees will be attached to.
+	 * @return
+	 */
+	Node getStudyMetaNode() {
+		return studyMeta;
+	}
+
+	/**
+	 * Return the properties of the study that were read.
+	 * @return
+	 */
+	Map<String, Object> getStudyProperties() {
+		return studyProperties;
+	}
+
+	/**
+	 * Return the ids of the roots of the trees that have been written, by nexson tree id. These have not been attached
+	 * to the study.
+	 * @return
+	 */
+	Map<String, Long> getWrittenRootIds() {
+		return writtenRootIds;
+	}
+
+	/**
+	 * Return the TREE_INDEX_TAGs of all the trees that have been written or started, including any tree that was only
+	 * partly written.
+	 * @return
+	 */
+	List<Long> getTreeIndexTags() {
+		return treeIndexTags;
+	}
+
+	// ===== handler methods
+
+	@Override
+	public void studyProperty(String name, Object value) {
+		if (value != null) {
+			studyProperties.put(name, value);
+		}
+	}
+
+	@Override
+	public void otu(String otuId, String label, Map<String, Object> properties) {
+		otuLabels.put(otuId, label);
+		otuProperties.put(otuId, properties);
+	}
+
+	@Override
+	public void startTree(String treeId) {
+		this.treeId = treeId;
+		treeProperties = new HashMap<String, Object>();
+		graphNodeIds = new HashMap<String, Long>();
+		parentIds = new HashMap<String, String>();
+		parentBranchLengths = new HashMap<String, Double>();
+		nodesWithChildren = new HashSet<String>();
+		otuIdsForNodes = new HashMap<String, String>();
+		rootNexsonId = null;
+		ingroupNexsonId = null;
+		firstTreeNode = null;
+
+		// in the list-based layouts the tree id is read along with the tree's properties, before its nodes
+		treeIdKnown = treeId != null;
+		skipTree = treeIdKnown && unchangedTreeIds.contains(treeId);
+		if (skipTree) {
+			return;
+		}
+
+		// the otu table precedes the trees, so the taxon nodes for all its ott ids can be resolved in one go. after the
+		// first tree these are mostly answered from the resolver's cache
+		Set<Long> ottIds = new HashSet<Long>();
+		for (Map<String, Object> properties : otuProperties.values()) {
+			Object ottId = properties.get(OTVocabularyPredicate.OT_OTT_ID.propertyName());
+			if (ottId != null) {
+				ottIds.add((Long) ottId);
+			}
+		}
+		manager.resolveTaxonNodesForTree(ctx, ottIds);
+	}
+
+	@Override
+	public void treeProperty(String name, Object value) {
+		if (name.equals("@id")) {
+			treeId = (String) value;
+			if (! treeIdKnown && graphNodeIds.isEmpty()) {
+				treeIdKnown = true;
+				skipTree = unchangedTreeIds.contains(treeId);
+			}
+		} else if (name.equals(OTVocabularyPredicate.OT_INGROUP_CLADE.propertyName())) {
+			ingroupNexsonId = (String) value;
+			treeProperties.put(name, value);
+		} else {
+			treeProperties.put(name, value);
+		}
+	}
+
+	@Override
+	public void node(String nodeId, String otuId, boolean isRoot, Map<String, Object> properties) {
+		if (skipTree) {
+			return;
+		}
+
+		Node node = graphDb.createNode();
+		if (firstTreeNode == null) {
+
+			// until the root is known, the first node marks the unattached tree
+			firstTreeNode = node;
+			node.setProperty(OTINodeProperty.TREE_INDEX_TAG.propertyName(), node.getId());
+			node.setProperty(OTINodeProperty.IS_STAGED.propertyName(), true);
+			treeIndexTags.add(node.getId());
+		}
+		node.setProperty(OTINodeProperty.NEXSON_ID.propertyName(), nodeId);
+		node.setProperty(OTINodeProperty.ROOT_NODE_ID.propertyName(), firstTreeNode.getId()); // until the root is known
+		DatabaseManager.setNodePropertiesFromMap(node, properties);
+
+		if (properties.containsKey(OTINodeProperty.IS_INGROUP_ROOT.propertyName())) {
+			ingroupNexsonId = nodeId;
+		}
+
+		if (otuId != null) {
+			otuIdsForNodes.put(nodeId, otuId);
+			if (otuProperties.containsKey(otuId)) {
+				Node otuNode = manager.getOTUNode(ctx, studyMeta, otuLabels.get(otuId), otuProperties.get(otuId));
+				otuNode.createRelationshipTo(node, OTIRelType.OTUOF);
+			}
+		}
+
+		ctx.indexer.addTreeNodeToIndexes(node, firstTreeNode.getId());
+
+		graphNodeIds.put(nodeId, node.getId());
+		if (isRoot) {
+			rootNexsonId = nodeId;
+		}
+		manager.commitChunkIfFull(ctx);
+	}
+
+	@Override
+	public void edge(String sourceId, String targetId, Double length) {
+		if (skipTree) {
+			return;
+		}
+		parentIds.put(targetId, sourceId);
+		nodesWithChildren.add(sourceId);
+		if (length != null) {
+			parentBranchLengths.put(targetId, length);
+		}
+	}
+
+	@Override
+	public void endTree() {
+
+		if (skipTree || graphNodeIds.isEmpty()) {
+			releaseTree();
+			return;
+		}
+
+		// if the root was not marked, it is the node that has no parent
+		if (rootNexsonId == null) {
+			for (String nodeId : graphNodeIds.keySet()) {
+				if (! parentIds.containsKey(nodeId)) {
+					rootNexsonId = nodeId;
+					break;
+				}
+			}
+		}
+		long rootId = graphNodeIds.get(rootNexsonId);
+
+		// the root now marks the unattached tree. the first node keeps marking it until all the nodes point to the root,
+		// so that the nodes of a tree whose write stops part way through always point to a staged node
+		Node root = graphDb.getNodeById(rootId);
+		root.setProperty(OTINodeProperty.IS_STAGED.propertyName(), true);
+		root.setProperty(OTINodeProperty.TREE_INDEX_TAG.propertyName(), firstTreeNode.getId());
+
+		// connect the tree structure, committing as we go since this touches every node of the tree
+		for (Long nodeId : graphNodeIds.values()) {
+			graphDb.getNodeById(nodeId).setProperty(OTINodeProperty.ROOT_NODE_ID.propertyName(), rootId);
+			manager.commitChunkIfFull(ctx);
+		}
+		for (Entry<String, String> e : parentIds.entrySet()) {
+			Node child = graphDb.getNodeById(graphNodeIds.get(e.getKey()));
+			child.createRelationshipTo(graphDb.getNodeById(graphNodeIds.get(e.getValue())), OTIRelType.CHILDOF);
+			if (parentBranchLengths.containsKey(e.getKey())) {
+				child.setProperty(OTINodeProperty.PARENT_BRANCH_LENGTH.propertyName(), parentBranchLengths.get(e.getKey()));
+			}
+			manager.commitChunkIfFull(ctx);
+		}
+
+		if (firstTreeNode.getId() != rootId) {
+			firstTreeNode.removeProperty(OTINodeProperty.IS_STAGED.propertyName());
+			firstTreeNode.removeProperty(OTINodeProperty.TREE_INDEX_TAG.propertyName());
+		}
+
+		root.setProperty(OTINodeProperty.IS_DEPRECATED.propertyName(), StreamingNexsonReader.isDeprecated(treeProperties));
+		root.setProperty(OTINodeProperty.IS_ROOT.propertyName(), true);
+		root.setProperty(OTINodeProperty.NEXSON_ID.propertyName(), treeId);
+		root.setProperty(OTVocabularyPredicate.OT_STUDY_ID.propertyName(), studyId);
+		root.setProperty(OTINodeProperty.TREE_ID.propertyName(), studyId + "_" + treeId);
+		root.setProperty(OTINodeProperty.CONTENT_HASH.propertyName(), treeHashes.get(treeId));
+		DatabaseManager.setNodePropertiesFromMap(root, treeProperties);
+
+		if (ingroupNexsonId != null && graphNodeIds.containsKey(ingroupNexsonId)) {
+			Node ingroupStart = graphDb.getNodeById(graphNodeIds.get(ingroupNexsonId));
+			ingroupStart.setProperty(OTINodeProperty.INGROUP_START_NODE_ID.propertyName(), true);
+			manager.designateIngroup(ingroupStart);
+		}
+
+		// collect the taxon information for the tips
+		manager.initializeTipTaxonSets(ctx);
+		for (Entry<String, String> e : otuIdsForNodes.entrySet()) {
+			if (! nodesWithChildren.contains(e.getKey()) && otuProperties.containsKey(e.getValue())) {
+				manager.recordTipTaxonInformation(ctx, otuProperties.get(e.getValue()), otuLabels.get(e.getValue()));
+			}
+		}
+		manager.assignTaxonArraysToNode(ctx, root);
+
+		writtenRootIds.put(treeId, rootId);
+		releaseTree();
+	}
+
+	@Override
+	public void endStudy() {
+		if (! studyId.equals(studyProperties.get(OTVocabularyPredicate.OT_STUDY_ID.propertyName()))) {
+			throw new IllegalStateException("The nexson changed while it was being read.");
+		}
+	}
+
+	// ===== private methods
+
+	/**
+	 * Release the per-tree information.
+	 */
+	private void releaseTree() {
+		treeProperties = null;
+		graphNodeIds = null;
+		parentIds = null;
+		parentBranchLengths = null;
+		nodesWithChildren = null;
+		otuIdsForNodes = null;
+		firstTreeNode = null;
+	}
+}
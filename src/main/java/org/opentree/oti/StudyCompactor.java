@@ -0,0 +1,189 @@
+package org.opentree.oti;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.log4j.Logger;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+/**
+ * Deletes tombstoned studies and trees (see DatabaseManager.tombstoneSource) in the background. Compaction runs on a
+ * single low priority daemon thread, which wakes up whenever compaction is requested, and also periodically so that
+ * tombstones left behind by a restart are eventually reclaimed. Each tombstone is deleted in bounded transactions, so
+ * the compactor never holds large amounts of transaction state or long-lived locks.
+ *
+ * A tombstone that cannot be deleted is logged and skipped for RETRY_FAILED_AFTER_MS, so that it does not stop the
+ * tombstones after it from being deleted. Whatever was deleted before the failure stays deleted, so a retry carries on
+ * from there.
+ *
+ * There is one compactor for each graph database, obtained with getCompactor.
+ */
+public class StudyCompactor {
+
+	/** How long the compactor waits between runs if no compaction is requested. */
+	public static final long DEFAULT_INTERVAL_MS = 5 * 60 * 1000;
+
+	/** The number of tombstones collected from the index in each pass. */
+	public static final int TOMBSTONES_PER_PASS = 16;
+
+	/** How long a tombstone that could not be deleted is skipped before it is tried again. */
+	public static final long RETRY_FAILED_AFTER_MS = 60 * 60 * 1000;
+
+	/** How long release waits for a pass that is running to finish. */
+	public static final long STOP_TIMEOUT_MS = 60 * 1000;
+
+	private static final Logger LOG = Logger.getLogger(StudyCompactor.class);
+
+	private static final Map<GraphDatabaseService, StudyCompactor> compactors = new HashMap<GraphDatabaseService, StudyCompactor>();
+
+	private final DatabaseManager manager;
+	private final Thread thread;
+
+	// tombstones may be left over from before a restart, so start with a run
+	private boolean requested = true;
+	private boolean stopped = false;
+	private long compactedCount = 0;
+
+	// the node ids of the tombstones that could not be deleted, with the times they failed. only used by the thread
+	private final Map<Long, Long> failedTombstones = new HashMap<Long, Long>();
+
+	// ===== constructors
+
+	private StudyCompactor(GraphDatabaseService graphDb) {
+		this.manager = new DatabaseManager(graphDb);
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				compactForever();
+			}
+		}, "oti-compactor");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Return the compactor for the given graph database, creating (and starting) it if necessary.
+	 * @param graphDb
+	 * @return
+	 */
+	public static StudyCompactor getCompactor(GraphDatabaseService graphDb) {
+		synchronized (compactors) {
+			StudyCompactor compactor = compactors.get(graphDb);
+			if (compactor == null) {
+				compactor = new StudyCompactor(graphDb);
+				compactors.put(graphDb, compactor);
+			}
+			return compactor;
+		}
+	}
+
+	/**
+	 * Remove the compactor for the given graph database, if there is one, and stop its thread once the pass it is
+	 * running (if any) has finished. Called when the db is shut down.
+	 * @param graphDb
+	 */
+	static void release(GraphDatabaseService graphDb) {
+		StudyCompactor compactor;
+		synchronized (compactors) {
+			compactor = compactors.remove(graphDb);
+		}
+		if (compactor != null) {
+			compactor.stop();
+		}
+	}
+
+	// ===== public methods
+
+	/**
+	 * Ask the compactor to delete all the current tombstones as soon as possible. Returns immediately.
+	 */
+	public synchronized void requestCompaction() {
+		requested = true;
+		notifyAll();
+	}
+
+	/**
+	 * Return the number of tombstoned studies and trees that have been deleted by this compactor.
+	 * @return
+	 */
+	public synchronized long getCompactedCount() {
+		return compactedCount;
+	}
+
+	// ===== private methods
+
+	/**
+	 * Stop the thread, and wait for it to finish. The thread is not interrupted, since interrupting a thread that is
+	 * writing closes the store's file channels.
+	 */
+	private void stop() {
+		synchronized (this) {
+			stopped = true;
+			notifyAll();
+		}
+		try {
+			thread.join(STOP_TIMEOUT_MS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Forget the tombstones that failed long enough ago to be retried, and return the rest.
+	 */
+	private Map<Long, Long> tombstonesToSkip() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Long> failedAt = failedTombstones.values().iterator(); failedAt.hasNext(); ) {
+			if (now - failedAt.next() >= RETRY_FAILED_AFTER_MS) {
+				failedAt.remove();
+			}
+		}
+		return failedTombstones;
+	}
+
+	private synchronized boolean isStopped() {
+		return stopped;
+	}
+
+	private void compactForever() {
+		while (true) {
+			synchronized (this) {
+				if (! requested && ! stopped) {
+					try {
+						wait(DEFAULT_INTERVAL_MS);
+					} catch (InterruptedException ex) {
+						return;
+					}
+				}
+				if (stopped) {
+					return;
+				}
+				requested = false;
+			}
+
+			try {
+				int compacted;
+				Map<Long, Throwable> failures = new HashMap<Long, Throwable>();
+				// failed tombstones are skipped on the next pass, so each pass makes progress until none are left
+				do {
+					failures.clear();
+					compacted = manager.compactTombstones(TOMBSTONES_PER_PASS, tombstonesToSkip().keySet(), failures);
+					synchronized (this) {
+						compactedCount += compacted;
+					}
+					for (Entry<Long, Throwable> failure : failures.entrySet()) {
+						LOG.warn("Could not delete the tombstoned node " + failure.getKey() + ". It will be retried in "
+								+ RETRY_FAILED_AFTER_MS / 60000 + " minutes.", failure.getValue());
+						failedTombstones.put(failure.getKey(), System.currentTimeMillis());
+					}
+				} while ((compacted > 0 || ! failures.isEmpty()) && ! isStopped());
+			} catch (Throwable ex) {
+				// the tombstones are still in the index, so they will be retried on the next run
+				LOG.warn("Could not delete tombstoned studies and trees.", ex);
+			}
+		}
+	}
+}
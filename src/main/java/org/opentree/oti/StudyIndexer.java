@@ -1,7 +1,14 @@
 package org.opentree.oti;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
 import org.opentree.graphdb.GraphDatabaseAgent;
-import org.opentree.graphdb.NodeIndexDescription;
 import org.opentree.oti.constants.OTIConstants;
 import org.opentree.oti.constants.OTIRelType;
 import org.opentree.oti.indexproperties.IndexedArrayProperties;
@@ -14,25 +21,70 @@ import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
 
+/**
+ * Maintains the index entries for study metadata nodes, tree roots and tree nodes.
+ * 
+ * Index entries are not written as soon as a node is indexed. They are collected in a buffer, grouped by index, node and
+ * key, and written when flush() is called, which must happen before the enclosing transaction is committed. All the
+ * values of a key (e.g. the higher taxa of a tree) are then written with a single index.add call, repeated values are
+ * written once, and the buffered entries of a node that is removed from an index before the flush are dropped rather
+ * than written and removed again. Entries that have not been flushed are not visible to index queries, so
+ * getTreeNodesForIndexTag flushes first. Instances are not safe for use from multiple threads.
+ */
 public class StudyIndexer extends OTIDatabase {
 
+	// entries waiting to be written: the values of each key of each node, grouped by index
+	private final Map<Index<Node>, Map<Node, Map<String, Set<Object>>>> pendingEntries =
+			new LinkedHashMap<Index<Node>, Map<Node, Map<String, Set<Object>>>>();
+	
+	// if false, entries are written as soon as they are added, one index.add call per value. see setBufferedWrites
+	private boolean bufferedWrites = true;
+	
+	// if set, the terms of the fulltext entries that are written are added to it
+	private FuzzyTermIndex fuzzyTerms = null;
+	
+	// statistics for benchmarking ingest
+	private long nodesIndexed = 0;
+	private long entriesWritten = 0;
+	private long indexAddCalls = 0;
+	private long repeatedEntriesSkipped = 0;
+	private long pendingEntriesDropped = 0;
+	private long indexingNanos = 0;
+
 	// property indexes
-	public final Index<Node> studyMetaNodesByPropertyExact = getNodeIndex(OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY_EXACT);
-	public final Index<Node> studyMetaNodesByPropertyFulltext = getNodeIndex(OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY_FULLTEXT);
-	public final Index<Node> treeRootNodesByPropertyExact = getNodeIndex(OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY_EXACT);
-	public final Index<Node> treeRootNodesByPropertyFulltext = getNodeIndex(OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY_FULLTEXT);
-	public final Index<Node> treeNodesByPropertyExact = getNodeIndex(OTINodeIndex.TREE_NODES_BY_PROPERTY_EXACT);
-	public final Index<Node> treeNodesByPropertyFulltext = getNodeIndex(OTINodeIndex.TREE_NODES_BY_PROPERTY_FULLTEXT);
-		
+	public final Index<Node> studyMetaNodesByProperty;
+	public final Index<Node> treeRootNodesByProperty;
+	public final Index<Node> treeNodesByProperty;
+	
 	// ===== constructors
 	
 	public StudyIndexer(GraphDatabaseAgent gdba) {
 		super(gdba);
+		studyMetaNodesByProperty = getNodeIndex(OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY);
+		treeRootNodesByProperty = getNodeIndex(OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY);
+		treeNodesByProperty = getNodeIndex(OTINodeIndex.TREE_NODES_BY_PROPERTY);
 	}
 	
 	public StudyIndexer(GraphDatabaseService gdbs) {
 		super(gdbs);
+		studyMetaNodesByProperty = getNodeIndex(OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY);
+		treeRootNodesByProperty = getNodeIndex(OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY);
+		treeNodesByProperty = getNodeIndex(OTINodeIndex.TREE_NODES_BY_PROPERTY);
+	}
+
+	/**
+	 * Create an indexer for the same db as another one, reusing its index handles instead of looking them up again. The
+	 * new indexer has its own buffer and statistics, so this is how a DatabaseManager creates the indexer for each write.
+	 * @param other
+	 */
+	StudyIndexer(StudyIndexer other) {
+		super(other.graphDb);
+		studyMetaNodesByProperty = other.studyMetaNodesByProperty;
+		treeRootNodesByProperty = other.treeRootNodesByProperty;
+		treeNodesByProperty = other.treeNodesByProperty;
+		bufferedWrites = other.bufferedWrites;
 	}
 
 	// ===== indexing source metadata nodes
@@ -46,25 +98,36 @@ public class StudyIndexer extends OTIDatabase {
 	 * @param property
 	 */
 	public void addStudyMetaNodeToIndexes(Node studyMetaNode) {
-		indexNodeByPrimitiveProperties(studyMetaNode, IndexedPrimitiveProperties.STUDIES_EXACT);
-		indexNodeByPrimitiveProperties(studyMetaNode, IndexedPrimitiveProperties.STUDIES_FULLTEXT);
-		indexNodeByArrayProperties(studyMetaNode, IndexedArrayProperties.STUDIES_EXACT);
-		indexNodeByArrayProperties(studyMetaNode, IndexedArrayProperties.STUDIES_FULLTEXT);
+		indexNode(studyMetaNode, OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY);
+	}
+
+	/**
+	 * Update the index entries for a source metadata node after some of its properties have changed. Only the entries for
+	 * the changed properties are replaced.
+	 * 
+	 * @param studyMetaNode
+	 * @param changedProperties
+	 * 		The names of the graph properties that have been changed (or removed)
+	 */
+	public void updateStudyMetaNodeIndexes(Node studyMetaNode, Set<String> changedProperties) {
+		reindexChangedProperties(studyMetaNode, OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY, changedProperties);
 	}
 
 	/**
 	 * Remove the indicated node from all source metadata node indexes.
 	 */
 	public void removeStudyMetaNodeFromIndexes(Node studyMetaNode) {
-		studyMetaNodesByPropertyExact.remove(studyMetaNode);
-		studyMetaNodesByPropertyFulltext.remove(studyMetaNode);
+		dropPendingEntries(studyMetaNodesByProperty, studyMetaNode, null);
+		studyMetaNodesByProperty.remove(studyMetaNode);
 	}
 		
 	// ===== indexing tree root nodes
 
 	/**
 	 * Install the indicated tree root node into the indexes. Uses graph traversals and node properties set during study
-	 * import, and thus should be called *after* the study has been added to the graph.
+	 * import, and thus should be called *after* the study has been added to the graph. The root is also indexed under
+	 * the id of its study metadata node (if it records one), which find_trees sorts by to page through the trees in
+	 * study order (see QueryRunner.searchForTrees).
 	 * 
 	 * @param treeRootNode
 	 */
@@ -79,10 +142,11 @@ public class StudyIndexer extends OTIDatabase {
 					.getEndNode().getProperty(OTVocabularyPredicate.OT_STUDY_ID.propertyName()));
 		*/
 		
-		indexNodeByPrimitiveProperties(treeRootNode, IndexedPrimitiveProperties.TREES_EXACT);
-		indexNodeByPrimitiveProperties(treeRootNode, IndexedPrimitiveProperties.TREES_FULLTEXT);
-		indexNodeByArrayProperties(treeRootNode, IndexedArrayProperties.TREES_EXACT);
-		indexNodeByArrayProperties(treeRootNode, IndexedArrayProperties.TREES_FULLTEXT);
+		indexNode(treeRootNode, OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY);
+		if (treeRootNode.hasProperty(OTINodeProperty.STUDY_META_NODE_ID.propertyName())) {
+			addToIndex(treeRootNodesByProperty, treeRootNode, OTINodeProperty.STUDY_META_NODE_ID.propertyName(),
+					treeRootNode.getProperty(OTINodeProperty.STUDY_META_NODE_ID.propertyName()));
+		}
 	}
 
 	/**
@@ -91,8 +155,8 @@ public class StudyIndexer extends OTIDatabase {
 	 * @param treeRootNode
 	 */
 	public void removeTreeRootNodeFromIndexes(Node treeRootNode) {
-		treeRootNodesByPropertyExact.remove(treeRootNode);
-		treeRootNodesByPropertyFulltext.remove(treeRootNode);
+		dropPendingEntries(treeRootNodesByProperty, treeRootNode, null);
+		treeRootNodesByProperty.remove(treeRootNode);
 	}
 	
 	// ===== indexing tree nodes
@@ -102,12 +166,26 @@ public class StudyIndexer extends OTIDatabase {
 	 * import, and thus should be called *after* the study has been added to the graph.
 	 * 
 	 * @param treeNode
+	 * @param treeIndexTag
+	 * 		The TREE_INDEX_TAG of the tree containing the node, which is added to the node's index entries so they can be
+	 * 		found when the tree is deleted
+	 */
+	public void addTreeNodeToIndexes(Node treeNode, long treeIndexTag) {
+		indexNode(treeNode, OTINodeIndex.TREE_NODES_BY_PROPERTY);
+		addToIndex(treeNodesByProperty, treeNode, OTINodeProperty.TREE_INDEX_TAG.propertyName(), treeIndexTag);
+	}
+	
+	/**
+	 * Return all the tree nodes whose index entries are tagged with the given TREE_INDEX_TAG, i.e. all the nodes of the
+	 * tree with that tag. Buffered entries are written first, so that they are found. The hits must be closed by the
+	 * caller.
+	 * 
+	 * @param treeIndexTag
+	 * @return
 	 */
-	public void addTreeNodeToIndexes(Node treeNode) {
-		indexNodeByPrimitiveProperties(treeNode, IndexedPrimitiveProperties.TREE_NODES_EXACT);
-		indexNodeByPrimitiveProperties(treeNode, IndexedPrimitiveProperties.TREE_NODES_FULLTEXT);
-		indexNodeByArrayProperties(treeNode, IndexedArrayProperties.TREE_NODES_EXACT);
-		indexNodeByArrayProperties(treeNode, IndexedArrayProperties.TREE_NODES_FULLTEXT);
+	public IndexHits<Node> getTreeNodesForIndexTag(long treeIndexTag) {
+		flush();
+		return treeNodesByProperty.get(OTINodeProperty.TREE_INDEX_TAG.propertyName(), treeIndexTag);
 	}
 	
 	/**
@@ -116,47 +194,307 @@ public class StudyIndexer extends OTIDatabase {
 	 * @param treeNode
 	 */
 	public void removeTreeNodeFromIndexes(Node treeNode) {
-		treeNodesByPropertyExact.remove(treeNode);
-		treeNodesByPropertyFulltext.remove(treeNode);
+		dropPendingEntries(treeNodesByProperty, treeNode, null);
+		treeNodesByProperty.remove(treeNode);
+	}
+	
+	/**
+	 * Install the indicated otu node into the tree node index, so that queries on otu properties find it once rather
+	 * than once for every tree node mapped to it. Otu nodes are shared by the trees of a study, so their entries are
+	 * not tagged with a tree.
+	 * 
+	 * @param otuNode
+	 */
+	public void addOTUNodeToIndexes(Node otuNode) {
+		indexNode(otuNode, OTINodeIndex.TREE_NODES_BY_PROPERTY);
+	}
+	
+	/**
+	 * Remove the indicated otu node from the tree node index.
+	 *
+	 * @param otuNode
+	 */
+	public void removeOTUNodeFromIndexes(Node otuNode) {
+		dropPendingEntries(treeNodesByProperty, otuNode, null);
+		treeNodesByProperty.remove(otuNode);
+	}
+	
+	/**
+	 * Add the terms of the fulltext entries written by this indexer to the given fuzzy term index, so that fuzzy
+	 * searches find them.
+	 * @param fuzzyTerms
+	 */
+	void setFuzzyTermIndex(FuzzyTermIndex fuzzyTerms) {
+		this.fuzzyTerms = fuzzyTerms;
+	}
+	
+	/**
+	 * Set whether index entries are buffered until flush() (the default), or written as soon as they are added with one
+	 * index.add call per value. Unbuffered writes are only useful for measuring what the buffering saves (see
+	 * BatchStudyIndexer.compareIndexWrites). Indexers created from this one with StudyIndexer(StudyIndexer) inherit the
+	 * setting. Any buffered entries are written first.
+	 * @param bufferedWrites
+	 */
+	void setBufferedWrites(boolean bufferedWrites) {
+		flush();
+		this.bufferedWrites = bufferedWrites;
+	}
+	
+	// ===== writing buffered entries
+	
+	/**
+	 * Write all the buffered index entries, with one index.add call for all the values of each key of each node. Must be
+	 * called within the transaction in which the nodes were indexed, before it is committed.
+	 */
+	public void flush() {
+		if (pendingEntries.isEmpty()) {
+			return;
+		}
+		long start = System.nanoTime();
+		for (Entry<Index<Node>, Map<Node, Map<String, Set<Object>>>> indexEntries : pendingEntries.entrySet()) {
+			Index<Node> index = indexEntries.getKey();
+			for (Entry<Node, Map<String, Set<Object>>> nodeEntries : indexEntries.getValue().entrySet()) {
+				for (Entry<String, Set<Object>> keyEntries : nodeEntries.getValue().entrySet()) {
+					writeEntries(index, nodeEntries.getKey(), keyEntries.getKey(), keyEntries.getValue());
+				}
+			}
+		}
+		pendingEntries.clear();
+		indexingNanos += System.nanoTime() - start;
+	}
+	
+	/**
+	 * Drop any buffered index entries without writing them. Call this when the transaction in which the nodes were
+	 * indexed is rolled back, since the nodes will no longer exist.
+	 */
+	public void discardPendingEntries() {
+		pendingEntries.clear();
+	}
+	
+	/**
+	 * Return the number of nodes indexed, index entries written, index.add calls made and related timings since this
+	 * indexer was created, including per-node averages, as a map suitable for conversion to a JSON object. With buffered
+	 * writes, the difference between the entries written and the index.add calls is the number of calls saved by
+	 * writing all the values of a key at once.
+	 * @return
+	 */
+	public synchronized HashMap<String, Object> getStatistics() {
+		HashMap<String, Object> stats = new HashMap<String, Object>();
+		stats.put("buffered_writes", bufferedWrites);
+		stats.put("nodes_indexed", nodesIndexed);
+		stats.put("index_entries_written", entriesWritten);
+		stats.put("index_add_calls", indexAddCalls);
+		stats.put("repeated_entries_skipped", repeatedEntriesSkipped);
+		stats.put("pending_entries_dropped", pendingEntriesDropped);
+		stats.put("indexing_ms", indexingNanos / 1000000);
+		if (nodesIndexed > 0) {
+			stats.put("index_entries_per_node", (double) entriesWritten / nodesIndexed);
+			stats.put("index_add_calls_per_node", (double) indexAddCalls / nodesIndexed);
+			stats.put("indexing_us_per_node", (double) indexingNanos / 1000 / nodesIndexed);
+		}
+		return stats;
+	}
+	
+	/**
+	 * Add the statistics collected by another indexer to those of this one, e.g. to total the statistics for the
+	 * indexers used by separate writes. This is the only method that may be called on this indexer from several threads
+	 * at once, along with getStatistics.
+	 * @param other
+	 */
+	public synchronized void addStatistics(StudyIndexer other) {
+		nodesIndexed += other.nodesIndexed;
+		entriesWritten += other.entriesWritten;
+		indexAddCalls += other.indexAddCalls;
+		repeatedEntriesSkipped += other.repeatedEntriesSkipped;
+		pendingEntriesDropped += other.pendingEntriesDropped;
+		indexingNanos += other.indexingNanos;
 	}
 	
 	// ===== generalized private methods used during indexing
 
 	/**
-	 * Index a node into the supplied index under each specified property and its value for the graph node.
-	 * @param node
-	 * @param index
+	 * Return the property index for the description.
+	 * @param description
+	 * @return
+	 */
+	private Index<Node> getPropertyIndex(OTINodeIndex description) {
+		switch (description) {
+		case STUDY_METADATA_NODES_BY_PROPERTY:
+			return studyMetaNodesByProperty;
+		case TREE_ROOT_NODES_BY_PROPERTY:
+			return treeRootNodesByProperty;
+		case TREE_NODES_BY_PROPERTY:
+			return treeNodesByProperty;
+		default:
+			throw new IllegalArgumentException(description + " is not a property index");
+		}
+	}
+	
+	/**
+	 * Add an index entry to the buffer, or write it now if writes are not buffered.
+	 */
+	private void addToIndex(Index<Node> index, Node node, String key, Object value) {
+		value = OTINodeIndex.indexValue(value);
+		if (! bufferedWrites) {
+			Set<Object> values = new LinkedHashSet<Object>(1);
+			values.add(value);
+			writeEntries(index, node, key, values);
+			return;
+		}
+		
+		Map<Node, Map<String, Set<Object>>> indexEntries = pendingEntries.get(index);
+		if (indexEntries == null) {
+			indexEntries = new LinkedHashMap<Node, Map<String, Set<Object>>>();
+			pendingEntries.put(index, indexEntries);
+		}
+		Map<String, Set<Object>> nodeEntries = indexEntries.get(node);
+		if (nodeEntries == null) {
+			nodeEntries = new LinkedHashMap<String, Set<Object>>();
+			indexEntries.put(node, nodeEntries);
+		}
+		Set<Object> values = nodeEntries.get(key);
+		if (values == null) {
+			values = new LinkedHashSet<Object>();
+			nodeEntries.put(key, values);
+		}
+		if (! values.add(value)) {
+			repeatedEntriesSkipped++;
+		}
+	}
+	
+	/**
+	 * Write the values of one key of a node with a single index.add call, adding their terms to the fuzzy term index if
+	 * there is one.
 	 */
-	private void indexNodeByPrimitiveProperties(Node node, IndexedPrimitiveProperties indexedProperties) {
-		for (OTPropertyPredicate property : indexedProperties.properties()) {
-			indexSingleProperty(getNodeIndex(indexedProperties.index()), node, property.propertyName());
+	private void writeEntries(Index<Node> index, Node node, String key, Set<Object> values) {
+		Object[] array = values.toArray();
+		index.add(node, key, array.length == 1 ? array[0] : array);
+		indexAddCalls++;
+		entriesWritten += array.length;
+		if (fuzzyTerms != null) {
+			for (Object value : array) {
+				if (value instanceof String) {
+					fuzzyTerms.addValue(key, (String) value);
+				}
+			}
 		}
 	}
 	
 	/**
-	 * Index a node into the supplied index under each specified property and all the values in the array stored for that property on
-	 * the graph node.
+	 * Drop the buffered entries of a node in an index, either for a single key or, if the key is null, for all keys. Called
+	 * before entries are removed from the index, so that buffered entries are not written after the removal.
+	 */
+	private void dropPendingEntries(Index<Node> index, Node node, String key) {
+		Map<Node, Map<String, Set<Object>>> indexEntries = pendingEntries.get(index);
+		if (indexEntries == null) {
+			return;
+		}
+		Map<String, Set<Object>> nodeEntries = indexEntries.get(node);
+		if (nodeEntries == null) {
+			return;
+		}
+		if (key == null) {
+			for (Set<Object> values : nodeEntries.values()) {
+				pendingEntriesDropped += values.size();
+			}
+			indexEntries.remove(node);
+		} else {
+			Set<Object> values = nodeEntries.remove(key);
+			if (values != null) {
+				pendingEntriesDropped += values.size();
+			}
+		}
+	}
+
+	/**
+	 * Index a node into the supplied index under each of the properties written to that index, including all the values
+	 * in the arrays stored for array properties. Each property is written once, whether it is listed for exact search,
+	 * fulltext search, or both.
 	 * @param node
-	 * @param index
+	 * @param description
 	 */
-	private void indexNodeByArrayProperties(Node node, IndexedArrayProperties indexedProperties) {
-		for (OTPropertyArray property : indexedProperties.properties()) {
-			
-			Index<Node> index = getNodeIndex(indexedProperties.index());
-			String graphArrayPropertyLabel = property.graphProperty.propertyName();
-			String indexPropertyLabel = property.typeProperty.propertyName();
-			Class<?> type = property.typeProperty.type();
-			
-			// TODO: need more complexity here for indexing various kinds of properties. booleans? datetime strings? floating point values?
-			
-			if (type.equals(String.class)) {
-				addStringArrayEntriesToIndex(node, index, graphArrayPropertyLabel, indexPropertyLabel);
+	private void indexNode(Node node, OTINodeIndex description) {
+		long start = System.nanoTime();
+		nodesIndexed++;
+		Index<Node> index = getPropertyIndex(description);
+		for (OTPropertyPredicate property : IndexedPrimitiveProperties.propertiesForIndex(description)) {
+			indexSingleProperty(index, node, property.propertyName());
+		}
+		for (OTPropertyArray property : IndexedArrayProperties.propertiesForIndex(description)) {
+			indexArrayProperty(index, node, property);
+		}
+		indexingNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Replace the index entries for the changed properties of a node. Entries are removed by index key, and several graph
+	 * properties may share a key (e.g. a primitive property and an array of values of the same type), so all the graph
+	 * properties that map to an affected key are re-added.
+	 * 
+	 * @param node
+	 * @param description
+	 * @param changedProperties
+	 */
+	private void reindexChangedProperties(Node node, OTINodeIndex description, Set<String> changedProperties) {
+
+		Set<OTPropertyPredicate> primitiveProperties = IndexedPrimitiveProperties.propertiesForIndex(description);
+		Set<OTPropertyArray> arrayProperties = IndexedArrayProperties.propertiesForIndex(description);
+
+		// find the index keys whose entries are affected
+		Set<String> affectedKeys = new HashSet<String>();
+		for (OTPropertyPredicate property : primitiveProperties) {
+			if (changedProperties.contains(property.propertyName())) {
+				affectedKeys.add(property.propertyName());
+			}
+		}
+		for (OTPropertyArray property : arrayProperties) {
+			if (changedProperties.contains(property.graphProperty.propertyName())) {
+				affectedKeys.add(property.typeProperty.propertyName());
+			}
+		}
+		if (affectedKeys.isEmpty()) {
+			return;
+		}
+
+		Index<Node> index = getPropertyIndex(description);
+		for (String key : affectedKeys) {
+			dropPendingEntries(index, node, key);
+			index.remove(node, key);
+		}
 
-			} else if (type.equals(Long.class)) {
-				addLongArrayEntriesToIndex(node, index, graphArrayPropertyLabel, indexPropertyLabel);
-				
+		for (OTPropertyPredicate property : primitiveProperties) {
+			if (affectedKeys.contains(property.propertyName())) {
+				indexSingleProperty(index, node, property.propertyName());
 			}
 		}
+		for (OTPropertyArray property : arrayProperties) {
+			if (affectedKeys.contains(property.typeProperty.propertyName())) {
+				indexArrayProperty(index, node, property);
+			}
+		}
+	}
+
+	/**
+	 * Index a node into the supplied index under each of the values in the array stored for the given property.
+	 * @param index
+	 * @param node
+	 * @param property
+	 */
+	private void indexArrayProperty(Index<Node> index, Node node, OTPropertyArray property) {
+
+		String graphArrayPropertyLabel = property.graphProperty.propertyName();
+		String indexPropertyLabel = property.typeProperty.propertyName();
+		Class<?> type = property.typeProperty.type();
+		
+		// TODO: need more complexity here for indexing various kinds of properties. booleans? datetime strings? floating point values?
+		
+		if (type.equals(String.class)) {
+			addStringArrayEntriesToIndex(node, index, graphArrayPropertyLabel, indexPropertyLabel);
+
+		} else if (type.equals(Long.class)) {
+			addLongArrayEntriesToIndex(node, index, graphArrayPropertyLabel, indexPropertyLabel);
+			
+		}
 	}
 
 	/**
@@ -167,7 +505,7 @@ public class StudyIndexer extends OTIDatabase {
 	 */
 	private void indexSingleProperty(Index<Node> index, Node node, String property) {
 		if (node.hasProperty(property)) {
-			index.add(node, property, node.getProperty(property));
+			addToIndex(index, node, property, node.getProperty(property));
 		}
 	}
 	
@@ -182,7 +520,7 @@ public class StudyIndexer extends OTIDatabase {
 		if (node.hasProperty(graphNodePropertyLabel)) {
 			String[] array = (String[]) node.getProperty(graphNodePropertyLabel);
 			for (int i = 0; i < array.length; i++) {
-				index.add(node, indexPropertyLabel, array[i]);
+				addToIndex(index, node, indexPropertyLabel, array[i]);
 			}
 		}
 	}
@@ -198,7 +536,7 @@ public class StudyIndexer extends OTIDatabase {
 		if (node.hasProperty(nodePropertyName)) {
 			long[] array = (long[]) node.getProperty(nodePropertyName);
 			for (int i = 0; i < array.length; i++) {
-				index.add(node, indexProperty, array[i]);
+				addToIndex(index, node, indexProperty, array[i]);
 			}
 		}
 	}
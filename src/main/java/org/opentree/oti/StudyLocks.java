@@ -0,0 +1,125 @@
+package org.opentree.oti;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+
+/**
+ * Striped locks keyed on ot:studyId. DatabaseManager holds the lock for a study while it writes or removes the study, so
+ * writes to the same study are serialized while different studies can be written in parallel. Study ids are hashed onto
+ * a fixed number of reentrant locks, so two different studies occasionally share a lock, which only costs some
+ * parallelism.
+ *
+ * A thread that needs the locks for several studies at once (e.g. to write them in a single transaction) must take them
+ * all up front with lockAll, which always takes the stripes in the same order, before it starts writing. Otherwise it
+ * could wait for a study lock while holding neo4j locks that the holder of the study lock is waiting for.
+ *
+ * There is one set of locks for each graph database, obtained with getLocks.
+ */
+public class StudyLocks {
+
+	/** The number of locks that study ids are hashed onto. */
+	public static final int DEFAULT_STRIPES = 64;
+
+	private static final Map<GraphDatabaseService, StudyLocks> studyLocks = new HashMap<GraphDatabaseService, StudyLocks>();
+
+	private final ReentrantLock[] stripes;
+
+	// ===== constructors
+
+	public StudyLocks(int stripeCount) {
+		if (stripeCount < 1) {
+			throw new IllegalArgumentException("At least one stripe is required.");
+		}
+		stripes = new ReentrantLock[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Return the study locks for the given graph database, creating them if necessary.
+	 * @param graphDb
+	 * @return
+	 */
+	public static StudyLocks getLocks(GraphDatabaseService graphDb) {
+		synchronized (studyLocks) {
+			StudyLocks locks = studyLocks.get(graphDb);
+			if (locks == null) {
+				locks = new StudyLocks(DEFAULT_STRIPES);
+				studyLocks.put(graphDb, locks);
+			}
+			return locks;
+		}
+	}
+
+	/**
+	 * Discard the study locks for the given graph database, if there is one. Called when the db is shut down.
+	 * @param graphDb
+	 */
+	static void release(GraphDatabaseService graphDb) {
+		synchronized (studyLocks) {
+			studyLocks.remove(graphDb);
+		}
+	}
+
+	// ===== public methods
+
+	/**
+	 * Wait for and take the lock for the study. Locks are reentrant, so a thread may take the lock for a study it has
+	 * already locked; each call must be matched by a call to unlock.
+	 * @param studyId
+	 */
+	public void lock(String studyId) {
+		stripes[stripeFor(studyId)].lock();
+	}
+
+	public void unlock(String studyId) {
+		stripes[stripeFor(studyId)].unlock();
+	}
+
+	/**
+	 * Take the locks for all the studies, in stripe order. Must be matched by a call to unlockAll with the same ids.
+	 * @param studyIds
+	 */
+	public void lockAll(Collection<String> studyIds) {
+		for (Integer stripe : stripesFor(studyIds)) {
+			stripes[stripe].lock();
+		}
+	}
+
+	public void unlockAll(Collection<String> studyIds) {
+		for (Integer stripe : stripesFor(studyIds).descendingSet()) {
+			stripes[stripe].unlock();
+		}
+	}
+
+	/**
+	 * Return true if the current thread holds the lock for the study.
+	 * @param studyId
+	 * @return
+	 */
+	public boolean isHeldByCurrentThread(String studyId) {
+		return stripes[stripeFor(studyId)].isHeldByCurrentThread();
+	}
+
+	// ===== private methods
+
+	private int stripeFor(String studyId) {
+		int h = studyId.hashCode();
+		h ^= (h >>> 16); // spread the high bits, since similar ids differ mostly in their last characters
+		return (h & 0x7fffffff) % stripes.length;
+	}
+
+	private TreeSet<Integer> stripesFor(Collection<String> studyIds) {
+		TreeSet<Integer> stripeIndexes = new TreeSet<Integer>();
+		for (String studyId : studyIds) {
+			stripeIndexes.add(stripeFor(studyId));
+		}
+		return stripeIndexes;
+	}
+}
@@ -0,0 +1,143 @@
+package org.opentree.oti;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * Resolves OTT ids to the ids of the taxomachine taxon nodes they identify. OTT ids are looked up in batches, with a
+ * single query against the taxonomy index for many ids, and the taxon node ids that are found are kept in a primitive
+ * map across studies, so that each OTT id is normally only looked up in the index once.
+ *
+ * OTT ids that are not found are not remembered, so that taxa added to the taxonomy later will still be found. Cached
+ * node ids may be stale if the taxonomy has been reloaded, so callers should check the nodes they get back and forget
+ * the ids that turn out to be wrong (see DatabaseManager.getTaxonNode).
+ *
+ * There is one resolver for each graph database service, obtained with getResolver.
+ */
+public class TaxonNodeResolver {
+
+	// stay below lucene's default limit of 1024 clauses in a boolean query
+	private static final int MAX_IDS_PER_QUERY = 1000;
+
+	private static final String OTT_ID = OTVocabularyPredicate.OT_OTT_ID.propertyName();
+
+	private static final Map<GraphDatabaseService, TaxonNodeResolver> resolvers = new HashMap<GraphDatabaseService, TaxonNodeResolver>();
+
+	private final Index<Node> taxonNodesByOTTId;
+	private final LongLongHashMap taxonNodeIdsByOTTId = new LongLongHashMap();
+
+	// ===== constructors
+
+	TaxonNodeResolver(Index<Node> taxonNodesByOTTId) {
+		this.taxonNodesByOTTId = taxonNodesByOTTId;
+	}
+
+	/**
+	 * Return the resolver for the given graph database, creating it with the given taxonomy index if necessary.
+	 * @param graphDb
+	 * @param taxonNodesByOTTId
+	 * @return
+	 */
+	public static TaxonNodeResolver getResolver(GraphDatabaseService graphDb, Index<Node> taxonNodesByOTTId) {
+		synchronized (resolvers) {
+			TaxonNodeResolver resolver = resolvers.get(graphDb);
+			if (resolver == null) {
+				resolver = new TaxonNodeResolver(taxonNodesByOTTId);
+				resolvers.put(graphDb, resolver);
+			}
+			return resolver;
+		}
+	}
+
+	/**
+	 * Discard the resolver for the given graph database, if there is one. Called when the db is shut down.
+	 * @param graphDb
+	 */
+	static void release(GraphDatabaseService graphDb) {
+		synchronized (resolvers) {
+			resolvers.remove(graphDb);
+		}
+	}
+
+	// ===== public methods
+
+	/**
+	 * Find the taxon nodes for all the given OTT ids. Ids that have been resolved before are answered from the cache,
+	 * and the rest are looked up in as few index queries as possible.
+	 *
+	 * @param ottIds
+	 * @return
+	 * 		A map from each of the OTT ids for which a taxon node was found to the id of that node. OTT ids that are not
+	 * 		in the taxonomy are not in the map.
+	 */
+	public synchronized LongLongHashMap resolve(Collection<Long> ottIds) {
+
+		LongLongHashMap resolved = new LongLongHashMap(ottIds.size());
+		List<Long> unresolved = new ArrayList<Long>();
+		for (Long ottId : ottIds) {
+			long taxonNodeId = taxonNodeIdsByOTTId.get(ottId);
+			if (taxonNodeId == LongLongHashMap.NO_VALUE) {
+				unresolved.add(ottId);
+			} else {
+				resolved.put(ottId, taxonNodeId);
+			}
+		}
+
+		for (int start = 0; start < unresolved.size(); start += MAX_IDS_PER_QUERY) {
+			BooleanQuery query = new BooleanQuery();
+			for (Long ottId : unresolved.subList(start, Math.min(start + MAX_IDS_PER_QUERY, unresolved.size()))) {
+				query.add(new TermQuery(new Term(OTT_ID, String.valueOf(ottId))), Occur.SHOULD);
+			}
+			IndexHits<Node> hits = taxonNodesByOTTId.query(query);
+			try {
+				for (Node taxonNode : hits) {
+					Object ottId = taxonNode.getProperty(OTT_ID, null);
+					if (ottId instanceof Long) {
+						taxonNodeIdsByOTTId.put((Long) ottId, taxonNode.getId());
+						resolved.put((Long) ottId, taxonNode.getId());
+					}
+				}
+			} finally {
+				hits.close();
+			}
+		}
+
+		return resolved;
+	}
+
+	/**
+	 * Remove the cached taxon node id for the OTT id, e.g. because the node no longer exists.
+	 * @param ottId
+	 */
+	public synchronized void forget(long ottId) {
+		taxonNodeIdsByOTTId.remove(ottId);
+	}
+
+	/**
+	 * Remove all the cached taxon node ids. Should be called if the taxonomy is reloaded.
+	 */
+	public synchronized void clear() {
+		taxonNodeIdsByOTTId.clear();
+	}
+
+	/**
+	 * Return the number of OTT ids whose taxon node ids are cached.
+	 * @return
+	 */
+	public synchronized int size() {
+		return taxonNodeIdsByOTTId.size();
+	}
+}
@@ -0,0 +1,541 @@
+package org.opentree.oti;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.PrefixQuery;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.opentree.properties.OTVocabularyPredicate;
+import org.opentree.taxonomy.constants.TaxonomyRelType;
+
+/**
+ * A compact copy of the taxomachine taxonomy, kept in a memory-mapped file, that is used to collect the higher taxa of
+ * the tips of trees during ingest without traversing the taxonomy graph. The file holds parallel arrays, sorted by OTT
+ * id, of the OTT id, taxon node id, parent index and name offset of every taxon, followed by the names themselves. The
+ * header records a checksum of the contents, which serves as the version of the taxonomy (see Snapshot.getVersion).
+ *
+ * Building the mirror scans the whole taxonomy, so it is never done by a writer. The mirror is loaded from its file, or
+ * built from the taxon nodes in the taxonomy index, on a background thread as soon as it is created, and writers use
+ * getCurrentSnapshot, which checks the mirror against a sample of the taxon nodes. If the taxonomy has been reloaded
+ * since the mirror was built, the mirror is rebuilt in the background, and until it is done writers collect higher
+ * taxa from the graph instead. Taxa that have been added to the taxonomy without replacing it are not in the mirror,
+ * so callers should also fall back to the graph for OTT ids that the mirror doesn't contain.
+ *
+ * There is one mirror for each graph database service, obtained with getMirror. Its file is kept in the graph db
+ * directory so that it can be reused when the server is restarted.
+ */
+public class TaxonomyMirror {
+
+	/** The name of the mirror file in the graph db directory. */
+	public static final String FILE_NAME = "oti-taxonomy-mirror.dat";
+
+	private static final int MAGIC = 0x4f544d32; // "OTM2". older mirrors have no version, and are rebuilt
+	private static final int HEADER_BYTES = 16;
+	private static final int VERSION_OFFSET = 12;
+	private static final int NO_PARENT = -1;
+
+	// the number of taxa that are checked against the graph by ensureCurrent
+	private static final int TAXA_TO_VERIFY = 16;
+
+	private static final String OTT_ID = OTVocabularyPredicate.OT_OTT_ID.propertyName();
+	private static final String TAXON_NAME = OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName();
+
+	private static final Logger LOG = Logger.getLogger(TaxonomyMirror.class);
+
+	private static final Map<GraphDatabaseService, TaxonomyMirror> mirrors = new HashMap<GraphDatabaseService, TaxonomyMirror>();
+
+	private final GraphDatabaseService graphDb;
+	private final Index<Node> taxonNodesByOTTId;
+	private File file;
+	private volatile Snapshot snapshot = null;
+
+	// set when the db is shut down, to stop a rebuild that is running
+	private volatile boolean released = false;
+
+	// the thread that is loading or rebuilding the mirror, if any. guarded by itself, not by the mirror, which is
+	// locked for the whole of a rebuild
+	private final Object refresherLock = new Object();
+	private Thread refresher = null;
+
+	// ===== constructors
+
+	/**
+	 * @param graphDb
+	 * @param file
+	 * 		Where to keep the mirror. If null, a temporary file is used, which is deleted when the jvm exits.
+	 * @param taxonNodesByOTTId
+	 */
+	private TaxonomyMirror(GraphDatabaseService graphDb, File file, Index<Node> taxonNodesByOTTId) {
+		this.graphDb = graphDb;
+		this.file = file;
+		this.taxonNodesByOTTId = taxonNodesByOTTId;
+	}
+
+	/**
+	 * Return the mirror for the given graph database, creating it with the given taxonomy index if necessary. A new
+	 * mirror starts loading in the background straight away.
+	 * @param graphDb
+	 * @param taxonNodesByOTTId
+	 * @return
+	 */
+	public static TaxonomyMirror getMirror(GraphDatabaseService graphDb, Index<Node> taxonNodesByOTTId) {
+		synchronized (mirrors) {
+			TaxonomyMirror mirror = mirrors.get(graphDb);
+			if (mirror == null) {
+				File file = graphDb instanceof GraphDatabaseAPI
+						? new File(((GraphDatabaseAPI) graphDb).getStoreDir(), FILE_NAME)
+						: null;
+				mirror = new TaxonomyMirror(graphDb, file, taxonNodesByOTTId);
+				mirrors.put(graphDb, mirror);
+				mirror.refreshInBackground();
+			}
+			return mirror;
+		}
+	}
+
+	/**
+	 * Discard the mirror for the given graph database, if there is one, and stop it being rebuilt. Its file is kept.
+	 * Called when the db is shut down.
+	 * @param graphDb
+	 */
+	static void release(GraphDatabaseService graphDb) {
+		TaxonomyMirror mirror;
+		synchronized (mirrors) {
+			mirror = mirrors.remove(graphDb);
+		}
+		if (mirror != null) {
+			mirror.released = true;
+		}
+	}
+
+	// ===== public methods
+
+	/**
+	 * Return the contents of the mirror if they match the taxonomy in the graph. Otherwise return null, and start loading
+	 * or rebuilding the mirror in the background if that isn't already underway. This never builds the mirror in the
+	 * calling thread, so it can be used inside write transactions.
+	 * @return
+	 */
+	public Snapshot getCurrentSnapshot() {
+		Snapshot s = snapshot;
+		if (s != null && isCurrent(s)) {
+			return s;
+		}
+		refreshInBackground();
+		return null;
+	}
+
+	/**
+	 * Start a thread that calls ensureCurrent, unless one is already running. If the mirror is rebuilt, the taxon node
+	 * ids cached by the TaxonNodeResolver for the db are cleared, since they may also be stale.
+	 */
+	public void refreshInBackground() {
+		synchronized (refresherLock) {
+			if (released || (refresher != null && refresher.isAlive())) {
+				return;
+			}
+			refresher = new Thread("oti-taxonomy-mirror") {
+				@Override
+				public void run() {
+					try {
+						if (ensureCurrent()) {
+							TaxonNodeResolver.getResolver(graphDb, taxonNodesByOTTId).clear();
+						}
+					} catch (Exception ex) {
+						// writers will keep collecting higher taxa from the graph, and try again with the next tree
+						if (! released) {
+							LOG.warn("Could not build the taxonomy mirror" + (file == null ? "" : " at " + file), ex);
+						}
+					}
+				}
+			};
+			refresher.setDaemon(true);
+			refresher.start();
+		}
+	}
+
+	/**
+	 * Make sure the mirror matches the taxonomy in the graph, loading it from its file or (re)building it if necessary.
+	 * @return
+	 * 		True if the mirror was built from the graph, which means that any taxon node ids cached elsewhere may also
+	 * 		be stale
+	 * @throws IOException
+	 */
+	public synchronized boolean ensureCurrent() throws IOException {
+		if (snapshot == null && file != null && file.exists()) {
+			snapshot = load(file);
+		}
+		if (snapshot != null && isCurrent(snapshot)) {
+			return false;
+		}
+		rebuild();
+		return true;
+	}
+
+	/**
+	 * Return the current contents of the mirror, or null if it has not been loaded. A snapshot is unaffected by later
+	 * rebuilds of the mirror, so it can be used for the whole of a tree.
+	 * @return
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Build the mirror from the taxon nodes in the graph, replacing the current contents.
+	 * @throws IOException
+	 */
+	public synchronized void rebuild() throws IOException {
+
+		// collect the taxa in the order the index returns them
+		int count = 0;
+		long[] ottIds = new long[1024];
+		long[] nodeIds = new long[1024];
+		long[] parentOTTIds = new long[1024];
+		int[] nameStarts = new int[1024];
+		NameBuffer names = new NameBuffer();
+
+		IndexHits<Node> hits = taxonNodesByOTTId.query(new PrefixQuery(new Term(OTT_ID, "")));
+		try {
+			for (Node taxon : hits) {
+				if (released) {
+					throw new IOException("The taxonomy mirror was released while it was being built.");
+				}
+				Object ottId = taxon.getProperty(OTT_ID, null);
+				if (! (ottId instanceof Long)) {
+					continue;
+				}
+				if (count == ottIds.length) {
+					int capacity = count * 2;
+					ottIds = Arrays.copyOf(ottIds, capacity);
+					nodeIds = Arrays.copyOf(nodeIds, capacity);
+					parentOTTIds = Arrays.copyOf(parentOTTIds, capacity);
+					nameStarts = Arrays.copyOf(nameStarts, capacity);
+				}
+				ottIds[count] = (Long) ottId;
+				nodeIds[count] = taxon.getId();
+				Relationship parentRel = taxon.getSingleRelationship(TaxonomyRelType.PREFTAXCHILDOF, Direction.OUTGOING);
+				parentOTTIds[count] = parentRel == null ? NO_PARENT : (Long) parentRel.getEndNode().getProperty(OTT_ID);
+				nameStarts[count] = names.size();
+				byte[] name = ((String) taxon.getProperty(TAXON_NAME, "")).getBytes("UTF-8");
+				names.write(name, 0, name.length);
+				count++;
+			}
+		} finally {
+			hits.close();
+		}
+
+		// sort by ott id so taxa can be found by binary search
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		sortByKey(order, new int[count], 0, count, ottIds);
+		long[] sortedOTTIds = new long[count];
+		for (int i = 0; i < count; i++) {
+			sortedOTTIds[i] = ottIds[order[i]];
+		}
+
+		// write to a temporary file and swap it in, so that a failed rebuild leaves the old mirror in place
+		if (file == null) {
+			file = File.createTempFile("oti-taxonomy-mirror", ".dat");
+			file.deleteOnExit();
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		CRC32 checksum = new CRC32();
+		DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16), checksum));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(count);
+			out.writeInt(names.size());
+			out.writeInt(0); // the version, which is filled in below. it also aligns the long arrays
+			for (int i = 0; i < count; i++) {
+				out.writeLong(sortedOTTIds[i]);
+			}
+			for (int i = 0; i < count; i++) {
+				out.writeLong(nodeIds[order[i]]);
+			}
+			for (int i = 0; i < count; i++) {
+				int parent = parentOTTIds[order[i]] == NO_PARENT ? NO_PARENT : Arrays.binarySearch(sortedOTTIds, parentOTTIds[order[i]]);
+				out.writeInt(parent < 0 ? NO_PARENT : parent);
+			}
+			int offset = 0;
+			for (int i = 0; i < count; i++) {
+				out.writeInt(offset);
+				offset += nameLength(order[i], count, nameStarts, names.size());
+			}
+			out.writeInt(offset);
+			for (int i = 0; i < count; i++) {
+				out.write(names.bytes(), nameStarts[order[i]], nameLength(order[i], count, nameStarts, names.size()));
+			}
+		} finally {
+			out.close();
+		}
+		RandomAccessFile versioned = new RandomAccessFile(tmp, "rw");
+		try {
+			versioned.seek(VERSION_OFFSET);
+			versioned.writeInt((int) checksum.getValue());
+		} finally {
+			versioned.close();
+		}
+		if (! tmp.renameTo(file)) {
+			file.delete();
+			if (! tmp.renameTo(file)) {
+				throw new IOException("Could not replace the taxonomy mirror at " + file);
+			}
+		}
+
+		snapshot = load(file);
+	}
+
+	// ===== private methods
+
+	/**
+	 * Check a sample of the taxa in the snapshot against the taxon nodes in the graph. Reloading the taxonomy creates new
+	 * nodes, so a mirror built from an older taxonomy will have the wrong node ids.
+	 */
+	private boolean isCurrent(Snapshot s) {
+		if (s.size() == 0) {
+			IndexHits<Node> hits = taxonNodesByOTTId.query(new PrefixQuery(new Term(OTT_ID, "")));
+			try {
+				return ! hits.hasNext();
+			} finally {
+				hits.close();
+			}
+		}
+		int samples = Math.min(TAXA_TO_VERIFY, s.size());
+		for (int k = 0; k < samples; k++) {
+			int i = samples == 1 ? 0 : (int) ((long) k * (s.size() - 1) / (samples - 1));
+			IndexHits<Node> hits = taxonNodesByOTTId.get(OTT_ID, s.getOTTId(i));
+			try {
+				if (! hits.hasNext()) {
+					return false;
+				}
+				Node taxon = hits.next();
+				if (taxon.getId() != s.getTaxonNodeId(i)) {
+					return false;
+				}
+				Relationship parentRel = taxon.getSingleRelationship(TaxonomyRelType.PREFTAXCHILDOF, Direction.OUTGOING);
+				int parent = s.getParent(i);
+				if (parentRel == null ? parent != NO_PARENT
+						: parent == NO_PARENT || parentRel.getEndNode().getId() != s.getTaxonNodeId(parent)) {
+					return false;
+				}
+			} finally {
+				hits.close();
+			}
+		}
+		return true;
+	}
+
+	private static int nameLength(int i, int count, int[] nameStarts, int namesSize) {
+		return (i + 1 < count ? nameStarts[i + 1] : namesSize) - nameStarts[i];
+	}
+
+	/**
+	 * Merge sort the indexes in order[from, to) by their keys.
+	 */
+	private static void sortByKey(int[] order, int[] tmp, int from, int to, long[] keys) {
+		if (to - from < 2) {
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		sortByKey(order, tmp, from, mid, keys);
+		sortByKey(order, tmp, mid, to, keys);
+		int a = from;
+		int b = mid;
+		for (int i = from; i < to; i++) {
+			if (b >= to || (a < mid && keys[order[a]] <= keys[order[b]])) {
+				tmp[i] = order[a++];
+			} else {
+				tmp[i] = order[b++];
+			}
+		}
+		System.arraycopy(tmp, from, order, from, to - from);
+	}
+
+	private static Snapshot load(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer contents = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (contents.capacity() < HEADER_BYTES || contents.getInt(0) != MAGIC) {
+				return null; // not a mirror file, so it will be rebuilt
+			}
+			long count = contents.getInt(4);
+			if (contents.capacity() != HEADER_BYTES + count * 20 + (count + 1) * 4 + contents.getInt(8)) {
+				return null; // incomplete
+			}
+			return new Snapshot(contents);
+		} finally {
+			raf.close(); // the mapping remains valid after the file is closed
+		}
+	}
+
+	/**
+	 * Exposes the internal buffer of a ByteArrayOutputStream, to avoid copying all the names when the mirror is written.
+	 */
+	private static class NameBuffer extends ByteArrayOutputStream {
+		byte[] bytes() {
+			return buf;
+		}
+	}
+
+	/**
+	 * The contents of the mirror at one point in time. Taxa are identified by their index in the mirror.
+	 */
+	public static final class Snapshot {
+
+		private final int count;
+		private final int version;
+		private final LongBuffer ottIds;
+		private final LongBuffer taxonNodeIds;
+		private final IntBuffer parents;
+		private final IntBuffer nameOffsets;
+		private final ByteBuffer names;
+
+		private Snapshot(ByteBuffer contents) {
+			count = contents.getInt(4);
+			int namesLength = contents.getInt(8);
+			version = contents.getInt(VERSION_OFFSET);
+			int position = HEADER_BYTES;
+			ottIds = slice(contents, position, count * 8).asLongBuffer();
+			position += count * 8;
+			taxonNodeIds = slice(contents, position, count * 8).asLongBuffer();
+			position += count * 8;
+			parents = slice(contents, position, count * 4).asIntBuffer();
+			position += count * 4;
+			nameOffsets = slice(contents, position, (count + 1) * 4).asIntBuffer();
+			position += (count + 1) * 4;
+			names = slice(contents, position, namesLength);
+		}
+
+		/**
+		 * Return the number of taxa in the mirror.
+		 * @return
+		 */
+		public int size() {
+			return count;
+		}
+
+		/**
+		 * Return the version of the taxonomy in the mirror: a checksum of its contents, which changes whenever a
+		 * rebuild finds different taxa, node ids, parents or names.
+		 * @return
+		 */
+		public String getVersion() {
+			return Integer.toHexString(version);
+		}
+
+		/**
+		 * Return the index of the taxon with the OTT id, or -1 if it is not in the mirror.
+		 * @param ottId
+		 * @return
+		 */
+		public int indexOf(long ottId) {
+			int low = 0;
+			int high = count - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				long midId = ottIds.get(mid);
+				if (midId < ottId) {
+					low = mid + 1;
+				} else if (midId > ottId) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -1;
+		}
+
+		public long getOTTId(int i) {
+			return ottIds.get(i);
+		}
+
+		public long getTaxonNodeId(int i) {
+			return taxonNodeIds.get(i);
+		}
+
+		/**
+		 * Return the index of the parent of the taxon, or -1 for the root of the taxonomy.
+		 * @param i
+		 * @return
+		 */
+		public int getParent(int i) {
+			return parents.get(i);
+		}
+
+		public String getName(int i) {
+			int start = nameOffsets.get(i);
+			byte[] name = new byte[nameOffsets.get(i + 1) - start];
+			for (int j = 0; j < name.length; j++) {
+				name[j] = names.get(start + j);
+			}
+			try {
+				return new String(name, "UTF-8");
+			} catch (IOException ex) {
+				throw new IllegalStateException(ex); // utf-8 is always supported
+			}
+		}
+
+		/**
+		 * Record the OTT ids and names of the taxon with the given OTT id and all the taxa that contain it. Taxa whose
+		 * indexes are already set in `visited` are assumed to have been recorded along with their ancestors, so the walk
+		 * stops at the first one, and tips that share ancestors in the same tree only walk the part of the taxonomy that
+		 * hasn't been seen yet.
+		 *
+		 * @param ottId
+		 * @param visited
+		 * 		The indexes of the taxa that have been recorded, which is updated
+		 * @param ancestorOTTIds
+		 * @param ancestorNames
+		 * @return
+		 * 		False if the OTT id is not in the mirror, in which case nothing is recorded
+		 */
+		public boolean collectAncestors(long ottId, BitSet visited, Set<Long> ancestorOTTIds, Set<String> ancestorNames) {
+			int i = indexOf(ottId);
+			if (i < 0) {
+				return false;
+			}
+			while (i != NO_PARENT && ! visited.get(i)) {
+				visited.set(i);
+				ancestorOTTIds.add(getOTTId(i));
+				ancestorNames.add(getName(i));
+				i = getParent(i);
+			}
+			return true;
+		}
+
+		private static ByteBuffer slice(ByteBuffer contents, int position, int length) {
+			ByteBuffer duplicate = contents.duplicate();
+			duplicate.position(position);
+			duplicate.limit(position + length);
+			return duplicate.slice();
+		}
+	}
+}
@@ -21,6 +21,9 @@ public enum OTIGraphProperty implements OTPropertyPredicate {
 	
 	/** Set to true while the taxonomy is loading so that it can be reported to the OTU web pages */
 	TAXONOMY_IS_LOADING ("taxonomy_is_loading", boolean.class),
+	
+	/** The phylesystem commit that was most recently synchronized into the index from a local phylesystem clone */
+	LAST_INDEXED_PHYLESYSTEM_COMMIT ("last_indexed_phylesystem_commit", String.class),
 
 	;
 	
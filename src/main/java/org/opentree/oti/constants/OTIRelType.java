@@ -15,9 +15,20 @@ public enum OTIRelType implements RelationshipType {
 	METADATAFOR,
 	
 	/**
-	 * Connects taxon nodes (imported from the OTT taxonomy by taxomachine) to tree nodes to which they have been assigned.
+	 * Connects taxon nodes (imported from the OTT taxonomy by taxomachine) to the otu nodes to which they have been
+	 * assigned. In databases written by older versions of OTI, taxon nodes are connected to the tree nodes instead.
 	 */
 	EXEMPLAROF,
 	
+	/**
+	 * Connects study metadata nodes to the otu nodes of the study.
+	 */
+	HASOTU,
+	
+	/**
+	 * Connects otu nodes to the tree nodes that are mapped to them.
+	 */
+	OTUOF,
+	
 	;
 }
@@ -1,6 +1,9 @@
 package org.opentree.oti.indexproperties;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import org.opentree.graphdb.NodeIndexDescription;
@@ -9,22 +12,23 @@ import org.opentree.properties.OTPropertyPredicate;
 import org.opentree.properties.OTVocabularyPredicate;
 
 /**
- * An enum listing arrays of values to be indexed under specific properties for each type of search target.
+ * An enum listing arrays of values to be indexed under specific properties for each type of search target. As with
+ * IndexedPrimitiveProperties, the exact and fulltext lists for a search target share one index.
  */
 public enum IndexedArrayProperties {
 
 	STUDIES_EXACT (
-			OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY_EXACT,
+			OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY,
 			new OTPropertyArray[] {			
 	}),
 
 	STUDIES_FULLTEXT (
-			OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY_FULLTEXT,
+			OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY,
 			new OTPropertyArray[] {
 	}),
 			
 	TREES_EXACT (
-			OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY_EXACT,
+			OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY,
 			new OTPropertyArray[] {
 					OTPropertyArray.OT_ORIGINAL_LABEL,
 					OTPropertyArray.OT_OTT_ID,
@@ -35,7 +39,7 @@ public enum IndexedArrayProperties {
 	}),
 	
 	TREES_FULLTEXT (
-			OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY_FULLTEXT,
+			OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY,
 			new OTPropertyArray[] {
 					OTPropertyArray.OT_ORIGINAL_LABEL,
 		    		OTPropertyArray.OT_OTT_TAXON_NAME,
@@ -43,17 +47,30 @@ public enum IndexedArrayProperties {
 	}),
     
 	TREE_NODES_EXACT (
-			OTINodeIndex.TREE_NODES_BY_PROPERTY_EXACT,
+			OTINodeIndex.TREE_NODES_BY_PROPERTY,
 			new OTPropertyArray[] {
 	}),
 
 	TREE_NODES_FULLTEXT (
-			OTINodeIndex.TREE_NODES_BY_PROPERTY_FULLTEXT,
+			OTINodeIndex.TREE_NODES_BY_PROPERTY,
 			new OTPropertyArray[] {
 	}),
 
 	;
 	
+	// the union of the exact and fulltext lists for each index, computed once
+	private static final Map<NodeIndexDescription, Set<OTPropertyArray>> propertiesByIndex = new HashMap<NodeIndexDescription, Set<OTPropertyArray>>();
+	static {
+		for (IndexedArrayProperties indexed : values()) {
+			Set<OTPropertyArray> properties = propertiesByIndex.get(indexed.index);
+			if (properties == null) {
+				properties = new HashSet<OTPropertyArray>();
+				propertiesByIndex.put(indexed.index, properties);
+			}
+			properties.addAll(indexed.properties);
+		}
+	}
+
 	private final NodeIndexDescription index;
 	private final HashSet<OTPropertyArray> properties;
 
@@ -72,5 +89,15 @@ public enum IndexedArrayProperties {
 	public NodeIndexDescription index() {
 		return index;
 	}
+
+	/**
+	 * Return all the property arrays that are written to the given index, whether they are listed for exact or fulltext search.
+	 * @param index
+	 * @return
+	 */
+	public static Set<OTPropertyArray> propertiesForIndex(NodeIndexDescription index) {
+		Set<OTPropertyArray> properties = propertiesByIndex.get(index);
+		return properties == null ? Collections.<OTPropertyArray>emptySet() : properties;
+	}
 	
 }
@@ -1,6 +1,9 @@
 package org.opentree.oti.indexproperties;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import org.opentree.graphdb.NodeIndexDescription;
@@ -9,12 +12,14 @@ import org.opentree.properties.OTPropertyPredicate;
 import org.opentree.properties.OTVocabularyPredicate;
 
 /**
- * An enum listing properties to be indexed exactly for each type of search target.
+ * An enum listing properties to be indexed for each type of search target. The exact and fulltext lists for a search
+ * target share one index, in which each property is written once. The exact lists determine which properties can be
+ * matched exactly and the fulltext lists determine which ones are tokenized for fulltext search (see OTIIndexAnalyzer).
  */
 public enum IndexedPrimitiveProperties {
 
     STUDIES_EXACT (
-            OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY_EXACT,
+            OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY,
             new OTPropertyPredicate[] {
                     OTVocabularyPredicate.OT_AUTHOR_CONTRIBUTED,
                     OTVocabularyPredicate.OT_COMMENT,
@@ -38,7 +43,7 @@ public enum IndexedPrimitiveProperties {
     }),
     
     STUDIES_FULLTEXT (
-            OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY_FULLTEXT,
+            OTINodeIndex.STUDY_METADATA_NODES_BY_PROPERTY,
             new OTPropertyPredicate[] {
                     OTVocabularyPredicate.OT_COMMENT,
                     OTVocabularyPredicate.OT_CURATOR_NAME,
@@ -51,7 +56,7 @@ public enum IndexedPrimitiveProperties {
     }),
     
     TREES_EXACT (
-            OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY_EXACT,
+            OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY,
             new OTPropertyPredicate[] {
                     OTVocabularyPredicate.OT_BRANCH_LENGTH_DESCRIPTION,
                     OTVocabularyPredicate.OT_BRANCH_LENGTH_TIME_UNITS,
@@ -76,7 +81,7 @@ public enum IndexedPrimitiveProperties {
     }),
     
     TREES_FULLTEXT (
-            OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY_FULLTEXT,
+            OTINodeIndex.TREE_ROOT_NODES_BY_PROPERTY,
             new OTPropertyPredicate[] {
                     OTVocabularyPredicate.OT_BRANCH_LENGTH_DESCRIPTION,
                     OTVocabularyPredicate.OT_BRANCH_LENGTH_TIME_UNITS,
@@ -91,7 +96,7 @@ public enum IndexedPrimitiveProperties {
     }),
     
     TREE_NODES_EXACT (
-            OTINodeIndex.TREE_NODES_BY_PROPERTY_EXACT,
+            OTINodeIndex.TREE_NODES_BY_PROPERTY,
             new OTPropertyPredicate[] {
                     OTVocabularyPredicate.OT_AGE,
                     OTVocabularyPredicate.OT_AGE_MIN,
@@ -100,26 +105,39 @@ public enum IndexedPrimitiveProperties {
                     OTVocabularyPredicate.OT_COMMENT,
                     OTVocabularyPredicate.OT_IS_INGROUP,
                     OTVocabularyPredicate.OT_IS_LEAF,
-                    OTVocabularyPredicate.OT_ORIGINAL_LABEL, // otu property, might need to implement otus separately from nodes
-                    OTVocabularyPredicate.OT_OTT_ID, // otu property, might need to implement otus separately from nodes
-                    OTVocabularyPredicate.OT_OTT_TAXON_NAME, // otu property, might need to implement otus separately from nodes
+                    OTVocabularyPredicate.OT_ORIGINAL_LABEL, // otu property, indexed on the shared otu nodes
+                    OTVocabularyPredicate.OT_OTT_ID, // otu property, indexed on the shared otu nodes
+                    OTVocabularyPredicate.OT_OTT_TAXON_NAME, // otu property, indexed on the shared otu nodes
                     OTVocabularyPredicate.OT_PARENT,
                     OTVocabularyPredicate.OT_TAG,
-                    OTVocabularyPredicate.OT_TREEBASE_OTU_ID, // otu property, might need to implement otus separately from nodes
+                    OTVocabularyPredicate.OT_TREEBASE_OTU_ID, // otu property, indexed on the shared otu nodes
     }),
     
     TREE_NODES_FULLTEXT (
-            OTINodeIndex.TREE_NODES_BY_PROPERTY_FULLTEXT,
+            OTINodeIndex.TREE_NODES_BY_PROPERTY,
             new OTPropertyPredicate[] {
                     OTVocabularyPredicate.OT_NODE_LABEL,
                     OTVocabularyPredicate.OT_COMMENT,
-                    OTVocabularyPredicate.OT_ORIGINAL_LABEL, // otu property, might need to implement otus separately from nodes
-                    OTVocabularyPredicate.OT_OTT_TAXON_NAME, // otu property, might need to implement otus separately from nodes
+                    OTVocabularyPredicate.OT_ORIGINAL_LABEL, // otu property, indexed on the shared otu nodes
+                    OTVocabularyPredicate.OT_OTT_TAXON_NAME, // otu property, indexed on the shared otu nodes
                     OTVocabularyPredicate.OT_TAG,
     }),
 
     ;
     
+    // the union of the exact and fulltext lists for each index, computed once
+    private static final Map<NodeIndexDescription, Set<OTPropertyPredicate>> propertiesByIndex = new HashMap<NodeIndexDescription, Set<OTPropertyPredicate>>();
+    static {
+        for (IndexedPrimitiveProperties indexed : values()) {
+            Set<OTPropertyPredicate> properties = propertiesByIndex.get(indexed.index);
+            if (properties == null) {
+                properties = new HashSet<OTPropertyPredicate>();
+                propertiesByIndex.put(indexed.index, properties);
+            }
+            properties.addAll(indexed.properties);
+        }
+    }
+
     private final NodeIndexDescription index;
     private final HashSet<OTPropertyPredicate> properties;
 
@@ -138,5 +156,15 @@ public enum IndexedPrimitiveProperties {
     public NodeIndexDescription index() {
         return index;
     }
+
+    /**
+     * Return all the properties that are written to the given index, whether they are listed for exact or fulltext search.
+     * @param index
+     * @return
+     */
+    public static Set<OTPropertyPredicate> propertiesForIndex(NodeIndexDescription index) {
+        Set<OTPropertyPredicate> properties = propertiesByIndex.get(index);
+        return properties == null ? Collections.<OTPropertyPredicate>emptySet() : properties;
+    }
     
 }
@@ -19,6 +19,19 @@ public enum OTINodeProperty implements OTPropertyPredicate {
 	 */
 	IS_STUDY_META ("is_study_meta", boolean.class),
 	
+	/**
+	 * A boolean set on the source metadata node of a study that is still being written in chunks. Staged studies are
+	 * ignored by queries until they are made live. Should not be present on live studies.
+	 */
+	IS_STAGED ("is_staged", boolean.class),
+	
+	/**
+	 * A boolean set on the source metadata node of a study that has been replaced by a newer version or removed, and is
+	 * waiting to be deleted. Also set on the roots of trees that have been removed from their studies and are waiting to
+	 * be deleted. Retired studies and trees are ignored by queries.
+	 */
+	IS_RETIRED ("is_retired", boolean.class),
+	
 	// ===== source meta and tree root nodes
 
 	/**
@@ -38,8 +51,37 @@ public enum OTINodeProperty implements OTPropertyPredicate {
 	 */
 	IS_DEPRECATED ("is_deprecated", boolean.class),
 	
+	/**
+	 * A SHA-1 hash of the nexson content that was imported for this study or tree. Used to avoid rewriting studies and
+	 * trees that have not changed when they are re-indexed. Otu nodes also have one, which identifies them within their
+	 * study.
+	 */
+	CONTENT_HASH ("content_hash", String.class),
+	
 	// ===== tree root nodes
 
+	/**
+	 * A number that is stored with the index entries for every node in the tree, so that all of them can be found and
+	 * removed when the tree is deleted. Also used as the key for those entries in the tree node index. Trees that were
+	 * indexed before this property was introduced do not have it.
+	 */
+	TREE_INDEX_TAG ("tree_index_tag", Long.class),
+
+	/**
+	 * The node id of the study metadata node for the study this tree belongs to. Set when the tree is attached to its
+	 * study, so that queries can find the study for a tree without following relationships. Trees that were indexed
+	 * before this property was introduced do not have it.
+	 */
+	STUDY_META_NODE_ID ("study_meta_node_id", Long.class),
+
+	/**
+	 * The version of the taxonomy mirror (see TaxonomyMirror.Snapshot.getVersion) that the higher taxa recorded for this
+	 * tree were collected from. Not set if the mirror was not up to date when the tree was written, or if the tree was
+	 * written by the BulkLoader or an older version of OTI. A tree whose content is unchanged is rewritten when it is
+	 * re-indexed only if the current version is known and differs from this one.
+	 */
+	TAXONOMY_VERSION ("taxonomy_version", String.class),
+
 	/**
 	 * A primitive string array containing all the original tip labels applied to tip children of a given tree node.
 	 * This is stored as a property of the root of each imported tree.
@@ -92,6 +134,13 @@ public enum OTINodeProperty implements OTPropertyPredicate {
 	 */
 	INGROUP_START_NODE_ID ("ingroup_node_id", boolean.class), // TODO: switch this to an OT namespace property if we can
 	
+	// ===== otu nodes
+
+	/**
+	 * A boolean to identify otu nodes, which hold the otu properties shared by the tree nodes mapped to them.
+	 */
+	IS_OTU ("is_otu", boolean.class),
+	
 	// ===== all tree nodes
 
 	/**
@@ -99,6 +148,13 @@ public enum OTINodeProperty implements OTPropertyPredicate {
 	 */
 	NEXSON_ID ("nexson_id", String.class),
 	
+	/**
+	 * The node id of the root of the tree containing this node (including the root itself), so that queries can find the
+	 * tree for a hit without walking up to the root. Trees that were indexed before this property was introduced do not
+	 * have it.
+	 */
+	ROOT_NODE_ID ("root_node_id", Long.class),
+	
 	/**
 	 * The branch length of the parent branch of this node.
 	 */
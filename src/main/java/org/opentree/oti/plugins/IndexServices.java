@@ -34,8 +34,11 @@ import org.opentree.graphdb.DatabaseUtils;
 import org.opentree.nexson.io.NexsonReader;
 import org.opentree.nexson.io.NexsonSource;
 import org.opentree.nexson.io.NexsonTree;
+import org.opentree.oti.BatchStudyIndexer;
 import org.opentree.oti.QueryRunner;
+import org.opentree.oti.ServingStore;
 import org.opentree.oti.DatabaseManager;
+import org.opentree.oti.IndexingReport;
 import org.opentree.oti.indexproperties.IndexedPrimitiveProperties;
 import org.opentree.properties.OTVocabularyPredicate;
 
@@ -64,6 +67,7 @@ public class IndexServices extends ServerPlugin {
 	@Deprecated
 	public Representation indexSingleNexson(@Source GraphDatabaseService graphDb,
 			@Description("remote nexson url") @Parameter(name = "url", optional = false) String url) throws MalformedURLException, IOException {
+		graphDb = ServingStore.resolve(graphDb);
 
 		String[] urls = new String[] {url};
 		indexNexsons(graphDb, urls);
@@ -86,32 +90,14 @@ public class IndexServices extends ServerPlugin {
 	@Deprecated
 	public Representation indexNexsons(@Source GraphDatabaseService graphDb,
 			@Description("remote nexson urls") @Parameter(name = "urls", optional = false) String[] urls) throws MalformedURLException, IOException {
+		graphDb = ServingStore.resolve(graphDb);
 
 		if (urls.length < 1) {
 			throw new IllegalArgumentException("You must provide at least one url for a nexson document to be indexed.");
 		}
 		
-		ArrayList<String> indexedIDs = new ArrayList<String>(urls.length);
-		HashMap<String, String> idsWithStacktraces = new HashMap<String, String>();
-		HashMap<String, String> idsWithErrors = new HashMap<String, String>();
-		HashMap<String, String> typesWithErrors = new HashMap<String, String>();
-		DatabaseManager manager = new DatabaseManager(graphDb);
-		for (int i = 0; i < urls.length; i++) {
-			try {
-				NexsonSource study = readRemoteNexson(urls[i]);
-				manager.addOrReplaceStudy(study);
-				indexedIDs.add(study.getId());
-			} catch (Exception ex) {
-				idsWithStacktraces.put(urls[i], Arrays.toString(ex.getStackTrace()));
-				idsWithErrors.put(urls[i], ex.getMessage());
-				typesWithErrors.put(urls[i], ex.getClass().getName());
-			}
-		}
-		HashMap<String, Object> results = new HashMap<String, Object>(); // will be converted to JSON object
-		results.put("indexed", indexedIDs);
-		results.put("errors", idsWithErrors);
-		results.put("error_types", typesWithErrors);
-		results.put("stack_traces", idsWithStacktraces);
+		IndexingReport report = new BatchStudyIndexer(graphDb).indexUrls(urls);
+		HashMap<String, Object> results = report.toMap(); // will be converted to JSON object
 		return OTRepresentationConverter.convert(results);
 
 	}
@@ -132,6 +118,7 @@ public class IndexServices extends ServerPlugin {
 	@Deprecated
 	public Representation unindexNexsons(@Source GraphDatabaseService graphDb,
 			@Description("doomed nexson ids") @Parameter(name = "ids", optional = false) String[] ids) throws IOException {
+		graphDb = ServingStore.resolve(graphDb);
 
 		if (ids.length < 1) {
 			throw new IllegalArgumentException("You must provide at least one id for a nexson document to be removed.");
@@ -3,6 +3,8 @@ package org.opentree.oti.plugins;
 import java.util.HashMap;
 import java.util.HashSet;
 import org.opentree.oti.QueryRunner;
+import org.opentree.oti.ResultPage;
+import org.opentree.oti.ServingStore;
 import org.opentree.oti.indexproperties.OTIProperties;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.search.MatchAllDocsQuery;
@@ -26,6 +28,7 @@ public class QueryServices extends ServerPlugin {
 			@Parameter(name = "includeTreeMetadata", optional = true) Boolean includeTreeMetadata,
 		@Description("Whether or not to include all metadata. By default, only the nexson ids of elements will be returned.")
 			@Parameter(name = "verbose", optional = true) Boolean verbose) {
+		graphDb = ServingStore.resolve(graphDb);
 
 		// set null optional parameters to default values
 		verbose = verbose == null ? false : verbose;
@@ -33,9 +36,9 @@ public class QueryServices extends ServerPlugin {
 
 		QueryRunner runner = new QueryRunner(graphDb);
 		if (includeTreeMetadata) {
-			return OTRepresentationConverter.convert(runner.doBasicSearchForTrees(new MatchAllDocsQuery(), null, verbose));
+			return StreamingRepresentation.list(runner.searchForTrees(new MatchAllDocsQuery(), null, verbose, new ResultPage()));
 		} else {
-			return OTRepresentationConverter.convert(runner.doBasicSearchForStudies(new MatchAllDocsQuery(), null, verbose));
+			return StreamingRepresentation.list(runner.searchForStudies(new MatchAllDocsQuery(), null, verbose, new ResultPage()));
 		}
 	}
 	
@@ -58,6 +61,7 @@ public class QueryServices extends ServerPlugin {
 				@Parameter(name="exact", optional = true) Boolean checkExactOnly,
 			@Description("Whether or not to include all metadata. By default, only the nexson ids of elements will be returned.")
 				@Parameter(name = "verbose", optional = true) Boolean verbose) throws ParseException {
+		graphDb = ServingStore.resolve(graphDb);
 		
 		// set null optional parameters to default values
 		verbose = verbose == null ? false : verbose;
@@ -68,12 +72,12 @@ public class QueryServices extends ServerPlugin {
 				
 		if (searchProperties != null) {
 			QueryRunner runner = new QueryRunner(graphDb);
-			results.put("matched_studies", runner.doBasicSearchForStudies(searchProperties, value, doFuzzyMatching, verbose));
+			results.put("matched_studies", runner.searchForStudies(searchProperties, value, doFuzzyMatching, verbose, new ResultPage()));
 		} else {
 			results.put("error", "unrecognized property: " + property);
 		}
 		
-		return OTRepresentationConverter.convert(results);
+		return new StreamingRepresentation(results);
 	}
 	
 	/**
@@ -94,6 +98,7 @@ public class QueryServices extends ServerPlugin {
 				@Parameter(name="exact", optional = true) Boolean checkExactOnly,
 			@Description("Whether or not to include all metadata. By default, only the nexson ids of elements will be returned.")
 				@Parameter(name = "verbose", optional = true) Boolean verbose) {
+		graphDb = ServingStore.resolve(graphDb);
 		
 		// set null optional parameters to default values
 		verbose = verbose == null ? false : verbose;
@@ -104,12 +109,12 @@ public class QueryServices extends ServerPlugin {
 
 		if (searchProperties != null) {
 			QueryRunner runner = new QueryRunner(graphDb);
-			results.put("matched_studies", runner.doBasicSearchForTrees(searchProperties, value, doFuzzyMatching, verbose));
+			results.put("matched_studies", runner.searchForTrees(searchProperties, value, doFuzzyMatching, verbose, new ResultPage()));
 		} else {
 			results.put("error", "unrecognized property: " + property);
 		}
 		
-		return OTRepresentationConverter.convert(results);
+		return new StreamingRepresentation(results);
 
 	}
 	
@@ -131,6 +136,7 @@ public class QueryServices extends ServerPlugin {
 				@Parameter(name="exact", optional = true) Boolean checkExactOnly,
 			@Description("Whether or not to include all metadata. By default, only the nexson ids of elements will be returned.")
 				@Parameter(name = "verbose", optional = true) Boolean verbose) {
+		graphDb = ServingStore.resolve(graphDb);
 		
 		// set null parameters to default values
 		verbose = verbose == null ? false : verbose;
@@ -141,13 +147,13 @@ public class QueryServices extends ServerPlugin {
 
 		if (searchProperties != null) {
 			QueryRunner runner = new QueryRunner(graphDb);			
-			results.put("matched_studies", runner.doBasicSearchForTreeNodes(searchProperties, value, doFuzzyMatching, verbose));
+			results.put("matched_studies", runner.searchForTreeNodes(searchProperties, value, doFuzzyMatching, verbose));
 			
 		} else {
 			results.put("error", "unrecognized property: " + property);
 		}
 		
-		return OTRepresentationConverter.convert(results);
+		return new StreamingRepresentation(results);
 		
 	}
 	
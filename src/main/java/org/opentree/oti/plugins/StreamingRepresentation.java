@@ -0,0 +1,122 @@
+package org.opentree.oti.plugins;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.neo4j.helpers.collection.IterableWrapper;
+import org.neo4j.server.rest.repr.ListRepresentation;
+import org.neo4j.server.rest.repr.MappingRepresentation;
+import org.neo4j.server.rest.repr.MappingSerializer;
+import org.neo4j.server.rest.repr.Representation;
+import org.neo4j.server.rest.repr.ValueRepresentation;
+
+/**
+ * Represents a map of search results without copying it. Values that are Iterables (such as the results returned by the
+ * QueryRunner's searchFor methods) are only iterated over as they are written, so each result is loaded from the graph,
+ * written and then dropped, and the server never holds the whole response as maps. When the client asks for a streamed
+ * response (with the header "X-Stream: true") the results are written to the connection as they are loaded.
+ *
+ * Keys in omittedKeys are left out at every level, which is how properties that a service does not return are removed.
+ * Maps must have string keys, and values must be strings, numbers, booleans, maps, Iterables or arrays of these.
+ */
+public class StreamingRepresentation extends MappingRepresentation {
+
+	private final Map<String, ?> map;
+	private final Set<String> omittedKeys;
+
+	public StreamingRepresentation(Map<String, ?> map) {
+		this(map, Collections.<String>emptySet());
+	}
+
+	public StreamingRepresentation(Map<String, ?> map, Set<String> omittedKeys) {
+		super("map");
+		this.map = map;
+		this.omittedKeys = omittedKeys;
+	}
+
+	/**
+	 * Represent a list of results without copying it, e.g. the results of one of the QueryRunner's searchFor methods.
+	 * @param results
+	 * @return
+	 */
+	public static ListRepresentation list(Iterable<?> results) {
+		return new StreamingRepresentation(Collections.<String, Object>emptyMap()).listOf(results);
+	}
+
+	@Override
+	protected void serialize(MappingSerializer serializer) {
+		for (Entry<String, ?> entry : map.entrySet()) {
+			if (omittedKeys.contains(entry.getKey())) {
+				continue;
+			}
+			put(serializer, entry.getKey(), entry.getValue());
+		}
+	}
+
+	// ===== private methods
+
+	@SuppressWarnings("unchecked")
+	private void put(MappingSerializer serializer, String key, Object value) {
+		if (value == null) {
+			return;
+		} else if (value instanceof String) {
+			serializer.putString(key, (String) value);
+		} else if (value instanceof Number) {
+			serializer.putNumber(key, (Number) value);
+		} else if (value instanceof Boolean) {
+			serializer.putBoolean(key, (Boolean) value);
+		} else if (value instanceof Map) {
+			serializer.putMapping(key, new StreamingRepresentation((Map<String, ?>) value, omittedKeys));
+		} else {
+			serializer.putList(key, listOf(value));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Representation represent(Object value) {
+		if (value instanceof String) {
+			return ValueRepresentation.string((String) value);
+		} else if (value instanceof Double || value instanceof Float) {
+			return ValueRepresentation.number(((Number) value).doubleValue());
+		} else if (value instanceof Number) {
+			return ValueRepresentation.number(((Number) value).longValue());
+		} else if (value instanceof Boolean) {
+			return ValueRepresentation.bool((Boolean) value);
+		} else if (value instanceof Map) {
+			return new StreamingRepresentation((Map<String, ?>) value, omittedKeys);
+		} else {
+			return listOf(value);
+		}
+	}
+
+	/**
+	 * Return a list representation that converts the elements of an Iterable or array only as they are written.
+	 */
+	@SuppressWarnings("unchecked")
+	private ListRepresentation listOf(Object value) {
+		Iterable<Object> elements;
+		if (value instanceof Iterable) {
+			elements = (Iterable<Object>) value;
+		} else if (value.getClass().isArray()) {
+			int length = Array.getLength(value);
+			List<Object> arrayElements = new ArrayList<Object>(length);
+			for (int i = 0; i < length; i++) {
+				arrayElements.add(Array.get(value, i));
+			}
+			elements = arrayElements;
+		} else {
+			throw new IllegalArgumentException("Cannot represent a value of type " + value.getClass().getName());
+		}
+		return new ListRepresentation("value", new IterableWrapper<Representation, Object>(elements) {
+			@Override
+			protected Representation underlyingObjectToObject(Object element) {
+				return represent(element);
+			}
+		});
+	}
+}
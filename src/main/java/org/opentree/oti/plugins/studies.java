@@ -13,6 +13,7 @@ import java.util.HashSet;
 import org.opentree.nexson.io.NexsonSource;
 import org.opentree.oti.DatabaseManager;
 import org.opentree.oti.QueryRunner;
+import org.opentree.oti.ServingStore;
 import org.opentree.oti.indexproperties.OTIProperties;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.search.MatchAllDocsQuery;
@@ -61,6 +62,7 @@ public class studies extends ServerPlugin {
 			@Description("Whether or not to include all metadata. By default, only the nexson ids of elements will be returned.")
 			@Parameter(name = "verbose", optional = true)
 			Boolean verbose) throws ParseException {
+		graphDb = ServingStore.resolve(graphDb);
 		
 		// set null optional parameters to default values
 		verbose = verbose == null ? false : verbose;
@@ -123,6 +125,7 @@ public class studies extends ServerPlugin {
 			@Description("Whether or not to include all metadata. By default, only the nexson ids of elements will be returned.")
 			@Parameter(name = "verbose", optional = true)
 			Boolean verbose) {
+		graphDb = ServingStore.resolve(graphDb);
 		
 		// set null optional parameters to default values
 		verbose = verbose == null ? false : verbose;
@@ -178,6 +181,7 @@ public class studies extends ServerPlugin {
 			@Description("remote nexson urls")
 			@Parameter(name = "urls", optional = false)
 			String[] urls) throws MalformedURLException, IOException {
+		graphDb = ServingStore.resolve(graphDb);
 
 		if (urls.length < 1) {
 			throw new IllegalArgumentException("You must provide at least one url for a nexson document to be indexed.");
@@ -212,6 +216,7 @@ public class studies extends ServerPlugin {
 			@Description("remote nexson url")
 			@Parameter(name = "url", optional = false)
 			String url) throws MalformedURLException, IOException {
+		graphDb = ServingStore.resolve(graphDb);
 
 		DatabaseManager manager = new DatabaseManager(graphDb);
 
@@ -236,6 +241,7 @@ public class studies extends ServerPlugin {
 	@PluginTarget(GraphDatabaseService.class)
 	public Representation unindex_studies(@Source GraphDatabaseService graphDb,
 			@Description("doomed nexson ids") @Parameter(name = "ids", optional = false) String[] ids) throws IOException {
+		graphDb = ServingStore.resolve(graphDb);
 
 		if (ids.length < 1) {
 			throw new IllegalArgumentException("You must provide at least one id for a nexson document to be removed.");
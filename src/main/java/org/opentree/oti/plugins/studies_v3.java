@@ -1,6 +1,7 @@
 package org.opentree.oti.plugins;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
@@ -11,10 +12,22 @@ import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Set;
 
 import org.opentree.nexson.io.NexsonSource;
+import org.opentree.oti.BatchStudyIndexer;
 import org.opentree.oti.DatabaseManager;
+import org.opentree.oti.IndexingJob;
+import org.opentree.oti.IndexingJobQueue;
+import org.opentree.oti.IndexingReport;
+import org.opentree.oti.LocalNexsonReader;
+import org.opentree.oti.PhylesystemSynchronizer;
+import org.opentree.oti.QueryCache;
 import org.opentree.oti.QueryRunner;
+import org.opentree.oti.ResultPage;
+import org.opentree.oti.ServingStore;
+import org.opentree.oti.StoreRebuilder;
+import org.opentree.oti.StudyCompactor;
 import org.opentree.oti.indexproperties.OTIProperties;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.search.MatchAllDocsQuery;
@@ -32,6 +45,10 @@ import org.opentree.properties.OTPropertyPredicate;
  *
  */
 public class studies_v3 extends ServerPlugin {
+
+	/** Properties that are left out of the results of find_studies and find_trees. */
+	static final Set<String> SUPERFLUOUS_PROPERTIES = new HashSet<String>(Arrays.asList(
+			"ot:ottId", "ot:originalLabel", "ot:ottTaxonName", "is_deprecated"));
 	
 	/**
 	 * Perform a simple search for studies
@@ -64,22 +81,48 @@ public class studies_v3 extends ServerPlugin {
 			
 			@Description("Whether or not to include all metadata. By default, only the nexson ids of elements will be returned.")
 			@Parameter(name = "verbose", optional = true)
-			Boolean verbose) throws ParseException, BadInputException
+			Boolean verbose,
+			
+			@Description("The maximum number of studies to return. By default all matching studies are returned. If there are more, "
+					+ "the response contains a 'next_cursor' that can be passed as the cursor to get the next page. Must be at least 1.")
+			@Parameter(name = "limit", optional = true)
+			Integer limit,
+			
+			@Description("The number of matching studies to skip before the first one returned (after the cursor, if one is "
+					+ "given). Defaults to 0. Paging with the cursor is faster than paging with a large offset.")
+			@Parameter(name = "offset", optional = true)
+			Integer offset,
+			
+			@Description("The 'next_cursor' returned by a previous request with the same property and value, to continue "
+					+ "from the end of that page. Results are returned in a stable order.")
+			@Parameter(name = "cursor", optional = true)
+			String cursor) throws ParseException, BadInputException
     {
+		graphDb = ServingStore.resolve(graphDb);
 		
 		// set null optional parameters to default values
 		verbose = verbose == null ? false : verbose;
 		boolean doFuzzyMatching = checkExactOnly == null ? true : ! checkExactOnly;
 
+		ResultPage page = getPage(limit, offset, cursor);
+
+		// return the cached results if the indexes have not changed since they were cached
+		QueryCache cache = QueryCache.getCache(graphDb);
+		List<Object> cacheKey = Arrays.<Object>asList("find_studies", property, value, doFuzzyMatching, verbose, limit, offset, cursor);
+		Map<String, Object> cachedResults = cache.get(cacheKey);
+		if (cachedResults != null) {
+			return new StreamingRepresentation(cachedResults, SUPERFLUOUS_PROPERTIES);
+		}
+		long generation = cache.getGeneration();
+
 		// prepare for search
 		HashMap<String, Object> results = new HashMap<String, Object>();
 		QueryRunner runner = new QueryRunner(graphDb);
 
 		if (property == null && value == null) {
 			// no property specified, find all studies
-            Object matches = runner.doBasicSearchForStudies(new MatchAllDocsQuery(), null, verbose);
-			// was results.put("matched_studies", matches);
-			results.put("matched_studies", scrubSuperfluousProperties(matches));
+            Object matches = runner.searchForStudies(new MatchAllDocsQuery(), null, verbose, page);
+			results.put("matched_studies", matches);
 
 		} else if ((property == null && value != null) || (property != null && value == null)) {
 			// property or value specified but not both, return error
@@ -93,15 +136,17 @@ public class studies_v3 extends ServerPlugin {
 					
 			if (searchProperties != null) {
                 Object matches =
-                    runner.doBasicSearchForStudies(searchProperties, value, doFuzzyMatching, verbose);
-				// was results.put("matched_studies", matches);
-                results.put("matched_studies", scrubSuperfluousProperties(matches));
+                    runner.searchForStudies(searchProperties, value, doFuzzyMatching, verbose, page);
+                results.put("matched_studies", matches);
 			} else {
 				throw new BadInputException("unrecognized property: " + property);
 			}
 		}
+		putNextCursor(results, page);
+		cacheResults(cache, cacheKey, generation, results, page);
 		
-		return OTRepresentationConverter.convert(results);
+		// unless they were cached, the matched studies are only loaded as they are written
+		return new StreamingRepresentation(results, SUPERFLUOUS_PROPERTIES);
 	}
 	
 	/**
@@ -134,48 +179,96 @@ public class studies_v3 extends ServerPlugin {
 			
 			@Description("Whether or not to include all metadata. By default, only the nexson ids of elements will be returned.")
 			@Parameter(name = "verbose", optional = true)
-			Boolean verbose)
+			Boolean verbose,
+			
+			@Description("The maximum number of studies (each with its matching trees) to return. By default all matching studies are returned. If there are more, "
+					+ "the response contains a 'next_cursor' that can be passed as the cursor to get the next page. Must be at least 1.")
+			@Parameter(name = "limit", optional = true)
+			Integer limit,
+			
+			@Description("The number of matching studies to skip before the first one returned (after the cursor, if one is "
+					+ "given). Defaults to 0. Paging with the cursor is faster than paging with a large offset.")
+			@Parameter(name = "offset", optional = true)
+			Integer offset,
+			
+			@Description("The 'next_cursor' returned by a previous request with the same property and value, to continue "
+					+ "from the end of that page. Results are returned in a stable order.")
+			@Parameter(name = "cursor", optional = true)
+			String cursor)
         throws BadInputException
     {
+		graphDb = ServingStore.resolve(graphDb);
 		
 		// set null optional parameters to default values
 		verbose = verbose == null ? false : verbose;
 		boolean doFuzzyMatching = checkExactOnly == null ? true : ! checkExactOnly;
 
+		ResultPage page = getPage(limit, offset, cursor);
+
+		// return the cached results if the indexes have not changed since they were cached
+		QueryCache cache = QueryCache.getCache(graphDb);
+		List<Object> cacheKey = Arrays.<Object>asList("find_trees", property, value, doFuzzyMatching, verbose, limit, offset, cursor);
+		Map<String, Object> cachedResults = cache.get(cacheKey);
+		if (cachedResults != null) {
+			return new StreamingRepresentation(cachedResults, SUPERFLUOUS_PROPERTIES);
+		}
+		long generation = cache.getGeneration();
+
 		HashSet<OTPropertyPredicate> searchProperties = new OTIProperties().getIndexedTreeProperties().get(property);
 		HashMap<String, Object> results = new HashMap<String, Object>();
 
 		if (searchProperties != null) {
 			QueryRunner runner = new QueryRunner(graphDb);
-			Object studies = runner.doBasicSearchForTrees(searchProperties, value, doFuzzyMatching, verbose);
-			results.put("matched_studies", scrubSuperfluousProperties(studies));
+			Object studies = runner.searchForTrees(searchProperties, value, doFuzzyMatching, verbose, page);
+			results.put("matched_studies", studies);
 		} else {
 			throw new BadInputException("unrecognized property: " + property);
 		}
+		putNextCursor(results, page);
+		cacheResults(cache, cacheKey, generation, results, page);
 		
-		return OTRepresentationConverter.convert(results);
+		// unless they were cached, the matched studies and trees are only loaded as they are written
+		return new StreamingRepresentation(results, SUPERFLUOUS_PROPERTIES);
 
 	}
 	
-    Object scrubSuperfluousProperties(Object obj) {
-        if (obj instanceof Map) {
-            Map<String, Object> map = (Map<String, Object>)obj;
-            map.remove("ot:ottId");
-            map.remove("ot:originalLabel");
-            map.remove("ot:ottTaxonName");
-            map.remove("is_deprecated");
-            for (Object sub : map.values())
-                scrubSuperfluousProperties(sub);
-        } else if (obj instanceof List) {
-            List list = (List)obj;
-            for (Object sub : list)
-                scrubSuperfluousProperties(sub);
-        } else if (obj instanceof String || obj instanceof Number || obj instanceof Boolean)
-            ;
-        else
-            throw new RuntimeException("unexpected type in JSON traversal?? " + obj);
-        return obj;
-    }
+	/**
+	 * Return the page of results requested by the limit, offset and cursor parameters of a search.
+	 */
+	private ResultPage getPage(Integer limit, Integer offset, String cursor) throws BadInputException {
+		try {
+			return new ResultPage(limit, offset, cursor);
+		} catch (IllegalArgumentException ex) {
+			throw new BadInputException(ex.getMessage());
+		}
+	}
+
+	/**
+	 * Cache the results of a search if they do not contain too many studies, loading the matched studies into a list so
+	 * that they can be served again. Larger results are not cached, and are loaded as they are written.
+	 */
+	@SuppressWarnings("unchecked")
+	private void cacheResults(QueryCache cache, List<Object> cacheKey, long generation, Map<String, Object> results, ResultPage page) {
+		if (page.size() > QueryCache.MAX_STUDIES_PER_ENTRY) {
+			return;
+		}
+		List<Object> matches = new ArrayList<Object>(page.size());
+		for (Object match : (Iterable<Object>) results.get("matched_studies")) {
+			matches.add(match);
+		}
+		results.put("matched_studies", matches);
+		cache.put(cacheKey, generation, results);
+	}
+
+	/**
+	 * Add the cursor for the next page to the results of a search, if there are more results.
+	 */
+	private void putNextCursor(Map<String, Object> results, ResultPage page) {
+		String nextCursor = page.getNextCursor();
+		if (nextCursor != null) {
+			results.put("next_cursor", nextCursor);
+		}
+	}
 
 	/**
 	 * Return a map containing available property names and the names of the SearchableProperty enum elements they
@@ -212,25 +305,31 @@ public class studies_v3 extends ServerPlugin {
 	public Representation index_studies(@Source GraphDatabaseService graphDb,
 			@Description("remote nexson urls")
 			@Parameter(name = "urls", optional = false)
-			String[] urls)
+			String[] urls,
+			
+			@Description("The number of studies to write in each transaction. Defaults to "
+					+ BatchStudyIndexer.DEFAULT_COMMIT_BATCH_SIZE + ".")
+			@Parameter(name = "commit_batch_size", optional = true)
+			Integer commitBatchSize,
+			
+			@Description("The number of threads used to fetch and parse nexsons concurrently. Defaults to "
+					+ BatchStudyIndexer.DEFAULT_FETCH_THREADS + ".")
+			@Parameter(name = "fetch_threads", optional = true)
+			Integer fetchThreads)
         throws MalformedURLException, IOException, BadInputException
     {
+		graphDb = ServingStore.resolve(graphDb);
 
 		if (urls.length < 1) {
 			throw new IllegalArgumentException("You must provide at least one url for a nexson document to be indexed.");
 		}
 		
-		ArrayList<String> indexedIDs = new ArrayList<String>(urls.length);
-		DatabaseManager manager = new DatabaseManager(graphDb);
-		for (int i = 0; i < urls.length; i++) {
-			NexsonSource study = readRemoteNexson(urls[i]);
-			manager.addOrReplaceStudy(study);
-			indexedIDs.add(study.getId());
-		}
-		HashMap<String, Object> results = new HashMap<String, Object>(); // will be converted to JSON object
-		results.put("indexed", indexedIDs);
-		results.put("errors", new HashMap());
-		return OTRepresentationConverter.convert(results);
+		IndexingReport report = new BatchStudyIndexer(graphDb)
+				.setCommitBatchSize(commitBatchSize)
+				.setFetchThreads(fetchThreads)
+				.indexUrls(urls);
+
+		return OTRepresentationConverter.convert(report.toMap()); // will be converted to JSON object
 	}
 
 	/**
@@ -248,12 +347,48 @@ public class studies_v3 extends ServerPlugin {
 	public Representation index_study(@Source GraphDatabaseService graphDb,
 			@Description("remote nexson url")
 			@Parameter(name = "url", optional = false)
-			String url) throws MalformedURLException, IOException {
+			String url,
+			
+			@Description("If true, the nexson will be written to the graph as it is parsed instead of being read into memory "
+					+ "first. Use this for very large studies. Defaults to false.")
+			@Parameter(name = "streaming", optional = true)
+			Boolean streaming,
+			
+			@Description("If true, the study will be queued to be indexed in the background, and a job id will be returned "
+					+ "immediately instead of waiting for indexing to finish. Use the indexing_job_status service to check on "
+					+ "the job. Cannot be combined with streaming. Defaults to false.")
+			@Parameter(name = "async", optional = true)
+			Boolean async,
+			
+			@Description("The number of threads used to write the trees of the study. With more than one, the new and changed "
+					+ "trees are built in parallel and then attached to the study together, so the study is still replaced all at "
+					+ "once. Ignored for streaming and asynchronous indexing, and for studies large enough to be written in "
+					+ "chunks. Defaults to " + DatabaseManager.DEFAULT_TREE_THREADS + ".")
+			@Parameter(name = "tree_threads", optional = true)
+			Integer treeThreads) throws MalformedURLException, IOException {
+		graphDb = ServingStore.resolve(graphDb);
 
-		DatabaseManager manager = new DatabaseManager(graphDb);
+		if (async != null && async) {
+			if (streaming != null && streaming) {
+				throw new IllegalArgumentException("Streaming indexing cannot be done asynchronously.");
+			}
+			IndexingJob job = IndexingJobQueue.getQueue(graphDb).submitIndex(url);
+			return OTRepresentationConverter.convert(job.toMap());
+		}
+		
+		DatabaseManager manager = new DatabaseManager(graphDb).setTreeThreads(treeThreads);
 
-		NexsonSource study = readRemoteNexson(url);
-		manager.addOrReplaceStudy(study);
+		if (streaming != null && streaming) {
+			BufferedReader nexson = new BufferedReader(new InputStreamReader(new URL(url).openStream()));
+			try {
+				manager.addOrReplaceStudyFromStream(nexson);
+			} finally {
+				nexson.close();
+			}
+		} else {
+			NexsonSource study = readRemoteNexson(url);
+			manager.addOrReplaceStudy(study);
+		}
 
 		return OTRepresentationConverter.convert(true);
 	}
@@ -272,14 +407,36 @@ public class studies_v3 extends ServerPlugin {
             "not be found (and throws exceptions for those whose removal failed.")
 	@PluginTarget(GraphDatabaseService.class)
 	public Representation unindex_studies(@Source GraphDatabaseService graphDb,
-			@Description("doomed nexson ids") @Parameter(name = "ids", optional = false) String[] ids)
+			@Description("doomed nexson ids") @Parameter(name = "ids", optional = false) String[] ids,
+			@Description("If true, the studies will be queued to be removed in the background, and an array of job ids (one "
+					+ "for each study id) will be returned immediately. Use the indexing_job_status service to check on the "
+					+ "jobs. Defaults to false.")
+			@Parameter(name = "async", optional = true) Boolean async,
+			@Description("If true, the studies will be hidden from queries immediately and their graph nodes and index "
+					+ "entries will be deleted later in the background, instead of before the service returns. Defaults to "
+					+ "false. (Asynchronous removals are always done this way.)")
+			@Parameter(name = "tombstone", optional = true) Boolean tombstone)
         throws IOException, BadInputException
     {
+		graphDb = ServingStore.resolve(graphDb);
+
 		if (ids.length < 1) {
 			throw new IllegalArgumentException("You must provide at least one id for a nexson document to be removed.");
 		}
 		
-		DatabaseManager manager = new DatabaseManager(graphDb);
+		if (async != null && async) {
+			IndexingJobQueue queue = IndexingJobQueue.getQueue(graphDb);
+			ArrayList<Long> jobIds = new ArrayList<Long>(ids.length);
+			for (String studyId : ids) {
+				jobIds.add(queue.submitUnindex(studyId).getId());
+			}
+			HashMap<String, Object> results = new HashMap<String, Object>();
+			results.put("job_ids", jobIds);
+			return OTRepresentationConverter.convert(results);
+		}
+		
+		boolean deferDeletion = tombstone != null && tombstone;
+		DatabaseManager manager = new DatabaseManager(graphDb).setDeferredDeletion(deferDeletion);
 		
 		// record ids according the result of their attempted removal
 		ArrayList<String> idsDeleted = new ArrayList<String>(ids.length);
@@ -295,13 +452,16 @@ public class studies_v3 extends ServerPlugin {
 	        } else {
 	        	// found it. carry out the sentence
 	        	try {
-	        		manager.deleteSource(studyMeta);
+	        		manager.removeSource(studyMeta);
 	                idsDeleted.add(studyId);
 	        	} catch (Exception ex) {
 	        		idsWithErrors.put(studyId,ex.getMessage());
 	        	}
  	        }
 		}
+		if (deferDeletion) {
+			StudyCompactor.getCompactor(graphDb).requestCompaction();
+		}
 
 		HashMap<String, Object> results = new HashMap<String, Object>(); // will be converted to JSON object
 		results.put("deleted", idsDeleted);
@@ -310,6 +470,215 @@ public class studies_v3 extends ServerPlugin {
 		return OTRepresentationConverter.convert(results);
 	}
 
+	/**
+	 * Index nexson files from the local filesystem.
+	 * @param graphDb
+	 * @param paths
+	 * @param commitBatchSize
+	 * @param fetchThreads
+	 * @return
+	 * @throws IOException
+	 */
+	@Description("Index the nexson (.json) files at or below the provided local paths, which may be files or directories " +
+			"on the OTI host. Files are memory-mapped and parsed in parallel. As with index_studies, studies with the same " +
+			"ot:studyId as previously indexed studies replace them. Returns the ids of the indexed studies and the errors " +
+			"for the files that could not be indexed, along with statistics about the index writes. The paths must be inside " +
+			"the directory named by the " + LocalNexsonReader.INGEST_ROOT_PROPERTY + " system property.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation index_local_studies(@Source GraphDatabaseService graphDb,
+			@Description("local nexson files or directories")
+			@Parameter(name = "paths", optional = false)
+			String[] paths,
+			
+			@Description("The number of studies to write in each transaction. Defaults to "
+					+ BatchStudyIndexer.DEFAULT_COMMIT_BATCH_SIZE + ".")
+			@Parameter(name = "commit_batch_size", optional = true)
+			Integer commitBatchSize,
+			
+			@Description("The number of threads used to read and parse nexsons concurrently. Defaults to "
+					+ BatchStudyIndexer.DEFAULT_FETCH_THREADS + ".")
+			@Parameter(name = "fetch_threads", optional = true)
+			Integer fetchThreads,
+			
+			@Description("The number of threads used to write studies to the graph concurrently. Writes to the same study " +
+					"are serialized, but with more than one thread, if a study occurs more than once, which version is " +
+					"indexed last is not defined. Defaults to " + BatchStudyIndexer.DEFAULT_WRITE_THREADS + ".")
+			@Parameter(name = "write_threads", optional = true)
+			Integer writeThreads)
+		throws IOException
+	{
+		graphDb = ServingStore.resolve(graphDb);
+
+		if (paths.length < 1) {
+			throw new IllegalArgumentException("You must provide at least one path to a nexson file or directory to be indexed.");
+		}
+		
+		File[] locations = new File[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			locations[i] = LocalNexsonReader.getIngestPath(paths[i]);
+		}
+		
+		BatchStudyIndexer indexer = new BatchStudyIndexer(graphDb)
+				.setCommitBatchSize(commitBatchSize)
+				.setFetchThreads(fetchThreads)
+				.setWriteThreads(writeThreads);
+		IndexingReport report = indexer.indexFiles(locations);
+
+		HashMap<String, Object> results = report.toMap();
+		results.put("index_statistics", indexer.getIndexingStatistics());
+		return OTRepresentationConverter.convert(results);
+	}
+
+	/**
+	 * Synchronize the index with a local clone of the phylesystem repo.
+	 * @param graphDb
+	 * @param repoPath
+	 * @return
+	 * @throws IOException
+	 */
+	@Description("Synchronize the index with a local clone of the phylesystem git repo. Only the studies that have been " +
+			"added, modified or deleted since the last synchronized commit are indexed or removed; the first sync indexes " +
+			"all studies. Studies are read as they are in the commit currently checked out in the clone. Returns the " +
+			"commits synchronized from and to, the ids of the studies that were indexed and removed, and the errors for " +
+			"study files that could not be indexed. The repo must be inside the directory named by the " +
+			PhylesystemSynchronizer.REPO_ROOT_PROPERTY + " system property. Concurrent syncs run one at a time.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation sync_phylesystem(@Source GraphDatabaseService graphDb,
+			@Description("The path to a local clone of the phylesystem repo") @Parameter(name = "repo_path", optional = false) String repoPath)
+		throws IOException
+	{
+		graphDb = ServingStore.resolve(graphDb);
+
+		File repo = PhylesystemSynchronizer.getRepo(repoPath);
+		return OTRepresentationConverter.convert(new PhylesystemSynchronizer(graphDb, repo).sync());
+	}
+
+	/**
+	 * Report the status of asynchronous indexing jobs.
+	 * @param graphDb
+	 * @param jobId
+	 * @return
+	 * @throws BadInputException
+	 */
+	@Description("Get the status of an indexing job submitted with the async option of index_study or unindex_studies. " +
+			"The result includes the status of the job (queued, fetching, waiting_to_write, writing, complete, failed, or " +
+			"superseded), and its result or error once it has finished. Jobs are superseded when a more recent job for the " +
+			"same study is submitted before they are written. If no job id is given, the status of all known jobs is returned.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation indexing_job_status(@Source GraphDatabaseService graphDb,
+			@Description("The id of the job to report on") @Parameter(name = "job_id", optional = true) Long jobId)
+		throws BadInputException
+	{
+		graphDb = ServingStore.resolve(graphDb);
+
+		IndexingJobQueue queue = IndexingJobQueue.getQueue(graphDb);
+
+		if (jobId != null) {
+			IndexingJob job = queue.getJob(jobId);
+			if (job == null) {
+				throw new BadInputException("unrecognized job id: " + jobId);
+			}
+			return OTRepresentationConverter.convert(job.toMap());
+		}
+
+		List<HashMap<String, Object>> jobs = new ArrayList<HashMap<String, Object>>();
+		for (IndexingJob job : queue.getJobs()) {
+			jobs.add(job.toMap());
+		}
+		HashMap<String, Object> results = new HashMap<String, Object>();
+		results.put("jobs", jobs);
+		results.put("unfinished", queue.getUnfinishedJobCount());
+		return OTRepresentationConverter.convert(results);
+	}
+
+	/**
+	 * Build a complete new store from local nexson files in a side directory, and switch to it once it has been checked.
+	 * @param graphDb
+	 * @param paths
+	 * @param taxonomyDb
+	 * @param switchWhenBuilt
+	 * @return
+	 * @throws IOException
+	 */
+	@Description("Rebuild the whole database from local nexson files without disturbing the store that is serving. A new " +
+			"store, with all its indexes, is built in a directory next to the server's store, and is checked once it is " +
+			"complete. Unless switch is false, the services then switch over to it atomically. The old store is kept, so " +
+			"the switch can be undone with rollback_store. The rebuild runs in the background; use store_status to check on it. " +
+			"Only one rebuild can run at a time. The paths must be inside the directory named by the " +
+			LocalNexsonReader.INGEST_ROOT_PROPERTY + " system property, and the taxonomy db inside the one named by " +
+			StoreRebuilder.TAXONOMY_ROOT_PROPERTY + ".")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation rebuild_store(@Source GraphDatabaseService graphDb,
+			@Description("Local paths to nexson files, or to directories which will be searched recursively for .json files")
+			@Parameter(name = "paths", optional = false)
+			String[] paths,
+			@Description("The path to a stopped graph db containing only the taxonomy, which will be copied into the new " +
+					"store so that trees can be linked to it. If omitted, the new store will have no taxonomy.")
+			@Parameter(name = "taxonomy_db", optional = true)
+			String taxonomyDb,
+			@Description("Whether to switch to the new store once it has been built and checked. Defaults to true.")
+			@Parameter(name = "switch", optional = true)
+			Boolean switchWhenBuilt)
+		throws IOException
+	{
+		if (paths.length < 1) {
+			throw new IllegalArgumentException("You must provide at least one path to a nexson file or directory to be indexed.");
+		}
+		File[] locations = new File[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			locations[i] = LocalNexsonReader.getIngestPath(paths[i]);
+		}
+		File taxonomyDir = null;
+		if (taxonomyDb != null) {
+			taxonomyDir = StoreRebuilder.getTaxonomyStoreDir(taxonomyDb);
+		}
+
+		ServingStore servingStore = ServingStore.getServingStore(graphDb);
+		StoreRebuilder rebuilder = new StoreRebuilder(servingStore, locations, taxonomyDir, switchWhenBuilt == null ? true : switchWhenBuilt);
+		if (! servingStore.startRebuild(rebuilder)) {
+			throw new IllegalStateException("A rebuild is already running. Use store_status to check on it.");
+		}
+		return OTRepresentationConverter.convert(rebuilder.getStatus());
+	}
+
+	/**
+	 * Report on the store that is serving and on the latest rebuild.
+	 * @param graphDb
+	 * @return
+	 */
+	@Description("Get the directories of the store that is serving and of the store that rollback_store would switch back " +
+			"to, and the progress of the latest rebuild_store request (if there has been one).")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation store_status(@Source GraphDatabaseService graphDb) {
+		return OTRepresentationConverter.convert(ServingStore.getServingStore(graphDb).getStatus());
+	}
+
+	/**
+	 * Report on the cache of find_studies and find_trees results.
+	 * @param graphDb
+	 * @return
+	 */
+	@Description("Get the size, hit ratio, and eviction and invalidation counts of the cache of find_studies and " +
+			"find_trees results. Cached results are invalidated whenever a study is indexed or removed.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation query_cache_status(@Source GraphDatabaseService graphDb) {
+		graphDb = ServingStore.resolve(graphDb);
+		return OTRepresentationConverter.convert(QueryCache.getCache(graphDb).getStatistics());
+	}
+
+	/**
+	 * Switch back to the store that was serving before the last switch.
+	 * @param graphDb
+	 * @return
+	 * @throws IOException
+	 */
+	@Description("Switch the services back to the store that was serving before the last switch. Returns false if there " +
+			"is no store to switch back to.")
+	@PluginTarget(GraphDatabaseService.class)
+	public Representation rollback_store(@Source GraphDatabaseService graphDb) throws IOException {
+		return OTRepresentationConverter.convert(ServingStore.getServingStore(graphDb).rollback());
+	}
+
 	/**
 	 * helper function for reading a nexson from a url
 	 * 
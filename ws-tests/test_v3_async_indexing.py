@@ -0,0 +1,69 @@
+#!/usr/bin/env python
+# Remove and re-index a study with asynchronous jobs, polling indexing_job_status until each job has finished.
+from opentreetesting import test_http_json_method, config
+import time
+import sys
+
+DOMAIN = config('host', 'apihost')
+STUDY_ID = 'pg_41'
+NEXSON_URL = DOMAIN + '/phylesystem/v1/study/' + STUDY_ID + '.json'
+QUERY = {'property': 'ot:studyId', 'value': STUDY_ID, 'exact': True}
+TIMEOUT_SECONDS = 120
+
+def post(path, data):
+    r = test_http_json_method(DOMAIN + path,
+                              'POST',
+                              data=data,
+                              expected_status=200,
+                              return_bool_data=True)
+    if not r[0]:
+        sys.exit(1)
+    return r[1]
+
+def fail(msg):
+    sys.stderr.write(msg + '\n')
+    sys.exit(1)
+
+def wait_for(job_id):
+    deadline = time.time() + TIMEOUT_SECONDS
+    while time.time() < deadline:
+        job = post('/v3/studies/indexing_job_status', {'job_id': job_id})
+        if job['job_id'] != job_id:
+            fail('asked for job {}, got {}'.format(job_id, job))
+        if job['status'] in ('complete', 'failed', 'superseded'):
+            return job
+        time.sleep(1)
+    fail('job {} did not finish within {} seconds'.format(job_id, TIMEOUT_SECONDS))
+
+def count_matches():
+    return len(post('/v3/studies/find_studies', QUERY)['matched_studies'])
+
+resp = post('/v3/studies/unindex_studies', {'ids': [STUDY_ID], 'async': True})
+if len(resp['job_ids']) != 1:
+    fail('expected one job id, got {}'.format(resp))
+job = wait_for(resp['job_ids'][0])
+if job['status'] != 'complete' or job['type'] != 'unindex':
+    fail('unindex job did not complete: {}'.format(job))
+if count_matches() != 0:
+    fail('{} was still found after it was unindexed'.format(STUDY_ID))
+
+job = post('/v3/studies/index_study', {'url': NEXSON_URL, 'async': True})
+if job['status'] in ('failed', 'superseded'):
+    fail('index job was not queued: {}'.format(job))
+job = wait_for(job['job_id'])
+if job['status'] != 'complete' or job.get('study_id') != STUDY_ID:
+    fail('index job did not complete: {}'.format(job))
+if count_matches() != 1:
+    fail('{} was not found after it was indexed'.format(STUDY_ID))
+
+# the job list includes the finished jobs
+jobs = post('/v3/studies/indexing_job_status', {})
+if job['job_id'] not in [j['job_id'] for j in jobs['jobs']] or 'unfinished' not in jobs:
+    fail('job {} is missing from the job list {}'.format(job['job_id'], jobs))
+
+resp = test_http_json_method(DOMAIN + '/v3/studies/indexing_job_status',
+                             'POST',
+                             data={'job_id': -1},
+                             expected_status=400)
+if not resp:
+    fail('an unknown job id was not rejected')
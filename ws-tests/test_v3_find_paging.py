@@ -0,0 +1,102 @@
+#!/usr/bin/env python
+# Page through all the studies with limit, offset and cursor, and check that the pages add up to the unpaged result.
+from opentreetesting import test_http_json_method, config
+import sys
+
+DOMAIN = config('host', 'apihost')
+PAGE_SIZE = 2
+
+def post(path, data):
+    r = test_http_json_method(DOMAIN + path,
+                              'POST',
+                              data=data,
+                              expected_status=200,
+                              return_bool_data=True)
+    if not r[0]:
+        sys.exit(1)
+    return r[1]
+
+def fail(msg):
+    sys.stderr.write(msg + '\n')
+    sys.exit(1)
+
+def study_ids(resp):
+    return [study['ot:studyId'] for study in resp['matched_studies']]
+
+all_ids = study_ids(post('/v3/studies/find_studies', {}))
+if len(all_ids) <= PAGE_SIZE:
+    fail('need more than {} indexed studies to test paging, found {}'.format(PAGE_SIZE, len(all_ids)))
+
+# follow the cursor to the end
+paged_ids = []
+data = {'limit': PAGE_SIZE}
+while True:
+    resp = post('/v3/studies/find_studies', data)
+    page = study_ids(resp)
+    if len(page) > PAGE_SIZE:
+        fail('asked for {} studies, got {}'.format(PAGE_SIZE, len(page)))
+    paged_ids.extend(page)
+    if 'next_cursor' not in resp:
+        break
+    if len(page) == 0:
+        fail('empty page returned with a next_cursor')
+    data = {'limit': PAGE_SIZE, 'cursor': resp['next_cursor']}
+if sorted(paged_ids) != sorted(all_ids) or len(set(paged_ids)) != len(paged_ids):
+    fail('cursor paging returned {}, expected {}'.format(paged_ids, all_ids))
+
+# offsets should give the same pages as the cursor
+offset_ids = []
+for offset in range(0, len(all_ids), PAGE_SIZE):
+    offset_ids.extend(study_ids(post('/v3/studies/find_studies', {'limit': PAGE_SIZE, 'offset': offset})))
+if offset_ids != paged_ids:
+    fail('offset paging returned {}, cursor paging returned {}'.format(offset_ids, paged_ids))
+
+# an offset past the end returns nothing
+resp = post('/v3/studies/find_studies', {'limit': PAGE_SIZE, 'offset': len(all_ids)})
+if study_ids(resp) or 'next_cursor' in resp:
+    fail('expected an empty last page, got {}'.format(resp))
+
+# find_trees pages by study too
+tree_query = {'property': 'ot:studyId', 'value': 'pg_41', 'exact': True}
+resp = post('/v3/studies/find_trees', dict(tree_query, limit=1))
+if len(resp['matched_studies']) != 1 or 'next_cursor' in resp:
+    fail('expected one study with trees and no next page, got {}'.format(resp))
+resp = post('/v3/studies/find_trees', dict(tree_query, limit=1, offset=1))
+if resp['matched_studies']:
+    fail('expected no studies after the first, got {}'.format(resp['matched_studies']))
+
+# find_trees pages through several studies with the cursor too. search on a value of one of the trees found above,
+# which the trees of other studies are likely to share, and check that the pages add up to the unpaged result
+def study_trees(resp):
+    return [(study['ot:studyId'], sorted(t['nexson_id'] for t in study['matched_trees'])) for study in resp['matched_studies']]
+
+tree_properties = post('/v3/studies/properties', {})['tree_properties']
+tree = post('/v3/studies/find_trees', dict(tree_query, verbose=True))['matched_studies'][0]['matched_trees'][0]
+for prop in sorted(tree_properties):
+    if prop != 'ot:studyId' and isinstance(tree.get(prop), (str, type(u''))):
+        shared_query = {'property': prop, 'value': tree[prop], 'exact': True}
+        all_trees = study_trees(post('/v3/studies/find_trees', shared_query))
+        if len(all_trees) > 1:
+            break
+else:
+    shared_query = None
+    sys.stderr.write('no tree property value is shared by several studies, so find_trees cursor paging was not checked\n')
+
+if shared_query:
+    paged_trees = []
+    data = dict(shared_query, limit=1)
+    while True:
+        resp = post('/v3/studies/find_trees', data)
+        paged_trees.extend(study_trees(resp))
+        if 'next_cursor' not in resp:
+            break
+        data = dict(shared_query, limit=1, cursor=resp['next_cursor'])
+    if sorted(paged_trees) != sorted(all_trees) or len(paged_trees) != len(all_trees):
+        fail('find_trees cursor paging returned {}, expected {}'.format(paged_trees, all_trees))
+
+# a limit of 0 is refused, since no cursor could be returned to continue from
+if not test_http_json_method(DOMAIN + '/v3/studies/find_studies',
+                             'POST',
+                             data={'limit': 0},
+                             expected_status=400):
+    fail('a limit of 0 was not refused')
@@ -0,0 +1,47 @@
+#!/usr/bin/env python
+# Check that fuzzy searches match a misspelled value, and that they find everything the exact search finds.
+from opentreetesting import test_http_json_method, config
+import sys
+
+DOMAIN = config('host', 'apihost')
+STUDY_ID = 'pg_41'
+PROPERTY = 'ot:focalCladeOTTTaxonName'
+VALUE = 'Feddea'
+MISSPELLED = 'Feddia'
+
+def post(path, data):
+    r = test_http_json_method(DOMAIN + path,
+                              'POST',
+                              data=data,
+                              expected_status=200,
+                              return_bool_data=True)
+    if not r[0]:
+        sys.exit(1)
+    return r[1]
+
+def fail(msg):
+    sys.stderr.write(msg + '\n')
+    sys.exit(1)
+
+def find(path, value, exact):
+    resp = post(path, {'property': PROPERTY, 'value': value, 'exact': exact})
+    return set(study['ot:studyId'] for study in resp['matched_studies'])
+
+for path in ['/v3/studies/find_studies', '/v3/studies/find_trees']:
+    exact = find(path, VALUE, True)
+    if STUDY_ID not in exact:
+        fail('{} did not find {} with {} = {}'.format(path, STUDY_ID, PROPERTY, VALUE))
+    fuzzy = find(path, VALUE, False)
+    if not exact <= fuzzy:
+        fail('{} fuzzy search missed exact matches {}'.format(path, exact - fuzzy))
+    if STUDY_ID in find(path, MISSPELLED, True):
+        fail('{} exact search matched the misspelled value {}'.format(path, MISSPELLED))
+    misspelled = find(path, MISSPELLED, False)
+    if STUDY_ID not in misspelled:
+        fail('{} fuzzy search for {} did not find {}'.format(path, MISSPELLED, STUDY_ID))
+
+# the v2 services share the fuzzy matcher, so they must agree with v3
+v2 = post('/v2/studies/find_studies', {'property': PROPERTY, 'value': MISSPELLED, 'exact': False})
+v2_ids = set(study['ot:studyId'] for study in v2['matched_studies'])
+if v2_ids != find('/v3/studies/find_studies', MISSPELLED, False):
+    fail('v2 and v3 fuzzy searches for {} differ'.format(MISSPELLED))
@@ -0,0 +1,29 @@
+#!/usr/bin/env python
+# Check that index_local_studies refuses paths outside the directory named by the server's oti.ingest.root property,
+# including paths that only reach outside it through relative components. Set OTI_INGEST_ROOT to that directory (as
+# seen by the server) to also check the relative path case; otherwise only an absolute path outside it is checked.
+from opentreetesting import test_http_json_method, config
+import os
+import sys
+
+DOMAIN = config('host', 'apihost')
+INDEX_LOCAL_URI = DOMAIN + '/v3/studies/index_local_studies'
+
+def fail(msg):
+    sys.stderr.write(msg + '\n')
+    sys.exit(1)
+
+def refused(path):
+    return test_http_json_method(INDEX_LOCAL_URI,
+                                 'POST',
+                                 data={'paths': [path]},
+                                 expected_status=500)
+
+# a path outside the root (or any path, if no root is configured) is refused
+if not refused('/etc'):
+    fail('a path outside oti.ingest.root was not refused')
+
+root = os.environ.get('OTI_INGEST_ROOT')
+if root:
+    if not refused(os.path.join(root, '..', '..', 'etc')):
+        fail('a path leaving oti.ingest.root through .. was not refused')
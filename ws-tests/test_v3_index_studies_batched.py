@@ -0,0 +1,51 @@
+#!/usr/bin/env python
+# Index several studies in one index_studies call, with group commits of two studies and several fetch threads, and
+# check that each study is reported and indexed exactly once, and that a url that cannot be fetched is reported as an
+# error without stopping the others.
+from opentreetesting import test_http_json_method, config
+import sys
+
+DOMAIN = config('host', 'apihost')
+PHYLESYSTEM = DOMAIN + '/phylesystem/v1/'
+NUM_STUDIES = 5
+BAD_URL = PHYLESYSTEM + 'study/no_such_study.json'
+
+def fail(msg):
+    sys.stderr.write(msg + '\n')
+    sys.exit(1)
+
+def post(path, data):
+    r = test_http_json_method(DOMAIN + path,
+                              'POST',
+                              data=data,
+                              expected_status=200,
+                              return_bool_data=True)
+    if not r[0]:
+        sys.exit(1)
+    return r[1]
+
+r = test_http_json_method(PHYLESYSTEM + 'study_list',
+                          'GET',
+                          expected_status=200,
+                          return_bool_data=True)
+if not r[0]:
+    sys.exit(1)
+study_ids = r[1][:NUM_STUDIES]
+if len(study_ids) < 2:
+    fail('need at least two studies to test group commits, found {}'.format(study_ids))
+
+# the first study is listed twice, so one group holds two versions of it
+urls = [PHYLESYSTEM + 'study/' + study_id + '.json' for study_id in study_ids]
+urls.insert(1, urls[0])
+urls.append(BAD_URL)
+
+report = post('/v3/studies/index_studies', {'urls': urls, 'commit_batch_size': 2, 'fetch_threads': 3})
+if sorted(set(report['indexed'])) != sorted(study_ids):
+    fail('expected {} to be indexed, got {}'.format(study_ids, report['indexed']))
+if list(report['errors'].keys()) != [BAD_URL]:
+    fail('expected only {} to fail, got {}'.format(BAD_URL, report['errors']))
+
+for study_id in study_ids:
+    found = post('/v3/studies/find_studies', {'property': 'ot:studyId', 'value': study_id, 'exact': True})
+    if len(found['matched_studies']) != 1:
+        fail('expected one copy of {}, found {}'.format(study_id, len(found['matched_studies'])))
@@ -0,0 +1,54 @@
+#!/usr/bin/env python
+# Index the same study from several clients at once, alternating between the in-memory and streaming paths (which
+# hash studies differently, so every write replaces the trees), and check that exactly one copy of the study and of
+# each of its trees is left.
+from opentreetesting import test_http_json_method, config
+import threading
+import sys
+
+DOMAIN = config('host', 'apihost')
+STUDY_ID = 'pg_41'
+NEXSON_URL = DOMAIN + '/phylesystem/v1/study/' + STUDY_ID + '.json'
+WRITERS = 6
+
+def post(path, data):
+    return test_http_json_method(DOMAIN + path,
+                                 'POST',
+                                 data=data,
+                                 expected_status=200,
+                                 return_bool_data=True)
+
+if not post('/v3/studies/unindex_studies', {'ids': [STUDY_ID]})[0]:
+    sys.exit(1)
+
+results = []
+def write(streaming):
+    results.append(post('/v3/studies/index_study', {'url': NEXSON_URL, 'streaming': streaming})[0])
+
+threads = [threading.Thread(target=write, args=(i % 2 == 1,)) for i in range(WRITERS)]
+for t in threads:
+    t.start()
+for t in threads:
+    t.join()
+if len(results) != WRITERS or not all(results):
+    sys.stderr.write('{} of {} concurrent writes failed\n'.format(WRITERS - sum(results), WRITERS))
+    sys.exit(1)
+
+r = post('/v3/studies/find_studies', {'property': 'ot:studyId', 'value': STUDY_ID, 'exact': True})
+if not r[0]:
+    sys.exit(1)
+if len(r[1]['matched_studies']) != 1:
+    sys.stderr.write('expected one copy of {}, found {}\n'.format(STUDY_ID, len(r[1]['matched_studies'])))
+    sys.exit(1)
+
+r = post('/v3/studies/find_trees', {'property': 'ot:studyId', 'value': STUDY_ID, 'exact': True})
+if not r[0]:
+    sys.exit(1)
+studies = r[1]['matched_studies']
+if len(studies) != 1:
+    sys.stderr.write('expected one study with trees, found {}\n'.format(len(studies)))
+    sys.exit(1)
+tree_ids = [tree['oti_tree_id'] for tree in studies[0]['matched_trees']]
+if len(tree_ids) == 0 or len(tree_ids) != len(set(tree_ids)):
+    sys.stderr.write('expected each tree once, found {}\n'.format(tree_ids))
+    sys.exit(1)
@@ -0,0 +1,59 @@
+#!/usr/bin/env python
+# Check that repeated searches are served from the query cache, and that removing and re-indexing a study invalidates
+# the cached results.
+from opentreetesting import test_http_json_method, config
+import sys
+
+DOMAIN = config('host', 'apihost')
+STUDY_ID = 'pg_41'
+NEXSON_URL = DOMAIN + '/phylesystem/v1/study/' + STUDY_ID + '.json'
+QUERY = {'property': 'ot:studyId', 'value': STUDY_ID, 'exact': True}
+
+def post(path, data):
+    r = test_http_json_method(DOMAIN + path,
+                              'POST',
+                              data=data,
+                              expected_status=200,
+                              return_bool_data=True)
+    if not r[0]:
+        sys.exit(1)
+    return r[1]
+
+def fail(msg):
+    sys.stderr.write(msg + '\n')
+    sys.exit(1)
+
+def cache_status():
+    status = post('/v3/studies/query_cache_status', {})
+    for key in ['size', 'max_size', 'hits', 'misses', 'hit_ratio', 'evictions', 'invalidated_entries', 'generation']:
+        if key not in status:
+            fail('query_cache_status is missing {}: {}'.format(key, status))
+    return status
+
+def count_matches():
+    return len(post('/v3/studies/find_studies', QUERY)['matched_studies'])
+
+post('/v3/studies/index_study', {'url': NEXSON_URL})
+if count_matches() != 1:
+    fail('expected {} to be indexed'.format(STUDY_ID))
+before = cache_status()
+if count_matches() != 1:
+    fail('expected the cached result to match {}'.format(STUDY_ID))
+after = cache_status()
+if after['hits'] <= before['hits']:
+    fail('repeated search was not served from the cache: {} then {}'.format(before, after))
+
+# removing the study must not leave it in cached results
+post('/v3/studies/unindex_studies', {'ids': [STUDY_ID]})
+removed = cache_status()
+if removed['generation'] <= after['generation']:
+    fail('unindexing did not invalidate the cache: {} then {}'.format(after, removed))
+if count_matches() != 0:
+    fail('{} was still found after it was unindexed'.format(STUDY_ID))
+
+# and re-indexing must not leave the empty result cached
+post('/v3/studies/index_study', {'url': NEXSON_URL})
+if cache_status()['generation'] <= removed['generation']:
+    fail('indexing did not invalidate the cache')
+if count_matches() != 1:
+    fail('{} was not found after it was re-indexed'.format(STUDY_ID))
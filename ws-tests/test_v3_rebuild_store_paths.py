@@ -0,0 +1,29 @@
+#!/usr/bin/env python
+# Check that rebuild_store refuses nexson paths outside the directory named by the server's oti.ingest.root property
+# and taxonomy dbs outside the one named by oti.taxonomy.root, before any rebuild is started. Set OTI_INGEST_ROOT to
+# the ingest root (as seen by the server) to also check the taxonomy_db case with an allowed nexson path.
+from opentreetesting import test_http_json_method, config
+import os
+import sys
+
+DOMAIN = config('host', 'apihost')
+REBUILD_URI = DOMAIN + '/v3/studies/rebuild_store'
+
+def fail(msg):
+    sys.stderr.write(msg + '\n')
+    sys.exit(1)
+
+def refused(data):
+    data['switch'] = False
+    return test_http_json_method(REBUILD_URI,
+                                 'POST',
+                                 data=data,
+                                 expected_status=500)
+
+if not refused({'paths': ['/etc']}):
+    fail('a nexson path outside oti.ingest.root was not refused')
+
+root = os.environ.get('OTI_INGEST_ROOT')
+if root:
+    if not refused({'paths': [root], 'taxonomy_db': '/'}):
+        fail('a taxonomy_db outside oti.taxonomy.root was not refused')
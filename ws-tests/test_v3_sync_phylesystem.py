@@ -0,0 +1,51 @@
+#!/usr/bin/env python
+# Sync the index with a local phylesystem clone twice, and check that the second sync starts from the commit the first
+# one reached. The clone must be inside the directory named by the server's oti.phylesystem.root property; set
+# OTI_PHYLESYSTEM_REPO to its path on the server to run this test. Without it, only the rejection of a path outside
+# that directory is checked.
+from opentreetesting import test_http_json_method, config
+import os
+import sys
+
+DOMAIN = config('host', 'apihost')
+SYNC_URI = DOMAIN + '/v3/studies/sync_phylesystem'
+
+def fail(msg):
+    sys.stderr.write(msg + '\n')
+    sys.exit(1)
+
+# a repo outside the root (or any repo, if no root is configured) is refused
+if not test_http_json_method(SYNC_URI,
+                             'POST',
+                             data={'repo_path': '/'},
+                             expected_status=500):
+    fail('a repo_path outside oti.phylesystem.root was not refused')
+
+repo = os.environ.get('OTI_PHYLESYSTEM_REPO')
+if not repo:
+    sys.stderr.write('OTI_PHYLESYSTEM_REPO is not set, so sync_phylesystem was not run\n')
+    sys.exit(0)
+
+def sync():
+    r = test_http_json_method(SYNC_URI,
+                              'POST',
+                              data={'repo_path': repo},
+                              expected_status=200,
+                              return_bool_data=True)
+    if not r[0]:
+        sys.exit(1)
+    for key in ['from_commit', 'to_commit', 'indexed', 'deleted', 'not_found', 'errors']:
+        if key not in r[1]:
+            fail('sync_phylesystem result is missing {}: {}'.format(key, r[1]))
+    return r[1]
+
+first = sync()
+if first['errors']:
+    fail('studies could not be indexed, so the synced commit was not recorded: {}'.format(first['errors']))
+second = sync()
+if second['from_commit'] != first['to_commit']:
+    fail('second sync started from {}, expected {}'.format(second['from_commit'], first['to_commit']))
+if second['deleted']:
+    fail('nothing changed between syncs, but {} were removed'.format(second['deleted']))
+if second['indexed']:
+    fail('nothing changed between syncs, but {} were indexed'.format(second['indexed']))